@@ -0,0 +1,172 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Writes strings and numbers to a {@link ByteBuffer} as ASCII (strings as UTF-8), without the intermediate
+ * {@link String}s (and byte arrays) of formatting and encoding. The caller is responsible for ensuring there is room;
+ * See {@link #MAX_NUMBER_LENGTH}.
+ */
+public final class Ascii {
+
+    /** The most bytes that {@link #putLong(ByteBuffer, long)} or {@link #putDouble(ByteBuffer, double)} will write. */
+    public static final int MAX_NUMBER_LENGTH = 26;
+
+    /** Significant digits written of a double (below 1e15). */
+    private static final int SIGNIFICANT_DIGITS = 15;
+
+    private static final long[] POW10 = new long[19];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10;
+    }
+
+    private static final byte[] NAN = "NaN".getBytes(Charsets.US_ASCII);
+    private static final byte[] INFINITY = "Infinity".getBytes(Charsets.US_ASCII);
+    private static final byte[] LONG_MIN = Long.toString(Long.MIN_VALUE).getBytes(Charsets.US_ASCII);
+
+    private Ascii() {
+    }
+
+    /**
+     * Writes a string, (UTF-8 encoded).
+     *
+     * @param buffer
+     *            the buffer to write to; Needs room for up to 3 bytes per char
+     * @param value
+     *            the string to write
+     */
+    public static void putString(ByteBuffer buffer, CharSequence value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Not worth the trouble; Metric names are ASCII in all but the most unusual of circumstances.
+                buffer.put(value.subSequence(i, length).toString().getBytes(Charsets.UTF_8));
+                return;
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    /**
+     * Writes a long, (the equivalent of {@link Long#toString(long)}).
+     *
+     * @param buffer
+     *            the buffer to write to
+     * @param value
+     *            the value to write
+     */
+    public static void putLong(ByteBuffer buffer, long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.put(LONG_MIN);
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        putDigits(buffer, value, digits(value));
+    }
+
+    /**
+     * Writes a double; Fixed-point to 15 significant digits, except for magnitudes outside of [1e-3, 1e15) which are
+     * written as {@link Double#toString(double)} would.
+     *
+     * @param buffer
+     *            the buffer to write to
+     * @param value
+     *            the value to write
+     */
+    public static void putDouble(ByteBuffer buffer, double value) {
+        if (Double.isNaN(value)) {
+            buffer.put(NAN);
+            return;
+        }
+
+        double abs = Math.abs(value);
+
+        if (abs != 0.0d && (abs < 1e-3d || abs >= 1e15d || Double.isInfinite(value))) {
+            if (Double.isInfinite(value)) {
+                if (value < 0)
+                    buffer.put((byte) '-');
+                buffer.put(INFINITY);
+            }
+            else {
+                putString(buffer, Double.toString(value));
+            }
+            return;
+        }
+
+        if (value < 0 || (value == 0.0d && 1.0d / value < 0))
+            buffer.put((byte) '-');
+
+        long integral = (long) abs;
+        int scale;
+
+        if (integral > 0) {
+            scale = Math.max(1, SIGNIFICANT_DIGITS - digits(integral));
+        }
+        else {
+            // Leading zeros of a fraction aren't significant, (i.e. 0.00123).
+            scale = SIGNIFICANT_DIGITS;
+            while (abs != 0.0d && abs * POW10[scale - SIGNIFICANT_DIGITS + 1] < 1.0d)
+                scale++;
+        }
+
+        long fraction = Math.round((abs - integral) * POW10[scale]);
+
+        // Rounding can carry into the integral part, (i.e. 0.9999999999999999).
+        if (fraction >= POW10[scale]) {
+            integral++;
+            fraction -= POW10[scale];
+        }
+
+        // No more fractional digits than needed, but at least one (as with Double.toString()).
+        while (scale > 1 && fraction % 10 == 0) {
+            fraction /= 10;
+            scale--;
+        }
+
+        putDigits(buffer, integral, digits(integral));
+        buffer.put((byte) '.');
+        putDigits(buffer, fraction, scale);
+    }
+
+    /** Number of decimal digits in a non-negative value, (1 for 0). */
+    private static int digits(long value) {
+        for (int i = 1; i < POW10.length; i++)
+            if (value < POW10[i])
+                return i;
+        return POW10.length;
+    }
+
+    /** Writes a non-negative value as exactly count digits, (zero-padded). */
+    private static void putDigits(ByteBuffer buffer, long value, int count) {
+        int end = buffer.position() + count;
+        for (int i = end - 1; i >= end - count; i--) {
+            buffer.put(i, (byte) ('0' + (value % 10)));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+}
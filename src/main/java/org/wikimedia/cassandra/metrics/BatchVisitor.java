@@ -0,0 +1,32 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+/**
+ * Visitor of the samples collected from each MBean, a {@link SampleBatch} at a time, (see
+ * {@link JmxCollector#getBatches(BatchVisitor)}); The batch-at-a-time counterpart of {@link SampleVisitor}, for
+ * visitors that write samples out without keeping them.
+ */
+public interface BatchVisitor {
+
+    /**
+     * Visit a batch; The batch is reused once this returns, and must not be kept.
+     *
+     * @param batch
+     *            the samples of an MBean
+     */
+    void visit(SampleBatch batch);
+
+}
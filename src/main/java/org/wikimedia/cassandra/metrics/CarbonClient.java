@@ -0,0 +1,559 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-lived, non-blocking connection to Carbon, shared by everything that writes to it.
+ * <p>
+ * Writers submit batches of complete lines with {@link #send(byte[], int, int)}, which queues them (without blocking)
+ * for a single I/O thread to write. Batches that would take the bytes outstanding past a limit are refused, (and
+ * counted as dropped). If the connection is lost, the batch being written is dropped, and reconnection is attempted
+ * with exponential backoff; Queued batches are written once connected.
+ * </p>
+ * <p>
+ * Optionally, batches that would otherwise be dropped (while disconnected, or with too many bytes outstanding) are
+ * written to a {@link Spool} instead, and replayed from it once connected; Live batches take priority, and replay is
+ * limited to a rate, so that catching up on an outage neither delays current samples nor floods Carbon.
+ * </p>
+ */
+public class CarbonClient implements CarbonDestination {
+
+    /** Default limit on bytes queued (or being written), in bytes. */
+    public static final long DEFAULT_MAX_OUTSTANDING = 16 * 1024 * 1024;
+
+    static final long DEFAULT_MIN_BACKOFF = 1000;
+    static final long DEFAULT_MAX_BACKOFF = 60000;
+
+    /** Time allowed on close for outstanding batches to be written, in milliseconds. */
+    private static final long DRAIN_TIMEOUT = 5000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CarbonClient.class);
+
+    private final String hostname;
+    private final int port;
+    private final CarbonProtocol protocol;
+    private final long maxOutstanding;
+    private final long minBackoff;
+    private final long maxBackoff;
+
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final Selector selector;
+    private final Thread thread;
+
+    private volatile boolean isClosed = false;
+    private volatile boolean isUp = true;
+    private Spool spool;
+    private long replayRate;
+
+    // Accessed only by the I/O thread.
+    private SocketChannel channel;
+    private boolean connected = false;
+    private ByteBuffer current;
+    private long backoff;
+    private long nextAttempt = 0;
+    private boolean replaying = false;
+    private double replayAllowance = 0;
+    private long replayRefilled = 0;
+    private long nextReplay = 0;
+    private final ByteBuffer discard = ByteBuffer.allocate(1024);
+
+    public CarbonClient(String host, int port) throws IOException {
+        this(host, port, DEFAULT_MAX_OUTSTANDING);
+    }
+
+    public CarbonClient(String host, int port, long maxOutstanding) throws IOException {
+        this(host, port, CarbonProtocol.PLAINTEXT, maxOutstanding);
+    }
+
+    public CarbonClient(String host, int port, CarbonProtocol protocol, long maxOutstanding) throws IOException {
+        this(host, port, protocol, maxOutstanding, DEFAULT_MIN_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Create a new {@link CarbonClient}; Call {@link #start()} to begin writing.
+     *
+     * @param host
+     *            Carbon hostname
+     * @param port
+     *            Carbon port number
+     * @param protocol
+     *            the protocol Carbon receives on this port
+     * @param maxOutstanding
+     *            limit on the bytes queued (or being written)
+     * @param minBackoff
+     *            milliseconds to wait before the first reconnection attempt
+     * @param maxBackoff
+     *            the most milliseconds to wait between reconnection attempts
+     * @throws IOException
+     *             if a selector cannot be opened
+     */
+    public CarbonClient(String host, int port, CarbonProtocol protocol, long maxOutstanding, long minBackoff, long maxBackoff)
+            throws IOException {
+        this.hostname = checkNotNull(host, "host argument");
+        this.protocol = checkNotNull(protocol, "protocol argument");
+        checkArgument((port > 0 && port <= 65535), "port argument");
+        checkArgument(maxOutstanding > 0, "maxOutstanding argument");
+        checkArgument(minBackoff > 0 && maxBackoff >= minBackoff, "backoff arguments");
+        this.port = port;
+        this.maxOutstanding = maxOutstanding;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        this.backoff = minBackoff;
+        this.selector = Selector.open();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, String.format("carbon-client-%s:%d", host, port));
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Spools batches that would otherwise be dropped, for replay once connected; Call before {@link #start()}. The
+     * spool is closed with the client.
+     *
+     * @param spool
+     *            the spool
+     * @param replayRate
+     *            limit on the rate of replay, in bytes per second
+     */
+    public void setSpool(Spool spool, long replayRate) {
+        checkState(!this.thread.isAlive(), "cannot set spool of started client");
+        checkArgument(replayRate > 0, "replayRate argument");
+        this.spool = checkNotNull(spool, "spool argument");
+        this.replayRate = replayRate;
+    }
+
+    /** Starts the I/O thread. */
+    @Override
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Queues a batch of lines to be written.
+     *
+     * @param bytes
+     *            the batch; One or more complete lines (copied)
+     * @param offset
+     *            offset of the batch in bytes
+     * @param length
+     *            length of the batch
+     * @return true if queued (or spooled), false if dropped (because too many bytes are already outstanding)
+     */
+    @Override
+    public boolean send(byte[] bytes, int offset, int length) {
+        checkState(!this.isClosed, "cannot write to closed object");
+
+        if (length == 0)
+            return true;
+
+        if (this.spool == null || this.isUp) {
+            if (this.outstanding.addAndGet(length) <= this.maxOutstanding) {
+                this.queue.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length)));
+                this.selector.wakeup();
+                return true;
+            }
+            this.outstanding.addAndGet(-length);
+        }
+
+        // Disconnected, or too many bytes outstanding; Spooled, if there is a spool.
+        if (this.spool != null && spool(bytes, offset, length)) {
+            this.selector.wakeup();
+            return true;
+        }
+
+        this.dropped.addAndGet(length);
+        return false;
+    }
+
+    /** Appends a batch to the spool; Returns false if it cannot be. */
+    private boolean spool(byte[] bytes, int offset, int length) {
+        try {
+            if (this.spool.append(bytes, offset, length)) {
+                this.spooled.addAndGet(length);
+                return true;
+            }
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to spool batch", e);
+        }
+        catch (IllegalStateException e) {
+            // The spool was closed (with the client) since the batch was sent; Dropped.
+        }
+        return false;
+    }
+
+    /** @return a new connector (for the client's protocol) that writes to this client */
+    @Override
+    public CarbonConnector connector() {
+        return this.protocol.connector(this);
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return CarbonConnector.DEFAULT_BUFFER_SIZE;
+    }
+
+    @Override
+    public CarbonProtocol getProtocol() {
+        return this.protocol;
+    }
+
+    @Override
+    public String getHostname() {
+        return this.hostname;
+    }
+
+    @Override
+    public int getPort() {
+        return this.port;
+    }
+
+    /** @return the number of bytes queued or being written */
+    public long getOutstanding() {
+        return this.outstanding.get();
+    }
+
+    /** @return the number of bytes written */
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    /** @return the number of bytes dropped, (refused, or lost to a failed connection) */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /** @return the number of connections established */
+    public long getConnects() {
+        return this.connects.get();
+    }
+
+    /** @return the number of failed connections (or connection attempts) */
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    /** @return the number of bytes spooled, (see {@link #setSpool(Spool, long)}) */
+    public long getSpooled() {
+        return this.spooled.get();
+    }
+
+    /** @return the spool, or null if there is none */
+    public Spool getSpool() {
+        return this.spool;
+    }
+
+    /** Closes the client, allowing a few seconds for outstanding batches to be written. */
+    @Override
+    public void close() throws IOException {
+        if (this.isClosed)
+            return;
+
+        this.isClosed = true;
+        this.selector.wakeup();
+
+        try {
+            this.thread.join(DRAIN_TIMEOUT + 1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CarbonClient [hostname=" + hostname + ", port=" + port + ", protocol=" + protocol + ", maxOutstanding=" + maxOutstanding
+                + ", outstanding=" + outstanding + ", sent=" + sent + ", dropped=" + dropped + ", isClosed=" + isClosed
+                + "]";
+    }
+
+    private void loop() {
+        long deadline = Long.MAX_VALUE;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+
+                if (this.isClosed) {
+                    if (deadline == Long.MAX_VALUE)
+                        deadline = now + DRAIN_TIMEOUT;
+                    if (!isLivePending() || now >= deadline)
+                        break;
+                }
+
+                // Anything unexpected is treated as a failed connection; The client reconnects after the usual backoff,
+                // (exiting instead would leave writers queueing to a client that never sends).
+                try {
+                    poll(now, deadline);
+                }
+                catch (IOException | RuntimeException e) {
+                    if (!this.selector.isOpen())
+                        throw e;
+                    LOG.error("Unexpected error in carbon client; Reconnecting", e);
+                    this.selector.selectedKeys().clear();
+                    failed(e);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            LOG.error("Unexpected error in carbon client; Exiting", e);
+        }
+        finally {
+            disconnect();
+            drop();
+            if (this.spool != null)
+                this.spool.close();
+            try {
+                this.selector.close();
+            }
+            catch (IOException e) {
+                LOG.warn("Error closing selector", e);
+            }
+        }
+    }
+
+    /** One pass of the I/O loop: connects if due, then waits (up to the next thing due) for, and handles, I/O. */
+    private void poll(long now, long deadline) throws IOException {
+        if (this.channel == null && isPending() && now >= this.nextAttempt)
+            connect();
+
+        updateInterest();
+
+        long timeout = (this.channel == null && isPending()) ? Math.max(1, this.nextAttempt - now) : 0;
+        if (this.connected && !isLivePending() && isReplayPending())
+            timeout = Math.max(1, this.nextReplay - now);
+        if (this.isClosed)
+            timeout = Math.max(1, (timeout == 0) ? deadline - now : Math.min(timeout, deadline - now));
+
+        this.selector.select(timeout);
+
+        for (SelectionKey key : this.selector.selectedKeys()) {
+            if (!key.isValid())
+                continue;
+            if (key.isConnectable())
+                finishConnect();
+            else if (key.isReadable())
+                read();
+            if (key.isValid() && this.connected && key.isWritable())
+                write();
+        }
+        this.selector.selectedKeys().clear();
+    }
+
+    private boolean isPending() {
+        return isLivePending() || isReplayPending();
+    }
+
+    private boolean isLivePending() {
+        return this.current != null || !this.queue.isEmpty();
+    }
+
+    private boolean isReplayPending() {
+        return this.spool != null && !this.isClosed && this.spool.getPendingRecords() > 0;
+    }
+
+    private void connect() {
+        try {
+            this.channel = SocketChannel.open();
+            this.channel.configureBlocking(false);
+            if (this.channel.connect(new InetSocketAddress(this.hostname, this.port)))
+                connected();
+            else
+                this.channel.register(this.selector, SelectionKey.OP_CONNECT);
+        }
+        catch (IOException | RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    private void finishConnect() {
+        try {
+            if (this.channel.finishConnect())
+                connected();
+        }
+        catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void connected() throws IOException {
+        LOG.info("Connected to carbon at {}:{}", this.hostname, this.port);
+        this.connected = true;
+        this.isUp = true;
+        this.backoff = this.minBackoff;
+        this.connects.incrementAndGet();
+        this.channel.register(this.selector, SelectionKey.OP_READ);
+    }
+
+    /** Carbon has nothing to say; Reading serves only to notice that it has closed the connection. */
+    private void read() {
+        try {
+            this.discard.clear();
+            if (this.channel.read(this.discard) < 0)
+                failed(new IOException("connection closed by peer"));
+        }
+        catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                if (this.current == null) {
+                    this.current = this.queue.poll();
+                    if (this.current == null && !nextReplay())
+                        return;
+                }
+
+                int written = this.channel.write(this.current);
+                this.sent.addAndGet(written);
+                if (!this.replaying)
+                    this.outstanding.addAndGet(-written);
+
+                // The socket buffer is full; Wait until writable again.
+                if (this.current.hasRemaining())
+                    return;
+
+                // Replayed batches leave the spool only once written in full.
+                if (this.replaying)
+                    this.spool.commit();
+
+                this.current = null;
+                this.replaying = false;
+            }
+        }
+        catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /** Takes the next batch to replay from the spool, if the replay rate allows; Returns false if there is none. */
+    private boolean nextReplay() {
+        if (!isReplayPending())
+            return false;
+
+        long now = System.currentTimeMillis();
+
+        // A bucket of (up to a second's worth of) bytes, refilled at the replay rate.
+        this.replayAllowance = Math.min(this.replayRate, this.replayAllowance + (now - this.replayRefilled) * this.replayRate / 1000.0d);
+        this.replayRefilled = now;
+
+        if (this.replayAllowance <= 0) {
+            this.nextReplay = now + (long) Math.ceil((1 - this.replayAllowance) * 1000.0d / this.replayRate);
+            return false;
+        }
+
+        byte[] batch = this.spool.peek();
+        if (batch == null)
+            return false;
+
+        this.replayAllowance -= batch.length;
+        this.current = ByteBuffer.wrap(batch);
+        this.replaying = true;
+
+        return true;
+    }
+
+    private void updateInterest() {
+        if (this.channel == null || !this.connected)
+            return;
+        SelectionKey key = this.channel.keyFor(this.selector);
+        boolean writable = isLivePending() || (isReplayPending() && System.currentTimeMillis() >= this.nextReplay);
+        if (key != null && key.isValid())
+            key.interestOps(SelectionKey.OP_READ | (writable ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void failed(Exception e) {
+        LOG.warn("Carbon connection to {}:{} failed ({}); Retrying in {}ms", this.hostname, this.port, e.getMessage(), this.backoff);
+
+        disconnect();
+        this.isUp = false;
+        this.failures.incrementAndGet();
+
+        // What remains of a partially written batch can't be resumed on a new connection, (it would begin mid-line);
+        // It is spooled whole (if there is a spool), or dropped. A replayed batch remains in the spool regardless.
+        if (this.current != null) {
+            int remaining = this.current.remaining();
+            if (!this.replaying) {
+                this.outstanding.addAndGet(-remaining);
+                if (this.spool == null || !spool(this.current.array(), 0, this.current.limit()))
+                    this.dropped.addAndGet(remaining);
+            }
+            this.current = null;
+            this.replaying = false;
+        }
+
+        this.nextAttempt = System.currentTimeMillis() + this.backoff;
+        this.backoff = Math.min(this.backoff * 2, this.maxBackoff);
+    }
+
+    private void disconnect() {
+        if (this.channel == null)
+            return;
+        try {
+            this.channel.close();
+        }
+        catch (IOException e) {
+            LOG.warn("Error closing carbon connection", e);
+        }
+        this.channel = null;
+        this.connected = false;
+    }
+
+    /** Drops (or spools) anything still outstanding, (on exit). */
+    private void drop() {
+        ByteBuffer batch = this.replaying ? null : this.current;
+        this.current = null;
+        this.replaying = false;
+
+        do {
+            if (batch != null) {
+                this.outstanding.addAndGet(-batch.remaining());
+                if (this.spool == null || !spool(batch.array(), 0, batch.limit()))
+                    this.dropped.addAndGet(batch.remaining());
+            }
+        }
+        while ((batch = this.queue.poll()) != null);
+    }
+
+}
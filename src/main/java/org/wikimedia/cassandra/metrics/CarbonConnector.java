@@ -23,16 +23,40 @@ import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_GRAPHITE_PORT;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
 
+/**
+ * Writes metrics to Carbon using the plaintext protocol, (see {@link PickleConnector} for the pickle protocol). Lines are formatted into a reusable buffer, which is written
+ * to the socket when full, when {@link #flush()}ed (i.e. at the end of a collection), and on {@link #close()}.
+ * <p>
+ * Connectors either open a connection of their own, or submit to a (shared) {@link CarbonDestination}, (i.e. a
+ * {@link CarbonClient}); Closing the connector closes only a connection of its own.
+ * </p>
+ */
 public class CarbonConnector implements AutoCloseable {
+
+    /** Default size of the write buffer, in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CarbonConnector.class);
+
     private final String hostname;
     private final int port;
+    private final ByteBuffer buffer;
+    private final CarbonDestination client;
+    private ByteBuffer scratch;
 
     private Socket socket;
     private OutputStream outStream;
     private boolean isClosed = false;
+    private int pendingLines = 0;
+    private long lines = 0;
+    private long bytes = 0;
 
     public CarbonConnector() throws CarbonException {
         this(DEFAULT_GRAPHITE_HOST);
@@ -43,9 +67,16 @@ public class CarbonConnector implements AutoCloseable {
     }
 
     public CarbonConnector(String host, int port) throws CarbonException {
+        this(host, port, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CarbonConnector(String host, int port, int bufferSize) throws CarbonException {
         this.hostname = checkNotNull(host, "host argument");
-        checkArgument((port > 0 && port < Short.MAX_VALUE), "port argument");
+        checkArgument((port > 0 && port <= 65535), "port argument");
+        checkArgument(bufferSize > 0, "bufferSize argument");
         this.port = port;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.client = null;
 
         try {
             this.socket = createSocket();
@@ -55,23 +86,315 @@ public class CarbonConnector implements AutoCloseable {
         }
     }
 
+    public CarbonConnector(CarbonDestination client) {
+        this(client, client.getMaxBatchSize());
+    }
+
+    public CarbonConnector(CarbonDestination client, int bufferSize) {
+        this.client = checkNotNull(client, "client argument");
+        checkArgument(bufferSize > 0, "bufferSize argument");
+        this.hostname = client.getHostname();
+        this.port = client.getPort();
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * For the connectors of a transport that routes each line to a connector of another, (rather than batch any
+     * itself); Such a connector overrides {@link #append(String, byte[], double, long, boolean, String, long)}, and
+     * everything that would otherwise touch the (absent) batch: {@link #flush()}, {@link #close()},
+     * {@link #getLines()}, and {@link #getBytes()}.
+     *
+     * @param router
+     *            the transport, (see {@link ConsistentHashTransport})
+     */
+    protected CarbonConnector(CarbonTransport router) {
+        checkNotNull(router, "router argument");
+        this.hostname = router.toString();
+        this.port = 0;
+        this.buffer = null;
+        this.client = null;
+    }
+
     public void write(Object metric, Object value) throws CarbonException {
         write(metric, value, System.currentTimeMillis() / 1000);
     }
 
     public void write(Object metric, Object value, Number timestamp) throws CarbonException {
+        String name = metric.toString();
+        appendObject(name, name.getBytes(Charsets.UTF_8), value, timestamp.longValue());
+    }
+
+    /**
+     * Writes a metric by its (cached) series name, without formatting or encoding the name again.
+     *
+     * @param series
+     *            the series name, (see {@link SeriesNames})
+     * @param value
+     *            the value
+     * @param timestamp
+     *            the timestamp, in seconds
+     * @throws CarbonException
+     *             if the write fails
+     */
+    public void write(SeriesName series, Object value, Number timestamp) throws CarbonException {
+        appendObject(series.getName(), series.getBytes(), value, timestamp.longValue());
+    }
+
+    /**
+     * Writes a floating point metric by its (cached) series name, without boxing the value, (see {@link SampleBatch}).
+     *
+     * @param series
+     *            the series name, (see {@link SeriesNames})
+     * @param value
+     *            the value
+     * @param timestamp
+     *            the timestamp, in seconds
+     * @throws CarbonException
+     *             if the write fails
+     */
+    public void write(SeriesName series, double value, long timestamp) throws CarbonException {
+        append(series.getName(), series.getBytes(), value, 0L, false, null, timestamp);
+    }
+
+    /**
+     * Writes an integral metric by its (cached) series name, without boxing the value, (see {@link SampleBatch}).
+     *
+     * @param series
+     *            the series name, (see {@link SeriesNames})
+     * @param value
+     *            the value
+     * @param timestamp
+     *            the timestamp, in seconds
+     * @throws CarbonException
+     *             if the write fails
+     */
+    public void write(SeriesName series, long value, long timestamp) throws CarbonException {
+        append(series.getName(), series.getBytes(), value, value, true, null, timestamp);
+    }
+
+    private void appendObject(String name, byte[] encoded, Object value, long timestamp) throws CarbonException {
+        if (value instanceof Double || value instanceof Float) {
+            append(name, encoded, ((Number) value).doubleValue(), 0L, false, null, timestamp);
+        }
+        else if (isIntegral(value)) {
+            long longValue = ((Number) value).longValue();
+            append(name, encoded, longValue, longValue, true, null, timestamp);
+        }
+        else {
+            append(name, encoded, 0.0d, 0L, false, String.valueOf(value), timestamp);
+        }
+    }
+
+    /**
+     * Appends a line to the batch, (flushing if full).
+     *
+     * @param name
+     *            the metric name
+     * @param encoded
+     *            the metric name, UTF-8 encoded
+     * @param value
+     *            the value, if a number
+     * @param longValue
+     *            the value, if integral, (exactly; value is only its nearest double)
+     * @param integral
+     *            true if the value is to be written as an integer
+     * @param text
+     *            the value, if not a number (otherwise null)
+     * @param timestamp
+     *            the timestamp, in seconds
+     * @throws CarbonException
+     *             if a flush fails
+     */
+    protected void append(String name, byte[] encoded, double value, long longValue, boolean integral, String text, long timestamp)
+            throws CarbonException {
+        checkState(!this.isClosed, "cannot write to closed object");
+
+        int maxLength = maxLength(encoded, text);
+        int header = (this.pendingLines == 0) ? headerLength() : 0;
+
+        // Room enough for the longest the line could be; Format in place.
+        if (header + maxLength + trailerLength() <= this.buffer.remaining()) {
+            if (this.pendingLines == 0)
+                beginBatch(this.buffer);
+            format(this.buffer, encoded, value, longValue, integral, text, timestamp);
+            this.pendingLines++;
+            return;
+        }
+
+        // Otherwise the line might fit regardless, (maxLength is an upper bound); Format it aside to find out.
+        ByteBuffer line = formatAside(encoded, value, longValue, integral, text, timestamp, maxLength);
+
+        if (this.pendingLines > 0 && line.remaining() + trailerLength() > this.buffer.remaining())
+            flush();
+
+        if (this.pendingLines == 0) {
+            // A line too long to ever fit; Write it as a batch of its own.
+            if (headerLength() + line.remaining() + trailerLength() > this.buffer.capacity()) {
+                ByteBuffer batch = ByteBuffer.allocate(headerLength() + line.remaining() + trailerLength());
+                beginBatch(batch);
+                batch.put(line);
+                endBatch(batch);
+                write(batch.array(), 0, batch.position(), 1);
+                return;
+            }
+            beginBatch(this.buffer);
+        }
+
+        this.buffer.put(line);
+        this.pendingLines++;
+    }
+
+    /**
+     * Writes any buffered lines to the socket.
+     *
+     * @throws CarbonException
+     *             if the write fails
+     */
+    public void flush() throws CarbonException {
         checkState(!this.isClosed, "cannot write to closed object");
 
+        if (this.pendingLines == 0)
+            return;
+
+        endBatch(this.buffer);
+
+        int length = this.buffer.position();
+        int count = this.pendingLines;
+
+        this.buffer.clear();
+        this.pendingLines = 0;
+
+        write(this.buffer.array(), 0, length, count);
+    }
+
+    /** Formats a line into (reused) scratch space; Returns it, ready to be read. */
+    private ByteBuffer formatAside(byte[] name, double value, long longValue, boolean integral, String text, long timestamp, int maxLength) {
+        if (this.scratch == null || this.scratch.capacity() < maxLength)
+            this.scratch = ByteBuffer.allocate(Math.max(maxLength, this.buffer.capacity()));
+
+        this.scratch.clear();
+        format(this.scratch, name, value, longValue, integral, text, timestamp);
+        this.scratch.flip();
+
+        return this.scratch;
+    }
+
+    /**
+     * Returns the most bytes {@link #format(ByteBuffer, byte[], double, long, boolean, String, long)} could write.
+     *
+     * @param name
+     *            the metric name, UTF-8 encoded
+     * @param text
+     *            the value, if not a number (otherwise null)
+     * @return the maximum length of the line
+     */
+    protected int maxLength(byte[] name, String text) {
+        return name.length + ((text != null) ? maxLength(text) : Ascii.MAX_NUMBER_LENGTH) + Ascii.MAX_NUMBER_LENGTH + 3;
+    }
+
+    /**
+     * Formats a line, (in plaintext protocol).
+     *
+     * @param buffer
+     *            the buffer to format into
+     * @param name
+     *            the metric name, UTF-8 encoded
+     * @param value
+     *            the value, if a number
+     * @param longValue
+     *            the value, if integral, (exactly; value is only its nearest double)
+     * @param integral
+     *            true if the value is to be written as an integer
+     * @param text
+     *            the value, if not a number (otherwise null)
+     * @param timestamp
+     *            the timestamp, in seconds
+     */
+    protected void format(ByteBuffer buffer, byte[] name, double value, long longValue, boolean integral, String text, long timestamp) {
+        buffer.put(name);
+        buffer.put((byte) ' ');
+        if (text != null)
+            Ascii.putString(buffer, text);
+        else if (integral)
+            Ascii.putLong(buffer, longValue);
+        else
+            Ascii.putDouble(buffer, value);
+        buffer.put((byte) ' ');
+        Ascii.putLong(buffer, timestamp);
+        buffer.put((byte) '\n');
+    }
+
+    /** @return the number of bytes written by {@link #beginBatch(ByteBuffer)} */
+    protected int headerLength() {
+        return 0;
+    }
+
+    /** @return the number of bytes written by {@link #endBatch(ByteBuffer)} */
+    protected int trailerLength() {
+        return 0;
+    }
+
+    /**
+     * Begins a batch of lines (in an empty buffer); Nothing to do for the plaintext protocol.
+     *
+     * @param buffer
+     *            the buffer
+     */
+    protected void beginBatch(ByteBuffer buffer) {
+    }
+
+    /**
+     * Completes a batch of lines, before it is written; Nothing to do for the plaintext protocol.
+     *
+     * @param buffer
+     *            the buffer
+     */
+    protected void endBatch(ByteBuffer buffer) {
+    }
+
+    /** @return the number of lines written to the socket */
+    public long getLines() {
+        return this.lines;
+    }
+
+    /** @return the number of bytes written to the socket */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    private void write(byte[] bytes, int offset, int length, int lines) throws CarbonException {
+        if (this.client != null) {
+            if (!this.client.send(bytes, offset, length))
+                throw new CarbonException(String.format("Backlog to %s:%s full; Dropped %d lines", this.hostname, this.port, lines));
+        }
+        else {
+            write(bytes, offset, length);
+        }
+
+        this.lines += lines;
+        this.bytes += length;
+
+        LOG.debug("Flushed {} lines ({} bytes) to {}:{}", lines, length, this.hostname, this.port);
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws CarbonException {
         try {
-            this.outStream.write(format(metric, value, timestamp));
+            this.outStream.write(bytes, offset, length);
+            this.outStream.flush();
         }
         catch (IOException e) {
             throw new CarbonException(String.format("Writing to %s:%s: %s", this.hostname, this.port, e.getLocalizedMessage()), e);
         }
     }
 
-    private byte[] format(Object metric, Object value, Number timestamp) {
-        return String.format("%s %s %d%n", metric, value, timestamp).getBytes(Charsets.UTF_8);
+    /** Integral (and floating point) types are formatted directly; Anything else by way of its string value. */
+    static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    /** The most bytes a string could encode to. */
+    private static int maxLength(String value) {
+        return value.length() * 3;
     }
 
     protected Socket createSocket() throws IOException {
@@ -80,14 +403,23 @@ public class CarbonConnector implements AutoCloseable {
 
     @Override
     public void close() throws IOException {
-        this.outStream.close();
-        this.socket.close();
-        this.isClosed = true;
+        try {
+            if (!this.isClosed)
+                flush();
+        }
+        finally {
+            if (this.client == null) {
+                this.outStream.close();
+                this.socket.close();
+            }
+            this.isClosed = true;
+        }
     }
 
     @Override
     public String toString() {
-        return "Carbon [hostname=" + hostname + ", port=" + port + ", isClosed=" + isClosed + "]";
+        return "Carbon [hostname=" + hostname + ", port=" + port + ", isClosed=" + isClosed + ", lines=" + lines
+                + ", bytes=" + bytes + "]";
     }
 
 }
@@ -0,0 +1,45 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.io.IOException;
+
+/**
+ * A transport to a single destination, that connectors send their batches to; A TCP connection
+ * ({@link CarbonClient}), or a UDP socket ({@link UdpClient}).
+ */
+public interface CarbonDestination extends CarbonTransport {
+
+    /**
+     * Sends a batch of (complete) lines, without blocking.
+     *
+     * @param bytes
+     *            the batch, (copied if it cannot be sent immediately)
+     * @param offset
+     *            offset of the batch in bytes
+     * @param length
+     *            length of the batch
+     * @return false if the batch was refused, (i.e. because too many bytes are already outstanding)
+     */
+    boolean send(byte[] bytes, int offset, int length);
+
+    /** @return the most bytes a connector should batch into a single send */
+    int getMaxBatchSize();
+
+    String getHostname();
+
+    int getPort();
+
+}
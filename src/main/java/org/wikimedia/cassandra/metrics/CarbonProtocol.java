@@ -0,0 +1,106 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+/** The protocols samples can be written to Carbon with. */
+public enum CarbonProtocol {
+
+    /** Lines of text, (see {@link CarbonConnector}). */
+    PLAINTEXT(Constants.DEFAULT_GRAPHITE_PORT) {
+        @Override
+        public CarbonConnector connector(String host, int port) {
+            return new CarbonConnector(host, port);
+        }
+
+        @Override
+        public CarbonConnector connector(CarbonDestination client) {
+            return new CarbonConnector(client);
+        }
+    },
+
+    /** Length-prefixed pickles, (see {@link PickleConnector}). */
+    PICKLE(PickleConnector.DEFAULT_PORT) {
+        @Override
+        public CarbonConnector connector(String host, int port) {
+            return new PickleConnector(host, port);
+        }
+
+        @Override
+        public CarbonConnector connector(CarbonDestination client) {
+            return new PickleConnector(client);
+        }
+    },
+
+    /** StatsD gauges, (see {@link StatsdConnector}). */
+    STATSD(StatsdConnector.DEFAULT_PORT) {
+        @Override
+        public CarbonConnector connector(String host, int port) {
+            return new StatsdConnector(host, port);
+        }
+
+        @Override
+        public CarbonConnector connector(CarbonDestination client) {
+            return new StatsdConnector(client);
+        }
+    };
+
+    private final int defaultPort;
+
+    private CarbonProtocol(int defaultPort) {
+        this.defaultPort = defaultPort;
+    }
+
+    /** @return the port Carbon receives this protocol on by default */
+    public int getDefaultPort() {
+        return this.defaultPort;
+    }
+
+    /**
+     * Creates a connector with a connection of its own.
+     *
+     * @param host
+     *            Carbon hostname
+     * @param port
+     *            Carbon port number
+     * @return the connector
+     */
+    public abstract CarbonConnector connector(String host, int port);
+
+    /**
+     * Creates a connector that writes to a (shared) transport.
+     *
+     * @param client
+     *            the transport
+     * @return the connector
+     */
+    public abstract CarbonConnector connector(CarbonDestination client);
+
+    /**
+     * Parses a protocol name, (case-insensitive).
+     *
+     * @param name
+     *            the protocol name, i.e. "plaintext", "pickle", or "statsd"
+     * @return the protocol
+     */
+    public static CarbonProtocol parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("unknown carbon protocol: %s", name));
+        }
+    }
+
+}
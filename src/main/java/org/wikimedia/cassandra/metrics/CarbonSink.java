@@ -0,0 +1,73 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import com.google.common.base.Optional;
+
+/** A {@link Sink} that writes to carbon, (over a {@link CarbonTransport} of its own). */
+public class CarbonSink extends Sink {
+
+    private final CarbonTransport transport;
+
+    /**
+     * Create a new {@link CarbonSink}.
+     *
+     * @param name
+     *            name of the sink
+     * @param transport
+     *            the transport samples are sent over; Started and closed with the sink
+     * @param prefix
+     *            string to prefix to each metric name, (ahead of the instance name)
+     * @param filter
+     *            the (optional) filter metric names are tested against
+     * @param queueSize
+     *            capacity of the sink's queue, in samples
+     * @param queuePolicy
+     *            what to do when the sink's queue is full
+     */
+    public CarbonSink(String name, CarbonTransport transport, String prefix, Optional<Filter> filter, int queueSize, SampleRing.Policy queuePolicy) {
+        super(name, prefix, filter, queueSize, queuePolicy);
+        this.transport = checkNotNull(transport, "transport argument");
+    }
+
+    @Override
+    public SampleSink open(String instance, SeriesNames names) {
+        return new CarbonVisitor(this.transport.connector(), names, getFilter());
+    }
+
+    @Override
+    public void start() throws IOException {
+        this.transport.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.transport.close();
+    }
+
+    public CarbonTransport getTransport() {
+        return this.transport;
+    }
+
+    @Override
+    public String toString() {
+        return "CarbonSink [name=" + getName() + ", transport=" + transport + "]";
+    }
+
+}
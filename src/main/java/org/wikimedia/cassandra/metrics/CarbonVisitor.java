@@ -20,11 +20,13 @@ import static com.google.common.base.Preconditions.checkState;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import javax.management.ObjectName;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
 
 
 /**
@@ -33,9 +35,10 @@ import com.google.common.base.Splitter;
  * 
  * @author eevans
  */
-public class CarbonVisitor implements SampleVisitor, AutoCloseable {
+public class CarbonVisitor implements SampleSink, BatchVisitor {
     private final String prefix;
     private final Optional<Filter> filter;
+    private final SeriesNames names;
 
     private CarbonConnector connector;
     private boolean isClosed = false;
@@ -89,16 +92,84 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
         this.connector = checkNotNull(carbon, "carbon argument");
         this.prefix = checkNotNull(prefix, "prefix argument");
         this.filter = checkNotNull(filter, "filter argument");
+        this.names = null;
+    }
+
+    /**
+     * Create a new {@link CarbonVisitor} using the supplied
+     * {@link CarbonConnector}, and cached series names.
+     * 
+     * @param carbon
+     *            Carbon connector instance
+     * @param names
+     *            names of the instance's series (and the prefix to them)
+     * @param filter
+     *            an {@link Optional} filter object used to determine which
+     *            metrics to accept/reject.
+     */
+    public CarbonVisitor(CarbonConnector carbon, SeriesNames names, Optional<Filter> filter) {
+        this.connector = checkNotNull(carbon, "carbon argument");
+        this.names = checkNotNull(names, "names argument");
+        this.prefix = names.getPrefix();
+        this.filter = checkNotNull(filter, "filter argument");
     }
 
     /** {@inheritDoc} */
     @Override
     public void visit(JmxSample jmxSample) {
         checkState(!this.isClosed, "cannot write to closed object");
+
+        if (this.names != null) {
+            SeriesName series = this.names.get(jmxSample);
+            if (accept(series)) this.connector.write(series, jmxSample.getValue(), jmxSample.getTimestamp());
+            return;
+        }
+
         String name = metricName(jmxSample, this.prefix);
         if (accept(name)) this.connector.write(name, jmxSample.getValue(), jmxSample.getTimestamp());
     }
 
+    /** Writes a batch without boxing its values, (and with cached names, without formatting theirs). */
+    @Override
+    public void visit(SampleBatch batch) {
+        checkState(!this.isClosed, "cannot write to closed object");
+
+        for (int i = 0; i < batch.size(); i++) {
+            SeriesName series = (this.names != null)
+                    ? this.names.get(batch.getType(), batch.getObjectName(), batch.getMetricName(i))
+                    : new SeriesName(metricName(batch.getType(), batch.getObjectName(), batch.getMetricName(i), this.prefix));
+
+            if (!accept(series))
+                continue;
+
+            if (!batch.isNumeric(i))
+                this.connector.write(series, batch.getObject(i), batch.getTimestamp());
+            else if (batch.isIntegral(i))
+                this.connector.write(series, batch.getLong(i), batch.getTimestamp());
+            else
+                this.connector.write(series, batch.getValue(i), batch.getTimestamp());
+        }
+    }
+
+    /**
+     * Writes any buffered samples to Graphite, (see {@link CarbonConnector#flush()}).
+     */
+    @Override
+    public void flush() {
+        checkState(!this.isClosed, "cannot write to closed object");
+        this.connector.flush();
+    }
+
+    /** @return the number of lines written to Graphite */
+    public long getLines() {
+        return this.connector.getLines();
+    }
+
+    /** @return the number of bytes written to Graphite */
+    public long getBytes() {
+        return this.connector.getBytes();
+    }
+
     /**
      * Terminates the connection to Graphite. Once closed, this object is no longer valid; A new
      * instance will need to be created to send additional samples.
@@ -123,29 +194,37 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
         return true;
     }
 
+    // As above, for a series name; The decision is memoized with the series.
+    private boolean accept(SeriesName series) {
+        return !this.filter.isPresent() || this.filter.get().accept(series);
+    }
+
     // There doesn't seem to be a deterministic way to translate these JMX resources to Graphite
     // names in an abstract way, thus all of the special-case handling that follows. :(
 
     static String metricName(JmxSample jmxSample, String prefix) {
-        switch (jmxSample.getType()) {
+        return metricName(jmxSample.getType(), jmxSample.getObjectName(), jmxSample.getMetricName(), prefix);
+    }
+
+    static String metricName(JmxSample.Type type, ObjectName oName, String metricName, String prefix) {
+        switch (type) {
             case JVM:
-                return metricNameJvm(jmxSample, prefix);
+                return metricNameJvm(oName, metricName, prefix);
             case CASSANDRA:
-                return metricNameCassandra(jmxSample, prefix);
+                return metricNameCassandra(oName, metricName, prefix);
             default:
                 throw new IllegalArgumentException("unknown sample type; report this as a bug!");
         }
     }
 
-    static String metricNameJvm(JmxSample jmxSample, String prefix) {
-        ObjectName oName = jmxSample.getObjectName();
+    static String metricNameJvm(ObjectName oName, String name, String prefix) {
         validateObjectName(oName, "java.lang", true);
 
         String type = oName.getKeyProperty("type");
 
         // Create graphite metric name
         String baseName = String.format("%s.jvm", prefix);
-        String metricName = scrub(jmxSample.getMetricName());
+        String metricName = scrub(name);
 
         switch (type) {
             case "Runtime":
@@ -153,7 +232,7 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
             case "Memory":
                 return String.format("%s.memory.%s", baseName, metricName);
             case "GarbageCollector":
-                String gcName = jmxSample.getObjectName().getKeyProperty("name");
+                String gcName = oName.getKeyProperty("name");
                 return String.format("%s.gc.%s.%s", baseName, scrub(gcName), metricName);
             case "MemoryPool":
                 return String.format("%s.memory.memory_pool_usages.%s", baseName, metricName);
@@ -163,12 +242,25 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
 
     }
 
-    static String metricNameCassandra(JmxSample jmxSample, String prefix) {
-        ObjectName oName = jmxSample.getObjectName();
+    static String metricNameCassandra(ObjectName oName, String metricName, String prefix) {
         validateObjectName(oName, "org.apache.cassandra.metrics", true);
 
         StringBuilder builder = new StringBuilder(prefix).append('.').append(oName.getDomain());
 
+        // Add the properties in the order they were defined.
+        for (String value : keyProperties(oName).values())
+            builder.append('.').append(scrub(value));
+
+        builder.append('.').append(scrub(metricName));
+
+        return builder.toString();
+    }
+
+    /**
+     * Returns the key properties of a Cassandra metric's object name, in the order they were defined; Those of a
+     * ColumnFamily MBean without a keyspace include keyspace "all", (as Dropwizard's GraphiteReporter does).
+     */
+    static Map<String, String> keyProperties(ObjectName oName) {
         // Ideally we'd be able to build a deterministic metric name by iterating
         // over the already parsed property list, but as it's a hash map, the
         // ordering is lost, and we're forced to resort to string manipulation.
@@ -177,21 +269,18 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
 
         // If type=ColumnFamily, but keyspace=null, then add this metric to a special "all"
         // keyspace. This is what Dropwizard's GraphiteReporter does, and we aim to be compatible.
-        if (oName.getKeyProperty("type").equals("ColumnFamily")) {
+        if ("ColumnFamily".equals(oName.getKeyProperty("type"))) {
             if (oName.getKeyProperty("keyspace") == null) {
                 propsString = propsString.replaceFirst("type=ColumnFamily", "type=ColumnFamily,keyspace=all");
             }
         }
 
-        // Add the remaining properties in the order they were defined.
+        Map<String, String> properties = Maps.newLinkedHashMap();
         for (String property : Splitter.on(",").trimResults().split(propsString)) {
             List<String> kv = Splitter.on("=").trimResults().limit(2).splitToList(property);
-            builder.append('.').append(scrub(kv.get(1)));
+            properties.put(kv.get(0), kv.get(1));
         }
-
-        builder.append('.').append(scrub(jmxSample.getMetricName()));
-
-        return builder.toString();
+        return properties;
     }
 
     /** scrub problematic characters */
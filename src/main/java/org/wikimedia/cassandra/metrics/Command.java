@@ -16,6 +16,8 @@ package org.wikimedia.cassandra.metrics;
 
 import java.io.IOException;
 
+import com.google.common.base.Optional;
+
 public class Command {
     public static void main(String... args) throws IOException {
         if (args.length != 5) {
@@ -43,11 +45,24 @@ public class Command {
 
         try (JmxCollector collector = new JmxCollector(args[0], jmxPort)) {
             if (Boolean.parseBoolean(System.getenv().get("DRY_RUN"))) {
-                collector.getSamples(new TsvVisitor(System.out, args[4]));
+                collector.getBatches(new TsvVisitor(System.out, args[4]));
             }
             else {
-                try (CarbonVisitor visitor = new CarbonVisitor(args[2], graphitePort, args[4])) {
-                    collector.getSamples(visitor);
+                // CARBON_PROTOCOL=pickle to write with the pickle protocol, (to a pickle receiver port), or statsd.
+                String name = System.getenv().get("CARBON_PROTOCOL");
+                CarbonProtocol protocol = CarbonProtocol.parse((name != null) ? name : "plaintext");
+
+                // CARBON_TRANSPORT=udp to send datagrams instead.
+                if ("udp".equalsIgnoreCase(System.getenv().get("CARBON_TRANSPORT"))) {
+                    try (UdpClient client = new UdpClient(args[2], graphitePort, protocol, UdpClient.DEFAULT_MTU);
+                            CarbonVisitor visitor = new CarbonVisitor(client.connector(), args[4], Optional.<Filter>absent())) {
+                        collector.getBatches(visitor);
+                    }
+                }
+                else {
+                    try (CarbonVisitor visitor = new CarbonVisitor(protocol.connector(args[2], graphitePort), args[4], Optional.<Filter>absent())) {
+                        collector.getBatches(visitor);
+                    }
                 }
             }
         }
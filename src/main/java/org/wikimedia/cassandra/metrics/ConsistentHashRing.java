@@ -0,0 +1,174 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * A consistent-hashing ring, compatible with that of carbon-relay (and carbon-c-relay's carbon_ch); A metric is
+ * routed to the same destination as carbon would route it to, given the same destinations, (in the same order).
+ * <p>
+ * Each node is placed on the ring at 100 (by default) positions, the first 4 hex digits of the MD5 of
+ * <code>('host', 'instance'):i</code>, (a Python tuple, as carbon formats it; The port is not a part of it). Positions
+ * already taken are moved along by one, so the order nodes are added in matters. A key belongs to the first node at
+ * or after its own position, wrapping around. Adding (or removing) a node moves only the keys that fall to it.
+ * </p>
+ *
+ * @param <T>
+ *            the type of node
+ */
+public class ConsistentHashRing<T> {
+
+    /** Positions of each node on the ring, (when not otherwise specified). */
+    public static final int DEFAULT_REPLICAS = 100;
+
+    /** Digests are reused, (one per thread); Every key routed is hashed. */
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new AssertionError("MD5 unsupported", e);
+            }
+        }
+    };
+
+    private final int replicas;
+    private final List<T> nodes = Lists.newArrayList();
+    private final List<String> keys = Lists.newArrayList();
+
+    // Positions on the ring (ascending), and the index of the node at each.
+    private int[] positions = new int[0];
+    private int[] owners = new int[0];
+
+    /** Create a new {@link ConsistentHashRing}, (with {@link #DEFAULT_REPLICAS} positions per node). */
+    public ConsistentHashRing() {
+        this(DEFAULT_REPLICAS);
+    }
+
+    /**
+     * Create a new {@link ConsistentHashRing}.
+     *
+     * @param replicas
+     *            number of positions of each node on the ring
+     */
+    public ConsistentHashRing(int replicas) {
+        checkArgument(replicas > 0, "replicas argument must be positive");
+        this.replicas = replicas;
+    }
+
+    /**
+     * Adds a node to the ring.
+     *
+     * @param node
+     *            the node
+     * @param host
+     *            host of the node
+     * @param instance
+     *            carbon instance of the node, or null if it has none
+     * @return this ring
+     */
+    public ConsistentHashRing<T> add(T node, String host, String instance) {
+        checkNotNull(node, "node argument");
+        checkNotNull(host, "host argument");
+
+        String key = nodeKey(host, instance);
+        checkArgument(!this.keys.contains(key), "duplicate node: %s", key);
+
+        int index = this.nodes.size();
+        this.nodes.add(node);
+        this.keys.add(key);
+
+        int n = this.positions.length;
+        int[] positions = Arrays.copyOf(this.positions, n + this.replicas);
+        int[] owners = Arrays.copyOf(this.owners, n + this.replicas);
+
+        for (int i = 0; i < this.replicas; i++) {
+            int position = position(key + ":" + i);
+            while (contains(positions, n, position))
+                position++;
+
+            // Insert in order, (as bisect.insort does).
+            int at = -(Arrays.binarySearch(positions, 0, n, position) + 1);
+            System.arraycopy(positions, at, positions, at + 1, n - at);
+            System.arraycopy(owners, at, owners, at + 1, n - at);
+            positions[at] = position;
+            owners[at] = index;
+            n++;
+        }
+
+        this.positions = positions;
+        this.owners = owners;
+
+        return this;
+    }
+
+    /**
+     * Returns the node that a key (i.e. a metric name) belongs to.
+     *
+     * @param key
+     *            the key
+     * @return the key's node
+     */
+    public T get(String key) {
+        checkState(!this.nodes.isEmpty(), "empty ring");
+
+        int position = position(key);
+        int at = Arrays.binarySearch(this.positions, position);
+        if (at < 0)
+            at = -(at + 1);
+
+        return this.nodes.get(this.owners[at % this.positions.length]);
+    }
+
+    /** @return the nodes of the ring, in the order they were added */
+    public List<T> getNodes() {
+        return ImmutableList.copyOf(this.nodes);
+    }
+
+    @Override
+    public String toString() {
+        return "ConsistentHashRing [nodes=" + keys + ", replicas=" + replicas + "]";
+    }
+
+    /** The key of a node, (a Python tuple of host and instance, as carbon formats it). */
+    static String nodeKey(String host, String instance) {
+        return String.format("('%s', %s)", host, (instance != null) ? "'" + instance + "'" : "None");
+    }
+
+    /** Position of a key on the ring; The first 4 hex digits of its MD5. */
+    static int position(String key) {
+        byte[] digest = MD5.get().digest(key.getBytes(Charsets.UTF_8));
+        return ((digest[0] & 0xff) << 8) | (digest[1] & 0xff);
+    }
+
+    private static boolean contains(int[] positions, int length, int position) {
+        return Arrays.binarySearch(positions, 0, length, position) >= 0;
+    }
+
+}
@@ -0,0 +1,171 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shards metrics across several carbon destinations by consistent hashing of their names, (as carbon-relay's
+ * consistent-hashing relay method does; See {@link ConsistentHashRing}). Each destination is a transport of its own,
+ * (with its own connection and queue, if a {@link CarbonClient}), so one that is slow or down backs up (or spools)
+ * only the metrics that belong to it.
+ * <p>
+ * Batches can't be split after the fact, so this transport isn't a destination (it has no batches to send); Its
+ * connectors route each line to a connector of the destination it belongs to.
+ * </p>
+ */
+public class ConsistentHashTransport implements CarbonTransport {
+
+    /** Routes each line to the connector of its destination. */
+    private class Connector extends CarbonConnector {
+        private final Map<CarbonDestination, CarbonConnector> connectors = new IdentityHashMap<>();
+
+        private Connector() {
+            super(ConsistentHashTransport.this);
+            for (CarbonDestination destination : ConsistentHashTransport.this.ring.getNodes())
+                this.connectors.put(destination, destination.connector());
+        }
+
+        @Override
+        protected void append(String name, byte[] encoded, double value, long longValue, boolean integral, String text, long timestamp)
+                throws CarbonException {
+            this.connectors.get(ConsistentHashTransport.this.ring.get(name)).append(name, encoded, value, longValue, integral, text, timestamp);
+        }
+
+        /** Flushes every destination; Those that fail don't prevent the others, (the first failure is rethrown). */
+        @Override
+        public void flush() throws CarbonException {
+            CarbonException failure = null;
+            for (CarbonConnector connector : this.connectors.values()) {
+                try {
+                    connector.flush();
+                }
+                catch (CarbonException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+            if (failure != null)
+                throw failure;
+        }
+
+        @Override
+        public long getLines() {
+            long lines = 0;
+            for (CarbonConnector connector : this.connectors.values())
+                lines += connector.getLines();
+            return lines;
+        }
+
+        @Override
+        public long getBytes() {
+            long bytes = 0;
+            for (CarbonConnector connector : this.connectors.values())
+                bytes += connector.getBytes();
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (CarbonConnector connector : this.connectors.values()) {
+                try {
+                    connector.close();
+                }
+                catch (IOException | CarbonException e) {
+                    if (failure == null)
+                        failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                }
+            }
+            if (failure != null)
+                throw failure;
+        }
+
+        @Override
+        public String toString() {
+            return "ConsistentHashTransport.Connector [lines=" + getLines() + ", bytes=" + getBytes() + "]";
+        }
+    }
+
+    private final ConsistentHashRing<CarbonDestination> ring;
+    private final CarbonProtocol protocol;
+
+    /**
+     * Create a new {@link ConsistentHashTransport}.
+     *
+     * @param ring
+     *            the destinations; Started and closed with this transport, and of the same protocol
+     */
+    public ConsistentHashTransport(ConsistentHashRing<CarbonDestination> ring) {
+        this.ring = checkNotNull(ring, "ring argument");
+
+        List<CarbonDestination> destinations = ring.getNodes();
+        checkArgument(!destinations.isEmpty(), "ring argument must not be empty");
+        for (CarbonDestination destination : destinations)
+            checkArgument(destination.getProtocol() == destinations.get(0).getProtocol(), "destinations of differing protocols");
+
+        this.protocol = destinations.get(0).getProtocol();
+    }
+
+    @Override
+    public void start() {
+        for (CarbonDestination destination : this.ring.getNodes())
+            destination.start();
+    }
+
+    @Override
+    public CarbonConnector connector() {
+        return new Connector();
+    }
+
+    @Override
+    public CarbonProtocol getProtocol() {
+        return this.protocol;
+    }
+
+    /** @return the destinations, in the order they were added to the ring */
+    public List<CarbonDestination> getDestinations() {
+        return this.ring.getNodes();
+    }
+
+    /** Closes every destination, (rethrowing the first failure, if any). */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (CarbonDestination destination : this.ring.getNodes()) {
+            try {
+                destination.close();
+            }
+            catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsistentHashTransport [ring=" + ring + "]";
+    }
+
+}
@@ -0,0 +1,71 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+
+/**
+ * {@link MBeanServerConnection} decorator that counts the number of remote invocations made. Every
+ * method of {@link MBeanServerConnection} results in (at least) one round trip to the server.
+ */
+final class CountingConnection implements InvocationHandler {
+
+    private final MBeanServerConnection delegate;
+    private final AtomicLong counter;
+
+    private CountingConnection(MBeanServerConnection delegate, AtomicLong counter) {
+        this.delegate = checkNotNull(delegate, "delegate argument");
+        this.counter = checkNotNull(counter, "counter argument");
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        // toString(), hashCode(), and equals() are local.
+        if (method.getDeclaringClass() != Object.class)
+            this.counter.incrementAndGet();
+
+        try {
+            return method.invoke(this.delegate, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Wraps an {@link MBeanServerConnection}, incrementing counter once for each invocation.
+     *
+     * @param connection
+     *            the connection to decorate
+     * @param counter
+     *            the round trip counter
+     * @return a counting connection
+     */
+    static MBeanServerConnection wrap(MBeanServerConnection connection, AtomicLong counter) {
+        return (MBeanServerConnection) Proxy.newProxyInstance(
+                CountingConnection.class.getClassLoader(),
+                new Class<?>[] { MBeanServerConnection.class },
+                new CountingConnection(connection, counter));
+    }
+
+}
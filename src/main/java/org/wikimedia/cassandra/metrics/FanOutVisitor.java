@@ -0,0 +1,106 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Sends each sample to several {@link SamplePipeline}s, (one per {@link Sink}). Every pipeline has a queue and
+ * workers of its own, so a sink that is slow or failing falls behind (and drops samples, according to its queue's
+ * policy) without holding up the others.
+ */
+public class FanOutVisitor implements SampleVisitor, AutoCloseable {
+
+    private final Map<String, SamplePipeline> pipelines;
+
+    /**
+     * Create a new {@link FanOutVisitor}.
+     *
+     * @param pipelines
+     *            the pipelines to send samples to, by sink name
+     */
+    public FanOutVisitor(Map<String, SamplePipeline> pipelines) {
+        checkNotNull(pipelines, "pipelines argument");
+        checkArgument(!pipelines.isEmpty(), "pipelines argument must not be empty");
+        this.pipelines = ImmutableMap.copyOf(pipelines);
+    }
+
+    /** Starts the workers of each pipeline. */
+    public void start() {
+        for (SamplePipeline pipeline : this.pipelines.values())
+            pipeline.start();
+    }
+
+    @Override
+    public void visit(JmxSample sample) {
+        for (SamplePipeline pipeline : this.pipelines.values())
+            pipeline.visit(sample);
+    }
+
+    /** @return the pipelines, by sink name */
+    public Map<String, SamplePipeline> getPipelines() {
+        return this.pipelines;
+    }
+
+    /** @return the number of samples waiting to be written, (to any sink) */
+    public int getDepth() {
+        int depth = 0;
+        for (SamplePipeline pipeline : this.pipelines.values())
+            depth += pipeline.getDepth();
+        return depth;
+    }
+
+    /** @return the number of samples dropped, (by any sink) */
+    public long getDropped() {
+        long dropped = 0;
+        for (SamplePipeline pipeline : this.pipelines.values())
+            dropped += pipeline.getDropped();
+        return dropped;
+    }
+
+    /** @return the number of samples written, (to any sink) */
+    public long getEmitted() {
+        long emitted = 0;
+        for (SamplePipeline pipeline : this.pipelines.values())
+            emitted += pipeline.getEmitted();
+        return emitted;
+    }
+
+    /** @return the number of samples (or flushes) that failed to be written, (to any sink) */
+    public long getErrors() {
+        long errors = 0;
+        for (SamplePipeline pipeline : this.pipelines.values())
+            errors += pipeline.getErrors();
+        return errors;
+    }
+
+    /** Closes each of the pipelines, (see {@link SamplePipeline#close()}). */
+    @Override
+    public void close() {
+        for (SamplePipeline pipeline : this.pipelines.values())
+            pipeline.close();
+    }
+
+    @Override
+    public String toString() {
+        return "FanOutVisitor [pipelines=" + pipelines + "]";
+    }
+
+}
@@ -0,0 +1,261 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+
+/**
+ * What to read from each MBean; The JMX attributes that survive a {@link Filter} (so that rejected metrics are never
+ * read), and whether percentiles are to be computed locally from histogram buckets, (see {@link Percentiles}).
+ * <p>
+ * Plans are compiled on first use of an MBean, and cached until it is evicted from the {@link MBeanInventory} (or the
+ * inventory is rebuilt); Register the plan with {@link MBeanInventory#addListener(MBeanInventory.Listener)} to keep
+ * the two in step. Plans compiled before the filter was reloaded are compiled again on next use.
+ * </p>
+ */
+public class FetchPlan implements MBeanInventory.Listener {
+
+    /** The JMX attribute that timers report their duration unit with. */
+    static final String DURATION_UNIT = "DurationUnit";
+
+    /** The JMX operation that returns the raw buckets of timers and histograms. */
+    static final String VALUES = "values";
+
+    private static final String[] NONE = new String[0];
+
+    /** The plan for a single MBean. */
+    public static class Plan {
+        private final String[] attributes;
+        private final String[] scalars;
+        private final int[] percentiles;
+        private final Object version;
+        private volatile boolean buckets;
+        private long[] previous;
+
+        Plan(String[] attributes, String[] scalars, int[] percentiles, Object version) {
+            this.attributes = attributes;
+            this.scalars = scalars;
+            this.percentiles = percentiles;
+            this.version = version;
+            this.buckets = scalars != null;
+        }
+
+        /** @return true if the MBean can be skipped entirely */
+        public boolean isEmpty() {
+            return this.buckets ? (this.scalars.length == 0 && this.percentiles.length == 0) : this.attributes.length == 0;
+        }
+
+        /** @return true if percentiles are to be computed from histogram buckets */
+        public boolean isBuckets() {
+            return this.buckets;
+        }
+
+        /** @return the attributes to read; Excluding any percentiles computed from buckets */
+        public String[] getAttributes() {
+            return this.buckets ? this.scalars : this.attributes;
+        }
+
+        /** @return indices of the percentiles (see {@link Percentiles}) to compute from buckets */
+        public int[] getPercentiles() {
+            return this.percentiles;
+        }
+
+        /** @return bucket counts as of the previous collection, or null if there are none (guarded by this) */
+        long[] getPrevious() {
+            return this.previous;
+        }
+
+        /** Stores (a copy of) the bucket counts of this collection (guarded by this); The store is reused. */
+        void setPrevious(long[] buckets) {
+            if (this.previous == null || this.previous.length != buckets.length)
+                this.previous = new long[buckets.length];
+            System.arraycopy(buckets, 0, this.previous, 0, buckets.length);
+        }
+
+        /** Reverts to reading the percentile attributes, (for an MBean without buckets to read). */
+        void disableBuckets() {
+            this.buckets = false;
+        }
+    }
+
+    private final Optional<Filter> filter;
+    private final String prefix;
+    private final Percentiles percentiles;
+    private final ConcurrentMap<ObjectName, Plan> plans = new ConcurrentHashMap<>();
+
+    /** Creates a plan that reads everything, (and computes no percentiles locally). */
+    public FetchPlan() {
+        this(Optional.<Filter>absent(), "", null);
+    }
+
+    /**
+     * Create a new {@link FetchPlan}.
+     *
+     * @param filter
+     *            the filter metric names are tested against
+     * @param prefix
+     *            the prefix metric names are reported with, (see {@link CarbonVisitor})
+     */
+    public FetchPlan(Filter filter, String prefix) {
+        this(Optional.of(checkNotNull(filter, "filter argument")), prefix, null);
+    }
+
+    /**
+     * Create a new {@link FetchPlan}.
+     *
+     * @param filter
+     *            the (optional) filter metric names are tested against
+     * @param prefix
+     *            the prefix metric names are reported with, (see {@link CarbonVisitor})
+     * @param percentiles
+     *            percentiles to compute locally from the buckets of timers and histograms, or null to read the
+     *            percentile attributes instead
+     */
+    public FetchPlan(Optional<Filter> filter, String prefix, Percentiles percentiles) {
+        this.filter = checkNotNull(filter, "filter argument");
+        this.prefix = checkNotNull(prefix, "prefix argument");
+        this.percentiles = percentiles;
+    }
+
+    /**
+     * Returns the plan for an MBean.
+     *
+     * @param oName
+     *            object name of the MBean
+     * @param kind
+     *            the MBean's kind
+     * @return the plan
+     */
+    public Plan plan(ObjectName oName, MetricKind kind) {
+        Object version = this.filter.isPresent() ? this.filter.get().version() : null;
+        Plan plan = this.plans.get(oName);
+
+        if (plan == null || plan.version != version) {
+            Plan previous = plan;
+            plan = compile(oName, kind, version);
+
+            // (Histogram counts carry over, so that windowed percentiles don't skip a collection.)
+            if (previous != null) {
+                synchronized (previous) {
+                    if (previous.previous != null)
+                        plan.setPrevious(previous.previous);
+                }
+            }
+
+            this.plans.put(oName, plan);
+        }
+
+        return plan;
+    }
+
+    /**
+     * Returns the attributes to read from an MBean, (the equivalent of {@link #plan(ObjectName, MetricKind)}
+     * {@link Plan#getAttributes() .getAttributes()}).
+     *
+     * @param oName
+     *            object name of the MBean
+     * @param kind
+     *            the MBean's kind
+     * @return the attributes with at least one accepted metric; Empty if there are none
+     */
+    public String[] attributes(ObjectName oName, MetricKind kind) {
+        return plan(oName, kind).getAttributes();
+    }
+
+    /** @return the percentiles computed from histogram buckets, or null if none are */
+    public Percentiles getPercentiles() {
+        return this.percentiles;
+    }
+
+    /** @return the number of MBeans with a cached plan */
+    public int size() {
+        return this.plans.size();
+    }
+
+    @Override
+    public void removed(ObjectName oName) {
+        this.plans.remove(oName);
+    }
+
+    @Override
+    public void reset() {
+        this.plans.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "FetchPlan [filter=" + filter + ", prefix=" + prefix + ", percentiles=" + percentiles + ", size="
+                + plans.size() + "]";
+    }
+
+    private Plan compile(ObjectName oName, MetricKind kind, Object version) {
+        List<String> accepted = Lists.newArrayList();
+        List<String> scalars = Lists.newArrayList();
+
+        for (String attribute : kind.getAttributes()) {
+            // Histogram gauges are decoded into several metrics; Any one of them is reason enough to read the value.
+            String[] metricNames = JmxCollector.isHistogramGauge(kind, oName)
+                    ? JmxCollector.HISTOGRAM_GAUGE_METRICS
+                    : new String[] { kind.metricName(attribute) };
+
+            for (String metricName : metricNames) {
+                if (accept(oName, metricName)) {
+                    accepted.add(attribute);
+                    if (!kind.isPercentile(attribute))
+                        scalars.add(attribute);
+                    break;
+                }
+            }
+        }
+
+        if (this.percentiles == null || !kind.hasBuckets())
+            return new Plan(toArray(accepted), null, null, version);
+
+        List<Integer> indices = Lists.newArrayList();
+        for (int i = 0; i < this.percentiles.size(); i++)
+            if (accept(oName, this.percentiles.getName(i)))
+                indices.add(i);
+
+        // Bucket offsets of timers are in nanoseconds, (to be converted to the reported unit).
+        if (kind == MetricKind.TIMER && !indices.isEmpty())
+            scalars.add(DURATION_UNIT);
+
+        return new Plan(toArray(accepted), toArray(scalars), Ints.toArray(indices), version);
+    }
+
+    private boolean accept(ObjectName oName, String metricName) {
+        if (!this.filter.isPresent())
+            return true;
+        JmxSample sample = new JmxSample(Type.CASSANDRA, oName, metricName, 0, 0);
+        return this.filter.get().accept(CarbonVisitor.metricName(sample, this.prefix));
+    }
+
+    private static String[] toArray(List<String> list) {
+        return list.isEmpty() ? NONE : list.toArray(new String[list.size()]);
+    }
+
+}
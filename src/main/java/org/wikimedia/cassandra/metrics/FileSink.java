@@ -0,0 +1,119 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import com.google.common.base.Optional;
+
+/**
+ * A {@link Sink} that appends to a local file, in carbon's plaintext format, (one "name value timestamp" line per
+ * sample; See {@link TsvVisitor}). The file is shared by the writers of every instance, and lines are never split.
+ */
+public class FileSink extends Sink {
+
+    /** Writes the samples of one instance. */
+    private class Writer implements SampleSink {
+        private final SeriesNames names;
+
+        private Writer(SeriesNames names) {
+            this.names = names;
+        }
+
+        @Override
+        public void visit(JmxSample sample) {
+            SeriesName series = this.names.get(sample);
+            if (!getFilter().isPresent() || getFilter().get().accept(series))
+                stream().printf("%s %s %s%n", series.getName(), sample.getValue(), sample.getTimestamp());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            PrintStream stream = stream();
+            stream.flush();
+            if (stream.checkError())
+                throw new IOException(String.format("error writing to %s", FileSink.this.file));
+        }
+
+        /** Flushes; The file itself is closed with the sink. */
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private final File file;
+    private volatile PrintStream stream;
+
+    /**
+     * Create a new {@link FileSink}.
+     *
+     * @param name
+     *            name of the sink
+     * @param file
+     *            the file to append to, (created if need be)
+     * @param prefix
+     *            string to prefix to each metric name, (ahead of the instance name)
+     * @param filter
+     *            the (optional) filter metric names are tested against
+     * @param queueSize
+     *            capacity of the sink's queue, in samples
+     * @param queuePolicy
+     *            what to do when the sink's queue is full
+     */
+    public FileSink(String name, File file, String prefix, Optional<Filter> filter, int queueSize, SampleRing.Policy queuePolicy) {
+        super(name, prefix, filter, queueSize, queuePolicy);
+        this.file = checkNotNull(file, "file argument");
+    }
+
+    @Override
+    public SampleSink open(String instance, SeriesNames names) {
+        return new Writer(names);
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        checkState(this.stream == null, "already started");
+        this.stream = new PrintStream(new BufferedOutputStream(new FileOutputStream(this.file, true)), false, "UTF-8");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.stream != null)
+            this.stream.close();
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    @Override
+    public String toString() {
+        return "FileSink [name=" + getName() + ", file=" + file + "]";
+    }
+
+    private PrintStream stream() {
+        checkState(this.stream != null, "sink not started");
+        return this.stream;
+    }
+
+}
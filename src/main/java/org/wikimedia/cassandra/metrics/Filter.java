@@ -14,54 +14,111 @@
  */
 package org.wikimedia.cassandra.metrics;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 
+/**
+ * Accepts or rejects metrics by name; A name is accepted if it matches the whitelist, or doesn't match the blacklist.
+ * <p>
+ * Each list is compiled into a single alternation, (so a name is matched once per list, rather than once per
+ * pattern). Patterns that can't safely be a part of one are matched on their own; Those with back-references (whose
+ * group numbers would shift), named groups (that could be defined twice), quotes (that might not end), or comments
+ * (that might swallow the rest of the alternation). So is every pattern of a list whose alternation fails to compile
+ * regardless. Decisions are memoized per {@link SeriesName}, until the filter is {@link #reload(FilterConfig)
+ * reloaded}.
+ * </p>
+ */
 public class Filter {
 
-    private List<Pattern> blacklist;
-    private List<Pattern> whitelist;
+    private static final Logger LOG = LoggerFactory.getLogger(Filter.class);
 
-    public Filter(FilterConfig config) {
-        blacklist = Lists.newArrayList(
-            Iterables.transform(config.getBlacklist(), new Function<String, Pattern>() {
-                @Override
-                public Pattern apply(String input) {
-                     return Pattern.compile(input);
-                }
-            })
-        );
-
-        whitelist = Lists.newArrayList(
-                Iterables.transform(config.getWhitelist(), new Function<String, Pattern>() {
-                    @Override
-                    public Pattern apply(String input) {
-                         return Pattern.compile(input);
-                    }
-                })
-        );
+    /** Matches a back-reference, the start of a quote, a named group, or a flag enabling comments. */
+    private static final Pattern UNCOMBINABLE = Pattern.compile("\\\\([1-9]|k<|Q)|\\(\\?<[a-zA-Z]|\\(\\?[a-zA-Z-]*x");
+
+    /** The compiled lists; Immutable, and replaced as a whole on reload (the identity of which keys decisions). */
+    private static final class Rules {
+        private final List<Pattern> blacklist;
+        private final List<Pattern> whitelist;
+        private final FilterConfig config;
+
+        private Rules(FilterConfig config) {
+            this.blacklist = compile(config.getBlacklist());
+            this.whitelist = compile(config.getWhitelist());
+            this.config = config;
+        }
     }
 
-    private boolean blackListed(String id) {
-        return listed(id, this.blacklist);
+    private volatile Rules rules;
+
+    public Filter(FilterConfig config) {
+        this.rules = new Rules(checkNotNull(config, "config argument"));
     }
 
-    private boolean whiteListed(String id) {
-        return listed(id, this.whitelist);
+    /**
+     * Replaces the lists, (i.e. when the configuration file has changed); Memoized decisions are invalidated, as are
+     * the {@link FetchPlan}s compiled with them.
+     *
+     * @param config
+     *            the new configuration
+     * @throws java.util.regex.PatternSyntaxException
+     *             if a pattern is invalid, (in which case the current lists are kept)
+     */
+    public void reload(FilterConfig config) {
+        this.rules = new Rules(checkNotNull(config, "config argument"));
     }
 
     public boolean accept(String id) {
-        return whiteListed(id) ? true : !blackListed(id);
+        return accept(this.rules, id);
+    }
+
+    /**
+     * Tests a series name; The decision is memoized (with the series), so names are matched only once per reload.
+     *
+     * @param series
+     *            the series name, (see {@link SeriesNames})
+     * @return true if the series is accepted
+     */
+    public boolean accept(SeriesName series) {
+        Rules rules = this.rules;
+
+        if (series.acceptedBy == rules)
+            return true;
+        if (series.rejectedBy == rules)
+            return false;
+
+        boolean accepted = accept(rules, series.getName());
+        if (accepted)
+            series.acceptedBy = rules;
+        else
+            series.rejectedBy = rules;
+
+        return accepted;
+    }
+
+    /** @return the current lists; Changes identity on each reload, (see {@link FetchPlan}) */
+    Object version() {
+        return this.rules;
     }
 
     @Override
     public String toString() {
-        return "Filter [blacklist=" + blacklist + ", whitelist=" + whitelist + "]";
+        Rules rules = this.rules;
+        return "Filter [blacklist=" + rules.config.getBlacklist() + ", whitelist=" + rules.config.getWhitelist() + "]";
+    }
+
+    private static boolean accept(Rules rules, String id) {
+        return listed(id, rules.whitelist) ? true : !listed(id, rules.blacklist);
     }
 
     private static boolean listed(String id, Collection<Pattern> list) {
@@ -73,4 +130,39 @@ public class Filter {
         return false;
     }
 
+    /** Compiles a list into a single alternation, (plus any patterns that can't be a part of one). */
+    static List<Pattern> compile(Collection<String> patterns) {
+        List<String> alternatives = Lists.newArrayList();
+        List<Pattern> combinable = Lists.newArrayList();
+        List<Pattern> compiled = Lists.newArrayList();
+
+        for (String pattern : patterns) {
+            // Compiled on its own regardless, so that syntax errors are reported against the offending pattern.
+            Pattern p = Pattern.compile(pattern);
+            if (UNCOMBINABLE.matcher(pattern).find()) {
+                compiled.add(p);
+            }
+            else {
+                alternatives.add("(?:" + pattern + ")");
+                combinable.add(p);
+            }
+        }
+
+        if (combinable.size() == 1) {
+            compiled.add(0, combinable.get(0));
+        }
+        else if (!combinable.isEmpty()) {
+            try {
+                compiled.add(0, Pattern.compile(Joiner.on('|').join(alternatives)));
+            }
+            catch (PatternSyntaxException e) {
+                // Valid on their own, so something missed above; Better slow than broken.
+                LOG.debug("Unable to combine patterns {}; Matching each on its own", alternatives, e);
+                compiled.addAll(0, combinable);
+            }
+        }
+
+        return compiled.isEmpty() ? Collections.<Pattern>emptyList() : compiled;
+    }
+
 }
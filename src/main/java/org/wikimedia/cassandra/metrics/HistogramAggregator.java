@@ -0,0 +1,270 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+/**
+ * Merges histograms of the same name across instances, (i.e. the read latency of every instance on a host), bucket by
+ * bucket. Percentiles of the merged buckets are true percentiles of the combined distribution, where those averaged
+ * from each instance's percentiles are not.
+ * <p>
+ * Each instance contributes its latest bucket counts through a {@link Contributor}; These are kept (in a reused
+ * array, per instance and histogram) until {@link #report(SampleVisitor)} merges them. Merging is proportional to the
+ * number of buckets (times the number of instances), regardless of how many values were recorded. Contributions not
+ * refreshed within the maximum age (i.e. those of an instance no longer running) are dropped.
+ * </p>
+ */
+public class HistogramAggregator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistogramAggregator.class);
+
+    /** An instance's contribution to a merged histogram (guarded by this). */
+    private static class Contribution {
+        private long[] counts;
+        private long[] reported;
+        private double factor;
+        private long updated;
+    }
+
+    /** A merged histogram; The contributions of each instance, and (reused) storage for their sum. */
+    private static class Series {
+        private final ConcurrentMap<String, Contribution> contributions = new ConcurrentHashMap<>();
+        private long[] merged;
+        private double factor;
+    }
+
+    /** The instance's view of an aggregator; Register with its {@link MBeanInventory} to evict removed MBeans. */
+    public class Contributor implements MBeanInventory.Listener {
+        private final String instance;
+
+        private Contributor(String instance) {
+            this.instance = instance;
+        }
+
+        /**
+         * Contributes the current bucket counts of a histogram.
+         *
+         * @param oName
+         *            object name of the histogram's MBean
+         * @param buckets
+         *            the bucket counts, (copied)
+         * @param factor
+         *            factor to scale bucket offsets by, (i.e. to convert the nanoseconds of a timer)
+         */
+        public void add(ObjectName oName, long[] buckets, double factor) {
+            HistogramAggregator.this.add(this.instance, oName, buckets, factor);
+        }
+
+        @Override
+        public void removed(ObjectName oName) {
+            Series series = HistogramAggregator.this.series.get(oName);
+            if (series != null)
+                series.contributions.remove(this.instance);
+        }
+
+        @Override
+        public void reset() {
+            for (Series series : HistogramAggregator.this.series.values())
+                series.contributions.remove(this.instance);
+        }
+
+        @Override
+        public String toString() {
+            return "Contributor [instance=" + instance + "]";
+        }
+    }
+
+    private final ConcurrentMap<ObjectName, Series> series = new ConcurrentHashMap<>();
+    private final Percentiles percentiles;
+    private final HistogramDecoder decoder;
+    private final boolean windowed;
+    private final long maxAge;
+
+    /**
+     * Create a new {@link HistogramAggregator}.
+     *
+     * @param percentiles
+     *            percentiles to report from merged histograms
+     * @param windowed
+     *            true to merge only the counts added since the previous report, (see
+     *            {@link JmxCollector#setWindowed(boolean)})
+     * @param maxAge
+     *            milliseconds after which a contribution that hasn't been refreshed is dropped
+     */
+    public HistogramAggregator(Percentiles percentiles, boolean windowed, long maxAge) {
+        checkArgument(maxAge > 0, "maxAge argument must be positive");
+        this.percentiles = checkNotNull(percentiles, "percentiles argument");
+        this.decoder = new HistogramDecoder(percentiles.getValues());
+        this.windowed = windowed;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns a contributor for an instance.
+     *
+     * @param instance
+     *            the instance name
+     * @return the instance's contributor
+     */
+    public Contributor contributor(String instance) {
+        return new Contributor(checkNotNull(instance, "instance argument"));
+    }
+
+    /** @return the number of histograms with at least one contribution */
+    public int size() {
+        return this.series.size();
+    }
+
+    /**
+     * Merges the contributions to each histogram, and reports their percentiles, min, and max.
+     *
+     * @param visitor
+     *            visitor of the merged samples
+     */
+    public synchronized void report(SampleVisitor visitor) {
+        long now = System.currentTimeMillis();
+        int timestamp = (int) (now / 1000);
+        int n = this.percentiles.size();
+
+        Iterator<Map.Entry<ObjectName, Series>> iter = this.series.entrySet().iterator();
+
+        while (iter.hasNext()) {
+            Map.Entry<ObjectName, Series> entry = iter.next();
+            ObjectName oName = entry.getKey();
+            Series series = entry.getValue();
+
+            boolean merged = merge(oName, series, now);
+            if (series.contributions.isEmpty())
+                iter.remove();
+            if (!merged)
+                continue;
+
+            double[] values = this.decoder.decode(series.merged);
+            if (this.windowed && this.decoder.getCount() == 0)
+                continue;
+            if (this.decoder.isOverflowed()) {
+                LOG.debug("Merged {} overflowed, unable to calculate percentiles", oName);
+                continue;
+            }
+
+            for (int i = 0; i < n; i++)
+                visitor.visit(new JmxSample(Type.CASSANDRA, oName, this.percentiles.getName(i), values[i] * series.factor, timestamp));
+            visitor.visit(new JmxSample(Type.CASSANDRA, oName, "min", values[n] * series.factor, timestamp));
+            visitor.visit(new JmxSample(Type.CASSANDRA, oName, "max", values[n + 1] * series.factor, timestamp));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramAggregator [percentiles=" + percentiles + ", windowed=" + windowed + ", maxAge=" + maxAge
+                + ", size=" + series.size() + "]";
+    }
+
+    /**
+     * Sums the contributions to a histogram (dropping those that are stale); Returns false if there was nothing to
+     * merge.
+     */
+    private boolean merge(ObjectName oName, Series series, long now) {
+        boolean merged = false;
+
+        for (Map.Entry<String, Contribution> entry : series.contributions.entrySet()) {
+            Contribution contribution = entry.getValue();
+
+            synchronized (contribution) {
+                if (now - contribution.updated > this.maxAge) {
+                    series.contributions.remove(entry.getKey(), contribution);
+                    continue;
+                }
+
+                long[] counts = contribution.counts;
+
+                // The first contribution determines the shape of the merged histogram.
+                if (!merged) {
+                    if (series.merged == null || series.merged.length != counts.length)
+                        series.merged = new long[counts.length];
+                    Arrays.fill(series.merged, 0);
+                    series.factor = contribution.factor;
+                    merged = true;
+                }
+                else if (counts.length != series.merged.length || contribution.factor != series.factor) {
+                    LOG.debug("Contribution of {} to {} is incompatible; Skipping", entry.getKey(), oName);
+                    continue;
+                }
+
+                // When windowed, only what was added since the last report; All of it, after a restart.
+                long[] baseline = null;
+                if (this.windowed) {
+                    baseline = contribution.reported;
+                    if (baseline == null) {
+                        contribution.reported = counts.clone();
+                        continue;
+                    }
+                    if (HistogramDecoder.isReset(counts, baseline))
+                        baseline = null;
+                }
+
+                for (int i = 0; i < counts.length; i++)
+                    series.merged[i] += (baseline != null) ? counts[i] - baseline[i] : counts[i];
+
+                if (this.windowed)
+                    System.arraycopy(counts, 0, contribution.reported, 0, counts.length);
+            }
+        }
+
+        return merged;
+    }
+
+    private void add(String instance, ObjectName oName, long[] buckets, double factor) {
+        checkNotNull(oName, "oName argument");
+        checkNotNull(buckets, "buckets argument");
+
+        Series series = this.series.get(oName);
+        if (series == null) {
+            this.series.putIfAbsent(oName, new Series());
+            series = this.series.get(oName);
+        }
+
+        Contribution contribution = series.contributions.get(instance);
+        if (contribution == null) {
+            series.contributions.putIfAbsent(instance, new Contribution());
+            contribution = series.contributions.get(instance);
+        }
+
+        synchronized (contribution) {
+            if (contribution.counts == null || contribution.counts.length != buckets.length) {
+                contribution.counts = new long[buckets.length];
+                contribution.reported = null;
+            }
+            System.arraycopy(buckets, 0, contribution.counts, 0, buckets.length);
+            contribution.factor = factor;
+            contribution.updated = System.currentTimeMillis();
+        }
+    }
+
+}
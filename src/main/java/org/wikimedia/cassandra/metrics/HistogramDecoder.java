@@ -0,0 +1,239 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Decodes the bucket counts of an {@link EstimatedHistogram} (as exposed by Cassandra's histogram gauges) into
+ * percentiles, min, and max.
+ * <p>
+ * Equivalent to constructing an {@link EstimatedHistogram} and querying it, but without allocating; Bucket offsets are
+ * computed once per bucket count and shared, results are written to a reusable array, and all of the percentiles
+ * are found in a single cumulative pass over the buckets. Instances are not thread-safe.
+ * </p>
+ */
+public class HistogramDecoder {
+
+    /**
+     * Bucket counts of histograms Cassandra creates with a leading zero bucket (i.e. one more than the 91, 115, and
+     * 165 buckets of its default sizes); SSTablesPerReadHistogram, for example, has 166. Nothing Cassandra creates
+     * without a zero bucket has these counts, and the arrays are otherwise indistinguishable.
+     */
+    static final int[] ZERO_BUCKETED = { 92, 116, 166 };
+
+    /** Bucket offsets, indexed by the number of buckets (including overflow) they correspond to. */
+    private static volatile long[][] offsetsByCount = new long[0][];
+
+    private final double[] percentiles;
+    private final int[] order;
+    private final double[] result;
+
+    private boolean overflowed = false;
+    private long count = 0;
+
+    /**
+     * Create a new {@link HistogramDecoder}.
+     *
+     * @param percentiles
+     *            the percentiles to compute, (each between 0 and 1, inclusive)
+     */
+    public HistogramDecoder(double... percentiles) {
+        for (double p : percentiles)
+            checkArgument(p >= 0.0d && p <= 1.0d, "invalid percentile: %s", p);
+
+        this.percentiles = percentiles.clone();
+        this.result = new double[percentiles.length + 2];
+
+        // Visit percentiles in ascending order, whatever order they were supplied in.
+        Integer[] sorted = new Integer[percentiles.length];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = i;
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(HistogramDecoder.this.percentiles[a], HistogramDecoder.this.percentiles[b]);
+            }
+        });
+
+        this.order = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            this.order[i] = sorted[i];
+    }
+
+    /**
+     * Decodes histogram buckets. The returned array is reused, and only valid until the next call.
+     *
+     * @param buckets
+     *            the bucket counts; The last is the overflow bucket
+     * @return the percentiles (in the order supplied to the constructor), followed by min and max; Percentiles are
+     *         NaN if the histogram overflowed, and everything is NaN if buckets is malformed
+     */
+    public double[] decode(long[] buckets) {
+        return decode(buckets, null);
+    }
+
+    /**
+     * Decodes the difference between two sets of histogram buckets, (the counts added since a previous sample). The
+     * returned array is reused, and only valid until the next call.
+     *
+     * @param buckets
+     *            the bucket counts; The last is the overflow bucket
+     * @param baseline
+     *            the bucket counts to subtract, or null to decode buckets as-is
+     * @return the percentiles (in the order supplied to the constructor), followed by min and max; Percentiles are
+     *         NaN if the histogram overflowed, and everything is NaN if buckets is malformed
+     */
+    public double[] decode(long[] buckets, long[] baseline) {
+        int n = this.percentiles.length;
+
+        this.overflowed = false;
+        this.count = 0;
+
+        if (buckets == null || buckets.length < 2) {
+            Arrays.fill(this.result, Double.NaN);
+            return this.result;
+        }
+
+        checkArgument(baseline == null || baseline.length == buckets.length, "baseline argument");
+
+        long[] offsets = offsets(buckets.length);
+        int lastBucket = buckets.length - 1;
+
+        // First pass; Total count and min.
+        long count = 0;
+        int first = -1;
+        for (int i = 0; i <= lastBucket; i++) {
+            long bucket = bucket(buckets, baseline, i);
+            if (first < 0 && bucket > 0)
+                first = i;
+            count += bucket;
+        }
+
+        this.count = count;
+        this.overflowed = bucket(buckets, baseline, lastBucket) > 0;
+        this.result[n] = (first <= 0) ? 0 : 1 + offsets[first - 1];
+
+        // Second pass; Percentiles (in ascending order), and max.
+        int next = 0;
+        int last = -1;
+        long elements = 0;
+
+        if (this.overflowed) {
+            for (int i = 0; i < n; i++)
+                this.result[i] = Double.NaN;
+            next = n;
+        }
+
+        // Percentiles that work out to a count of 0 are 0.
+        while (next < n && (long) Math.ceil(count * this.percentiles[this.order[next]]) == 0)
+            this.result[this.order[next++]] = 0;
+
+        for (int i = 0; i < lastBucket; i++) {
+            long bucket = bucket(buckets, baseline, i);
+            if (bucket == 0)
+                continue;
+            last = i;
+            elements += bucket;
+            while (next < n && elements >= (long) Math.ceil(count * this.percentiles[this.order[next]]))
+                this.result[this.order[next++]] = offsets[i];
+        }
+
+        // Unreachable (short of the counts changing out from under us), but equivalent to EstimatedHistogram.
+        while (next < n)
+            this.result[this.order[next++]] = 0;
+
+        if (this.overflowed)
+            this.result[n + 1] = Long.MAX_VALUE;
+        else
+            this.result[n + 1] = (last < 0) ? 0 : offsets[last];
+
+        return this.result;
+    }
+
+    /** @return the total count of the most recently decoded histogram */
+    public long getCount() {
+        return this.count;
+    }
+
+    /** @return true if the most recently decoded histogram had a non-zero overflow bucket */
+    public boolean isOverflowed() {
+        return this.overflowed;
+    }
+
+    /**
+     * Tests whether histogram buckets have been reset since a previous sample; Counts only ever increase, unless the
+     * histogram was recreated (i.e. the instance was restarted).
+     *
+     * @param buckets
+     *            the current bucket counts
+     * @param previous
+     *            bucket counts of the previous sample
+     * @return true if the current counts cannot have followed from the previous
+     */
+    public static boolean isReset(long[] buckets, long[] previous) {
+        if (buckets.length != previous.length)
+            return true;
+        for (int i = 0; i < buckets.length; i++)
+            if (buckets[i] < previous[i])
+                return true;
+        return false;
+    }
+
+    private static long bucket(long[] buckets, long[] baseline, int index) {
+        return (baseline != null) ? buckets[index] - baseline[index] : buckets[index];
+    }
+
+    /** @return true if histograms with bucketCount buckets (including overflow) have a leading zero bucket */
+    static boolean isZeroBucketed(int bucketCount) {
+        for (int count : ZERO_BUCKETED)
+            if (count == bucketCount)
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns the (shared) bucket offsets for a histogram.
+     *
+     * @param bucketCount
+     *            number of buckets, including the overflow bucket
+     * @return the bucket offsets, (one fewer than the number of buckets); For the bucket counts of Cassandra's
+     *         zero-considering histograms (see {@link #ZERO_BUCKETED}), the first offset is 0
+     */
+    static long[] offsets(int bucketCount) {
+        long[][] cache = offsetsByCount;
+
+        if (bucketCount < cache.length && cache[bucketCount] != null)
+            return cache[bucketCount];
+
+        synchronized (HistogramDecoder.class) {
+            cache = offsetsByCount;
+            if (bucketCount < cache.length && cache[bucketCount] != null)
+                return cache[bucketCount];
+
+            long[][] updated = Arrays.copyOf(cache, Math.max(cache.length, bucketCount + 1));
+            updated[bucketCount] = isZeroBucketed(bucketCount)
+                    ? new EstimatedHistogram(bucketCount - 2, true).getBucketOffsets()
+                    : new EstimatedHistogram(bucketCount - 1).getBucketOffsets();
+            offsetsByCount = updated;
+
+            return updated[bucketCount];
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+/**
+ * POSTs request bodies to an HTTP endpoint, (for the sinks that write to one). Requests that fail in a way that might
+ * not recur (an I/O error, a 5xx, or a 429) are retried with backoff, up to a limit.
+ */
+class HttpPoster {
+
+    static final int CONNECT_TIMEOUT = 5000;
+    static final int READ_TIMEOUT = 30000;
+
+    /** Backoff before the first retry, in milliseconds; Doubled for each retry after, (up to MAX_BACKOFF). */
+    static final long MIN_BACKOFF = 100;
+    static final long MAX_BACKOFF = 5000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpPoster.class);
+
+    private final URL url;
+    private final int maxRetries;
+    private final Map<String, String> headers;
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Create a new {@link HttpPoster}.
+     *
+     * @param url
+     *            the endpoint
+     * @param maxRetries
+     *            the number of times a failed request is retried
+     * @param headers
+     *            request headers, (i.e. the content type and encoding)
+     */
+    HttpPoster(URL url, int maxRetries, Map<String, String> headers) {
+        this.url = checkNotNull(url, "url argument");
+        checkArgument(maxRetries >= 0, "maxRetries argument must not be negative");
+        this.maxRetries = maxRetries;
+        this.headers = ImmutableMap.copyOf(headers);
+    }
+
+    /**
+     * POSTs a request body, retrying as need be.
+     *
+     * @param payload
+     *            the request body
+     * @return the status of the last attempt
+     * @throws IOException
+     *             if the last attempt failed without a status
+     * @throws InterruptedException
+     *             if interrupted while backing off
+     */
+    int post(byte[] payload) throws IOException, InterruptedException {
+        long backoff = MIN_BACKOFF;
+
+        for (int attempt = 0; ; attempt++) {
+            String error;
+
+            try {
+                int status = attempt(payload);
+                // Others will only be rejected again, (unless we were asked to slow down).
+                if (attempt >= this.maxRetries || !(status / 100 == 5 || status == 429))
+                    return status;
+                error = String.format("HTTP %d", status);
+            }
+            catch (IOException e) {
+                if (attempt >= this.maxRetries)
+                    throw e;
+                error = e.toString();
+            }
+
+            LOG.debug("Error sending to {} ({}); Retrying in {}ms", this.url, error, backoff);
+            this.retries.incrementAndGet();
+            TimeUnit.MILLISECONDS.sleep(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    URL getUrl() {
+        return this.url;
+    }
+
+    /** @return the number of requests retried */
+    long getRetries() {
+        return this.retries.get();
+    }
+
+    private int attempt(byte[] payload) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(payload.length);
+            for (Map.Entry<String, String> header : this.headers.entrySet())
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            connection.setRequestProperty("User-Agent", "cassandra-metrics-collector");
+
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(payload);
+            }
+
+            int status = connection.getResponseCode();
+
+            // Read (and discard) the response, so that the connection can be reused.
+            try (InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null)
+                    ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            }
+
+            return status;
+        }
+        catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpPoster [url=" + url + ", maxRetries=" + maxRetries + ", headers=" + headers + "]";
+    }
+
+}
@@ -0,0 +1,430 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A {@link Sink} that writes to InfluxDB, in its line protocol; One line per MBean, with the MBean type as the
+ * measurement, the remaining key properties of its object name (and the instance) as tags, and every metric as a
+ * field. Far denser than a carbon line per metric. Numbers are all written as floats; A field's type is fixed per
+ * measurement, and MBeans of a type differ in which gauges are integral.
+ * <p>
+ * Lines are batched across instances, and a batch is POSTed (gzipped) once it reaches the flush size, or has waited
+ * for the flush interval, whichever comes first. Batches are sent from a thread of the sink's own; While it is
+ * behind, writers wait for it, backing samples up into their queue (where its policy applies). Batches that fail are
+ * dropped.
+ * </p>
+ */
+public class InfluxSink extends Sink {
+
+    /** Lines in a batch, (when none is configured). */
+    public static final int DEFAULT_FLUSH_SIZE = 5000;
+
+    /** Milliseconds a batch waits to fill, (when none is configured). */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    /** Full batches waiting to be sent, (beyond the one being sent). */
+    private static final int SEND_QUEUE = 2;
+
+    /** Tag of the Cassandra instance. */
+    static final String INSTANCE_TAG = "instance";
+
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxSink.class);
+
+    /** A batch of lines. */
+    private static class Batch {
+        private final String lines;
+        private final int count;
+
+        private Batch(String lines, int count) {
+            this.lines = lines;
+            this.count = count;
+        }
+    }
+
+    /** Marks the end of the send queue. */
+    private static final Batch END = new Batch("", 0);
+
+    /** Writes the samples of one instance; Consecutive samples of the same MBean (and time) become one line. */
+    private class Writer implements SampleSink {
+        private final String instance;
+        private final SeriesNames names;
+        private final StringBuilder line = new StringBuilder();
+        private ObjectName current;
+        private long timestamp;
+        private int fields = 0;
+
+        private Writer(String instance, SeriesNames names) {
+            this.instance = instance;
+            this.names = names;
+        }
+
+        /** Adds a sample to the line of its MBean; Those with values that Influx can't store (or that the filter rejects) are skipped. */
+        @Override
+        public void visit(JmxSample sample) {
+            Object value = sample.getValue();
+            if (!isStorable(value))
+                return;
+            if (getFilter().isPresent() && !getFilter().get().accept(this.names.get(sample)))
+                return;
+
+            long timestamp = sample.getTimestamp().longValue();
+            if (!sample.getObjectName().equals(this.current) || timestamp != this.timestamp) {
+                finish();
+                this.current = sample.getObjectName();
+                this.timestamp = timestamp;
+                appendSeries(this.line, sample, this.instance);
+            }
+
+            this.line.append((this.fields == 0) ? ' ' : ',');
+            appendKey(this.line, sample.getMetricName());
+            this.line.append('=');
+            appendValue(this.line, value);
+            this.fields++;
+        }
+
+        /** Adds the current line to the batch, (which is sent when full, or on the flush interval). */
+        @Override
+        public void flush() throws IOException {
+            finish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private void finish() {
+            if (this.fields > 0) {
+                this.line.append(' ').append(this.timestamp).append("000000000\n");
+                append(this.line);
+            }
+            this.line.setLength(0);
+            this.current = null;
+            this.fields = 0;
+        }
+    }
+
+    private final HttpPoster poster;
+    private final int flushSize;
+    private final long flushInterval;
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(SEND_QUEUE);
+    private final Thread sender;
+
+    // Guarded by this.
+    private StringBuilder batch = new StringBuilder();
+    private int lines = 0;
+
+    private final AtomicLong sentLines = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong droppedLines = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+
+    private volatile boolean isStarted = false;
+
+    /**
+     * Create a new {@link InfluxSink}.
+     *
+     * @param name
+     *            name of the sink
+     * @param url
+     *            the write endpoint, (i.e. http://influxdb:8086/write?db=cassandra)
+     * @param flushSize
+     *            the most lines sent in a request
+     * @param flushInterval
+     *            the most time (in milliseconds) a line waits to be sent
+     * @param prefix
+     *            the prefix metric names are filtered with, (see {@link CarbonVisitor})
+     * @param filter
+     *            the (optional) filter metric names are tested against
+     * @param queueSize
+     *            capacity of the sink's queue, in samples
+     * @param queuePolicy
+     *            what to do when the sink's queue is full
+     */
+    public InfluxSink(String name, URL url, int flushSize, long flushInterval, String prefix, Optional<Filter> filter, int queueSize, SampleRing.Policy queuePolicy) {
+        super(name, prefix, filter, queueSize, queuePolicy);
+        this.poster = new HttpPoster(url, 0, ImmutableMap.of(
+                "Content-Type", "text/plain; charset=utf-8",
+                "Content-Encoding", "gzip"));
+        checkArgument(flushSize > 0, "flushSize argument must be positive");
+        checkArgument(flushInterval > 0, "flushInterval argument must be positive");
+        this.flushSize = flushSize;
+        this.flushInterval = flushInterval;
+
+        this.sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, String.format("influx-%s", name));
+        this.sender.setDaemon(true);
+    }
+
+    @Override
+    public SampleSink open(String instance, SeriesNames names) {
+        checkState(this.isStarted, "sink not started");
+        return new Writer(instance, names);
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        checkState(!this.isStarted, "already started");
+        this.sender.start();
+        this.isStarted = true;
+    }
+
+    /** Sends what has been batched, and stops. */
+    @Override
+    public void close() throws IOException {
+        if (!this.isStarted)
+            return;
+        try {
+            this.queue.put(END);
+            this.sender.join(2 * (HttpPoster.CONNECT_TIMEOUT + HttpPoster.READ_TIMEOUT));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.isStarted = false;
+    }
+
+    public URL getUrl() {
+        return this.poster.getUrl();
+    }
+
+    /** @return the number of lines sent */
+    public long getSentLines() {
+        return this.sentLines.get();
+    }
+
+    /** @return the number of (compressed) bytes sent */
+    public long getSentBytes() {
+        return this.sentBytes.get();
+    }
+
+    /** @return the number of lines dropped, (in batches that could not be sent) */
+    public long getDroppedLines() {
+        return this.droppedLines.get();
+    }
+
+    /** @return the number of batches that could not be sent */
+    public long getFailedBatches() {
+        return this.failedBatches.get();
+    }
+
+    @Override
+    public String toString() {
+        return "InfluxSink [name=" + getName() + ", url=" + getUrl() + ", flushSize=" + flushSize + ", flushInterval="
+                + flushInterval + "]";
+    }
+
+    /** Adds a line to the batch; Handing the batch to the sender once full, (and waiting, if it is behind). */
+    private void append(CharSequence line) {
+        Batch full = null;
+        synchronized (this) {
+            this.batch.append(line);
+            if (++this.lines >= this.flushSize)
+                full = take();
+        }
+
+        if (full != null) {
+            try {
+                this.queue.put(full);
+            }
+            catch (InterruptedException e) {
+                dropped(full.count, "interrupted");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Takes the batch (guarded by this), or returns null if it is empty. */
+    private Batch take() {
+        if (this.lines == 0)
+            return null;
+        Batch taken = new Batch(this.batch.toString(), this.lines);
+        this.batch = new StringBuilder(taken.lines.length());
+        this.lines = 0;
+        return taken;
+    }
+
+    /** Sends full batches as they are handed over, and partial batches each flush interval. */
+    private void send() {
+        long next = System.currentTimeMillis() + this.flushInterval;
+
+        try {
+            while (true) {
+                Batch batch = this.queue.poll(Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+                if (batch == null || batch == END) {
+                    Batch partial;
+                    synchronized (this) {
+                        partial = take();
+                    }
+                    if (partial != null)
+                        post(partial);
+                    if (batch == END)
+                        return;
+                    next = System.currentTimeMillis() + this.flushInterval;
+                    continue;
+                }
+
+                post(batch);
+            }
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Sender of {} interrupted; Batched lines were dropped", getName());
+        }
+    }
+
+    private void post(Batch batch) throws InterruptedException {
+        try {
+            byte[] payload = gzip(batch.lines.getBytes(Charsets.UTF_8));
+            int status = this.poster.post(payload);
+            if (status / 100 == 2) {
+                this.sentLines.addAndGet(batch.count);
+                this.sentBytes.addAndGet(payload.length);
+                return;
+            }
+            this.failedBatches.incrementAndGet();
+            dropped(batch.count, String.format("HTTP %d", status));
+        }
+        catch (IOException e) {
+            this.failedBatches.incrementAndGet();
+            dropped(batch.count, e.toString());
+        }
+    }
+
+    private void dropped(int count, String error) {
+        this.droppedLines.addAndGet(count);
+        LOG.warn("Unable to send {} lines to {} ({}); Dropped", count, getUrl(), error);
+    }
+
+    private static byte[] gzip(byte[] plain) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(plain);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Numbers (but for NaN and infinities), strings, and booleans. */
+    private static boolean isStorable(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return !Double.isNaN(d) && !Double.isInfinite(d);
+        }
+        return value instanceof Number || value instanceof String || value instanceof Boolean;
+    }
+
+    /** Appends the measurement and tags of a sample's line. */
+    static void appendSeries(StringBuilder builder, JmxSample sample, String instance) {
+        ObjectName oName = sample.getObjectName();
+        String type = oName.getKeyProperty("type");
+        if (sample.getType() == JmxSample.Type.JVM)
+            builder.append("jvm_");
+        appendEscaped(builder, (type != null) ? type : oName.getDomain(), false);
+
+        // Tags are to be sorted by key, (for the best performance from Influx).
+        for (Map.Entry<String, String> tag : tags(oName, instance).entrySet()) {
+            builder.append(',');
+            appendKey(builder, tag.getKey());
+            builder.append('=');
+            appendKey(builder, tag.getValue());
+        }
+    }
+
+    /** The instance, and every key property of an object name but type, (see {@link CarbonVisitor#keyProperties(ObjectName)}). */
+    static SortedMap<String, String> tags(ObjectName oName, String instance) {
+        SortedMap<String, String> tags = new TreeMap<>();
+        tags.put(INSTANCE_TAG, instance);
+
+        for (Map.Entry<String, String> property : CarbonVisitor.keyProperties(oName).entrySet()) {
+            if (property.getKey().equals("type"))
+                continue;
+            String value = property.getValue();
+            if (value.startsWith("\""))
+                value = ObjectName.unquote(value);
+            // Influx has no use for empty tags.
+            if (!value.isEmpty())
+                tags.put(property.getKey(), value);
+        }
+
+        return tags;
+    }
+
+    private static void appendValue(StringBuilder builder, Object value) {
+        if (value instanceof String) {
+            builder.append('"');
+            String s = (String) value;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\')
+                    builder.append('\\');
+                builder.append(c);
+            }
+            builder.append('"');
+        }
+        else if (value instanceof Boolean) {
+            builder.append(((Boolean) value) ? 't' : 'f');
+        }
+        else {
+            // Integral or not, (a value field of one gauge can't be an integer where another's is a float).
+            builder.append(((Number) value).doubleValue());
+        }
+    }
+
+    /** Appends a tag key or value, or field key. */
+    private static void appendKey(StringBuilder builder, String key) {
+        appendEscaped(builder, key, true);
+    }
+
+    /** Escapes commas and spaces, (and equals signs, in keys and tag values). */
+    private static void appendEscaped(StringBuilder builder, String s, boolean equals) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\n')
+                c = ' ';
+            if (c == ',' || c == ' ' || (equals && c == '='))
+                builder.append('\\');
+            builder.append(c);
+        }
+    }
+
+}
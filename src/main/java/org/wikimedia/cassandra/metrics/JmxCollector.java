@@ -15,6 +15,7 @@
  */
 package org.wikimedia.cassandra.metrics;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.management.ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE;
 import static java.lang.management.ManagementFactory.MEMORY_MXBEAN_NAME;
@@ -24,60 +25,83 @@ import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_JMX_HOST;
 import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_JMX_PORT;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.RuntimeMXBean;
 import java.net.MalformedURLException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-
-import javax.management.JMX;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
+import javax.management.ReflectionException;
+import javax.management.RuntimeMBeanException;
 import javax.management.remote.JMXServiceURL;
 
-import org.apache.cassandra.metrics.CassandraMetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.wikimedia.cassandra.metrics.JmxSample.Type;
 
-import com.google.common.collect.Sets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 public class JmxCollector implements AutoCloseable {
 
+    private static final Logger LOG = LoggerFactory.getLogger(JmxCollector.class);
+
     private static final String FORMAT_URL = "service:jmx:rmi:///jndi/rmi://%s:%d/jmxrmi";
 
-    private static final Map<String, Class<?>> mbeanClasses;
-    private static final Set<ObjectName> blacklist;
+    /** Minimum number of MBeans assigned to each parallel collection worker. */
+    static final int MBEANS_PER_WORKER = 250;
 
-    static {
-        mbeanClasses = new HashMap<String, Class<?>>();
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxGauge", CassandraMetricsRegistry.JmxGaugeMBean.class);
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxTimer", CassandraMetricsRegistry.JmxTimerMBean.class);
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxCounter", CassandraMetricsRegistry.JmxCounterMBean.class);
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxMeter", CassandraMetricsRegistry.JmxMeterMBean.class);
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxHistogram", CassandraMetricsRegistry.JmxHistogramMBean.class);
+    /** Names of the metrics decoded from histogram gauges, (see {@link #isHistogramGauge(MetricKind, ObjectName)}). */
+    static final String[] HISTOGRAM_GAUGE_METRICS = new String[] {
+            "50percentile", "75percentile", "95percentile", "98percentile", "99percentile", "min", "max" };
 
-        blacklist = new HashSet<ObjectName>();
-        blacklist.add(newObjectName("org.apache.cassandra.metrics:type=ColumnFamily,name=SnapshotsSize"));
-        blacklist.add(newObjectName("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=system,scope=compactions_in_progress,name=SnapshotsSize"));
+    /** Percentiles decoded from histogram gauges, (corresponding to the first of HISTOGRAM_GAUGE_METRICS). */
+    private static final double[] HISTOGRAM_GAUGE_PERCENTILES = new double[] { 0.5, 0.75, 0.95, 0.98, 0.99 };
 
-    }
+    private static final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("jmx-collector-%d")
+            .build();
+
+    private final AtomicLong roundTrips = new AtomicLong();
 
-    private final String hostname;
-    private final int port;
-    private final ObjectName metricsObjectName = newObjectName("org.apache.cassandra.metrics:*");
+    private final JmxConnectionManager connections;
+    private final boolean ownsConnections;
+    private final MBeanInventory inventory;
 
-    private JMXConnector jmxc;
+    private MBeanServerConnection connection;
     private MBeanServerConnection mbeanServerConn;
+    private int maxWorkers = 1;
+    private FetchPlan fetchPlan = new FetchPlan();
+    private Tiers tiers = Tiers.none();
+    private Tiers.Tier tier;
+    private boolean windowed = false;
+    private HistogramAggregator.Contributor aggregator;
+    private ExecutorService executor;
 
     public JmxCollector() throws IOException {
         this(DEFAULT_JMX_HOST);
@@ -88,240 +112,504 @@ public class JmxCollector implements AutoCloseable {
     }
 
     public JmxCollector(String host, int port) throws IOException {
-        this.hostname = checkNotNull(host, "host argument");
-        this.port = checkNotNull(port, "port argument");
+        this(jmxUrl(checkNotNull(host, "host argument"), port));
+    }
 
-        JMXServiceURL jmxUrl;
-        try {
-            jmxUrl = new JMXServiceURL(String.format(FORMAT_URL, this.hostname, this.port));
-        }
-        catch (MalformedURLException e) {
-            throw new IllegalArgumentException(e.getMessage());
-        }
+    public JmxCollector(JMXServiceURL jmxUrl) throws IOException {
+        this(new JmxConnectionManager(jmxUrl), true);
 
-        connect(jmxUrl);
+        // Connect now, (fail early).
+        getConnection();
     }
 
-    public JmxCollector(JMXServiceURL jmxUrl) throws IOException {
-        this.hostname = jmxUrl.getHost();
-        this.port = jmxUrl.getPort();
+    /**
+     * Creates a collector that uses a shared (long-lived) connection. Closing the collector will not close the
+     * connection.
+     *
+     * @param connections
+     *            the connection manager
+     */
+    public JmxCollector(JmxConnectionManager connections) {
+        this(connections, 1);
+    }
 
-        connect(jmxUrl);
+    /**
+     * Creates a collector that uses a shared (long-lived) connection, and collects from up to maxWorkers MBeans
+     * concurrently (each worker using a connection of its own). The number of workers actually used is scaled to
+     * the number of MBeans; Smaller instances will use fewer. Workers are pooled, and reused from one collection to
+     * the next, (so the collector should be kept, and closed when done with).
+     *
+     * @param connections
+     *            the connection manager
+     * @param maxWorkers
+     *            the maximum number of concurrent workers
+     */
+    public JmxCollector(JmxConnectionManager connections, int maxWorkers) {
+        this(connections, false);
+        checkArgument(maxWorkers > 0, "maxWorkers argument");
+        this.maxWorkers = maxWorkers;
+    }
+
+    /** Creates a collector on top of an already established connection (useful for testing). */
+    JmxCollector(MBeanServerConnection connection) {
+        this(connection, 1);
+    }
+
+    JmxCollector(MBeanServerConnection connection, int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+        this.connections = null;
+        this.ownsConnections = false;
+        this.inventory = new MBeanInventory();
+        this.connection = checkNotNull(connection, "connection argument");
+        this.mbeanServerConn = CountingConnection.wrap(connection, this.roundTrips);
     }
 
-    private void connect(JMXServiceURL jmxUrl) throws IOException {
-        /* FIXME: add authentication support */
-        Map<String, Object> env = new HashMap<String, Object>();
-        this.jmxc = JMXConnectorFactory.connect(jmxUrl, env);
-        this.mbeanServerConn = jmxc.getMBeanServerConnection();
+    private JmxCollector(JmxConnectionManager connections, boolean ownsConnections) {
+        this.connections = checkNotNull(connections, "connections argument");
+        this.ownsConnections = ownsConnections;
+        this.inventory = connections.getInventory();
+    }
+
+    /**
+     * Limits the attributes read from each MBean to those accepted by a fetch plan, (and computes percentiles from
+     * histogram buckets, if the plan calls for it). Without one, every attribute of interest is read.
+     *
+     * @param fetchPlan
+     *            the fetch plan, or null to read all attributes
+     */
+    public void setFetchPlan(FetchPlan fetchPlan) {
+        this.fetchPlan = (fetchPlan != null) ? fetchPlan : new FetchPlan();
+    }
+
+    /**
+     * Limits collection to the MBeans of a single cadence tier. JVM metrics are collected only as a part of the
+     * default tier.
+     *
+     * @param tiers
+     *            the cadence tiers
+     * @param tier
+     *            the tier to collect, or null for the default tier
+     */
+    public void setTier(Tiers tiers, Tiers.Tier tier) {
+        this.tiers = checkNotNull(tiers, "tiers argument");
+        checkArgument(tier == null || tiers.getTiers().contains(tier), "tier argument");
+        this.tier = tier;
+    }
+
+    /**
+     * Computes histogram percentiles over the interval since the previous collection, (rather than since the start of
+     * the instance). The previous bucket counts are kept by the fetch plan, so this requires a long-lived one (see
+     * {@link #setFetchPlan(FetchPlan)}). Nothing is reported for a histogram on first collection, or for an interval
+     * that saw no new values.
+     *
+     * @param windowed
+     *            true for windowed percentiles
+     */
+    public void setWindowed(boolean windowed) {
+        this.windowed = windowed;
+    }
+
+    /**
+     * Contributes the buckets of every histogram read to an aggregate, (see {@link HistogramAggregator}). Timers and
+     * histograms are only read as buckets when the fetch plan computes percentiles.
+     *
+     * @param aggregator
+     *            contributor to the aggregate, or null for none
+     */
+    public void setAggregator(HistogramAggregator.Contributor aggregator) {
+        this.aggregator = aggregator;
     }
 
     public void getSamples(SampleVisitor visitor) throws IOException {
-        getJvmSamples(visitor);
-        getCassandraSamples(visitor);
+        getBatches(SampleBatch.unbatched(visitor));
+    }
+
+    /**
+     * Collects samples a {@link SampleBatch} (of each MBean) at a time, without boxing their values; For visitors that
+     * write samples out as they go, (see {@link CarbonVisitor}).
+     *
+     * @param visitor
+     *            visitor of the batches
+     * @throws IOException
+     *             if collection fails
+     */
+    public void getBatches(BatchVisitor visitor) throws IOException {
+        this.roundTrips.set(0);
+        if (this.tier == null)
+            getJvmBatches(visitor);
+        getCassandraBatches(visitor);
     }
 
     public void getJvmSamples(SampleVisitor visitor) throws IOException {
+        getJvmBatches(SampleBatch.unbatched(visitor));
+    }
+
+    public void getCassandraSamples(SampleVisitor visitor) throws IOException {
+        getCassandraBatches(SampleBatch.unbatched(visitor));
+    }
+
+    private void getJvmBatches(BatchVisitor visitor) throws IOException {
         int timestamp = (int) (System.currentTimeMillis() / 1000);
+        SampleBatch batch = new SampleBatch();
 
         // Runtime
         RuntimeMXBean runtime = ManagementFactory.newPlatformMXBeanProxy(getConnection(), RUNTIME_MXBEAN_NAME, RuntimeMXBean.class);
-        visitor.visit(new JmxSample(Type.JVM, newObjectName(RUNTIME_MXBEAN_NAME), "uptime", runtime.getUptime(), timestamp));
+        batch.reset(Type.JVM, newObjectName(RUNTIME_MXBEAN_NAME), timestamp);
+        batch.add("uptime", runtime.getUptime());
+        visitor.visit(batch);
 
         // Memory
         MemoryMXBean memory = ManagementFactory.newPlatformMXBeanProxy(getConnection(), MEMORY_MXBEAN_NAME, MemoryMXBean.class);
         ObjectName oName = newObjectName(MEMORY_MXBEAN_NAME);
         double nonHeapUsed = ((double)memory.getNonHeapMemoryUsage().getUsed() / (double)memory.getNonHeapMemoryUsage().getCommitted());
         double heapUsed = ((double)memory.getHeapMemoryUsage().getUsed() / (double)memory.getHeapMemoryUsage().getCommitted());
-        visitor.visit(new JmxSample(Type.JVM, oName, "non_heap_usage", nonHeapUsed, timestamp));
-        visitor.visit(new JmxSample(Type.JVM, oName, "non_heap_usage_bytes", (double)memory.getNonHeapMemoryUsage().getUsed(), timestamp));
-        visitor.visit(new JmxSample(Type.JVM, oName, "heap_usage", heapUsed, timestamp));
+        batch.reset(Type.JVM, oName, timestamp);
+        batch.add("non_heap_usage", nonHeapUsed);
+        batch.add("non_heap_usage_bytes", (double)memory.getNonHeapMemoryUsage().getUsed());
+        batch.add("heap_usage", heapUsed);
+        visitor.visit(batch);
 
         // Garbage collection
         for (ObjectInstance instance : getConnection().queryMBeans(newObjectName("java.lang:type=GarbageCollector,name=*"), null)) {
             String name = instance.getObjectName().getKeyProperty("name");
             GarbageCollectorMXBean gc = newPlatformMXBeanProxy(GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE, "name", name, GarbageCollectorMXBean.class);
-            visitor.visit(new JmxSample(Type.JVM, instance.getObjectName(), "runs", gc.getCollectionCount(), timestamp));
-            visitor.visit(new JmxSample(Type.JVM, instance.getObjectName(), "time", gc.getCollectionTime(), timestamp));
+            batch.reset(Type.JVM, instance.getObjectName(), timestamp);
+            batch.add("runs", gc.getCollectionCount());
+            batch.add("time", gc.getCollectionTime());
+            visitor.visit(batch);
         }
 
         // Memory pool usages
         for (ObjectInstance instance : getConnection().queryMBeans(newObjectName("java.lang:type=MemoryPool,name=*"), null)) {
             String name = instance.getObjectName().getKeyProperty("name");
             MemoryPoolMXBean memPool = newPlatformMXBeanProxy(MEMORY_POOL_MXBEAN_DOMAIN_TYPE, "name", name, MemoryPoolMXBean.class);
-            visitor.visit(new JmxSample(Type.JVM, instance.getObjectName(), memPool.getName(), memPool.getUsage().getUsed(), timestamp));
+            batch.reset(Type.JVM, instance.getObjectName(), timestamp);
+            batch.add(memPool.getName(), memPool.getUsage().getUsed());
+            visitor.visit(batch);
         }
 
     }
 
+    private void getCassandraBatches(BatchVisitor visitor) throws IOException {
+        MBeanServerConnection connection = getConnection();
+        List<Map.Entry<ObjectName, MetricKind>> entries = Lists.newArrayList(this.inventory.refresh(connection).entrySet());
 
-    public void getCassandraSamples(SampleVisitor visitor) throws IOException {
+        // Leave the MBeans of other tiers to their own schedules.
+        if (!this.tiers.isEmpty()) {
+            Iterator<Map.Entry<ObjectName, MetricKind>> iter = entries.iterator();
+            while (iter.hasNext())
+                if (this.tiers.tierOf(iter.next().getKey()) != this.tier)
+                    iter.remove();
+        }
+
+        int workers = workersFor(entries.size());
+
+        if (workers > 1)
+            getCassandraBatches(connection, entries, workers, visitor);
+        else
+            getCassandraBatches(connection, entries, visitor);
+    }
+
+    /**
+     * Returns the number of JMX round trips made by the most recent call to {@link #getBatches(BatchVisitor)}.
+     *
+     * @return the round trip count
+     */
+    public long getRoundTrips() {
+        return this.roundTrips.get();
+    }
+
+    /** Splits the MBeans across workers, each with its own connection. */
+    private void getCassandraBatches(
+            MBeanServerConnection connection,
+            List<Map.Entry<ObjectName, MetricKind>> entries,
+            int workers,
+            BatchVisitor visitor) throws IOException {
+
+        final BatchVisitor synchronizedVisitor = new SynchronizedVisitor(visitor);
+        ExecutorService executor = getExecutor();
+        List<Future<Void>> futures = Lists.newArrayList();
+        int partitionSize = (entries.size() + workers - 1) / workers;
+
+        try {
+            for (int i = 0; i < workers; i++) {
+                final MBeanServerConnection workerConnection = (i == 0) ? connection : getWorkerConnection(i, connection);
+                final List<Map.Entry<ObjectName, MetricKind>> partition = entries.subList(
+                        Math.min(i * partitionSize, entries.size()),
+                        Math.min((i + 1) * partitionSize, entries.size()));
+
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        getCassandraBatches(workerConnection, partition, synchronizedVisitor);
+                        return null;
+                    }
+                }));
+            }
 
-        for (ObjectInstance instance : getConnection().queryMBeans(this.metricsObjectName, null)) {
-            if (!interesting(instance.getObjectName()))
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted awaiting collection workers");
+                }
+                catch (ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        }
+        finally {
+            // The pool outlives the collection; Stragglers (of a failed or interrupted collection) are cancelled.
+            for (Future<Void> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /** Returns the pool of collection workers, created once and kept (for reuse by later collections) until close. */
+    private synchronized ExecutorService getExecutor() {
+        if (this.executor == null)
+            this.executor = Executors.newFixedThreadPool(this.maxWorkers, threadFactory);
+        return this.executor;
+    }
+
+    private void getCassandraBatches(
+            MBeanServerConnection connection,
+            List<Map.Entry<ObjectName, MetricKind>> entries,
+            BatchVisitor visitor) throws IOException {
+
+        SampleBatch batch = new SampleBatch();
+        HistogramDecoder decoder = new HistogramDecoder(HISTOGRAM_GAUGE_PERCENTILES);
+        Percentiles percentiles = this.fetchPlan.getPercentiles();
+        HistogramDecoder bucketDecoder = (percentiles != null) ? new HistogramDecoder(percentiles.getValues()) : null;
+
+        for (Map.Entry<ObjectName, MetricKind> entry : entries) {
+            ObjectName oName = entry.getKey();
+            MetricKind kind = entry.getValue();
+            FetchPlan.Plan plan = this.fetchPlan.plan(oName, kind);
+            String[] names = plan.getAttributes();
+            AttributeList attributes;
+            long[] buckets = null;
+
+            // Nothing here survives the filter; Don't bother asking.
+            if (plan.isEmpty())
                 continue;
 
-            Object proxy = getMBeanProxy(instance);
-            ObjectName oName = instance.getObjectName();
-
-            int timestamp = (int) (System.currentTimeMillis() / 1000);
-
-            // Order matters here (for example: TimerMBean extends MeterMBean)
-
-            if (proxy instanceof CassandraMetricsRegistry.JmxTimerMBean) {
-                CassandraMetricsRegistry.JmxTimerMBean timer = (CassandraMetricsRegistry.JmxTimerMBean)proxy;
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "50percentile", timer.get50thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "75percentile", timer.get75thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "95percentile", timer.get95thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "98percentile", timer.get98thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "99percentile", timer.get99thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "999percentile", timer.get999thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "1MinuteRate", timer.getOneMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "5MinuteRate", timer.getFiveMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "15MinuteRate", timer.getFifteenMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "count", timer.getCount(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "max", timer.getMax(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "mean", timer.getMean(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "meanRate", timer.getMeanRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "min", timer.getMin(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "stddev", timer.getStdDev(), timestamp));
+            // Read every attribute of interest in a single round trip, (and the buckets in another, if need be).
+            try {
+                attributes = (names.length > 0) ? connection.getAttributes(oName, names) : new AttributeList();
+
+                if (plan.isBuckets() && plan.getPercentiles().length > 0) {
+                    buckets = getBuckets(connection, oName);
+
+                    if (buckets == null) {
+                        LOG.debug("No buckets available from {}; Reading percentile attributes instead", oName);
+                        plan.disableBuckets();
+                        attributes = connection.getAttributes(oName, plan.getAttributes());
+                    }
+                }
+            }
+            catch (InstanceNotFoundException e) {
+                // The MBean was unregistered out from under us (i.e. a dropped table); Move along.
+                this.inventory.remove(oName);
                 continue;
             }
-
-            if (proxy instanceof CassandraMetricsRegistry.JmxMeterMBean) {
-                CassandraMetricsRegistry.JmxMeterMBean meter = (CassandraMetricsRegistry.JmxMeterMBean)proxy;
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "15MinuteRate", meter.getFifteenMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "1MinuteRate", meter.getOneMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "5MinuteRate", meter.getFiveMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "count", meter.getCount(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "meanRate", meter.getMeanRate(), timestamp));
+            catch (ReflectionException e) {
                 continue;
             }
 
-            if (proxy instanceof CassandraMetricsRegistry.JmxHistogramMBean) {
-                CassandraMetricsRegistry.JmxHistogramMBean histogram = (CassandraMetricsRegistry.JmxHistogramMBean)proxy;
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "50percentile", histogram.get50thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "75percentile", histogram.get75thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "95percentile", histogram.get95thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "98percentile", histogram.get98thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "99percentile", histogram.get99thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "999percentile", histogram.get999thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "max", histogram.getMax(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "mean", histogram.getMean(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "min", histogram.getMin(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "stddev", histogram.getStdDev(), timestamp));
-                continue;
+            batch.reset(Type.CASSANDRA, oName, (int) (System.currentTimeMillis() / 1000));
+
+            if (buckets != null) {
+                // Bucket offsets of timers are in nanoseconds; The attributes are in the timer's duration unit.
+                double factor = (kind == MetricKind.TIMER) ? durationFactor(attributes) : 1.0d;
+                double[] values = decode(bucketDecoder, plan, buckets);
+
+                if (this.aggregator != null && !Double.isNaN(factor))
+                    this.aggregator.add(oName, buckets, factor);
+
+                if (values == null)
+                    LOG.trace("No new values for {}", oName);
+                else if (bucketDecoder.isOverflowed())
+                    LOG.debug("{} overflowed, unable to calculate percentiles", oName);
+                else if (Double.isNaN(factor))
+                    LOG.debug("Unknown duration unit for {}, unable to calculate percentiles", oName);
+                else
+                    for (int i : plan.getPercentiles())
+                        batch.add(percentiles.getName(i), values[i] * factor);
             }
 
-            if (proxy instanceof CassandraMetricsRegistry.JmxGaugeMBean) {
-                // EstimatedRowSizeHistogram and EstimatedColumnCountHistogram are allegedly Gauge, but with a value
-                // of type of long[], we're left with little choice but to special-case them.  This borrows code from
-                // Cassandra to decode the array into a histogram (50p, 75p, 95p, 98p, 99p, min, and max).
-                String name = oName.getKeyProperty("name");
-                if (name.equals("EstimatedRowSizeHistogram") || name.equals("EstimatedColumnCountHistogram")) {
-                    Object value = ((CassandraMetricsRegistry.JmxGaugeMBean) proxy).getValue();
-                    double[] percentiles = metricPercentilesAsArray((long[])value);
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "50percentile", percentiles[0], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "75percentile", percentiles[1], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "95percentile", percentiles[2], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "98percentile", percentiles[3], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "99percentile", percentiles[4], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "min", percentiles[5], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "max", percentiles[6], timestamp));
+            for (Attribute attribute : attributes.asList()) {
+                String metricName = kind.metricName(attribute.getName());
+                Object value = attribute.getValue();
+
+                if (metricName == null || value == null)
+                    continue;
+
+                if (isHistogramGauge(kind, oName)) {
+                    // EstimatedRowSizeHistogram and EstimatedColumnCountHistogram are allegedly Gauge, but with a value
+                    // of type of long[], we're left with little choice but to special-case them, decoding the array
+                    // into a histogram (50p, 75p, 95p, 98p, 99p, min, and max).
+                    if (this.aggregator != null)
+                        this.aggregator.add(oName, (long[])value, 1.0d);
+                    double[] values = decode(decoder, plan, (long[])value);
+                    if (values == null)
+                        continue;
+                    if (decoder.isOverflowed())
+                        LOG.debug("{} overflowed, unable to calculate percentiles", oName);
+                    for (int i = 0; i < HISTOGRAM_GAUGE_METRICS.length; i++)
+                        batch.add(HISTOGRAM_GAUGE_METRICS[i], values[i]);
+                    continue;
                 }
-                else {
-                    visitor.visit(new JmxSample(
-                            Type.CASSANDRA,
-                            oName,
-                            "value",
-                            ((CassandraMetricsRegistry.JmxGaugeMBean) proxy).getValue(),
-                            timestamp));
-                }
-                continue;
+
+                batch.add(metricName, value);
             }
 
-            if (proxy instanceof CassandraMetricsRegistry.JmxCounterMBean) {
-                visitor.visit(new JmxSample(
-                        Type.CASSANDRA,
-                        oName,
-                        "count",
-                        ((CassandraMetricsRegistry.JmxCounterMBean) proxy).getCount(),
-                        timestamp));
-                continue;
+            if (!batch.isEmpty())
+                visitor.visit(batch);
+        }
+
+    }
+
+    /**
+     * Decodes histogram buckets; When windowed, only the counts added since the previous collection are decoded (and
+     * null is returned if there are none).
+     */
+    private double[] decode(HistogramDecoder decoder, FetchPlan.Plan plan, long[] buckets) {
+        if (!this.windowed)
+            return decoder.decode(buckets);
+
+        synchronized (plan) {
+            long[] previous = plan.getPrevious();
+            double[] values = null;
+
+            // The first sample has nothing to compare to; After a restart, everything counted is new.
+            if (previous != null) {
+                values = decoder.decode(buckets, HistogramDecoder.isReset(buckets, previous) ? null : previous);
+                if (decoder.getCount() == 0)
+                    values = null;
             }
+
+            // (The stored counts are overwritten in place, so only once decoded.)
+            plan.setPrevious(buckets);
+
+            return values;
         }
+    }
 
+    /** Reads the raw buckets of a timer or histogram; Returns null if the MBean has none to offer. */
+    private static long[] getBuckets(MBeanServerConnection connection, ObjectName oName)
+            throws InstanceNotFoundException, IOException {
+        try {
+            Object value = connection.invoke(oName, FetchPlan.VALUES, null, null);
+            return (value instanceof long[] && ((long[]) value).length > 1) ? (long[]) value : null;
+        }
+        catch (ReflectionException | MBeanException | RuntimeMBeanException e) {
+            return null;
+        }
+    }
+
+    /** Returns the factor converting nanoseconds to the unit in a timer's DurationUnit attribute, or NaN. */
+    private static double durationFactor(AttributeList attributes) {
+        for (Attribute attribute : attributes.asList()) {
+            if (!FetchPlan.DURATION_UNIT.equals(attribute.getName()) || !(attribute.getValue() instanceof String))
+                continue;
+            try {
+                return 1.0d / TimeUnit.valueOf(((String) attribute.getValue()).toUpperCase(Locale.US)).toNanos(1);
+            }
+            catch (IllegalArgumentException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
     }
 
     @Override
     public void close() throws IOException {
-        this.jmxc.close();
+        synchronized (this) {
+            if (this.executor != null)
+                this.executor.shutdownNow();
+        }
+        if (this.ownsConnections)
+            this.connections.close();
     }
 
     @Override
     public String toString() {
-        return "JmxCollector [hostname="
-                + hostname
-                + ", port="
-                + port
-                + ", jmxc="
-                + jmxc
+        return "JmxCollector [connections="
+                + connections
                 + ", mbeanServerConn="
                 + mbeanServerConn
-                + ", metricsObjectName="
-                + metricsObjectName
+                + ", inventory="
+                + inventory
+                + ", fetchPlan="
+                + fetchPlan
+                + ", tier="
+                + tier
+                + ", windowed="
+                + windowed
+                + ", aggregator="
+                + aggregator
                 + "]";
     }
 
-    MBeanServerConnection getConnection() {
-        return this.mbeanServerConn;
+    /** @return the number of workers to use for a given number of MBeans */
+    int workersFor(int mbeans) {
+        return Math.max(1, Math.min(this.maxWorkers, (mbeans + MBEANS_PER_WORKER - 1) / MBEANS_PER_WORKER));
     }
 
-    Object getMBeanProxy(ObjectInstance instance) {
-        return JMX.newMBeanProxy(getConnection(), instance.getObjectName(), mbeanClasses.get(instance.getClassName()));
-    }
-
-    /* TODO: Ideally, the "interesting" criteria should be configurable. */
-    private static Set<String> interestingTypes = Sets.newHashSet(
-            "Cache",
-            "Client",
-            "ClientRequest",
-            "ColumnFamily",
-            "Connection",
-            "CQL",
-            "DroppedMessage",
-            "FileCache",
-            "IndexColumnFamily",
-            "Storage",
-            "Keyspace",
-            "ThreadPools",
-            "Compaction",
-            "ReadRepair",
-            "CommitLog");
-
-    /* XXX: This is a hot mess. */
-    private boolean interesting(ObjectName objName) {
-        if (objName.getKeyProperty("name").equals("ColUpdateTimeDeltaHistogram")) {
-            return false;
+    /** Returns a (counting) connection for the worker; Falls back to the shared connection if unavailable. */
+    private MBeanServerConnection getWorkerConnection(int worker, MBeanServerConnection fallback) {
+        if (this.connections == null)
+            return fallback;
+        try {
+            return CountingConnection.wrap(this.connections.getWorker(worker).getConnection(), this.roundTrips);
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to connect worker {} to {}; Sharing connection instead", worker, this.connections.getJmxUrl(), e);
+            return fallback;
         }
+    }
 
-        if (blacklist.contains(objName))
-            return false;
+    MBeanInventory getInventory() {
+        return this.inventory;
+    }
 
-        String type = objName.getKeyProperty("type");
-        if (type != null && interestingTypes.contains(type)) {
-            String keyspace = objName.getKeyProperty("keyspace");
-            if (keyspace == null || !keyspace.startsWith("system"))
-                return true;
+    synchronized MBeanServerConnection getConnection() throws IOException {
+        if (this.connections != null) {
+            MBeanServerConnection current = this.connections.getConnection();
+
+            // Reconnected since last use
+            if (current != this.connection) {
+                this.connection = current;
+                this.mbeanServerConn = CountingConnection.wrap(current, this.roundTrips);
+            }
         }
+        return this.mbeanServerConn;
+    }
 
-        return false;
+    static boolean isHistogramGauge(MetricKind kind, ObjectName objName) {
+        if (kind != MetricKind.GAUGE)
+            return false;
+        String name = objName.getKeyProperty("name");
+        return "EstimatedRowSizeHistogram".equals(name) || "EstimatedColumnCountHistogram".equals(name);
     }
 
     private <T> T newPlatformMXBeanProxy(String domainType, String key, String val, Class<T> cls) throws IOException {
         return ManagementFactory.newPlatformMXBeanProxy(getConnection(), String.format("%s,%s=%s", domainType, key, val), cls); 
     }
 
+    private static JMXServiceURL jmxUrl(String host, int port) {
+        try {
+            return new JMXServiceURL(String.format(FORMAT_URL, host, port));
+        }
+        catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
     /**
      * An {@link ObjectName} factory that throws unchecked exceptions for a malformed name.  This is a convenience method
      * to avoid exception handling for {@link ObjectName} instantiation with constants.
@@ -338,36 +626,18 @@ public class JmxCollector implements AutoCloseable {
         }
     }
 
-    // Copy-pasta from o.a.cassandra.tools.NodeProbe
-    private double[] metricPercentilesAsArray(long[] counts)
-    {
-        double[] result = new double[7];
+    /** Serializes visits from concurrent collection workers, (each with a batch of its own). */
+    private static class SynchronizedVisitor implements BatchVisitor {
+        private final BatchVisitor delegate;
 
-        if (counts == null || counts.length == 0)
-        {
-            Arrays.fill(result, Double.NaN);
-            return result;
+        SynchronizedVisitor(BatchVisitor delegate) {
+            this.delegate = delegate;
         }
 
-        double[] offsetPercentiles = new double[] { 0.5, 0.75, 0.95, 0.98, 0.99 };
-        long[] offsets = new EstimatedHistogram(counts.length).getBucketOffsets();
-        EstimatedHistogram metric = new EstimatedHistogram(offsets, counts);
-
-        if (metric.isOverflowed())
-        {
-            System.err.println(String.format("EstimatedHistogram overflowed larger than %s, unable to calculate percentiles",
-                                             offsets[offsets.length - 1]));
-            for (int i = 0; i < result.length; i++)
-                result[i] = Double.NaN;
-        }
-        else
-        {
-            for (int i = 0; i < offsetPercentiles.length; i++)
-                result[i] = metric.percentile(offsetPercentiles[i]);
+        @Override
+        public synchronized void visit(SampleBatch batch) {
+            this.delegate.visit(batch);
         }
-        result[5] = metric.min();
-        result[6] = metric.max();
-        return result;
     }
 
     public static void main(String... args) throws IOException, Exception {
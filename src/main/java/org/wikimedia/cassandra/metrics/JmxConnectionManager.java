@@ -0,0 +1,262 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains a long-lived JMX connection to a single instance, for use across collection cycles.
+ * <p>
+ * The connection is established lazily, and monitored for failure using {@link JMXConnectionNotification}s. A
+ * connection that has failed (or been explicitly invalidated) is re-established on next use, with an exponential
+ * backoff between unsuccessful attempts.
+ * </p>
+ */
+public class JmxConnectionManager implements NotificationListener, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxConnectionManager.class);
+
+    /** Default delay after a first unsuccessful connection attempt, in milliseconds. */
+    public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+    /** Default upper bound on the delay between connection attempts, in milliseconds. */
+    public static final long DEFAULT_MAX_BACKOFF = 60000;
+
+    private final JMXServiceURL jmxUrl;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final MBeanInventory inventory = new MBeanInventory();
+    private final List<JmxConnectionManager> workers = new CopyOnWriteArrayList<>();
+
+    private volatile JMXConnector connector;
+    private volatile boolean broken = false;
+    private MBeanServerConnection connection;
+    private int failures = 0;
+    private long nextAttempt = 0;
+    private long connects = 0;
+    private boolean isClosed = false;
+
+    public JmxConnectionManager(JMXServiceURL jmxUrl) {
+        this(jmxUrl, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Create a new {@link JmxConnectionManager}.
+     *
+     * @param jmxUrl
+     *            JMX service URL of the instance
+     * @param initialBackoff
+     *            delay (in milliseconds) after a first unsuccessful connection attempt
+     * @param maxBackoff
+     *            maximum delay (in milliseconds) between connection attempts
+     */
+    public JmxConnectionManager(JMXServiceURL jmxUrl, long initialBackoff, long maxBackoff) {
+        this.jmxUrl = checkNotNull(jmxUrl, "jmxUrl argument");
+        checkArgument(initialBackoff >= 0, "initialBackoff argument");
+        checkArgument(maxBackoff >= initialBackoff, "maxBackoff argument");
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Returns an open connection, (re)connecting as necessary.
+     *
+     * @return the MBean server connection
+     * @throws IOException
+     *             if the connection could not be established, if a reconnection attempt is pending backoff, or if
+     *             this manager has been closed
+     */
+    public synchronized MBeanServerConnection getConnection() throws IOException {
+        if (this.isClosed)
+            throw new IOException(String.format("Connection to %s has been closed", this.jmxUrl));
+
+        if (this.connection != null && !this.broken)
+            return this.connection;
+
+        long now = System.currentTimeMillis();
+        if (now < this.nextAttempt) {
+            throw new IOException(String.format(
+                    "Connection to %s unavailable; Reconnecting in %d ms",
+                    this.jmxUrl,
+                    this.nextAttempt - now));
+        }
+
+        disconnect();
+
+        try {
+            if (this.connects > 0)
+                LOG.info("Reconnecting to {}", this.jmxUrl);
+
+            JMXConnector jmxc = createConnector();
+            jmxc.addConnectionNotificationListener(this, null, jmxc);
+
+            this.connection = jmxc.getMBeanServerConnection();
+            this.connector = jmxc;
+            this.inventory.invalidate();
+            this.broken = false;
+            this.failures = 0;
+            this.nextAttempt = 0;
+            this.connects++;
+
+            return this.connection;
+        }
+        catch (IOException e) {
+            this.failures++;
+            this.nextAttempt = now + backoff(this.failures);
+            throw e;
+        }
+    }
+
+    /**
+     * Marks the current connection as unusable (for example, after a timeout), forcing a reconnect on next use.
+     */
+    public void invalidate() {
+        this.broken = true;
+        for (JmxConnectionManager worker : this.workers)
+            worker.invalidate();
+    }
+
+    /**
+     * Returns the manager of an auxiliary connection to the same instance, (for use by parallel collection workers).
+     * Auxiliary connections are created on demand, and closed along with this one.
+     *
+     * @param index
+     *            the worker index (1 or greater)
+     * @return the worker connection manager
+     */
+    public synchronized JmxConnectionManager getWorker(int index) {
+        checkArgument(index > 0, "index argument");
+        checkState(!this.isClosed, "connection manager closed");
+        while (this.workers.size() < index)
+            this.workers.add(new JmxConnectionManager(this.jmxUrl, this.initialBackoff, this.maxBackoff));
+        return this.workers.get(index - 1);
+    }
+
+    /** @return the number of consecutive unsuccessful connection attempts */
+    public synchronized int getFailures() {
+        return this.failures;
+    }
+
+    /** @return the number of times a connection has been (re)established */
+    public synchronized long getConnects() {
+        return this.connects;
+    }
+
+    public synchronized boolean isClosed() {
+        return this.isClosed;
+    }
+
+    /** @return the MBean inventory of the instance on the other end of this connection */
+    public MBeanInventory getInventory() {
+        return this.inventory;
+    }
+
+    public JMXServiceURL getJmxUrl() {
+        return this.jmxUrl;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        // Ignore notifications from connectors we've already discarded.
+        if (handback != this.connector)
+            return;
+
+        switch (notification.getType()) {
+            case JMXConnectionNotification.FAILED:
+            case JMXConnectionNotification.CLOSED:
+                LOG.warn("Connection to {} lost ({})", this.jmxUrl, notification.getType());
+                this.broken = true;
+                break;
+            case JMXConnectionNotification.NOTIFS_LOST:
+                // The inventory can no longer be trusted to be current.
+                LOG.warn("Notifications from {} lost; Scheduling inventory resync", this.jmxUrl);
+                this.inventory.invalidate();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.isClosed = true;
+        disconnect();
+        for (JmxConnectionManager worker : this.workers)
+            worker.close();
+        this.workers.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "JmxConnectionManager [jmxUrl=" + jmxUrl + ", broken=" + broken + ", failures=" + failures
+                + ", connects=" + connects + ", isClosed=" + isClosed + "]";
+    }
+
+    protected JMXConnector createConnector() throws IOException {
+        /* FIXME: add authentication support */
+        Map<String, Object> env = new HashMap<String, Object>();
+        return JMXConnectorFactory.connect(this.jmxUrl, env);
+    }
+
+    private long backoff(int attempts) {
+        // Doubles with each successive failure, (capped to avoid overflowing the shift).
+        long delay = this.initialBackoff << Math.min(attempts - 1, 20);
+        return Math.min(delay, this.maxBackoff);
+    }
+
+    private void disconnect() {
+        JMXConnector jmxc = this.connector;
+
+        this.connector = null;
+        this.connection = null;
+
+        if (jmxc == null)
+            return;
+
+        try {
+            jmxc.removeConnectionNotificationListener(this);
+        }
+        catch (ListenerNotFoundException e) {
+            /* Nothing to see here. */
+        }
+
+        try {
+            jmxc.close();
+        }
+        catch (IOException e) {
+            LOG.debug("Error closing connection to {}", this.jmxUrl, e);
+        }
+    }
+
+}
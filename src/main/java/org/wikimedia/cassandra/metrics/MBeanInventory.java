@@ -0,0 +1,258 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Sets;
+
+/**
+ * The set of Cassandra metric MBeans selected for collection, and their {@link MetricKind}s.
+ * <p>
+ * A full query of the server is performed only when the inventory is first used, or after it has been
+ * {@link #invalidate() invalidated} (on reconnect, for example). In between, it is kept current by listening for
+ * {@link MBeanServerNotification}s from the {@link MBeanServerDelegate}; Unregistered MBeans (those of dropped tables,
+ * for example) are evicted as soon as the notification is received, and newly registered ones are resolved on the
+ * next call to {@link #refresh(MBeanServerConnection)}.
+ * </p>
+ */
+public class MBeanInventory implements NotificationListener {
+
+    /** Receives notice of changes to the inventory, (for invalidating state derived from it). */
+    public static interface Listener {
+
+        /**
+         * Invoked when an MBean is evicted from the inventory.
+         *
+         * @param oName
+         *            object name of the evicted MBean
+         */
+        void removed(ObjectName oName);
+
+        /** Invoked when the inventory is rebuilt from scratch. */
+        void reset();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(MBeanInventory.class);
+
+    private final ConcurrentMap<ObjectName, MetricKind> entries = new ConcurrentHashMap<>();
+    private final Set<ObjectName> registered = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Selection selection = Selection.defaults();
+    private volatile boolean stale = true;
+    private volatile int generation = 0;
+    private MBeanServerConnection subscribed;
+    private long resyncs = 0;
+
+    /**
+     * Brings the inventory up to date, (performing a full resync if it has been invalidated), and returns it.
+     *
+     * @param connection
+     *            connection to the MBean server
+     * @return a live (unmodifiable) view of the inventory
+     * @throws IOException
+     *             on communication errors with the MBean server
+     */
+    public synchronized Map<ObjectName, MetricKind> refresh(MBeanServerConnection connection) throws IOException {
+        if (this.stale) {
+            resync(connection);
+        }
+        else {
+            for (ObjectName oName : Sets.newHashSet(this.registered)) {
+                this.registered.remove(oName);
+                add(connection, oName);
+            }
+        }
+        return Collections.unmodifiableMap(this.entries);
+    }
+
+    /**
+     * Changes the MBeans selected for collection, (forcing a resync if different from the current selection).
+     *
+     * @param selection
+     *            the new selection
+     */
+    public void setSelection(Selection selection) {
+        checkNotNull(selection, "selection argument");
+        if (selection != this.selection) {
+            this.selection = selection;
+            invalidate();
+        }
+    }
+
+    public Selection getSelection() {
+        return this.selection;
+    }
+
+    /** Forces a full resync on the next call to {@link #refresh(MBeanServerConnection)}. */
+    public void invalidate() {
+        this.stale = true;
+    }
+
+    /**
+     * Evicts a single MBean from the inventory.
+     *
+     * @param oName
+     *            object name of the MBean
+     */
+    public void remove(ObjectName oName) {
+        this.registered.remove(oName);
+        if (this.entries.remove(oName) != null) {
+            for (Listener listener : this.listeners)
+                listener.removed(oName);
+        }
+    }
+
+    /**
+     * Registers a listener to be notified of changes.
+     *
+     * @param listener
+     *            the listener to add
+     */
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /** @return the number of MBeans in the inventory */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /** @return the number of full resyncs performed */
+    public synchronized long getResyncs() {
+        return this.resyncs;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        // Ignore anything delivered on behalf of a previous subscription.
+        if (!(notification instanceof MBeanServerNotification) || !handback.equals(this.generation))
+            return;
+
+        ObjectName oName = ((MBeanServerNotification) notification).getMBeanName();
+        switch (notification.getType()) {
+            case MBeanServerNotification.REGISTRATION_NOTIFICATION:
+                if (this.selection.apply(oName))
+                    this.registered.add(oName);
+                break;
+            case MBeanServerNotification.UNREGISTRATION_NOTIFICATION:
+                remove(oName);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MBeanInventory [size=" + entries.size() + ", stale=" + stale + ", resyncs=" + resyncs + "]";
+    }
+
+    private void resync(MBeanServerConnection connection) throws IOException {
+        unsubscribe();
+
+        this.entries.clear();
+        this.registered.clear();
+
+        for (Listener listener : this.listeners)
+            listener.reset();
+
+        // Subscribe before querying, so that nothing registered in the interim is missed.
+        subscribe(connection);
+
+        // Let the server sort out which MBeans are of interest.
+        Selection selection = this.selection;
+        for (ObjectInstance instance : connection.queryMBeans(selection.getPattern(), selection.getQuery()))
+            add(instance);
+
+        this.stale = false;
+        this.resyncs++;
+
+        LOG.debug("Inventory resync complete; {} MBeans selected", this.entries.size());
+    }
+
+    private void add(MBeanServerConnection connection, ObjectName oName) throws IOException {
+        try {
+            add(connection.getObjectInstance(oName));
+        }
+        catch (InstanceNotFoundException e) {
+            /* Registered, and then unregistered again; Nothing to do. */
+        }
+    }
+
+    private void add(ObjectInstance instance) {
+        ObjectName oName = instance.getObjectName();
+        if (!this.selection.apply(oName))
+            return;
+
+        MetricKind kind = MetricKind.forClassName(instance.getClassName());
+        if (kind != null)
+            this.entries.put(oName, kind);
+    }
+
+    private void subscribe(MBeanServerConnection connection) throws IOException {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+
+        try {
+            connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, ++this.generation);
+            this.subscribed = connection;
+        }
+        catch (InstanceNotFoundException e) {
+            throw new IllegalStateException("MBean server delegate not found; report this as a bug!", e);
+        }
+    }
+
+    private void unsubscribe() {
+        if (this.subscribed == null)
+            return;
+
+        try {
+            this.subscribed.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+        }
+        catch (InstanceNotFoundException | ListenerNotFoundException | IOException e) {
+            // This is expected when the connection (and subscription along with it) is gone.
+            LOG.debug("Unable to remove notification listener", e);
+        }
+        finally {
+            this.subscribed = null;
+        }
+    }
+
+}
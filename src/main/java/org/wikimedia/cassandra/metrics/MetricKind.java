@@ -0,0 +1,140 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The kinds of metric MBeans registered by Cassandra's metrics registry, along with the JMX attributes
+ * read from each, and the (Dropwizard compatible) metric names they are reported as.
+ * <p>
+ * Attributes are listed in the order samples are emitted.
+ * </p>
+ */
+public enum MetricKind {
+
+    GAUGE("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxGauge", new String[][] {
+            { "Value", "value" } }),
+
+    COUNTER("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxCounter", new String[][] {
+            { "Count", "count" } }),
+
+    METER("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxMeter", new String[][] {
+            { "FifteenMinuteRate", "15MinuteRate" },
+            { "OneMinuteRate", "1MinuteRate" },
+            { "FiveMinuteRate", "5MinuteRate" },
+            { "Count", "count" },
+            { "MeanRate", "meanRate" } }),
+
+    TIMER("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxTimer", new String[][] {
+            { "50thPercentile", "50percentile" },
+            { "75thPercentile", "75percentile" },
+            { "95thPercentile", "95percentile" },
+            { "98thPercentile", "98percentile" },
+            { "99thPercentile", "99percentile" },
+            { "999thPercentile", "999percentile" },
+            { "OneMinuteRate", "1MinuteRate" },
+            { "FiveMinuteRate", "5MinuteRate" },
+            { "FifteenMinuteRate", "15MinuteRate" },
+            { "Count", "count" },
+            { "Max", "max" },
+            { "Mean", "mean" },
+            { "MeanRate", "meanRate" },
+            { "Min", "min" },
+            { "StdDev", "stddev" } }),
+
+    HISTOGRAM("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxHistogram", new String[][] {
+            { "50thPercentile", "50percentile" },
+            { "75thPercentile", "75percentile" },
+            { "95thPercentile", "95percentile" },
+            { "98thPercentile", "98percentile" },
+            { "99thPercentile", "99percentile" },
+            { "999thPercentile", "999percentile" },
+            { "Max", "max" },
+            { "Mean", "mean" },
+            { "Min", "min" },
+            { "StdDev", "stddev" } });
+
+    private static final Map<String, MetricKind> byClassName;
+
+    static {
+        ImmutableMap.Builder<String, MetricKind> builder = ImmutableMap.builder();
+        for (MetricKind kind : values())
+            builder.put(kind.className, kind);
+        byClassName = builder.build();
+    }
+
+    private final String className;
+    private final String[] attributes;
+    private final Map<String, String> metricNames;
+
+    private MetricKind(String className, String[][] mapping) {
+        this.className = className;
+        this.attributes = new String[mapping.length];
+
+        ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (int i = 0; i < mapping.length; i++) {
+            this.attributes[i] = mapping[i][0];
+            builder.put(mapping[i][0], mapping[i][1]);
+        }
+        this.metricNames = builder.build();
+    }
+
+    /** @return the implementation class name Cassandra registers MBeans of this kind with */
+    public String getClassName() {
+        return this.className;
+    }
+
+    /** @return the names of the JMX attributes to read from MBeans of this kind */
+    public String[] getAttributes() {
+        return this.attributes.clone();
+    }
+
+    /**
+     * @param attribute
+     *            a JMX attribute name
+     * @return the metric name the attribute is reported as, or null if the attribute is not one of ours
+     */
+    public String metricName(String attribute) {
+        return this.metricNames.get(attribute);
+    }
+
+    /**
+     * @param attribute
+     *            a JMX attribute name
+     * @return true if the attribute is one of the (pre-computed) percentiles
+     */
+    public boolean isPercentile(String attribute) {
+        String metricName = metricName(attribute);
+        return metricName != null && metricName.endsWith("percentile");
+    }
+
+    /** @return true if MBeans of this kind expose their raw histogram buckets, (using a values() operation) */
+    public boolean hasBuckets() {
+        return this == TIMER || this == HISTOGRAM;
+    }
+
+    /**
+     * @param className
+     *            the MBean class name, (see {@link javax.management.ObjectInstance#getClassName()})
+     * @return the corresponding kind, or null if the class is not one of Cassandra's metric MBeans
+     */
+    public static MetricKind forClassName(String className) {
+        return byClassName.get(className);
+    }
+
+}
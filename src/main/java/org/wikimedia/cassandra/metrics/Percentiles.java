@@ -0,0 +1,101 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Splitter;
+
+/**
+ * A list of percentiles to compute locally from histogram buckets, along with the metric names they are reported as
+ * (i.e. 0.99 is reported as 99percentile, and 0.999 as 999percentile).
+ */
+public class Percentiles {
+
+    private final double[] values;
+    private final String[] names;
+
+    public Percentiles(double... values) {
+        checkArgument(values.length > 0, "at least one percentile is required");
+        this.values = values.clone();
+        this.names = new String[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            checkArgument(values[i] > 0.0d && values[i] < 1.0d, "invalid percentile: %s", values[i]);
+            this.names[i] = metricName(values[i]);
+
+            // Names drop the decimal point, so different percentiles can share one (i.e. 0.999 and 0.0999).
+            for (int j = 0; j < i; j++)
+                checkArgument(!this.names[j].equals(this.names[i]), "percentiles %s and %s are both named %s", values[j], values[i], this.names[i]);
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of percentiles, (i.e. "0.5,0.99,0.999").
+     *
+     * @param list
+     *            the list of percentiles
+     * @return the percentiles
+     */
+    public static Percentiles parse(String list) {
+        List<String> items = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(list);
+        double[] values = new double[items.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            try {
+                values[i] = Double.parseDouble(items.get(i));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("invalid percentile: %s", items.get(i)));
+            }
+        }
+
+        return new Percentiles(values);
+    }
+
+    /** @return the percentiles (a copy), between 0 and 1 */
+    public double[] getValues() {
+        return this.values.clone();
+    }
+
+    public int size() {
+        return this.values.length;
+    }
+
+    /**
+     * @param index
+     *            the percentile index
+     * @return the metric name of the percentile
+     */
+    public String getName(int index) {
+        return this.names[index];
+    }
+
+    @Override
+    public String toString() {
+        return "Percentiles " + Arrays.toString(names);
+    }
+
+    /** The metric name of a percentile; The digits of the percentage, (i.e. 99.9 becomes 999percentile). */
+    static String metricName(double percentile) {
+        String digits = BigDecimal.valueOf(percentile).movePointRight(2).stripTrailingZeros().toPlainString();
+        return digits.replace(".", "") + "percentile";
+    }
+
+}
@@ -0,0 +1,448 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the samples of the most recent (successful) collection of each job in Prometheus' text exposition format.
+ * <p>
+ * Each collection is rendered to text once, when it is published; The exposition body (and a gzipped copy) is
+ * assembled from what was rendered on the first scrape after, (once, however many jobs published since), and served
+ * as-is to every scrape until the next publish. Scrapes never read from JMX; Those but the first after a publish
+ * cost no more than copying bytes.
+ * </p>
+ * <p>
+ * Metric names are formed from the domain and type of the MBean's object name, and the metric, (i.e.
+ * <code>cassandra_ColumnFamily_99percentile</code>); The remaining key properties (keyspace, scope, name, etc) become
+ * labels, along with the name of the Cassandra instance. As with carbon, table metrics without a keyspace are given
+ * keyspace "all".
+ * </p>
+ */
+public class PrometheusExporter implements AutoCloseable {
+
+    public static final String PATH = "/metrics";
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Label of the Cassandra instance; Prometheus reserves "instance" for the scrape target. */
+    static final String INSTANCE_LABEL = "cassandra_instance";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrometheusExporter.class);
+
+    private static final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("prometheus-exporter-%d")
+            .build();
+
+    /** An exposition body, plain and gzipped. */
+    private static class Snapshot {
+        private final byte[] plain;
+        private final byte[] gzipped;
+        private final int series;
+
+        private Snapshot(byte[] plain, byte[] gzipped, int series) {
+            this.plain = plain;
+            this.gzipped = gzipped;
+            this.series = series;
+        }
+    }
+
+    /** The samples of a collection; Visit them, and then {@link #publish()} to make them visible to scrapes. */
+    public class Collection implements SampleVisitor {
+        private final String job;
+        private final String instance;
+        private final String prefix;
+        private final Optional<Filter> filter;
+        private final SortedMap<String, StringBuilder> families = new TreeMap<>();
+        private int series = 0;
+
+        private Collection(String job, String instance, String prefix, Optional<Filter> filter) {
+            this.job = job;
+            this.instance = instance;
+            this.prefix = prefix;
+            this.filter = filter;
+        }
+
+        /** Renders a sample; Those with non-numeric values (or that the filter rejects) are skipped. */
+        @Override
+        public synchronized void visit(JmxSample sample) {
+            if (!(sample.getValue() instanceof Number))
+                return;
+            if (this.filter.isPresent() && !this.filter.get().accept(CarbonVisitor.metricName(sample, this.prefix)))
+                return;
+
+            String family = familyName(sample);
+            StringBuilder builder = this.families.get(family);
+            if (builder == null) {
+                builder = new StringBuilder();
+                this.families.put(family, builder);
+            }
+
+            appendSeries(builder, family, sample, this.instance);
+            this.series++;
+        }
+
+        /** Replaces the job's previous collection with this one. */
+        public synchronized void publish() {
+            ImmutableSortedMap.Builder<String, String> rendered = ImmutableSortedMap.naturalOrder();
+            for (Map.Entry<String, StringBuilder> entry : this.families.entrySet())
+                rendered.put(entry.getKey(), entry.getValue().toString());
+            PrometheusExporter.this.publish(this.job, new Published(rendered.build(), this.series));
+        }
+    }
+
+    /** A published collection; Text of each metric family. */
+    private static class Published {
+        private final SortedMap<String, String> families;
+        private final int series;
+
+        private Published(SortedMap<String, String> families, int series) {
+            this.families = families;
+            this.series = series;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Published> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong scrapes = new AtomicLong();
+    private final AtomicLong renders = new AtomicLong();
+    private volatile Snapshot snapshot;
+    /** True if a job has published (or been removed) since the snapshot was rendered. */
+    private volatile boolean isStale = false;
+
+    /**
+     * Create a new {@link PrometheusExporter}; Call {@link #start()} to begin serving.
+     *
+     * @param address
+     *            the address to listen on
+     * @throws IOException
+     *             if the address cannot be bound
+     */
+    public PrometheusExporter(InetSocketAddress address) throws IOException {
+        checkNotNull(address, "address argument");
+        this.snapshot = render(new TreeMap<String, Published>());
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newFixedThreadPool(2, threadFactory);
+        this.server.setExecutor(this.executor);
+        this.server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        this.server.start();
+        LOG.info("Serving Prometheus metrics on {}{}", this.server.getAddress(), PATH);
+    }
+
+    /**
+     * Begins a collection.
+     *
+     * @param job
+     *            name of the collection job, (i.e. the instance, and tier)
+     * @param instance
+     *            the instance name
+     * @param prefix
+     *            the prefix metric names are filtered with, (see {@link CarbonVisitor})
+     * @param filter
+     *            the (optional) filter metric names are tested against
+     * @return the collection
+     */
+    public Collection collection(String job, String instance, String prefix, Optional<Filter> filter) {
+        return new Collection(
+                checkNotNull(job, "job argument"),
+                checkNotNull(instance, "instance argument"),
+                checkNotNull(prefix, "prefix argument"),
+                checkNotNull(filter, "filter argument"));
+    }
+
+    /**
+     * Removes the collection of a job, (i.e. one that has been descheduled).
+     *
+     * @param job
+     *            name of the collection job
+     */
+    public void remove(String job) {
+        if (this.jobs.remove(job) != null)
+            this.isStale = true;
+    }
+
+    /** @return the address listened on */
+    public InetSocketAddress getAddress() {
+        return this.server.getAddress();
+    }
+
+    /** @return the number of scrapes served */
+    public long getScrapes() {
+        return this.scrapes.get();
+    }
+
+    /** @return the number of times the exposition body has been rendered */
+    public long getRenders() {
+        return this.renders.get();
+    }
+
+    /** @return the number of series exposed */
+    public int getSeries() {
+        return snapshot().series;
+    }
+
+    /** @return the size of the (uncompressed) exposition body, in bytes */
+    public int getBodyBytes() {
+        return snapshot().plain.length;
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "PrometheusExporter [address=" + server.getAddress() + ", jobs=" + jobs.size() + "]";
+    }
+
+    private void publish(String job, Published published) {
+        this.jobs.put(job, published);
+        this.isStale = true;
+    }
+
+    /** Returns the current snapshot, rendering it first if stale. */
+    private Snapshot snapshot() {
+        if (!this.isStale)
+            return this.snapshot;
+
+        synchronized (this) {
+            if (this.isStale) {
+                // Cleared before the jobs are copied, so that a publish during the render leaves it stale.
+                this.isStale = false;
+                this.snapshot = render(new TreeMap<>(this.jobs));
+                this.renders.incrementAndGet();
+            }
+            return this.snapshot;
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        this.scrapes.incrementAndGet();
+
+        Snapshot snapshot = snapshot();
+        boolean gzip = acceptsGzip(exchange.getRequestHeaders().get("Accept-Encoding"));
+        byte[] body = gzip ? snapshot.gzipped : snapshot.plain;
+
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        if (gzip)
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+
+        if (method.equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /** Assembles the exposition body from the rendered families of each job, (grouping each family's series). */
+    private static Snapshot render(SortedMap<String, Published> jobs) {
+        SortedMap<String, StringBuilder> families = new TreeMap<>();
+        int series = 0;
+
+        for (Published published : jobs.values()) {
+            series += published.series;
+            for (Map.Entry<String, String> entry : published.families.entrySet()) {
+                StringBuilder builder = families.get(entry.getKey());
+                if (builder == null) {
+                    builder = new StringBuilder("# TYPE ").append(entry.getKey()).append(" untyped\n");
+                    families.put(entry.getKey(), builder);
+                }
+                builder.append(entry.getValue());
+            }
+        }
+
+        StringBuilder body = new StringBuilder();
+        for (StringBuilder family : families.values())
+            body.append(family);
+
+        byte[] plain = body.toString().getBytes(Charsets.UTF_8);
+        return new Snapshot(plain, gzip(plain), series);
+    }
+
+    private static byte[] gzip(byte[] plain) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(plain);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e); // Not for a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    static boolean acceptsGzip(List<String> acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (String header : acceptEncoding) {
+            for (String coding : header.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip"))
+                    return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /** Metric name of a sample; The domain (as cassandra, or jvm), the MBean type, and the metric name. */
+    static String familyName(JmxSample sample) {
+        ObjectName oName = sample.getObjectName();
+        String domain = (sample.getType() == JmxSample.Type.JVM) ? "jvm" : "cassandra";
+        String type = oName.getKeyProperty("type");
+
+        StringBuilder builder = new StringBuilder(domain).append('_');
+        if (type != null)
+            appendName(builder, type).append('_');
+        return appendName(builder, sample.getMetricName()).toString();
+    }
+
+    /**
+     * Returns the labels of a sample (but for the metric name), in order of name; The instance, and every key property
+     * of the object name but type, (see {@link CarbonVisitor#keyProperties(ObjectName)}).
+     */
+    static SortedMap<String, String> labels(JmxSample sample, String instance) {
+        SortedMap<String, String> labels = new TreeMap<>();
+        labels.put(INSTANCE_LABEL, instance);
+
+        for (Map.Entry<String, String> property : CarbonVisitor.keyProperties(sample.getObjectName()).entrySet()) {
+            if (property.getKey().equals("type"))
+                continue;
+            String value = property.getValue();
+            if (value.startsWith("\""))
+                value = ObjectName.unquote(value);
+            labels.put(appendName(new StringBuilder(), property.getKey()).toString(), value);
+        }
+
+        return labels;
+    }
+
+    /** Appends a series; The labels, and value. */
+    private static void appendSeries(StringBuilder builder, String family, JmxSample sample, String instance) {
+        builder.append(family).append('{');
+
+        boolean first = true;
+        for (Map.Entry<String, String> label : labels(sample, instance).entrySet()) {
+            if (!first)
+                builder.append(',');
+            appendLabel(builder, label.getKey(), label.getValue());
+            first = false;
+        }
+
+        builder.append("} ");
+        appendValue(builder, (Number) sample.getValue());
+        builder.append('\n');
+    }
+
+    private static void appendLabel(StringBuilder builder, String name, String value) {
+        builder.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    private static void appendValue(StringBuilder builder, Number value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = value.doubleValue();
+            if (Double.isNaN(d))
+                builder.append("NaN");
+            else if (Double.isInfinite(d))
+                builder.append((d > 0) ? "+Inf" : "-Inf");
+            else
+                builder.append(d);
+        }
+        else {
+            builder.append(value);
+        }
+    }
+
+    /** Appends a name, replacing the characters Prometheus doesn't allow in one with underscores. */
+    private static StringBuilder appendName(StringBuilder builder, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (c >= '0' && c <= '9');
+            builder.append(valid ? c : '_');
+        }
+        return builder;
+    }
+
+}
@@ -0,0 +1,195 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Encodes a Prometheus remote-write <code>WriteRequest</code>, (protobuf, by hand; It is too simple a message to
+ * warrant generated code, or the dependency).
+ *
+ * <pre>
+ * message WriteRequest { repeated TimeSeries timeseries = 1; }
+ * message TimeSeries { repeated Label labels = 1; repeated Sample samples = 2; }
+ * message Label { string name = 1; string value = 2; }
+ * message Sample { double value = 1; int64 timestamp = 2; }
+ * </pre>
+ *
+ * Each series is added with a single sample; The encoded request grows in a reused array. Instances are not
+ * thread-safe.
+ */
+public class RemoteWriteEncoder {
+
+    /** Label holding the metric name. */
+    public static final String NAME_LABEL = "__name__";
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH = 2;
+
+    private static final byte[] NAME_LABEL_BYTES = NAME_LABEL.getBytes(Charsets.UTF_8);
+
+    private byte[] request = new byte[4096];
+    private int length = 0;
+    private int series = 0;
+
+    /**
+     * Adds a series (of one sample) to the request.
+     *
+     * @param name
+     *            the metric name
+     * @param labels
+     *            the remaining labels, (sorted by name)
+     * @param value
+     *            the sample value
+     * @param timestamp
+     *            the sample timestamp, in milliseconds since the epoch
+     */
+    public void add(String name, SortedMap<String, String> labels, double value, long timestamp) {
+        byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+
+        // Labels are sorted by name, and __name__ sorts ahead of those that start with a lower-case letter.
+        byte[][] encoded = new byte[labels.size() * 2][];
+        int i = 0;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            encoded[i++] = label.getKey().getBytes(Charsets.UTF_8);
+            encoded[i++] = label.getValue().getBytes(Charsets.UTF_8);
+        }
+
+        int seriesLength = labelLength(NAME_LABEL_BYTES, nameBytes);
+        for (i = 0; i < encoded.length; i += 2)
+            seriesLength += labelLength(encoded[i], encoded[i + 1]);
+        int sampleLength = 1 + 8 + 1 + varintLength(timestamp);
+        seriesLength += 1 + varintLength(sampleLength) + sampleLength;
+
+        ensure(1 + varintLength(seriesLength) + seriesLength);
+
+        // WriteRequest.timeseries
+        putTag(1, WIRE_LENGTH);
+        putVarint(seriesLength);
+
+        boolean named = false;
+        for (i = 0; i < encoded.length; i += 2) {
+            if (!named && compare(NAME_LABEL_BYTES, encoded[i]) < 0) {
+                putLabel(NAME_LABEL_BYTES, nameBytes);
+                named = true;
+            }
+            putLabel(encoded[i], encoded[i + 1]);
+        }
+        if (!named)
+            putLabel(NAME_LABEL_BYTES, nameBytes);
+
+        // TimeSeries.samples
+        putTag(2, WIRE_LENGTH);
+        putVarint(sampleLength);
+        putTag(1, WIRE_FIXED64);
+        putFixed64(Double.doubleToRawLongBits(value));
+        putTag(2, WIRE_VARINT);
+        putVarint(timestamp);
+
+        this.series++;
+    }
+
+    /** @return the number of series added */
+    public int getSeries() {
+        return this.series;
+    }
+
+    /** @return the size of the encoded request, in bytes */
+    public int getLength() {
+        return this.length;
+    }
+
+    /** @return the encoded request */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.request, this.length);
+    }
+
+    /** Empties the request, (keeping the storage). */
+    public void clear() {
+        this.length = 0;
+        this.series = 0;
+    }
+
+    private static int labelLength(byte[] name, byte[] value) {
+        int length = 1 + varintLength(name.length) + name.length + 1 + varintLength(value.length) + value.length;
+        return 1 + varintLength(length) + length;
+    }
+
+    private void putLabel(byte[] name, byte[] value) {
+        // TimeSeries.labels
+        putTag(1, WIRE_LENGTH);
+        putVarint(1 + varintLength(name.length) + name.length + 1 + varintLength(value.length) + value.length);
+        putTag(1, WIRE_LENGTH);
+        putVarint(name.length);
+        putBytes(name);
+        putTag(2, WIRE_LENGTH);
+        putVarint(value.length);
+        putBytes(value);
+    }
+
+    private void putTag(int field, int wireType) {
+        this.request[this.length++] = (byte) ((field << 3) | wireType);
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            this.request[this.length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        this.request[this.length++] = (byte) value;
+    }
+
+    private void putFixed64(long value) {
+        for (int i = 0; i < 8; i++) {
+            this.request[this.length++] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private void putBytes(byte[] bytes) {
+        System.arraycopy(bytes, 0, this.request, this.length, bytes.length);
+        this.length += bytes.length;
+    }
+
+    private void ensure(int needed) {
+        if (this.length + needed > this.request.length)
+            this.request = Arrays.copyOf(this.request, Math.max(this.request.length * 2, this.length + needed));
+    }
+
+    static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /** Compares as unsigned bytes, (the order Prometheus sorts label names in). */
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+}
@@ -0,0 +1,343 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * A {@link Sink} that sends samples to a Prometheus remote-write endpoint; Snappy-compressed, protobuf
+ * <code>WriteRequest</code>s of up to the batch size, (see {@link RemoteWriteEncoder}).
+ * <p>
+ * Series are spread across shards by hash (so that the samples of a series are always sent in order), and each shard
+ * sends its batches from a thread of its own. Failed requests are retried with backoff, (unless the endpoint rejected
+ * the batch outright); Once the retries are exhausted, the batch is dropped. While a shard is behind, writers wait
+ * for it, backing samples up into their queue (where its policy applies).
+ * </p>
+ * <p>
+ * Labels are those of {@link PrometheusExporter}.
+ * </p>
+ */
+public class RemoteWriteSink extends Sink {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_SHARDS = 1;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /** Batches a shard queues up, (beyond the one it is sending). */
+    private static final int SHARD_QUEUE = 2;
+
+    /** Milliseconds {@link #close()} waits for the shards to send what they have, (all of them together). */
+    static final long CLOSE_TIMEOUT = HttpPoster.CONNECT_TIMEOUT + HttpPoster.READ_TIMEOUT;
+
+    /** Milliseconds {@link #close()} waits for the shards it interrupts, (those blocked reading a response won't stop). */
+    private static final long INTERRUPT_GRACE = 1000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteWriteSink.class);
+
+    /** A compressed request. */
+    private static class Batch {
+        private final byte[] payload;
+        private final int samples;
+
+        private Batch(byte[] payload, int samples) {
+            this.payload = payload;
+            this.samples = samples;
+        }
+    }
+
+    /** Marks the end of a shard's queue. */
+    private static final Batch END = new Batch(new byte[0], 0);
+
+    /** Sends the batches of one shard, in order. */
+    private class Shard implements Runnable {
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(SHARD_QUEUE);
+        private final Thread thread;
+
+        private Shard(int index) {
+            this.thread = new Thread(this, String.format("remote-write-%s-%d", getName(), index));
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Batch batch = null;
+            try {
+                while (true) {
+                    batch = this.queue.take();
+                    if (batch == END)
+                        return;
+                    send(batch);
+                    batch = null;
+                }
+            }
+            catch (InterruptedException e) {
+                int samples = (batch != null) ? batch.samples : 0;
+                for (Batch queued : this.queue)
+                    samples += queued.samples;
+                droppedSamples.addAndGet(samples);
+                LOG.warn("Shard of {} interrupted; Dropped {} samples", getName(), samples);
+            }
+        }
+    }
+
+    /** Batches the samples of one instance, (a batch per shard). */
+    private class Writer implements SampleSink {
+        private final String instance;
+        private final SeriesNames names;
+        private final RemoteWriteEncoder[] batches;
+
+        private Writer(String instance, SeriesNames names) {
+            this.instance = instance;
+            this.names = names;
+            this.batches = new RemoteWriteEncoder[shards.size()];
+            for (int i = 0; i < this.batches.length; i++)
+                this.batches[i] = new RemoteWriteEncoder();
+        }
+
+        /** Adds a sample; Those with non-numeric values (or that the filter rejects) are skipped. */
+        @Override
+        public void visit(JmxSample sample) {
+            if (!(sample.getValue() instanceof Number))
+                return;
+            if (getFilter().isPresent() && !getFilter().get().accept(this.names.get(sample)))
+                return;
+
+            int shard = shard(sample);
+            RemoteWriteEncoder batch = this.batches[shard];
+            batch.add(
+                    PrometheusExporter.familyName(sample),
+                    PrometheusExporter.labels(sample, this.instance),
+                    ((Number) sample.getValue()).doubleValue(),
+                    sample.getTimestamp().longValue() * 1000);
+
+            if (batch.getSeries() >= batchSize)
+                submit(shard);
+        }
+
+        /** Hands partial batches to their shards, (without waiting for them to be sent). */
+        @Override
+        public void flush() throws IOException {
+            for (int i = 0; i < this.batches.length; i++)
+                if (this.batches[i].getSeries() > 0)
+                    submit(i);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private int shard(JmxSample sample) {
+            int hash = sample.getObjectName().hashCode() * 31 + sample.getMetricName().hashCode();
+            return (hash & Integer.MAX_VALUE) % this.batches.length;
+        }
+
+        private void submit(int shard) {
+            RemoteWriteEncoder batch = this.batches[shard];
+            try {
+                Batch compressed = new Batch(Snappy.compress(batch.toByteArray()), batch.getSeries());
+                shards.get(shard).queue.put(compressed);
+            }
+            catch (IOException e) {
+                dropped(batch.getSeries(), e.getMessage());
+            }
+            catch (InterruptedException e) {
+                dropped(batch.getSeries(), "interrupted");
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private final HttpPoster poster;
+    private final int batchSize;
+    private final int maxRetries;
+    private final List<Shard> shards = Lists.newArrayList();
+
+    private final AtomicLong sentSamples = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+
+    private volatile boolean isStarted = false;
+    private long closeTimeout = CLOSE_TIMEOUT;
+
+    /**
+     * Create a new {@link RemoteWriteSink}.
+     *
+     * @param name
+     *            name of the sink
+     * @param url
+     *            the remote-write endpoint, (i.e. http://prometheus:9090/api/v1/write)
+     * @param batchSize
+     *            the most samples sent in a request
+     * @param shards
+     *            the number of requests sent concurrently
+     * @param maxRetries
+     *            the number of times a failed request is retried
+     * @param prefix
+     *            the prefix metric names are filtered with, (see {@link CarbonVisitor})
+     * @param filter
+     *            the (optional) filter metric names are tested against
+     * @param queueSize
+     *            capacity of the sink's queue, in samples
+     * @param queuePolicy
+     *            what to do when the sink's queue is full
+     */
+    public RemoteWriteSink(String name, URL url, int batchSize, int shards, int maxRetries, String prefix, Optional<Filter> filter, int queueSize, SampleRing.Policy queuePolicy) {
+        super(name, prefix, filter, queueSize, queuePolicy);
+        checkArgument(batchSize > 0, "batchSize argument must be positive");
+        checkArgument(shards > 0, "shards argument must be positive");
+        this.poster = new HttpPoster(url, maxRetries, ImmutableMap.of(
+                "Content-Type", "application/x-protobuf",
+                "Content-Encoding", "snappy",
+                "X-Prometheus-Remote-Write-Version", "0.1.0"));
+        this.batchSize = batchSize;
+        this.maxRetries = maxRetries;
+
+        for (int i = 0; i < shards; i++)
+            this.shards.add(new Shard(i));
+    }
+
+    @Override
+    public SampleSink open(String instance, SeriesNames names) {
+        checkState(this.isStarted, "sink not started");
+        return new Writer(instance, names);
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        checkState(!this.isStarted, "already started");
+        for (Shard shard : this.shards)
+            shard.thread.start();
+        this.isStarted = true;
+    }
+
+    /**
+     * Sends what the shards have queued, (allowing them all the close timeout, together); Shards that are still
+     * sending (or retrying) once it has passed are interrupted, and what they have left is dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!this.isStarted)
+            return;
+        long deadline = System.currentTimeMillis() + this.closeTimeout;
+        try {
+            for (Shard shard : this.shards)
+                if (!shard.queue.offer(END, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                    shard.thread.interrupt();
+            for (Shard shard : this.shards)
+                shard.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+
+            // Those still at it are interrupted, (and given a moment to count what they drop).
+            for (Shard shard : this.shards)
+                shard.thread.interrupt();
+            deadline = System.currentTimeMillis() + INTERRUPT_GRACE;
+            for (Shard shard : this.shards)
+                shard.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        catch (InterruptedException e) {
+            for (Shard shard : this.shards)
+                shard.thread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+        this.isStarted = false;
+    }
+
+    /** Sets the milliseconds {@link #close()} waits for the shards, (altogether); For testing. */
+    void setCloseTimeout(long closeTimeout) {
+        this.closeTimeout = closeTimeout;
+    }
+
+    public URL getUrl() {
+        return this.poster.getUrl();
+    }
+
+    /** @return the number of samples sent */
+    public long getSentSamples() {
+        return this.sentSamples.get();
+    }
+
+    /** @return the number of (compressed) bytes sent */
+    public long getSentBytes() {
+        return this.sentBytes.get();
+    }
+
+    /** @return the number of samples dropped, (in batches that could not be sent) */
+    public long getDroppedSamples() {
+        return this.droppedSamples.get();
+    }
+
+    /** @return the number of batches that could not be sent */
+    public long getFailedBatches() {
+        return this.failedBatches.get();
+    }
+
+    /** @return the number of requests retried */
+    public long getRetries() {
+        return this.poster.getRetries();
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteWriteSink [name=" + getName() + ", url=" + getUrl() + ", batchSize=" + batchSize + ", shards="
+                + shards.size() + ", maxRetries=" + maxRetries + "]";
+    }
+
+    /** Sends a batch, retrying as need be. */
+    private void send(Batch batch) throws InterruptedException {
+        String error;
+        try {
+            int status = this.poster.post(batch.payload);
+            if (status / 100 == 2) {
+                this.sentSamples.addAndGet(batch.samples);
+                this.sentBytes.addAndGet(batch.payload.length);
+                return;
+            }
+            error = String.format("HTTP %d", status);
+        }
+        catch (IOException e) {
+            error = e.toString();
+        }
+
+        this.failedBatches.incrementAndGet();
+        dropped(batch.samples, error);
+    }
+
+    private void dropped(int samples, String error) {
+        this.droppedSamples.addAndGet(samples);
+        LOG.warn("Unable to send {} samples to {} ({}); Dropped", samples, getUrl(), error);
+    }
+
+}
@@ -0,0 +1,243 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+/**
+ * The samples of a single MBean (and collection), in parallel (columnar) arrays; Values are kept as primitive doubles
+ * rather than as boxed numbers, and a {@link JmxSample} is only created for visitors that ask for one. Batches are
+ * reused from one MBean to the next, (see {@link #reset(Type, ObjectName, int)}), so collecting them allocates
+ * nothing per sample once the arrays have grown to fit.
+ * <p>
+ * Integral values are flagged as such, (to be written as integers), and kept exactly in a column of their own
+ * alongside their nearest double; Those beyond 2^53 lose precision only where written as a double, (i.e. to Carbon by
+ * pickle). Values that are neither integral nor double (i.e. a string, or a float) are not numeric, and are kept as
+ * they are; So are the (already boxed) values added as objects, for {@link #getSample(int)}.
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class SampleBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Type type;
+    private ObjectName objectName;
+    private int timestamp;
+    private int size = 0;
+
+    private String[] metricNames = new String[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private long[] longs = new long[INITIAL_CAPACITY];
+    private boolean[] integral = new boolean[INITIAL_CAPACITY];
+    private boolean[] numeric = new boolean[INITIAL_CAPACITY];
+    private Object[] objects = new Object[INITIAL_CAPACITY];
+
+    /**
+     * Empties the batch, for the samples of another MBean.
+     *
+     * @param type
+     *            the sample type
+     * @param oName
+     *            object name of the MBean
+     * @param timestamp
+     *            the timestamp of the samples, in seconds
+     * @return this batch
+     */
+    public SampleBatch reset(Type type, ObjectName oName, int timestamp) {
+        this.type = checkNotNull(type, "type argument");
+        this.objectName = checkNotNull(oName, "oName argument");
+        this.timestamp = timestamp;
+
+        // (Only the objects are cleared, so as not to keep them reachable.)
+        Arrays.fill(this.objects, 0, this.size, null);
+        this.size = 0;
+
+        return this;
+    }
+
+    /**
+     * Adds a floating point sample.
+     *
+     * @param metricName
+     *            the metric name
+     * @param value
+     *            the value
+     */
+    public void add(String metricName, double value) {
+        add(metricName, value, 0L, false, true, null);
+    }
+
+    /**
+     * Adds an integral sample.
+     *
+     * @param metricName
+     *            the metric name
+     * @param value
+     *            the value
+     */
+    public void add(String metricName, long value) {
+        add(metricName, value, value, true, true, null);
+    }
+
+    /**
+     * Adds a sample of any type; Doubles and integral types are unboxed, anything else is kept as-is.
+     *
+     * @param metricName
+     *            the metric name
+     * @param value
+     *            the value
+     */
+    public void add(String metricName, Object value) {
+        checkNotNull(value, "value argument");
+
+        if (value instanceof Double) {
+            add(metricName, ((Double) value).doubleValue(), 0L, false, true, value);
+        }
+        else if (CarbonConnector.isIntegral(value)) {
+            long longValue = ((Number) value).longValue();
+            add(metricName, longValue, longValue, true, true, value);
+        }
+        else {
+            add(metricName, 0.0d, 0L, false, false, value);
+        }
+    }
+
+    private void add(String metricName, double value, long longValue, boolean integral, boolean numeric, Object object) {
+        checkNotNull(metricName, "metricName argument");
+
+        if (this.size == this.metricNames.length) {
+            int capacity = this.size * 2;
+            this.metricNames = Arrays.copyOf(this.metricNames, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+            this.longs = Arrays.copyOf(this.longs, capacity);
+            this.integral = Arrays.copyOf(this.integral, capacity);
+            this.numeric = Arrays.copyOf(this.numeric, capacity);
+            this.objects = Arrays.copyOf(this.objects, capacity);
+        }
+
+        this.metricNames[this.size] = metricName;
+        this.values[this.size] = value;
+        this.longs[this.size] = longValue;
+        this.integral[this.size] = integral;
+        this.numeric[this.size] = numeric;
+        this.objects[this.size] = object;
+        this.size++;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    /** @return the timestamp of the samples, in seconds */
+    public int getTimestamp() {
+        return this.timestamp;
+    }
+
+    /** @return the number of samples in the batch */
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public String getMetricName(int index) {
+        return this.metricNames[checkIndex(index)];
+    }
+
+    /** @return the value of a numeric sample, (see {@link #isNumeric(int)}); The nearest double, if integral */
+    public double getValue(int index) {
+        return this.values[checkIndex(index)];
+    }
+
+    /** @return the value of an integral sample, (see {@link #isIntegral(int)}) */
+    public long getLong(int index) {
+        return this.longs[checkIndex(index)];
+    }
+
+    /** @return true if a sample's value is integral, (and to be written as such) */
+    public boolean isIntegral(int index) {
+        return this.integral[checkIndex(index)];
+    }
+
+    /** @return true if a sample's value is integral or double, (otherwise see {@link #getObject(int)}) */
+    public boolean isNumeric(int index) {
+        return this.numeric[checkIndex(index)];
+    }
+
+    /** @return a sample's value as it was added, or null if it was added as a primitive */
+    public Object getObject(int index) {
+        return this.objects[checkIndex(index)];
+    }
+
+    /**
+     * Returns a sample, boxed; For visitors of individual samples, (see {@link #unbatched(SampleVisitor)}).
+     *
+     * @param index
+     *            index of the sample
+     * @return the sample
+     */
+    public JmxSample getSample(int index) {
+        checkIndex(index);
+
+        Object value = this.objects[index];
+        if (value == null)
+            value = this.integral[index] ? (Object) Long.valueOf(this.longs[index]) : (Object) Double.valueOf(this.values[index]);
+
+        return new JmxSample(this.type, this.objectName, this.metricNames[index], value, this.timestamp);
+    }
+
+    /**
+     * Adapts a {@link SampleVisitor} to visit batches, a sample at a time.
+     *
+     * @param visitor
+     *            the sample visitor
+     * @return a batch visitor
+     */
+    public static BatchVisitor unbatched(final SampleVisitor visitor) {
+        checkNotNull(visitor, "visitor argument");
+        return new BatchVisitor() {
+            @Override
+            public void visit(SampleBatch batch) {
+                for (int i = 0; i < batch.size(); i++)
+                    visitor.visit(batch.getSample(i));
+            }
+        };
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException(String.format("index %d, size %d", index, this.size));
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleBatch [type=" + type + ", objectName=" + objectName + ", timestamp=" + timestamp + ", size=" + size + "]";
+    }
+
+}
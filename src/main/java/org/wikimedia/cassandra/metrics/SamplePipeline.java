@@ -0,0 +1,212 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+
+/**
+ * Decouples collection from the writing of samples. Samples visited are added to a {@link SampleRing}, and written by
+ * worker threads (each with a sink of its own) as they arrive; A slow sink no longer slows JMX reads, and the samples
+ * of one collection can be written while the next is read. Each worker flushes its sink whenever it has caught up.
+ */
+public class SamplePipeline implements SampleVisitor, AutoCloseable {
+
+    /** The most samples a worker takes from the ring at once. */
+    private static final int BATCH_SIZE = 256;
+
+    /** Time allowed on close for the ring to be emptied, in milliseconds. */
+    private static final long DRAIN_TIMEOUT = 5000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(SamplePipeline.class);
+
+    private final String name;
+    private final SampleRing ring;
+    private final Supplier<? extends SampleSink> sinks;
+    private final List<Thread> workers = Lists.newArrayList();
+    private final AtomicLong emitted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong interrupted = new AtomicLong();
+
+    /**
+     * Create a new {@link SamplePipeline}; Call {@link #start()} to begin writing.
+     *
+     * @param name
+     *            name of the pipeline, (i.e. the instance it collects from)
+     * @param ring
+     *            the ring buffer
+     * @param workers
+     *            the number of worker threads
+     * @param sinks
+     *            supplies each worker with a sink
+     */
+    public SamplePipeline(String name, SampleRing ring, int workers, Supplier<? extends SampleSink> sinks) {
+        this.name = checkNotNull(name, "name argument");
+        this.ring = checkNotNull(ring, "ring argument");
+        this.sinks = checkNotNull(sinks, "sinks argument");
+        checkArgument(workers > 0, "workers argument must be positive");
+
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, String.format("pipeline-%s-%d", name, i));
+            worker.setDaemon(true);
+            this.workers.add(worker);
+        }
+    }
+
+    /** Starts the worker threads. */
+    public void start() {
+        for (Thread worker : this.workers)
+            worker.start();
+    }
+
+    /** Adds a sample to the ring; Dropped (and counted) if interrupted while waiting for room. */
+    @Override
+    public void visit(JmxSample sample) {
+        try {
+            this.ring.put(sample);
+        }
+        catch (InterruptedException e) {
+            this.interrupted.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return the number of samples waiting to be written */
+    public int getDepth() {
+        return this.ring.size();
+    }
+
+    /** @return the number of samples dropped */
+    public long getDropped() {
+        return this.ring.getDropped() + this.interrupted.get();
+    }
+
+    /** @return the number of samples written */
+    public long getEmitted() {
+        return this.emitted.get();
+    }
+
+    /** @return the number of samples (or flushes) that failed to be written */
+    public long getErrors() {
+        return this.errors.get();
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /** Closes the pipeline, allowing a few seconds for the samples in the ring to be written. */
+    @Override
+    public void close() {
+        if (this.ring.isClosed())
+            return;
+
+        this.ring.close();
+
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        try {
+            for (Thread worker : this.workers) {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+                if (worker.isAlive())
+                    worker.interrupt();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SamplePipeline [name=" + name + ", ring=" + ring + ", workers=" + workers.size() + ", emitted="
+                + emitted + ", errors=" + errors + "]";
+    }
+
+    private void work() {
+        JmxSample[] batch = new JmxSample[BATCH_SIZE];
+        boolean dirty = false;
+        boolean failing = false;
+
+        try (SampleSink sink = this.sinks.get()) {
+            while (true) {
+                // Wait for samples, unless there are writes to flush first.
+                int n = this.ring.take(batch, dirty ? 0 : 1000, TimeUnit.MILLISECONDS);
+
+                if (n == 0) {
+                    if (dirty) {
+                        failing = flush(sink, failing);
+                        dirty = false;
+                    }
+                    if (this.ring.isClosed() && this.ring.size() == 0)
+                        break;
+                    continue;
+                }
+
+                for (int i = 0; i < n; i++) {
+                    try {
+                        sink.visit(batch[i]);
+                        this.emitted.incrementAndGet();
+                    }
+                    catch (RuntimeException e) {
+                        failing = failed(e, failing);
+                    }
+                    batch[i] = null;
+                }
+                dirty = true;
+            }
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Pipeline for {} interrupted; Samples in the ring were dropped", this.name);
+        }
+        catch (IOException | RuntimeException e) {
+            LOG.error("Unexpected error in pipeline for {}", this.name, e);
+        }
+    }
+
+    private boolean flush(SampleSink sink, boolean failing) {
+        try {
+            sink.flush();
+            return false;
+        }
+        catch (IOException | RuntimeException e) {
+            return failed(e, failing);
+        }
+    }
+
+    /** Counts an error, and logs it if it is the first of a run. */
+    private boolean failed(Exception e, boolean failing) {
+        this.errors.incrementAndGet();
+        if (!failing)
+            LOG.warn("Error writing samples of {} ({})", this.name, e.getMessage());
+        return true;
+    }
+
+}
@@ -0,0 +1,232 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring buffer of samples, between collection (the producer) and the sinks that write them (consumers).
+ * <p>
+ * What happens when the ring is full is determined by its {@link Policy}; Collection waits for room, or a sample is
+ * dropped, (the oldest, or the one being added). Consumers take samples in batches, for fewer trips through the lock.
+ * </p>
+ */
+public class SampleRing {
+
+    /** What to do with a sample when the ring is full. */
+    public static enum Policy {
+        /** Wait for room, (collection is slowed to the pace of the sinks). */
+        BLOCK,
+        /** Drop the oldest sample in the ring, to make room. */
+        DROP_OLDEST,
+        /** Drop the sample being added. */
+        DROP_NEWEST;
+
+        /**
+         * Parses a policy name, (case-insensitive).
+         *
+         * @param name
+         *            the policy name, i.e. "block", "drop_oldest", or "drop_newest"
+         * @return the policy
+         */
+        public static Policy parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase().replace('-', '_'));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("unknown queue policy: %s", name));
+            }
+        }
+    }
+
+    private final JmxSample[] items;
+    private final Policy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private final Condition notFull = this.lock.newCondition();
+
+    // Guarded by lock.
+    private int head = 0;
+    private int count = 0;
+    private long dropped = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Create a new {@link SampleRing}.
+     *
+     * @param capacity
+     *            the number of samples the ring holds
+     * @param policy
+     *            what to do when the ring is full
+     */
+    public SampleRing(int capacity, Policy policy) {
+        checkArgument(capacity > 0, "capacity argument must be positive");
+        this.items = new JmxSample[capacity];
+        this.policy = checkNotNull(policy, "policy argument");
+    }
+
+    /**
+     * Adds a sample, (according to the policy, if the ring is full).
+     *
+     * @param sample
+     *            the sample
+     * @return false if the sample was dropped, (because the ring is full, or closed)
+     * @throws InterruptedException
+     *             if interrupted while waiting for room
+     */
+    public boolean put(JmxSample sample) throws InterruptedException {
+        checkNotNull(sample, "sample argument");
+
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == this.items.length && !this.isClosed) {
+                switch (this.policy) {
+                    case BLOCK:
+                        this.notFull.await();
+                        break;
+                    case DROP_OLDEST:
+                        this.items[this.head] = null;
+                        this.head = (this.head + 1) % this.items.length;
+                        this.count--;
+                        this.dropped++;
+                        break;
+                    case DROP_NEWEST:
+                        this.dropped++;
+                        return false;
+                }
+            }
+
+            if (this.isClosed) {
+                this.dropped++;
+                return false;
+            }
+
+            this.items[(this.head + this.count) % this.items.length] = sample;
+            this.count++;
+            this.notEmpty.signal();
+
+            return true;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Takes up to batch.length samples, waiting (up to a timeout) for there to be at least one.
+     *
+     * @param batch
+     *            array to take samples into, (from the first element)
+     * @param timeout
+     *            the most time to wait
+     * @param unit
+     *            unit of the timeout
+     * @return the number of samples taken; 0 if the timeout elapsed, or the ring is closed (and empty)
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public int take(JmxSample[] batch, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                if (this.isClosed || nanos <= 0)
+                    return 0;
+                nanos = this.notEmpty.awaitNanos(nanos);
+            }
+
+            int n = Math.min(this.count, batch.length);
+            for (int i = 0; i < n; i++) {
+                batch[i] = this.items[this.head];
+                this.items[this.head] = null;
+                this.head = (this.head + 1) % this.items.length;
+            }
+            this.count -= n;
+            this.notFull.signalAll();
+
+            return n;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Closes the ring; Samples added from now on are dropped, and consumers take what remains. */
+    public void close() {
+        this.lock.lock();
+        try {
+            this.isClosed = true;
+            this.notEmpty.signalAll();
+            this.notFull.signalAll();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** @return true if closed */
+    public boolean isClosed() {
+        this.lock.lock();
+        try {
+            return this.isClosed;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** @return the number of samples in the ring */
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.count;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** @return the number of samples dropped */
+    public long getDropped() {
+        this.lock.lock();
+        try {
+            return this.dropped;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return this.items.length;
+    }
+
+    public Policy getPolicy() {
+        return this.policy;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleRing [capacity=" + items.length + ", policy=" + policy + ", size=" + size() + ", dropped="
+                + getDropped() + "]";
+    }
+
+}
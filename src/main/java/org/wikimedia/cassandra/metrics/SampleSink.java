@@ -0,0 +1,33 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.io.IOException;
+
+/** A {@link SampleVisitor} that buffers what it writes, (i.e. {@link CarbonVisitor}). */
+public interface SampleSink extends SampleVisitor, AutoCloseable {
+
+    /**
+     * Writes anything buffered.
+     *
+     * @throws IOException
+     *             if the write fails
+     */
+    void flush() throws IOException;
+
+    @Override
+    void close() throws IOException;
+
+}
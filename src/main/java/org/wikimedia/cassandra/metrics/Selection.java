@@ -0,0 +1,192 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+
+import org.wikimedia.cassandra.metrics.SelectionConfig.Rule;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * The Cassandra metric MBeans to collect from, as selected by the include and exclude rules of a
+ * {@link SelectionConfig}.
+ * <p>
+ * Each rule is translated to an {@link ObjectName} pattern, and the patterns combined into a {@link QueryExp}, so
+ * that MBeans can be selected by the server (rather than transferring the names of all of them to be sorted out
+ * here). An MBean is selected if it matches any include rule (or if there are none), and no exclude rule.
+ * </p>
+ */
+public class Selection {
+
+    static final String DOMAIN = "org.apache.cassandra.metrics";
+
+    private static final Selection DEFAULTS = new Selection(defaultConfig());
+
+    private final List<ObjectName> includes;
+    private final List<ObjectName> excludes;
+    private final ObjectName pattern;
+    private final QueryExp query;
+
+    public Selection(SelectionConfig config) {
+        this(checkNotNull(config, "config argument").getInclude(), config.getExclude());
+    }
+
+    public Selection(Collection<Rule> include, Collection<Rule> exclude) {
+        this.includes = patterns(checkNotNull(include, "include argument"));
+        this.excludes = patterns(checkNotNull(exclude, "exclude argument"));
+        this.pattern = newObjectName(DOMAIN + ":*");
+        this.query = query(this.includes, this.excludes);
+    }
+
+    /** @return the default selection, (the MBeans we've always collected from) */
+    public static Selection defaults() {
+        return DEFAULTS;
+    }
+
+    /** @return an object name pattern matching every MBean that could be selected */
+    public ObjectName getPattern() {
+        return this.pattern;
+    }
+
+    /** @return a query selecting matching MBeans server-side, or null if all of them match */
+    public QueryExp getQuery() {
+        return this.query;
+    }
+
+    /**
+     * Applies the selection locally, (to the subject of a registration notification, for example).
+     *
+     * @param oName
+     *            object name of the MBean
+     * @return true if the MBean is selected
+     */
+    public boolean apply(ObjectName oName) {
+        return this.pattern.apply(oName) && (this.includes.isEmpty() || matches(oName, this.includes))
+                && !matches(oName, this.excludes);
+    }
+
+    @Override
+    public String toString() {
+        return "Selection [includes=" + includes + ", excludes=" + excludes + "]";
+    }
+
+    private static boolean matches(ObjectName oName, List<ObjectName> patterns) {
+        for (ObjectName pattern : patterns)
+            if (pattern.apply(oName))
+                return true;
+        return false;
+    }
+
+    private static QueryExp query(List<ObjectName> includes, List<ObjectName> excludes) {
+        QueryExp included = or(includes);
+        QueryExp excluded = or(excludes);
+
+        if (excluded == null)
+            return included;
+        if (included == null)
+            return Query.not(excluded);
+        return Query.and(included, Query.not(excluded));
+    }
+
+    private static QueryExp or(List<ObjectName> patterns) {
+        QueryExp result = null;
+        for (ObjectName pattern : patterns)
+            result = (result == null) ? pattern : Query.or(result, pattern);
+        return result;
+    }
+
+    private static List<ObjectName> patterns(Collection<Rule> rules) {
+        ImmutableList.Builder<ObjectName> builder = ImmutableList.builder();
+        for (Rule rule : rules)
+            builder.add(pattern(rule));
+        return builder.build();
+    }
+
+    /** Translates a rule to an object name pattern, (i.e. org.apache.cassandra.metrics:type=Cache,*). */
+    static ObjectName pattern(Rule rule) {
+        List<String> properties = Lists.newArrayList();
+
+        if (rule.getType() != null)
+            properties.add("type=" + rule.getType());
+        if (rule.getKeyspace() != null)
+            properties.add("keyspace=" + rule.getKeyspace());
+        if (rule.getScope() != null)
+            properties.add("scope=" + rule.getScope());
+        if (rule.getName() != null)
+            properties.add("name=" + rule.getName());
+
+        checkArgument(!(rule.isExact() && properties.isEmpty()), "exact rule with no properties: %s", rule);
+
+        if (!rule.isExact())
+            properties.add("*");
+
+        return newObjectName(DOMAIN + ":" + Joiner.on(',').join(properties));
+    }
+
+    private static SelectionConfig defaultConfig() {
+        List<Rule> include = Lists.newArrayList();
+        for (String type : new String[] {
+                "Cache",
+                "Client",
+                "ClientRequest",
+                "ColumnFamily",
+                "Connection",
+                "CQL",
+                "DroppedMessage",
+                "FileCache",
+                "IndexColumnFamily",
+                "Storage",
+                "Keyspace",
+                "ThreadPools",
+                "Compaction",
+                "ReadRepair",
+                "CommitLog" }) {
+            include.add(new Rule(type, null, null, null));
+        }
+
+        Rule snapshotsSize = new Rule("ColumnFamily", null, null, "SnapshotsSize");
+        snapshotsSize.setExact(true);
+
+        SelectionConfig config = new SelectionConfig();
+        config.setInclude(include);
+        config.setExclude(Lists.newArrayList(
+                new Rule(null, "system*", null, null),
+                new Rule(null, null, null, "ColUpdateTimeDeltaHistogram"),
+                snapshotsSize));
+        return config;
+    }
+
+    private static ObjectName newObjectName(String name) {
+        try {
+            return new ObjectName(name);
+        }
+        catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(String.format("invalid selection rule (%s): %s", name, e.getMessage()));
+        }
+    }
+
+}
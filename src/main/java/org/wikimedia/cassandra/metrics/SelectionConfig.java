@@ -0,0 +1,176 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * MBean selection configuration; Rules that include or exclude Cassandra metric MBeans by the type, keyspace, scope,
+ * and name properties of their object names, (see {@link Selection}).
+ */
+public class SelectionConfig {
+
+    /**
+     * Matches MBeans by key property. Unset properties match anything; Values may contain the wildcards <code>*</code>
+     * and <code>?</code>.
+     */
+    public static class Rule {
+        private String type;
+        private String keyspace;
+        private String scope;
+        private String name;
+        private boolean exact = false;
+
+        public Rule() {
+        }
+
+        public Rule(String type, String keyspace, String scope, String name) {
+            this.type = type;
+            this.keyspace = keyspace;
+            this.scope = scope;
+            this.name = name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getKeyspace() {
+            return keyspace;
+        }
+
+        public void setKeyspace(String keyspace) {
+            this.keyspace = keyspace;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public void setScope(String scope) {
+            this.scope = scope;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /** @return true if MBeans with properties other than those of the rule are not to be matched */
+        public boolean isExact() {
+            return exact;
+        }
+
+        public void setExact(boolean exact) {
+            this.exact = exact;
+        }
+
+        @Override
+        public String toString() {
+            return "Rule [type=" + type + ", keyspace=" + keyspace + ", scope=" + scope + ", name=" + name
+                    + ", exact=" + exact + "]";
+        }
+    }
+
+    /** A group of MBeans collected from at an interval of its own, (see {@link Tiers}). */
+    public static class Tier {
+        private String name;
+        private int interval;
+        private List<Rule> include;
+        private List<Rule> exclude;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /** @return the collection interval, in seconds */
+        public int getInterval() {
+            return interval;
+        }
+
+        public void setInterval(int interval) {
+            this.interval = interval;
+        }
+
+        public Collection<Rule> getInclude() {
+            return (include != null) ? include : Collections.<Rule>emptyList();
+        }
+
+        public void setInclude(List<Rule> include) {
+            this.include = include;
+        }
+
+        public Collection<Rule> getExclude() {
+            return (exclude != null) ? exclude : Collections.<Rule>emptyList();
+        }
+
+        public void setExclude(List<Rule> exclude) {
+            this.exclude = exclude;
+        }
+
+        @Override
+        public String toString() {
+            return "Tier [name=" + name + ", interval=" + interval + ", include=" + include + ", exclude=" + exclude
+                    + "]";
+        }
+    }
+
+    private List<Rule> include;
+    private List<Rule> exclude;
+    private List<Tier> tiers;
+
+    public Collection<Rule> getInclude() {
+        return (include != null) ? include : Collections.<Rule>emptyList();
+    }
+
+    public void setInclude(List<Rule> include) {
+        this.include = include;
+    }
+
+    public Collection<Rule> getExclude() {
+        return (exclude != null) ? exclude : Collections.<Rule>emptyList();
+    }
+
+    public void setExclude(List<Rule> exclude) {
+        this.exclude = exclude;
+    }
+
+    public Collection<Tier> getTiers() {
+        return (tiers != null) ? tiers : Collections.<Tier>emptyList();
+    }
+
+    public void setTiers(List<Tier> tiers) {
+        this.tiers = tiers;
+    }
+
+    @Override
+    public String toString() {
+        return "SelectionConfig [include=" + include + ", exclude=" + exclude + ", tiers=" + tiers + "]";
+    }
+
+}
@@ -0,0 +1,57 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Charsets;
+
+/** The (carbon) name of a series, along with its UTF-8 encoding; See {@link SeriesNames}. */
+public final class SeriesName {
+
+    private final String name;
+    private final byte[] bytes;
+
+    // The filter lists that last accepted (or rejected) the series, (see Filter#accept(SeriesName)).
+    volatile Object acceptedBy;
+    volatile Object rejectedBy;
+
+    /**
+     * Create a new {@link SeriesName}.
+     *
+     * @param name
+     *            the metric name
+     */
+    public SeriesName(String name) {
+        this.name = checkNotNull(name, "name argument");
+        this.bytes = name.getBytes(Charsets.UTF_8);
+    }
+
+    /** @return the metric name */
+    public String getName() {
+        return this.name;
+    }
+
+    /** @return the metric name, UTF-8 encoded; Shared, (not to be modified) */
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+
+}
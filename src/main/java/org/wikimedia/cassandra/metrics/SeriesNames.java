@@ -0,0 +1,112 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+/**
+ * The names (see {@link CarbonVisitor}) of an instance's series, by MBean and metric; Formatted (and encoded) once,
+ * rather than on every collection. A name is only ever a function of the object name, the metric, and the prefix, and
+ * these almost never change.
+ * <p>
+ * Names are cached on first use, until their MBean is evicted from the {@link MBeanInventory} (or the inventory is
+ * rebuilt); Register with {@link MBeanInventory#addListener(MBeanInventory.Listener)} to keep the two in step.
+ * </p>
+ */
+public class SeriesNames implements MBeanInventory.Listener {
+
+    private final String prefix;
+    private final ConcurrentMap<ObjectName, ConcurrentMap<String, SeriesName>> names = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new {@link SeriesNames}.
+     *
+     * @param prefix
+     *            string to prefix to each metric name, (including the instance name)
+     */
+    public SeriesNames(String prefix) {
+        this.prefix = checkNotNull(prefix, "prefix argument");
+    }
+
+    /**
+     * Returns the name of a sample's series.
+     *
+     * @param sample
+     *            the sample
+     * @return the series name
+     */
+    public SeriesName get(JmxSample sample) {
+        return get(sample.getType(), sample.getObjectName(), sample.getMetricName());
+    }
+
+    /**
+     * Returns the name of a series, (see {@link SampleBatch}).
+     *
+     * @param type
+     *            the sample type
+     * @param oName
+     *            object name of the MBean
+     * @param metricName
+     *            the metric name
+     * @return the series name
+     */
+    public SeriesName get(JmxSample.Type type, ObjectName oName, String metricName) {
+        ConcurrentMap<String, SeriesName> metrics = this.names.get(oName);
+        if (metrics == null) {
+            // (Not read again; The MBean could be evicted in the meantime.)
+            ConcurrentMap<String, SeriesName> created = new ConcurrentHashMap<>();
+            metrics = firstNonNull(this.names.putIfAbsent(oName, created), created);
+        }
+
+        SeriesName name = metrics.get(metricName);
+        if (name == null) {
+            name = new SeriesName(CarbonVisitor.metricName(type, oName, metricName, this.prefix));
+            metrics.put(metricName, name);
+        }
+
+        return name;
+    }
+
+    public String getPrefix() {
+        return this.prefix;
+    }
+
+    /** @return the number of MBeans with cached names */
+    public int size() {
+        return this.names.size();
+    }
+
+    @Override
+    public void removed(ObjectName oName) {
+        this.names.remove(oName);
+    }
+
+    @Override
+    public void reset() {
+        this.names.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "SeriesNames [prefix=" + prefix + ", size=" + names.size() + "]";
+    }
+
+}
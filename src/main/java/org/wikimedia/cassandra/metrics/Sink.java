@@ -0,0 +1,123 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import com.google.common.base.Optional;
+
+/**
+ * A destination samples are written to, (one of several; See {@link FanOutVisitor}). Each has a prefix and filter of
+ * its own, and the size and policy of the queue that samples wait in to be written, (see {@link SampleRing}).
+ */
+public abstract class Sink implements AutoCloseable {
+
+    /** Queue capacity of a sink, (in samples) when none is configured. */
+    public static final int DEFAULT_QUEUE_SIZE = 65536;
+
+    private final String name;
+    private final String prefix;
+    private final Optional<Filter> filter;
+    private final int queueSize;
+    private final SampleRing.Policy queuePolicy;
+
+    /**
+     * Create a new {@link Sink}.
+     *
+     * @param name
+     *            name of the sink, (i.e. the carbon cluster)
+     * @param prefix
+     *            string to prefix to each metric name, (ahead of the instance name)
+     * @param filter
+     *            the (optional) filter metric names are tested against
+     * @param queueSize
+     *            capacity of the sink's queue, in samples
+     * @param queuePolicy
+     *            what to do when the sink's queue is full
+     */
+    protected Sink(String name, String prefix, Optional<Filter> filter, int queueSize, SampleRing.Policy queuePolicy) {
+        this.name = checkNotNull(name, "name argument");
+        this.prefix = checkNotNull(prefix, "prefix argument");
+        this.filter = checkNotNull(filter, "filter argument");
+        checkArgument(queueSize > 0, "queueSize argument must be positive");
+        this.queueSize = queueSize;
+        this.queuePolicy = checkNotNull(queuePolicy, "queuePolicy argument");
+    }
+
+    /**
+     * Opens a sink for the samples of an instance; One for each worker writing them.
+     *
+     * @param instance
+     *            the instance name
+     * @param names
+     *            names of the instance's series, (with the prefix of {@link #getPrefix(String)})
+     * @return the sink
+     */
+    public abstract SampleSink open(String instance, SeriesNames names);
+
+    /**
+     * Opens a sink for the samples of an instance, with series names of its own; These are never evicted, (see
+     * {@link SeriesNames}).
+     *
+     * @param instance
+     *            the instance name
+     * @return the sink
+     */
+    public SampleSink open(String instance) {
+        return open(instance, new SeriesNames(getPrefix(instance)));
+    }
+
+    /**
+     * Starts the sink, (i.e. connects).
+     *
+     * @throws IOException
+     *             if the sink cannot be started
+     */
+    public abstract void start() throws IOException;
+
+    @Override
+    public abstract void close() throws IOException;
+
+    public String getName() {
+        return this.name;
+    }
+
+    /** @return the prefix of an instance's metric names */
+    public String getPrefix(String instance) {
+        return String.format("%s.%s", this.prefix, instance);
+    }
+
+    public Optional<Filter> getFilter() {
+        return this.filter;
+    }
+
+    public int getQueueSize() {
+        return this.queueSize;
+    }
+
+    public SampleRing.Policy getQueuePolicy() {
+        return this.queuePolicy;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [name=" + name + ", prefix=" + prefix + ", filter=" + filter
+                + ", queueSize=" + queueSize + ", queuePolicy=" + queuePolicy + "]";
+    }
+
+}
@@ -0,0 +1,209 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/** Sink configuration; The destinations samples are written to, (see {@link Sink}). */
+public class SinksConfig {
+
+    /** A carbon cluster, (type "carbon"), a local file (type "file"), Prometheus (type "remote_write"), or InfluxDB (type "influx"). */
+    public static class Sink {
+        private String name;
+        private String type = "carbon";
+        private String host;
+        private Integer port;
+        private String protocol;
+        private String transport;
+        private String path;
+        private String url;
+        private Integer batchSize;
+        private Integer shards;
+        private Integer maxRetries;
+        private Integer flushSize;
+        private Long flushInterval;
+        private String prefix;
+        private FilterConfig filter;
+        private Integer queueSize;
+        private String queuePolicy;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        public Integer getPort() {
+            return port;
+        }
+
+        public void setPort(Integer port) {
+            this.port = port;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public void setProtocol(String protocol) {
+            this.protocol = protocol;
+        }
+
+        public String getTransport() {
+            return transport;
+        }
+
+        public void setTransport(String transport) {
+            this.transport = transport;
+        }
+
+        /** @return the file appended to, (type "file") */
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        /** @return the remote-write endpoint (type "remote_write"), or write endpoint (type "influx") */
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public Integer getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(Integer batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public Integer getShards() {
+            return shards;
+        }
+
+        public void setShards(Integer shards) {
+            this.shards = shards;
+        }
+
+        public Integer getMaxRetries() {
+            return maxRetries;
+        }
+
+        public void setMaxRetries(Integer maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+
+        /** @return the most lines in an Influx request */
+        public Integer getFlushSize() {
+            return flushSize;
+        }
+
+        public void setFlushSize(Integer flushSize) {
+            this.flushSize = flushSize;
+        }
+
+        /** @return the most milliseconds an Influx line waits to be sent */
+        public Long getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(Long flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public void setPrefix(String prefix) {
+            this.prefix = prefix;
+        }
+
+        /** @return the sink's filter, or null to use the global one */
+        public FilterConfig getFilter() {
+            return filter;
+        }
+
+        public void setFilter(FilterConfig filter) {
+            this.filter = filter;
+        }
+
+        public Integer getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(Integer queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public String getQueuePolicy() {
+            return queuePolicy;
+        }
+
+        public void setQueuePolicy(String queuePolicy) {
+            this.queuePolicy = queuePolicy;
+        }
+
+        @Override
+        public String toString() {
+            return "Sink [name=" + name + ", type=" + type + ", host=" + host + ", port=" + port + ", protocol="
+                    + protocol + ", transport=" + transport + ", path=" + path + ", url=" + url + ", batchSize=" + batchSize + ", shards=" + shards
+                    + ", maxRetries=" + maxRetries + ", flushSize=" + flushSize + ", flushInterval=" + flushInterval + ", prefix=" + prefix + ", filter="
+                    + filter + ", queueSize=" + queueSize + ", queuePolicy=" + queuePolicy + "]";
+        }
+    }
+
+    private List<Sink> sinks;
+
+    public Collection<Sink> getSinks() {
+        return (sinks != null) ? sinks : Collections.<Sink>emptyList();
+    }
+
+    public void setSinks(List<Sink> sinks) {
+        this.sinks = sinks;
+    }
+
+    @Override
+    public String toString() {
+        return "SinksConfig [sinks=" + sinks + "]";
+    }
+
+}
@@ -0,0 +1,438 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable, on-disk queue of (encoded) batches; Holds what cannot be sent while Carbon is unreachable, for replay once
+ * it is back.
+ * <p>
+ * Batches are appended to memory-mapped segment files of a fixed size, and read back (oldest first) with
+ * {@link #peek()}, and {@link #commit()} once sent; A batch is removed only after it has been sent in full. Disk use is
+ * bounded; When a new segment would exceed the limit, the oldest segment is evicted (unsent batches and all). The read
+ * position of each segment is kept in its header, so that what remains is replayed after a restart.
+ * </p>
+ * <p>
+ * Segment layout: A header (magic, read position), followed by records of length, time appended (in milliseconds), and
+ * the batch. A zero length marks the end of the records.
+ * </p>
+ */
+public class Spool implements AutoCloseable {
+
+    /** Default size of a segment file, in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAGIC = 0x636d6364;
+
+    /** Magic, and the read position. */
+    private static final int HEADER_LENGTH = 8;
+
+    /** Length, and the time appended. */
+    private static final int RECORD_HEADER_LENGTH = 12;
+
+    private static final String SUFFIX = ".spool";
+
+    private static final Logger LOG = LoggerFactory.getLogger(Spool.class);
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int readPosition = HEADER_LENGTH;
+        private int writePosition = HEADER_LENGTH;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private boolean isRead() {
+            return this.readPosition >= this.writePosition;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private long nextSequence = 0;
+    private long pendingBytes = 0;
+    private long pendingRecords = 0;
+    private long appendedBytes = 0;
+    private long replayedBytes = 0;
+    private long evictedBytes = 0;
+    private long evictedRecords = 0;
+    private Segment peeked;
+    private int peekedPosition;
+    private boolean isClosed = false;
+
+    /**
+     * Create a new {@link Spool}, with segments of the default size (or half of maxBytes, if smaller).
+     *
+     * @param directory
+     *            directory of the segment files, (created if need be)
+     * @param maxBytes
+     *            limit on the size of all segment files, in bytes
+     * @throws IOException
+     *             if the directory cannot be created, or the existing segments read
+     */
+    public Spool(File directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, (int) Math.min(DEFAULT_SEGMENT_SIZE, maxBytes / 2));
+    }
+
+    /**
+     * Create a new {@link Spool}; Batches left in the directory (by a previous instance) are recovered.
+     *
+     * @param directory
+     *            directory of the segment files, (created if need be)
+     * @param maxBytes
+     *            limit on the size of all segment files, in bytes; At least two segments
+     * @param segmentSize
+     *            size of each segment file, in bytes
+     * @throws IOException
+     *             if the directory cannot be created, or the existing segments read
+     */
+    public Spool(File directory, long maxBytes, int segmentSize) throws IOException {
+        this.directory = checkNotNull(directory, "directory argument");
+        checkArgument(segmentSize > HEADER_LENGTH + RECORD_HEADER_LENGTH, "segmentSize argument");
+        checkArgument(maxBytes >= 2L * segmentSize, "maxBytes must allow for at least two segments");
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentSize);
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException(String.format("Unable to create spool directory %s", directory));
+
+        recover();
+    }
+
+    /**
+     * Appends a batch.
+     *
+     * @param bytes
+     *            the batch
+     * @param offset
+     *            offset of the batch in bytes
+     * @param length
+     *            length of the batch
+     * @return false if the batch is too large to spool
+     * @throws IOException
+     *             if a new segment cannot be created
+     */
+    public synchronized boolean append(byte[] bytes, int offset, int length) throws IOException {
+        checkState(!this.isClosed, "cannot write to closed object");
+
+        int needed = RECORD_HEADER_LENGTH + length;
+
+        if (length == 0)
+            return true;
+        if (HEADER_LENGTH + needed > this.segmentSize)
+            return false;
+
+        Segment tail = this.segments.peekLast();
+        if (tail == null || tail.writePosition + needed > tail.buffer.capacity())
+            tail = roll();
+
+        ByteBuffer buffer = tail.buffer.duplicate();
+        int position = tail.writePosition;
+
+        buffer.putLong(position + 4, System.currentTimeMillis());
+        buffer.position(position + RECORD_HEADER_LENGTH);
+        buffer.put(bytes, offset, length);
+        if (position + needed + 4 <= buffer.capacity())
+            buffer.putInt(position + needed, 0);
+
+        // The length last, so that a record is complete before it can be read (or recovered).
+        buffer.putInt(position, length);
+
+        tail.writePosition = position + needed;
+        this.pendingBytes += length;
+        this.pendingRecords++;
+        this.appendedBytes += length;
+
+        return true;
+    }
+
+    /** @return a copy of the oldest batch, or null if there are none; It remains until {@link #commit()}ted */
+    public synchronized byte[] peek() {
+        checkState(!this.isClosed, "cannot read from closed object");
+
+        Segment head = head();
+        if (head == null)
+            return null;
+
+        ByteBuffer buffer = head.buffer.duplicate();
+        byte[] batch = new byte[buffer.getInt(head.readPosition)];
+        buffer.position(head.readPosition + RECORD_HEADER_LENGTH);
+        buffer.get(batch);
+
+        this.peeked = head;
+        this.peekedPosition = head.readPosition;
+
+        return batch;
+    }
+
+    /** Removes the batch last returned by {@link #peek()}, (unless it was evicted since). */
+    public synchronized void commit() {
+        Segment head = this.peeked;
+        this.peeked = null;
+
+        if (this.isClosed || head == null || head != this.segments.peekFirst() || head.readPosition != this.peekedPosition)
+            return;
+
+        int length = head.buffer.getInt(head.readPosition);
+        head.readPosition += RECORD_HEADER_LENGTH + length;
+        head.buffer.putInt(4, head.readPosition);
+
+        this.pendingBytes -= length;
+        this.pendingRecords--;
+        this.replayedBytes += length;
+    }
+
+    /** @return the number of bytes spooled, and not yet replayed */
+    public synchronized long getPendingBytes() {
+        return this.pendingBytes;
+    }
+
+    /** @return the number of batches spooled, and not yet replayed */
+    public synchronized long getPendingRecords() {
+        return this.pendingRecords;
+    }
+
+    /** @return milliseconds since the oldest batch not yet replayed was spooled, or 0 if there are none */
+    public synchronized long getLag() {
+        checkState(!this.isClosed, "cannot read from closed object");
+
+        for (Segment segment : this.segments)
+            if (!segment.isRead())
+                return Math.max(0, System.currentTimeMillis() - segment.buffer.getLong(segment.readPosition + 4));
+        return 0;
+    }
+
+    /** @return the number of bytes appended */
+    public synchronized long getAppendedBytes() {
+        return this.appendedBytes;
+    }
+
+    /** @return the number of bytes replayed, (committed) */
+    public synchronized long getReplayedBytes() {
+        return this.replayedBytes;
+    }
+
+    /** @return the number of bytes evicted (unsent) to stay within the limit */
+    public synchronized long getEvictedBytes() {
+        return this.evictedBytes;
+    }
+
+    /** @return the number of batches evicted (unsent) to stay within the limit */
+    public synchronized long getEvictedRecords() {
+        return this.evictedRecords;
+    }
+
+    /** @return the number of segment files */
+    public synchronized int getSegments() {
+        return this.segments.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.isClosed)
+            return;
+
+        for (Segment segment : this.segments) {
+            segment.buffer.force();
+            unmap(segment.buffer);
+        }
+
+        this.isClosed = true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Spool [directory=" + directory + ", segmentSize=" + segmentSize + ", maxSegments=" + maxSegments
+                + ", segments=" + segments.size() + ", pendingBytes=" + pendingBytes + ", pendingRecords="
+                + pendingRecords + ", evictedBytes=" + evictedBytes + ", isClosed=" + isClosed + "]";
+    }
+
+    /** The oldest segment with batches to read; Segments read in full are deleted, (the last excepted). */
+    private Segment head() {
+        while (true) {
+            Segment head = this.segments.peekFirst();
+            if (head == null || !head.isRead())
+                return head;
+            if (head == this.segments.peekLast())
+                return null;
+            delete(this.segments.pollFirst());
+        }
+    }
+
+    /** Begins a new segment, evicting the oldest as necessary to make room. */
+    private Segment roll() throws IOException {
+        Segment tail = this.segments.peekLast();
+        if (tail != null)
+            tail.buffer.force();
+
+        while (this.segments.size() >= this.maxSegments)
+            evict(this.segments.pollFirst());
+
+        File file = new File(this.directory, String.format("%020d%s", this.nextSequence++, SUFFIX));
+        Segment segment = new Segment(file, map(file, this.segmentSize));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, HEADER_LENGTH);
+        segment.buffer.putInt(HEADER_LENGTH, 0);
+
+        this.segments.addLast(segment);
+
+        return segment;
+    }
+
+    private void evict(Segment segment) {
+        long bytes = 0, records = 0;
+        for (int position = segment.readPosition; position < segment.writePosition; records++) {
+            int length = segment.buffer.getInt(position);
+            bytes += length;
+            position += RECORD_HEADER_LENGTH + length;
+        }
+
+        if (records > 0)
+            LOG.warn("Spool full; Evicted {} unsent batches ({} bytes) from {}", records, bytes, segment.file);
+
+        this.pendingBytes -= bytes;
+        this.pendingRecords -= records;
+        this.evictedBytes += bytes;
+        this.evictedRecords += records;
+
+        if (this.peeked == segment)
+            this.peeked = null;
+
+        delete(segment);
+    }
+
+    /** Reads the segments left by a previous instance, (oldest first). */
+    private void recover() throws IOException {
+        File[] files = this.directory.listFiles();
+        if (files == null)
+            throw new IOException(String.format("Unable to list spool directory %s", this.directory));
+
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX))
+                continue;
+
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+
+            this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+
+            if (file.length() < HEADER_LENGTH + RECORD_HEADER_LENGTH || file.length() > Integer.MAX_VALUE) {
+                LOG.warn("Deleting malformed spool segment {}", file);
+                file.delete();
+                continue;
+            }
+
+            Segment segment = new Segment(file, map(file, (int) file.length()));
+            if (segment.buffer.getInt(0) != MAGIC) {
+                LOG.warn("Deleting malformed spool segment {}", file);
+                delete(segment);
+                continue;
+            }
+
+            recover(segment);
+            this.segments.addLast(segment);
+        }
+
+        while (this.segments.size() > this.maxSegments)
+            evict(this.segments.pollFirst());
+
+        if (this.pendingRecords > 0)
+            LOG.info("Recovered {} spooled batches ({} bytes) from {}", this.pendingRecords, this.pendingBytes, this.directory);
+    }
+
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int capacity = buffer.capacity();
+        int readPosition = buffer.getInt(4);
+        int position = HEADER_LENGTH;
+
+        while (position + RECORD_HEADER_LENGTH <= capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_LENGTH + length > capacity)
+                break;
+            if (position >= readPosition) {
+                this.pendingBytes += length;
+                this.pendingRecords++;
+            }
+            position += RECORD_HEADER_LENGTH + length;
+        }
+
+        segment.writePosition = position;
+        segment.readPosition = Math.max(HEADER_LENGTH, Math.min(readPosition, position));
+    }
+
+    private void delete(Segment segment) {
+        unmap(segment.buffer);
+        if (!segment.file.delete())
+            LOG.warn("Unable to delete spool segment {}", segment.file);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != size)
+                raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Unmaps a segment, (where the JVM allows), so that the disk space of a deleted segment is released immediately,
+     * rather than when the buffer is collected. The buffer must not be used afterward.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+        catch (Exception e) {
+            LOG.debug("Unable to unmap spool segment ({}); Leaving it to the garbage collector", e.toString());
+        }
+    }
+
+}
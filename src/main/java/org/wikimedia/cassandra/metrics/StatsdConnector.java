@@ -0,0 +1,86 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes metrics to StatsD as gauges, (i.e. {@code name:value|g}). StatsD assigns timestamps of its own, so those
+ * written are ignored, as are values that aren't numbers.
+ */
+public class StatsdConnector extends CarbonConnector {
+
+    /** The default StatsD port. */
+    public static final int DEFAULT_PORT = 8125;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatsdConnector.class);
+
+    private static final byte[] ZERO = { ':', '0', '|', 'g', '\n' };
+
+    public StatsdConnector(String host) throws CarbonException {
+        this(host, DEFAULT_PORT);
+    }
+
+    public StatsdConnector(String host, int port) throws CarbonException {
+        super(host, port);
+    }
+
+    public StatsdConnector(CarbonDestination client) {
+        super(client);
+    }
+
+    public StatsdConnector(CarbonDestination client, int bufferSize) {
+        super(client, bufferSize);
+    }
+
+    @Override
+    protected void append(String name, byte[] encoded, double value, long longValue, boolean integral, String text, long timestamp)
+            throws CarbonException {
+        if (text != null) {
+            LOG.debug("Skipping non-numeric value of {} ({})", name, text);
+            return;
+        }
+        super.append(name, encoded, value, longValue, integral, text, timestamp);
+    }
+
+    @Override
+    protected int maxLength(byte[] name, String text) {
+        // Room for the name twice over, (see format()).
+        return name.length * 2 + ZERO.length + ((text != null) ? text.length() * 3 : Ascii.MAX_NUMBER_LENGTH) + 3;
+    }
+
+    @Override
+    protected void format(ByteBuffer buffer, byte[] name, double value, long longValue, boolean integral, String text, long timestamp) {
+        // A gauge with a sign is an adjustment to the current value; Negative values must be set from zero.
+        if (text == null && value < 0) {
+            buffer.put(name);
+            buffer.put(ZERO);
+        }
+
+        buffer.put(name);
+        buffer.put((byte) ':');
+        if (text != null)
+            Ascii.putString(buffer, text);
+        else if (integral)
+            Ascii.putLong(buffer, longValue);
+        else
+            Ascii.putDouble(buffer, value);
+        buffer.put((byte) '|').put((byte) 'g').put((byte) '\n');
+    }
+
+}
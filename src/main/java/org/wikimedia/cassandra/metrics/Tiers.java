@@ -0,0 +1,128 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+/**
+ * Collection cadence tiers. Each tier selects a group of MBeans to be collected from at an interval of its own; An
+ * MBean belongs to the first tier that selects it, and those selected by no tier (along with the JVM metrics) to the
+ * default tier, (which is collected at the standard interval).
+ */
+public class Tiers {
+
+    /** A named group of MBeans, and the interval to collect them at. */
+    public static class Tier {
+        private final String name;
+        private final int interval;
+        private final Selection selection;
+
+        public Tier(String name, int interval, Selection selection) {
+            this.name = checkNotNull(name, "name argument");
+            checkArgument(interval > 0, "interval argument");
+            this.interval = interval;
+            this.selection = checkNotNull(selection, "selection argument");
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /** @return the collection interval, in seconds */
+        public int getInterval() {
+            return this.interval;
+        }
+
+        public Selection getSelection() {
+            return this.selection;
+        }
+
+        @Override
+        public String toString() {
+            return "Tier [name=" + name + ", interval=" + interval + ", selection=" + selection + "]";
+        }
+    }
+
+    private static final Tiers NONE = new Tiers(ImmutableList.<Tier>of());
+
+    private final List<Tier> tiers;
+
+    public Tiers(List<Tier> tiers) {
+        Set<String> names = Sets.newHashSet();
+        for (Tier tier : checkNotNull(tiers, "tiers argument"))
+            checkArgument(names.add(tier.getName()), "duplicate tier name: %s", tier.getName());
+        this.tiers = ImmutableList.copyOf(tiers);
+    }
+
+    /**
+     * Creates tiers from their configuration.
+     *
+     * @param config
+     *            the tier configuration, (see {@link SelectionConfig#getTiers()})
+     * @return the tiers
+     */
+    public static Tiers of(Collection<SelectionConfig.Tier> config) {
+        ImmutableList.Builder<Tier> builder = ImmutableList.builder();
+        for (SelectionConfig.Tier tier : config) {
+            checkArgument(tier.getName() != null && !tier.getName().isEmpty(), "tier without a name: %s", tier);
+            builder.add(new Tier(tier.getName(), tier.getInterval(), new Selection(tier.getInclude(), tier.getExclude())));
+        }
+        return new Tiers(builder.build());
+    }
+
+    /** @return no tiers; Everything is collected at the standard interval */
+    public static Tiers none() {
+        return NONE;
+    }
+
+    /** @return the (non-default) tiers, in order of precedence */
+    public List<Tier> getTiers() {
+        return this.tiers;
+    }
+
+    public boolean isEmpty() {
+        return this.tiers.isEmpty();
+    }
+
+    /**
+     * Returns the tier an MBean belongs to.
+     *
+     * @param oName
+     *            object name of the MBean
+     * @return the first tier to select the MBean, or null if it belongs to the default tier
+     */
+    public Tier tierOf(ObjectName oName) {
+        for (Tier tier : this.tiers)
+            if (tier.getSelection().apply(oName))
+                return tier;
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "Tiers " + tiers;
+    }
+
+}
@@ -21,11 +21,12 @@ import java.io.PrintStream;
 
 
 /**
- * Sample visitor that writes tab-seperated output to a {@link PrintStream}.
+ * Sample visitor that writes tab-seperated output to a {@link PrintStream}. Batches (see {@link SampleBatch}) are
+ * written without boxing (or formatting) their values, but otherwise identically.
  * 
  * @author eevans
  */
-public class TsvVisitor implements SampleVisitor {
+public class TsvVisitor implements SampleVisitor, BatchVisitor {
 
     private final PrintStream stream;
     private final String prefix;
@@ -49,4 +50,24 @@ public class TsvVisitor implements SampleVisitor {
                 jmxSample.getTimestamp());
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void visit(SampleBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            this.stream.print(CarbonVisitor.metricName(batch.getType(), batch.getObjectName(), batch.getMetricName(i), this.prefix));
+            this.stream.print(' ');
+
+            if (!batch.isNumeric(i))
+                this.stream.print(batch.getObject(i));
+            else if (batch.isIntegral(i))
+                this.stream.print(batch.getLong(i));
+            else
+                this.stream.print(batch.getValue(i));
+
+            this.stream.print(' ');
+            this.stream.print(batch.getTimestamp());
+            this.stream.println();
+        }
+    }
+
 }
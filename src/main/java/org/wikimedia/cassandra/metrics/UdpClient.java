@@ -0,0 +1,189 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fire-and-forget delivery to Carbon (plaintext over UDP) or StatsD. Connectors pack as many lines as fit into each
+ * datagram, up to a maximum size (the MTU); Datagrams are sent without blocking, and any that cannot be sent (because
+ * the socket buffer is full, or the destination is unreachable) are counted as dropped, never retried. An unresponsive
+ * backend costs lost samples, but never the time of a collection.
+ */
+public class UdpClient implements CarbonDestination {
+
+    /** Default maximum datagram size; Fits an Ethernet MTU, less IP and UDP headers (and room to spare). */
+    public static final int DEFAULT_MTU = 1432;
+
+    /** The largest UDP payload possible, (over IPv4). */
+    private static final int MAX_MTU = 65507;
+
+    private static final Logger LOG = LoggerFactory.getLogger(UdpClient.class);
+
+    private final String hostname;
+    private final int port;
+    private final CarbonProtocol protocol;
+    private final int mtu;
+    private final DatagramChannel channel;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean isClosed = false;
+
+    public UdpClient(String host, int port) throws IOException {
+        this(host, port, CarbonProtocol.PLAINTEXT, DEFAULT_MTU);
+    }
+
+    /**
+     * Create a new {@link UdpClient}.
+     *
+     * @param host
+     *            Carbon (or StatsD) hostname
+     * @param port
+     *            Carbon (or StatsD) port number
+     * @param protocol
+     *            the protocol to send; Plaintext or StatsD
+     * @param mtu
+     *            maximum size of a datagram, in bytes
+     * @throws IOException
+     *             if the socket cannot be opened, or the host resolved
+     */
+    public UdpClient(String host, int port, CarbonProtocol protocol, int mtu) throws IOException {
+        this.hostname = checkNotNull(host, "host argument");
+        this.protocol = checkNotNull(protocol, "protocol argument");
+        checkArgument(protocol != CarbonProtocol.PICKLE, "pickle protocol is not supported over UDP");
+        checkArgument((port > 0 && port <= 65535), "port argument");
+        checkArgument((mtu > 0 && mtu <= MAX_MTU), "mtu argument");
+        this.port = port;
+        this.mtu = mtu;
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved())
+            throw new IOException(String.format("Unable to resolve %s", host));
+
+        // Connected, so that the destination is resolved (and checked) once, not for every datagram.
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.connect(address);
+    }
+
+    /** Nothing to start; Datagrams are sent from the calling thread. */
+    @Override
+    public void start() {
+    }
+
+    /**
+     * Sends a datagram.
+     *
+     * @param bytes
+     *            the datagram; One or more complete lines
+     * @param offset
+     *            offset of the datagram in bytes
+     * @param length
+     *            length of the datagram
+     * @return true; Datagrams that cannot be sent are dropped (and counted)
+     */
+    @Override
+    public boolean send(byte[] bytes, int offset, int length) {
+        checkState(!this.isClosed, "cannot write to closed object");
+
+        if (length == 0)
+            return true;
+
+        try {
+            if (this.channel.write(ByteBuffer.wrap(bytes, offset, length)) == 0) {
+                this.dropped.incrementAndGet();
+            }
+            else {
+                this.sent.incrementAndGet();
+                this.sentBytes.addAndGet(length);
+            }
+        }
+        catch (IOException e) {
+            // i.e. PortUnreachableException, (an ICMP response to an earlier datagram).
+            LOG.debug("Datagram to {}:{} dropped ({})", this.hostname, this.port, e.getMessage());
+            this.dropped.incrementAndGet();
+        }
+
+        return true;
+    }
+
+    @Override
+    public CarbonConnector connector() {
+        return this.protocol.connector(this);
+    }
+
+    /** @return the maximum datagram size */
+    @Override
+    public int getMaxBatchSize() {
+        return this.mtu;
+    }
+
+    @Override
+    public CarbonProtocol getProtocol() {
+        return this.protocol;
+    }
+
+    @Override
+    public String getHostname() {
+        return this.hostname;
+    }
+
+    @Override
+    public int getPort() {
+        return this.port;
+    }
+
+    /** @return the number of datagrams sent */
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    /** @return the number of bytes sent */
+    public long getSentBytes() {
+        return this.sentBytes.get();
+    }
+
+    /** @return the number of datagrams dropped */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.isClosed = true;
+        this.channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "UdpClient [hostname=" + hostname + ", port=" + port + ", protocol=" + protocol + ", mtu=" + mtu
+                + ", sent=" + sent + ", dropped=" + dropped + ", isClosed=" + isClosed + "]";
+    }
+
+}
@@ -0,0 +1,75 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import java.util.concurrent.Callable;
+
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.CarbonTransport;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.HistogramAggregator;
+
+import com.google.common.base.Optional;
+
+/** Periodically reports the histograms merged across instances, (see {@link HistogramAggregator}). */
+public class AggregateReporter implements Job {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AggregateReporter.class);
+
+    private HistogramAggregator aggregator;
+    private CarbonTransport carbon;
+    private String prefix;
+    private int interval;
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException {
+        try (final CarbonVisitor visitor = new CarbonVisitor(this.carbon.connector(), this.prefix, Optional.<Filter>absent())) {
+            LOG.info("Writing {} aggregate histograms", this.aggregator.size());
+
+            new TimedTask<Void>(Math.min(interval, 60)).submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    aggregator.report(visitor);
+                    return null;
+                }
+            });
+        }
+        catch (Throwable e) {
+            LOG.error("Unable to report aggregate histograms", e);
+        }
+    }
+
+    public void setAggregator(HistogramAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    public void setCarbon(CarbonTransport carbon) {
+        this.carbon = carbon;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+}
@@ -51,22 +51,27 @@ public class CollectionListener implements JobListener {
         Collector col = (Collector) ctx.getJobInstance();
         switch (col.getStatus()) {
         case SUCCESS:
-            this.stats.success(col.getInstanceName());
+            this.stats.success(col.getStatsName());
+            this.stats.roundTrips(col.getStatsName(), col.getRoundTrips());
+            if (col.getPipelines() != null)
+                this.stats.pipelines(col.getInstanceName(), col.getPipelines());
+            else
+                this.stats.carbonWrites(col.getStatsName(), col.getCarbonLines(), col.getCarbonBytes());
             break;
 
         case FAILURE:
-            this.stats.failure(col.getInstanceName());
+            this.stats.failure(col.getStatsName());
             break;
 
         case ERROR:
             try {
-                LOG.error("Collector for {} experienced unrecoverable error, descheduling...", col.getInstanceName());
+                LOG.error("Collector for {} experienced unrecoverable error, descheduling...", col.getStatsName());
                 this.scheduler.deleteJob(ctx.getJobDetail().getKey());
             }
             catch (SchedulerException e) {
                 LOG.error("Unexpected exception descheduling job", e);
             }
-            this.stats.failure(col.getInstanceName());
+            this.stats.failure(col.getStatsName());
             break;
 
         default:
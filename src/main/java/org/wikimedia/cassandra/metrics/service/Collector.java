@@ -26,11 +26,23 @@ import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.BatchVisitor;
 import org.wikimedia.cassandra.metrics.CarbonException;
+import org.wikimedia.cassandra.metrics.CarbonTransport;
 import org.wikimedia.cassandra.metrics.CarbonVisitor;
 import org.wikimedia.cassandra.metrics.Discovery;
+import org.wikimedia.cassandra.metrics.FetchPlan;
 import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.HistogramAggregator;
 import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.JmxConnectionManager;
+import org.wikimedia.cassandra.metrics.JmxSample;
+import org.wikimedia.cassandra.metrics.PrometheusExporter;
+import org.wikimedia.cassandra.metrics.SampleBatch;
+import org.wikimedia.cassandra.metrics.SampleVisitor;
+import org.wikimedia.cassandra.metrics.SeriesNames;
+import org.wikimedia.cassandra.metrics.FanOutVisitor;
+import org.wikimedia.cassandra.metrics.Tiers;
 
 import com.google.common.base.Optional;
 
@@ -41,64 +53,269 @@ public class Collector implements Job {
 
     private static final Logger LOG = LoggerFactory.getLogger(Collector.class);
 
+    /** Number of consecutive failures to (re)connect before collection is abandoned. */
+    static final int MAX_CONNECT_FAILURES = 3;
+
     private Discovery.Jvm jvm;
-    private String carbonHost;
-    private int carbonPort;
+    private JmxConnectionManager connection;
+    private JmxCollector collector;
+    private CarbonTransport carbon;
     private String instanceName;
     private Optional<Filter> filter;
+    private FetchPlan fetchPlan;
     private int interval;
+    private int jmxWorkers = 1;
+    private Tiers tiers = Tiers.none();
+    private Tiers.Tier tier;
+    private boolean windowed = false;
+    private HistogramAggregator.Contributor aggregator;
+    private FanOutVisitor pipelines;
+    private PrometheusExporter prometheus;
+    private SeriesNames seriesNames;
     private Status status = FAILURE;
+    private long roundTrips;
+    private long carbonLines;
+    private long carbonBytes;
 
     @Override
     public void execute(JobExecutionContext context) throws JobExecutionException {
         LOG.debug("Connection to {}", this.jvm.getJmxUrl());
 
-        try (final JmxCollector j = new JmxCollector(this.jvm.getJmxUrl())) {
-            LOG.debug("Connected to {}", this.jvm.getJmxUrl());
-            LOG.debug("Connecting to {}:{}", this.carbonHost, this.carbonPort);
-
-            try (final CarbonVisitor v = new CarbonVisitor(this.carbonHost, this.carbonPort, prefix(this.instanceName), filter)) {
-                LOG.debug("Collecting...");
-                new TimedTask<Void>(Math.min(interval, 60)).submit(new Callable<Void>() {
-                    @Override
-                    public Void call() throws Exception {
-                        j.getSamples(v);
-                        return null;
-                    }
-                });
-            }
-            // CarbonException can be thrown by the CarbonVisitor ctor, any other exception (including
-            // CarbonExceptions thrown during writes) will be encapsulated in a TimedTaskException.
-            catch (CarbonException e) {
-                LOG.error("Error connecting to carbon", e);
-                this.status = FAILURE;
-                return;
+        try {
+            this.connection.getConnection();
+        }
+        catch (IOException e) {
+            LOG.error("JMX collection error", e);
+
+            // Give up (and deschedule) once the instance has been unreachable for several attempts.
+            if (this.connection.isClosed() || this.connection.getFailures() >= MAX_CONNECT_FAILURES) {
+                this.status = ERROR;
+                if (this.pipelines != null)
+                    this.pipelines.close();
+                if (this.prometheus != null)
+                    this.prometheus.remove(getStatsName());
+                try {
+                    if (this.collector != null)
+                        this.collector.close();
+                    this.connection.close();
+                }
+                catch (IOException e1) {
+                    LOG.warn("Error closing JMX connection", e1);
+                }
             }
-            catch (TimedTaskException e) {
-                LOG.error("Error executing timed task", e);
+            else {
                 this.status = FAILURE;
-                return;
             }
+            return;
+        }
+
+        // The collector (and its pool of workers) is kept by the job, from one collection to the next; Without one,
+        // a collector is made for (and closed after) this collection alone.
+        if (this.collector != null) {
+            collect(this.collector);
+            return;
+        }
+        try (JmxCollector j = new JmxCollector(this.connection, this.jmxWorkers)) {
+            collect(j);
         }
         catch (IOException e) {
-            LOG.error("JMX collection error", e);
-            this.status = ERROR;
+            LOG.warn("Error closing JMX collector", e);
+        }
+    }
+
+    private void collect(final JmxCollector j) {
+        j.setFetchPlan(this.fetchPlan);
+        j.setTier(this.tiers, this.tier);
+        j.setWindowed(this.windowed);
+        j.setAggregator(this.aggregator);
+        LOG.debug("Connected to {}", this.jvm.getJmxUrl());
+
+        // Samples are exposed to Prometheus once (and if) collection completes, (whether or not carbon was written to).
+        final PrometheusExporter.Collection exposition = (this.prometheus != null)
+                ? this.prometheus.collection(getStatsName(), this.instanceName, prefix(this.instanceName), filter)
+                : null;
+
+        if (this.pipelines != null) {
+            collect(j, exposition);
             return;
         }
 
-        LOG.info("Collection of {} complete; Samples written to {}:{}", this.instanceName, this.carbonHost, this.carbonPort);
+        CarbonException carbonFailure = null;
+
+        try (final CarbonVisitor v = newVisitor()) {
+            final CarbonTee tee = new CarbonTee(v, exposition);
+            LOG.debug("Collecting...");
+            new TimedTask<Void>(Math.min(interval, 60)).submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    j.getBatches(tee);
+                    tee.flush();
+                    return null;
+                }
+            });
+            this.roundTrips = j.getRoundTrips();
+            LOG.debug("Collection of {} required {} JMX round trips", getStatsName(), this.roundTrips);
+            carbonFailure = tee.getFailure();
+            this.carbonLines = v.getLines();
+            this.carbonBytes = v.getBytes();
+            LOG.debug("Collection of {} wrote {} lines ({} bytes) to carbon", getStatsName(), this.carbonLines, this.carbonBytes);
+        }
+        // CarbonException can be thrown when closing the CarbonVisitor; Those thrown during writes are kept by the
+        // tee, and anything else is encapsulated in a TimedTaskException.
+        catch (CarbonException e) {
+            if (carbonFailure == null)
+                carbonFailure = e;
+        }
+        catch (TimedTaskException e) {
+            LOG.error("Error executing timed task", e);
+            // Assume the worst of the JMX connection, (timeouts included).
+            this.connection.invalidate();
+            this.status = FAILURE;
+            return;
+        }
+        catch (IOException e) {
+            LOG.error("Error closing carbon connection", e);
+        }
+
+        if (exposition != null)
+            exposition.publish();
+
+        if (carbonFailure != null) {
+            LOG.error("Error writing to carbon", carbonFailure);
+            this.status = FAILURE;
+            return;
+        }
+
+        LOG.info("Collection of {} complete; Samples queued for {}", getStatsName(), this.carbon);
         this.status = SUCCESS;
         return;
     }
 
+    /** Collects into the pipelines, (to be written once collection has moved on). */
+    private void collect(final JmxCollector j, final PrometheusExporter.Collection exposition) {
+        try {
+            LOG.debug("Collecting...");
+            new TimedTask<Void>(Math.min(interval, 60)).submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    j.getSamples(tee(pipelines, exposition));
+                    return null;
+                }
+            });
+            this.roundTrips = j.getRoundTrips();
+            LOG.debug("Collection of {} required {} JMX round trips", getStatsName(), this.roundTrips);
+        }
+        catch (TimedTaskException e) {
+            LOG.error("Error executing timed task", e);
+            this.connection.invalidate();
+            this.status = FAILURE;
+            return;
+        }
+
+        if (exposition != null)
+            exposition.publish();
+
+        LOG.info("Collection of {} complete; Samples queued ({} waiting to be written)", getStatsName(), this.pipelines.getDepth());
+        this.status = SUCCESS;
+    }
+
+    /** Create a visitor writing to carbon; With cached series names, if there are any. */
+    private CarbonVisitor newVisitor() {
+        if (this.seriesNames != null)
+            return new CarbonVisitor(this.carbon.connector(), this.seriesNames, this.filter);
+        return new CarbonVisitor(this.carbon.connector(), prefix(this.instanceName), this.filter);
+    }
+
+    /**
+     * Visits batches to carbon, and (a sample at a time) to an exposition, if there is one; The first carbon failure
+     * ends the writes to carbon, but not the collection, (so that the exposition is complete regardless).
+     */
+    private static class CarbonTee implements BatchVisitor {
+        private final CarbonVisitor carbon;
+        private final BatchVisitor exposition;
+        private volatile CarbonException failure;
+
+        private CarbonTee(CarbonVisitor carbon, PrometheusExporter.Collection exposition) {
+            this.carbon = carbon;
+            this.exposition = (exposition != null) ? SampleBatch.unbatched(exposition) : null;
+        }
+
+        @Override
+        public void visit(SampleBatch batch) {
+            if (this.exposition != null)
+                this.exposition.visit(batch);
+            if (this.failure != null)
+                return;
+            try {
+                this.carbon.visit(batch);
+            }
+            catch (CarbonException e) {
+                this.failure = e;
+            }
+        }
+
+        private void flush() {
+            if (this.failure != null)
+                return;
+            try {
+                this.carbon.flush();
+            }
+            catch (CarbonException e) {
+                this.failure = e;
+            }
+        }
+
+        /** @return the carbon failure, or null if there was none */
+        private CarbonException getFailure() {
+            return this.failure;
+        }
+    }
+
+    /** Returns a visitor of both, (or just the first, if the second is null). */
+    private static SampleVisitor tee(final SampleVisitor first, final SampleVisitor second) {
+        if (second == null)
+            return first;
+        return new SampleVisitor() {
+            @Override
+            public void visit(JmxSample sample) {
+                first.visit(sample);
+                second.visit(sample);
+            }
+        };
+    }
+
     public Status getStatus() {
         return this.status;
     }
 
+    public long getRoundTrips() {
+        return this.roundTrips;
+    }
+
+    /** @return the number of lines written to carbon by the collection */
+    public long getCarbonLines() {
+        return this.carbonLines;
+    }
+
+    /** @return the number of bytes written to carbon by the collection */
+    public long getCarbonBytes() {
+        return this.carbonBytes;
+    }
+
+    /** @return the pipelines samples are written through, or null if they are written directly */
+    public FanOutVisitor getPipelines() {
+        return this.pipelines;
+    }
+
     public String getInstanceName() {
         return this.instanceName;
     }
 
+    /** @return the name stats are recorded under; The instance name, qualified by tier (if not the default) */
+    public String getStatsName() {
+        return (this.tier != null) ? String.format("%s.%s", this.instanceName, this.tier.getName()) : this.instanceName;
+    }
+
     public Discovery.Jvm getJvm() {
         return this.jvm;
     }
@@ -107,12 +324,16 @@ public class Collector implements Job {
         this.jvm = jvm;
     }
     
-    public void setCarbonHost(String carbonHost) {
-        this.carbonHost = carbonHost;
+    public void setConnection(JmxConnectionManager connection) {
+        this.connection = connection;
     }
 
-    public void setCarbonPort(int carbonPort) {
-        this.carbonPort = carbonPort;
+    public void setCollector(JmxCollector collector) {
+        this.collector = collector;
+    }
+
+    public void setCarbon(CarbonTransport carbon) {
+        this.carbon = carbon;
     }
 
     public void setInstanceName(String instanceName) {
@@ -123,17 +344,54 @@ public class Collector implements Job {
         this.filter = (filter != null) ? Optional.of((Filter)filter) : Optional.<Filter>absent();
     }
 
+    public void setFetchPlan(FetchPlan fetchPlan) {
+        this.fetchPlan = fetchPlan;
+    }
+
     public void setInterval(int interval) {
         this.interval = interval;
     }
 
+    public void setTiers(Tiers tiers) {
+        this.tiers = tiers;
+    }
+
+    public void setTier(Tiers.Tier tier) {
+        this.tier = tier;
+    }
+
+    public void setJmxWorkers(int jmxWorkers) {
+        this.jmxWorkers = jmxWorkers;
+    }
+
+    public void setWindowed(boolean windowed) {
+        this.windowed = windowed;
+    }
+
+    public void setAggregator(HistogramAggregator.Contributor aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    public void setPipelines(FanOutVisitor pipelines) {
+        this.pipelines = pipelines;
+    }
+
+    public void setSeriesNames(SeriesNames seriesNames) {
+        this.seriesNames = seriesNames;
+    }
+
+    public void setPrometheus(PrometheusExporter prometheus) {
+        this.prometheus = prometheus;
+    }
+
     @Override
     public String toString() {
-        return "Collector [jvm=" + jvm + ", carbonHost=" + carbonHost + ", carbonPort=" + carbonPort + ", instanceName="
-                + instanceName + ", filter=" + filter + ", interval=" + interval + ", status=" + status + "]";
+        return "Collector [jvm=" + jvm + ", carbon=" + carbon + ", instanceName="
+                + instanceName + ", filter=" + filter + ", interval=" + interval + ", jmxWorkers=" + jmxWorkers + ", tier=" + tier + ", windowed=" + windowed + ", status=" + status
+                + "]";
     }
 
-    private static String prefix(String id) {
+    static String prefix(String id) {
         return String.format("%s.%s", Service.PREFIX_PREFIX, id);
     }
 
@@ -18,6 +18,9 @@ import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.quartz.Job;
@@ -34,22 +37,54 @@ import org.quartz.TriggerBuilder;
 import org.quartz.impl.matchers.GroupMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.CarbonTransport;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
 import org.wikimedia.cassandra.metrics.Discovery;
+import org.wikimedia.cassandra.metrics.FanOutVisitor;
+import org.wikimedia.cassandra.metrics.FetchPlan;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.HistogramAggregator;
 import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.JmxConnectionManager;
+import org.wikimedia.cassandra.metrics.Percentiles;
+import org.wikimedia.cassandra.metrics.PrometheusExporter;
+import org.wikimedia.cassandra.metrics.SamplePipeline;
+import org.wikimedia.cassandra.metrics.SampleRing;
+import org.wikimedia.cassandra.metrics.SampleSink;
+import org.wikimedia.cassandra.metrics.Selection;
+import org.wikimedia.cassandra.metrics.SeriesNames;
+import org.wikimedia.cassandra.metrics.Sink;
+import org.wikimedia.cassandra.metrics.Tiers;
 
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Maps;
 
 public class Discover implements Job {
 
     private static final Logger LOG = LoggerFactory.getLogger(Discover.class);
 
+    /** Name of the pipeline to carbon, (when there are no sinks). */
+    static final String CARBON = "carbon";
+
     private InstanceCache instances;
     private Scheduler scheduler;
     private int interval;
-    private String carbonHost;
-    private int carbonPort;
+    private CarbonTransport carbon;
     private Object filter;
+    private Selection selection = Selection.defaults();
+    private Tiers tiers = Tiers.none();
+    private Percentiles percentiles;
+    private int jmxWorkers = 1;
+    private boolean windowed = false;
+    private HistogramAggregator aggregator;
+    private int queueSize = 0;
+    private SampleRing.Policy queuePolicy = SampleRing.Policy.BLOCK;
+    private int queueWorkers = 1;
+    private List<Sink> sinks = Collections.emptyList();
+    private PrometheusExporter prometheus;
 
     @Override
     public void execute(JobExecutionContext context) throws JobExecutionException {
@@ -61,33 +96,51 @@ public class Discover implements Job {
                 LOG.info("Found instance {}", jvm.getCassandraInstance());
                 LOG.debug("Verifying JMX connectivity...");
 
-                try (JmxCollector c = new JmxCollector(jvm.getJmxUrl())) {
-                    // I don't know how this would happen, so it probably will.
-                    if (jobs.contains(jvm.getCassandraInstance())) {
-                        LOG.warn("Discovered instance with a matching job ({}); What gives?", jvm.getCassandraInstance());
-                        return;
+                JmxConnectionManager connection = this.instances.connection(jvm);
+                connection.getInventory().setSelection(this.selection);
+
+                try {
+                    connection.getConnection();
+
+                    // I don't know how this would happen, so it probably will; (i.e. the tier job of a restarted
+                    // instance, yet to fail and be descheduled). Checked before anything of the instance's is built.
+                    String existing = existingJob(jobs, jvm.getCassandraInstance());
+                    if (existing != null) {
+                        LOG.warn("Discovered instance with a matching job ({}); What gives?", existing);
+                        continue;
                     }
 
                     JobDataMap dataMap = new JobDataMap();
                     dataMap.put("jvm", jvm);
-                    dataMap.put("carbonHost", carbonHost);
-                    dataMap.put("carbonPort", carbonPort);
+                    dataMap.put("connection", connection);
+                    dataMap.put("carbon", carbon);
                     dataMap.put("instanceName", jvm.getCassandraInstance());
                     dataMap.put("filter", filter);
-                    dataMap.put("interval", interval);
-
-                    JobDetail job = JobBuilder.newJob(Collector.class)
-                            .withIdentity(jvm.getCassandraInstance(), "collectionGroup")
-                            .usingJobData(dataMap)
-                            .build();
+                    dataMap.put("fetchPlan", newFetchPlan(connection, jvm.getCassandraInstance()));
+                    SeriesNames names = newSeriesNames(connection, Collector.prefix(jvm.getCassandraInstance()));
+                    dataMap.put("seriesNames", names);
+                    dataMap.put("jmxWorkers", jmxWorkers);
+                    dataMap.put("tiers", tiers);
+                    dataMap.put("windowed", windowed);
+                    if (aggregator != null)
+                        dataMap.put("aggregator", newContributor(connection, jvm.getCassandraInstance()));
+                    if (prometheus != null)
+                        dataMap.put("prometheus", prometheus);
+                    if (!sinks.isEmpty() || queueSize > 0)
+                        dataMap.put("pipelines", newPipelines(connection, jvm.getCassandraInstance(), names));
 
                     LOG.debug("Scheduling recurring metrics collection for {}", jvm.getCassandraInstance());
 
-                    this.scheduler.scheduleJob(job, newTrigger(jvm.getCassandraInstance(), this.interval));
+                    // One job per cadence tier, each on its own schedule (but sharing the instance's connection).
+                    scheduleCollection(jvm, dataMap, null);
+                    for (Tiers.Tier tier : this.tiers.getTiers())
+                        scheduleCollection(jvm, dataMap, tier);
+
                     this.instances.add(jvm.getCassandraInstance(), jvm);
                 }
                 catch (IOException e) {
                     LOG.error("Unable to verify JMX connectivity; Skipping instance");
+                    this.instances.remove(jvm.getCassandraInstance());
                 }
             }
         }
@@ -97,6 +150,102 @@ public class Discover implements Job {
 
     }
 
+    /** Returns the name of an already scheduled job of the instance (of any tier), or null if there is none. */
+    private String existingJob(Collection<String> jobs, String instance) {
+        if (jobs.contains(jobName(instance, null)))
+            return jobName(instance, null);
+        for (Tiers.Tier tier : this.tiers.getTiers())
+            if (jobs.contains(jobName(instance, tier)))
+                return jobName(instance, tier);
+        return null;
+    }
+
+    /** Schedule recurring collection of a tier, (or of the default tier, if tier is null). */
+    private void scheduleCollection(Discovery.Jvm jvm, JobDataMap common, Tiers.Tier tier) throws SchedulerException {
+        String name = jobName(jvm.getCassandraInstance(), tier);
+        int interval = (tier != null) ? tier.getInterval() : this.interval;
+
+        // Each job keeps a collector of its own, (and with it, a pool of JMX workers) across collections.
+        JobDataMap dataMap = new JobDataMap(common);
+        dataMap.put("collector", new JmxCollector((JmxConnectionManager) common.get("connection"), this.jmxWorkers));
+        dataMap.put("interval", interval);
+        if (tier != null)
+            dataMap.put("tier", tier);
+
+        JobDetail job = JobBuilder.newJob(Collector.class)
+                .withIdentity(name, "collectionGroup")
+                .usingJobData(dataMap)
+                .build();
+
+        this.scheduler.scheduleJob(job, newTrigger(name, interval));
+    }
+
+    /** Create a fetch plan for the instance, kept in step with its MBean inventory. */
+    private FetchPlan newFetchPlan(JmxConnectionManager connection, String instanceName) {
+        Optional<Filter> filter = Optional.fromNullable((Filter) this.filter);
+
+        // Unless every sink writes what the global filter accepts, read everything (and let the sinks filter).
+        for (Sink sink : this.sinks)
+            if (!sink.getFilter().equals(filter) || !sink.getPrefix(instanceName).equals(Collector.prefix(instanceName)))
+                filter = Optional.absent();
+
+        FetchPlan plan = new FetchPlan(filter, Collector.prefix(instanceName), this.percentiles);
+        connection.getInventory().addListener(plan);
+        return plan;
+    }
+
+    /** Create a cache of the instance's series names (under a prefix), kept in step with its MBean inventory. */
+    private SeriesNames newSeriesNames(JmxConnectionManager connection, String prefix) {
+        SeriesNames names = new SeriesNames(prefix);
+        connection.getInventory().addListener(names);
+        return names;
+    }
+
+    /** Create an aggregate contributor for the instance, kept in step with its MBean inventory. */
+    private HistogramAggregator.Contributor newContributor(JmxConnectionManager connection, String instanceName) {
+        HistogramAggregator.Contributor contributor = this.aggregator.contributor(instanceName);
+        connection.getInventory().addListener(contributor);
+        return contributor;
+    }
+
+    /**
+     * Create (and start) pipelines for the instance's samples, shared by its tiers; One for each sink, or for carbon if
+     * there are none, (with the series names of the instance's default prefix).
+     */
+    private FanOutVisitor newPipelines(JmxConnectionManager connection, String instanceName, final SeriesNames names) {
+        Map<String, SamplePipeline> pipelines = Maps.newLinkedHashMap();
+
+        if (this.sinks.isEmpty()) {
+            final Optional<Filter> filter = Optional.fromNullable((Filter) this.filter);
+
+            SampleRing ring = new SampleRing(this.queueSize, this.queuePolicy);
+            pipelines.put(CARBON, new SamplePipeline(instanceName, ring, this.queueWorkers, new Supplier<SampleSink>() {
+                @Override
+                public SampleSink get() {
+                    return new CarbonVisitor(carbon.connector(), names, filter);
+                }
+            }));
+        }
+
+        for (final Sink sink : this.sinks) {
+            final String instance = instanceName;
+            final SeriesNames sinkNames = newSeriesNames(connection, sink.getPrefix(instanceName));
+            SampleRing ring = new SampleRing(sink.getQueueSize(), sink.getQueuePolicy());
+            String name = String.format("%s-%s", instanceName, sink.getName());
+            pipelines.put(sink.getName(), new SamplePipeline(name, ring, this.queueWorkers, new Supplier<SampleSink>() {
+                @Override
+                public SampleSink get() {
+                    return sink.open(instance, sinkNames);
+                }
+            }));
+        }
+
+        FanOutVisitor fanOut = new FanOutVisitor(pipelines);
+        fanOut.start();
+
+        return fanOut;
+    }
+
     /** Return a collection of job names from the collection group. */
     private Collection<String> getCollectionJobs() throws SchedulerException {
         Set<JobKey> jobKeys = this.scheduler.getJobKeys(GroupMatcher.jobGroupEquals("collectionGroup"));
@@ -121,34 +270,78 @@ public class Discover implements Job {
         this.interval = interval;
     }
 
-    public void setCarbonHost(String carbonHost) {
-        this.carbonHost = carbonHost;
-    }
-
-    public void setCarbonPort(int carbonPort) {
-        this.carbonPort = carbonPort;
+    public void setCarbon(CarbonTransport carbon) {
+        this.carbon = carbon;
     }
 
     public void setFilter(Object filter) {
         this.filter = filter;
     }
 
+    public void setSelection(Selection selection) {
+        this.selection = selection;
+    }
+
+    public void setTiers(Tiers tiers) {
+        this.tiers = tiers;
+    }
+
+    public void setPercentiles(Percentiles percentiles) {
+        this.percentiles = percentiles;
+    }
+
+    public void setJmxWorkers(int jmxWorkers) {
+        this.jmxWorkers = jmxWorkers;
+    }
+
+    public void setWindowed(boolean windowed) {
+        this.windowed = windowed;
+    }
+
+    public void setAggregator(HistogramAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    public void setSinks(List<Sink> sinks) {
+        this.sinks = sinks;
+    }
+
+    public void setPrometheus(PrometheusExporter prometheus) {
+        this.prometheus = prometheus;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setQueuePolicy(SampleRing.Policy queuePolicy) {
+        this.queuePolicy = queuePolicy;
+    }
+
+    public void setQueueWorkers(int queueWorkers) {
+        this.queueWorkers = queueWorkers;
+    }
+
     @Override
     public String toString() {
-        return "Discover [instances=" + instances + ", scheduler=" + scheduler + ", interval=" + interval + ", carbonHost="
-                + carbonHost + ", carbonPort=" + carbonPort + ", filter=" + filter + "]";
+        return "Discover [instances=" + instances + ", scheduler=" + scheduler + ", interval=" + interval + ", carbon="
+                + carbon + ", filter=" + filter + ", selection=" + selection + ", tiers=" + tiers + ", percentiles=" + percentiles + ", jmxWorkers=" + jmxWorkers + ", windowed=" + windowed + ", aggregator=" + aggregator + ", sinks=" + sinks + ", prometheus=" + prometheus + ", queueSize=" + queueSize + ", queuePolicy=" + queuePolicy + ", queueWorkers=" + queueWorkers + "]";
+    }
+
+    private static String jobName(String instance, Tiers.Tier tier) {
+        return (tier != null) ? String.format("%s.%s", instance, tier.getName()) : instance;
     }
 
-    private static Trigger newTrigger(String instance, int interval) {
+    private static Trigger newTrigger(String name, int interval) {
         return TriggerBuilder.newTrigger()
-                .withIdentity(triggerName(instance), "collectionGroup")
+                .withIdentity(triggerName(name), "collectionGroup")
                 .startNow()
                 .withSchedule(simpleSchedule().withIntervalInSeconds(interval).repeatForever())
                 .build();
     }
 
-    private static String triggerName(String instance) {
-        return String.format("%s_Trigger", instance);
+    private static String triggerName(String name) {
+        return String.format("%s_Trigger", name);
     }
 
 }
@@ -0,0 +1,72 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.Filter;
+
+/**
+ * Periodically checks the filter configuration for changes, and reloads the filter if it has changed, (see
+ * {@link Filter#reload(org.wikimedia.cassandra.metrics.FilterConfig)}). A configuration that fails to load is logged, and the current filter kept.
+ */
+public class FilterReloader implements Job {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilterReloader.class);
+
+    private Filter filter;
+    private String path;
+    private AtomicLong lastModified;
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException {
+        File file = new File(this.path);
+        long modified = file.lastModified();
+
+        // Missing (i.e. mid-replacement), or unchanged.
+        if (modified == 0 || modified == this.lastModified.get())
+            return;
+
+        // (Recorded first, so that a bad configuration is reported once, rather than on every check.)
+        this.lastModified.set(modified);
+
+        try {
+            this.filter.reload(Service.readFilterConfig(file));
+            LOG.info("Reloaded {} from {}", this.filter, file);
+        }
+        catch (Exception e) {
+            LOG.error("Unable to reload filter from {}; Keeping the current one", file, e);
+        }
+    }
+
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public void setLastModified(AtomicLong lastModified) {
+        this.lastModified = lastModified;
+    }
+
+}
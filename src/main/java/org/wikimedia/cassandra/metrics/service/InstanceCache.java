@@ -22,13 +22,19 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.wikimedia.cassandra.metrics.Discovery;
+import org.wikimedia.cassandra.metrics.JmxConnectionManager;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 class InstanceCache {
+    private static final Logger LOG = LoggerFactory.getLogger(InstanceCache.class);
+
     private Map<String, Discovery.Jvm> cache = new HashMap<>();
+    private Map<String, JmxConnectionManager> connections = new HashMap<>();
 
     Collection<Discovery.Jvm> discover() throws IOException {
         Map<String, Discovery.Jvm> discovered = new Discovery().getJvms();
@@ -49,8 +55,38 @@ class InstanceCache {
         this.cache.put(instanceName, vm);
     }
 
-    void remove(String instanceName) {
+    synchronized void remove(String instanceName) {
         this.cache.remove(instanceName);
+        close(this.connections.remove(instanceName));
+    }
+
+    /**
+     * Returns the connection manager for an instance, creating one if necessary. Connections are shared by the
+     * discovery and collection jobs, and persist across collection cycles.
+     */
+    synchronized JmxConnectionManager connection(Discovery.Jvm vm) {
+        String instanceName = vm.getCassandraInstance();
+        JmxConnectionManager connection = this.connections.get(instanceName);
+
+        // A different URL means the instance was restarted; Replace the stale connection.
+        if (connection == null || !connection.getJmxUrl().equals(vm.getJmxUrl())) {
+            close(connection);
+            connection = new JmxConnectionManager(vm.getJmxUrl());
+            this.connections.put(instanceName, connection);
+        }
+
+        return connection;
+    }
+
+    private static void close(JmxConnectionManager connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+            LOG.warn("Error closing JMX connection", e);
+        }
     }
 
 }
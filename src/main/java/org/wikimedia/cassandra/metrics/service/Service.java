@@ -24,6 +24,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 
@@ -35,8 +42,29 @@ import org.quartz.Trigger;
 import org.quartz.impl.StdSchedulerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.CarbonClient;
+import org.wikimedia.cassandra.metrics.CarbonDestination;
+import org.wikimedia.cassandra.metrics.CarbonProtocol;
+import org.wikimedia.cassandra.metrics.CarbonSink;
+import org.wikimedia.cassandra.metrics.CarbonTransport;
+import org.wikimedia.cassandra.metrics.ConsistentHashRing;
+import org.wikimedia.cassandra.metrics.ConsistentHashTransport;
+import org.wikimedia.cassandra.metrics.FileSink;
 import org.wikimedia.cassandra.metrics.Filter;
 import org.wikimedia.cassandra.metrics.FilterConfig;
+import org.wikimedia.cassandra.metrics.HistogramAggregator;
+import org.wikimedia.cassandra.metrics.InfluxSink;
+import org.wikimedia.cassandra.metrics.Percentiles;
+import org.wikimedia.cassandra.metrics.PrometheusExporter;
+import org.wikimedia.cassandra.metrics.RemoteWriteSink;
+import org.wikimedia.cassandra.metrics.SampleRing;
+import org.wikimedia.cassandra.metrics.Selection;
+import org.wikimedia.cassandra.metrics.SelectionConfig;
+import org.wikimedia.cassandra.metrics.Sink;
+import org.wikimedia.cassandra.metrics.SinksConfig;
+import org.wikimedia.cassandra.metrics.Spool;
+import org.wikimedia.cassandra.metrics.Tiers;
+import org.wikimedia.cassandra.metrics.UdpClient;
 import org.wikimedia.cassandra.metrics.Utils;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
@@ -46,6 +74,10 @@ import com.github.rvesse.airline.HelpOption;
 import com.github.rvesse.airline.Option;
 import com.github.rvesse.airline.SingleCommand;
 import com.github.rvesse.airline.parser.ParseException;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 @Command(name = "cmcd", description = "cassandra-metrics-collector daemon")
 public class Service {
@@ -54,14 +86,56 @@ public class Service {
 
     private static final Logger LOG = LoggerFactory.getLogger(Service.class);
 
+    /** Sink names become part of metric names. */
+    private static final Pattern SINK_NAME = Pattern.compile("[\\w-]+");
+
+    /** Percentiles reported of merged histograms, when none are otherwise specified. */
+    private static final Percentiles AGGREGATE_PERCENTILES = new Percentiles(0.5, 0.75, 0.95, 0.98, 0.99);
+
     @Inject
     private HelpOption help;
 
-    @Option(name = { "-H", "--carbon-host", "--graphite-host" }, description = "Carbon hostname (default: localhost)", title = "HOSTNAME")
+    @Option(name = { "-H", "--carbon-host", "--graphite-host" }, description = "Carbon hostname, or a comma-separated list of host[:port[:instance]] to shard across by consistent hashing (default: localhost)", title = "HOSTNAME")
     private String carbonHost = "localhost";
 
-    @Option(name = { "-p", "--carbon-port", "--graphite-port" }, description = "Carbon port number (default: 2003)", title = "PORT")
-    private int carbonPort = 2003;
+    @Option(name = { "-p", "--carbon-port", "--graphite-port" }, description = "Carbon port number (default: 2003, 2004 for pickle, or 8125 for statsd)", title = "PORT")
+    private Integer carbonPort = null;
+
+    @Option(name = { "--carbon-protocol" }, description = "Carbon protocol, plaintext, pickle, or statsd (default: plaintext)", title = "PROTOCOL")
+    private String carbonProtocol = "plaintext";
+
+    @Option(name = { "--carbon-transport" }, description = "Carbon transport, tcp or udp (default: tcp)", title = "TRANSPORT")
+    private String carbonTransport = "tcp";
+
+    @Option(name = { "--spool-dir" }, description = "Directory to spool samples to while carbon is unreachable (tcp only)", title = "DIRECTORY")
+    private String spoolDir = null;
+
+    @Option(name = { "--spool-max-bytes" }, description = "Maximum size of the spool, in bytes (default: 1073741824)", title = "BYTES")
+    private long spoolMaxBytes = 1024 * 1024 * 1024;
+
+    @Option(name = { "--spool-replay-rate" }, description = "Maximum rate of replay from the spool, in bytes per second (default: 1048576)", title = "BYTES")
+    private long spoolReplayRate = 1024 * 1024;
+
+    @Option(name = { "--udp-mtu" }, description = "Maximum size of a UDP datagram, in bytes (default: 1432)", title = "BYTES")
+    private int udpMtu = UdpClient.DEFAULT_MTU;
+
+    @Option(name = { "--carbon-max-outstanding" }, description = "Maximum bytes queued for carbon before samples are dropped (default: 16777216)", title = "BYTES")
+    private long carbonMaxOutstanding = CarbonClient.DEFAULT_MAX_OUTSTANDING;
+
+    @Option(name = { "--queue-size" }, description = "Write samples from a queue of this many (per instance), rather than as they are collected (default: 0, no queue)", title = "SAMPLES")
+    private int queueSize = 0;
+
+    @Option(name = { "--queue-policy" }, description = "What to do when the queue is full, block, drop_oldest, or drop_newest (default: block)", title = "POLICY")
+    private String queuePolicy = "block";
+
+    @Option(name = { "--queue-workers" }, description = "Number of threads writing from each queue (default: 1)", title = "WORKERS")
+    private int queueWorkers = 1;
+
+    @Option(name = { "--sinks-config" }, description = "Sink configuration; Write samples to these (rather than to --carbon-host)", title = "YAML")
+    private String sinksConfig = null;
+
+    @Option(name = { "--prometheus-port" }, description = "Serve the most recent samples to Prometheus on this port, (at /metrics)", title = "PORT")
+    private Integer prometheusPort = null;
 
     @Option(name = { "-i", "--interval" }, description = "Collection interval in seconds (default: 60 seconds)", title = "INTERVAL")
     private int interval = 60;
@@ -69,22 +143,201 @@ public class Service {
     @Option(name = { "-di", "--discovery-interval" }, description = "Interval (in seconds) to perform (re)discovery (default: 300 seconds)", title = "INTERVAL")
     private int discoverInterval = 300;
 
-    @Option(name = {"-f", "--filter-config"}, description = "Metric filter configuration", title = "YAML")
+    @Option(name = {"-f", "--filter-config"}, description = "Metric filter configuration; Reloaded when it changes", title = "YAML")
     private String filterConfig = null;
 
+    @Option(name = {"-s", "--selection-config"}, description = "MBean selection configuration", title = "YAML")
+    private String selectionConfig = null;
+
+    @Option(name = { "-P", "--percentiles" }, description = "Percentiles to compute from timer and histogram buckets, (comma-separated, i.e. 0.5,0.99,0.999)", title = "PERCENTILES")
+    private String percentiles = null;
+
+    @Option(name = { "--windowed" }, description = "Compute histogram percentiles over each collection interval, rather than since startup")
+    private boolean windowed = false;
+
+    @Option(name = { "-a", "--aggregate-prefix" }, description = "Merge histograms across instances, reporting them with this prefix (i.e. cassandra.<hostname>)", title = "PREFIX")
+    private String aggregatePrefix = null;
+
+    @Option(name = { "-w", "--jmx-workers" }, description = "Maximum number of concurrent JMX connections per instance (default: 1)", title = "WORKERS")
+    private int jmxWorkers = 1;
+
     private InstanceCache state = new InstanceCache();
 
     Filter getFilter() throws FileNotFoundException, IOException {
-        if (this.filterConfig != null) {
-            try (InputStream f = new FileInputStream(new File(this.filterConfig))) {
-                Yaml yaml = new Yaml(new Constructor(FilterConfig.class));
-                FilterConfig config = (FilterConfig)yaml.load(f);
-                return new Filter(config);
+        if (this.filterConfig != null)
+            return new Filter(readFilterConfig(new File(this.filterConfig)));
+        return null;
+    }
+
+    /** Read a filter configuration, (see {@link FilterReloader}). */
+    static FilterConfig readFilterConfig(File file) throws FileNotFoundException, IOException {
+        try (InputStream f = new FileInputStream(file)) {
+            Yaml yaml = new Yaml(new Constructor(FilterConfig.class));
+            FilterConfig config = (FilterConfig)yaml.load(f);
+            if (config == null)
+                throw new IOException(String.format("empty filter configuration: %s", file));
+            return config;
+        }
+    }
+
+    SelectionConfig getSelectionConfig() throws FileNotFoundException, IOException {
+        if (this.selectionConfig != null) {
+            try (InputStream f = new FileInputStream(new File(this.selectionConfig))) {
+                Yaml yaml = new Yaml(new Constructor(SelectionConfig.class));
+                return (SelectionConfig)yaml.load(f);
             }
         }
         return null;
     }
 
+    CarbonTransport getCarbonTransport() throws IOException {
+        return newTransport(carbonHost, carbonPort, carbonProtocol, carbonTransport, (spoolDir != null) ? new File(spoolDir) : null);
+    }
+
+    /**
+     * Create a transport to carbon; The port is the protocol's default if null, and spool is optional (tcp only). Host
+     * is either a hostname, or a comma-separated list of destinations (host[:port[:instance]], as carbon-relay's
+     * DESTINATIONS) to shard across by consistent hashing; Each destination spools to a subdirectory of its own.
+     */
+    CarbonTransport newTransport(String host, Integer port, String protocolName, String transport, File spool) throws IOException {
+        List<String> destinations = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(host);
+        if (destinations.isEmpty())
+            throw new IllegalArgumentException(String.format("invalid carbon host: %s", host));
+
+        if (destinations.size() == 1 && !host.contains(":"))
+            return newDestination(host.trim(), port, protocolName, transport, spool);
+
+        ConsistentHashRing<CarbonDestination> ring = new ConsistentHashRing<>();
+
+        for (String destination : destinations) {
+            List<String> parts = Splitter.on(':').trimResults().splitToList(destination);
+            if (parts.size() > 3 || parts.get(0).isEmpty())
+                throw new IllegalArgumentException(String.format("invalid carbon destination: %s", destination));
+
+            Integer destinationPort = (parts.size() > 1 && !parts.get(1).isEmpty()) ? Integer.valueOf(parts.get(1)) : port;
+            String instance = (parts.size() > 2 && !parts.get(2).isEmpty()) ? parts.get(2) : null;
+            File destinationSpool = (spool != null) ? new File(spool, destination.replace(':', '_')) : null;
+
+            ring.add(newDestination(parts.get(0), destinationPort, protocolName, transport, destinationSpool), parts.get(0), instance);
+        }
+
+        return (destinations.size() > 1) ? new ConsistentHashTransport(ring) : ring.getNodes().get(0);
+    }
+
+    private CarbonDestination newDestination(String host, Integer port, String protocolName, String transport, File spool) throws IOException {
+        CarbonProtocol protocol = CarbonProtocol.parse(protocolName);
+        if (port == null)
+            port = protocol.getDefaultPort();
+
+        switch (transport.trim().toLowerCase()) {
+            case "tcp":
+                CarbonClient client = new CarbonClient(host, port, protocol, carbonMaxOutstanding);
+                if (spool != null)
+                    client.setSpool(new Spool(spool, spoolMaxBytes), spoolReplayRate);
+                return client;
+            case "udp":
+                return new UdpClient(host, port, protocol, udpMtu);
+            default:
+                throw new IllegalArgumentException(String.format("unknown carbon transport: %s", transport));
+        }
+    }
+
+    /** Create the sinks of the sink configuration, (unstarted); Empty if there is none. */
+    List<Sink> getSinks(Filter filter) throws FileNotFoundException, IOException {
+        if (this.sinksConfig == null)
+            return Collections.emptyList();
+
+        SinksConfig config;
+        try (InputStream f = new FileInputStream(new File(this.sinksConfig))) {
+            Yaml yaml = new Yaml(new Constructor(SinksConfig.class));
+            config = (SinksConfig)yaml.load(f);
+        }
+
+        List<Sink> sinks = Lists.newArrayList();
+        Set<String> names = Sets.newHashSet();
+
+        for (SinksConfig.Sink sink : config.getSinks()) {
+            String name = sink.getName();
+            if (name == null || !SINK_NAME.matcher(name).matches())
+                throw new IllegalArgumentException(String.format("invalid sink name: %s", name));
+            if (!names.add(name))
+                throw new IllegalArgumentException(String.format("duplicate sink name: %s", name));
+
+            String prefix = (sink.getPrefix() != null) ? sink.getPrefix() : PREFIX_PREFIX;
+            Optional<Filter> sinkFilter = Optional.fromNullable((sink.getFilter() != null) ? new Filter(sink.getFilter()) : filter);
+            int size = (sink.getQueueSize() != null) ? sink.getQueueSize() : (queueSize > 0) ? queueSize : Sink.DEFAULT_QUEUE_SIZE;
+            SampleRing.Policy policy = SampleRing.Policy.parse((sink.getQueuePolicy() != null) ? sink.getQueuePolicy() : "drop_oldest");
+
+            switch (sink.getType().trim().toLowerCase()) {
+                case "carbon":
+                    CarbonTransport transport = newTransport(
+                            (sink.getHost() != null) ? sink.getHost() : carbonHost,
+                            sink.getPort(),
+                            (sink.getProtocol() != null) ? sink.getProtocol() : carbonProtocol,
+                            (sink.getTransport() != null) ? sink.getTransport() : carbonTransport,
+                            (spoolDir != null) ? new File(spoolDir, name) : null);
+                    sinks.add(new CarbonSink(name, transport, prefix, sinkFilter, size, policy));
+                    break;
+                case "file":
+                    if (sink.getPath() == null)
+                        throw new IllegalArgumentException(String.format("file sink %s has no path", name));
+                    sinks.add(new FileSink(name, new File(sink.getPath()), prefix, sinkFilter, size, policy));
+                    break;
+                case "remote_write":
+                    if (sink.getUrl() == null)
+                        throw new IllegalArgumentException(String.format("remote_write sink %s has no url", name));
+                    sinks.add(new RemoteWriteSink(
+                            name,
+                            new URL(sink.getUrl()),
+                            (sink.getBatchSize() != null) ? sink.getBatchSize() : RemoteWriteSink.DEFAULT_BATCH_SIZE,
+                            (sink.getShards() != null) ? sink.getShards() : RemoteWriteSink.DEFAULT_SHARDS,
+                            (sink.getMaxRetries() != null) ? sink.getMaxRetries() : RemoteWriteSink.DEFAULT_MAX_RETRIES,
+                            prefix,
+                            sinkFilter,
+                            size,
+                            policy));
+                    break;
+                case "influx":
+                    if (sink.getUrl() == null)
+                        throw new IllegalArgumentException(String.format("influx sink %s has no url", name));
+                    sinks.add(new InfluxSink(
+                            name,
+                            new URL(sink.getUrl()),
+                            (sink.getFlushSize() != null) ? sink.getFlushSize() : InfluxSink.DEFAULT_FLUSH_SIZE,
+                            (sink.getFlushInterval() != null) ? sink.getFlushInterval() : InfluxSink.DEFAULT_FLUSH_INTERVAL,
+                            prefix,
+                            sinkFilter,
+                            size,
+                            policy));
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("unknown sink type: %s", sink.getType()));
+            }
+        }
+
+        // A sink that blocks collection would hold up every other sink along with it.
+        if (sinks.size() > 1) {
+            for (Sink sink : sinks)
+                if (sink.getQueuePolicy() == SampleRing.Policy.BLOCK)
+                    throw new IllegalArgumentException(String.format("sink %s: the block policy requires a single sink", sink.getName()));
+        }
+
+        return sinks;
+    }
+
+    HistogramAggregator getAggregator(Tiers tiers) {
+        if (this.aggregatePrefix == null)
+            return null;
+
+        // Contributions are refreshed as often as the least frequently collected tier.
+        int maxInterval = interval;
+        for (Tiers.Tier tier : tiers.getTiers())
+            maxInterval = Math.max(maxInterval, tier.getInterval());
+
+        Percentiles p = (this.percentiles != null) ? Percentiles.parse(this.percentiles) : AGGREGATE_PERCENTILES;
+        return new HistogramAggregator(p, windowed, maxInterval * 3 * 1000L);
+    }
+
     void execute() throws SchedulerException, IOException {
 
         // Print a synopsis to STDOUT (if requested), and exit.
@@ -96,6 +349,45 @@ public class Service {
 
         Scheduler scheduler = StdSchedulerFactory.getDefaultScheduler();
 
+        // A single, long-lived connection to carbon, shared by every job.
+        final CarbonTransport carbon = getCarbonTransport();
+        carbon.start();
+
+        // Additional (or alternative) destinations for the samples of each instance.
+        long filterModified = (filterConfig != null) ? new File(filterConfig).lastModified() : 0;
+        Filter filter = getFilter();
+        final List<Sink> sinks = getSinks(filter);
+        for (Sink sink : sinks)
+            sink.start();
+
+        // Scraped, rather than written to.
+        PrometheusExporter prometheus = null;
+        if (prometheusPort != null) {
+            prometheus = new PrometheusExporter(new InetSocketAddress(prometheusPort));
+            prometheus.start();
+        }
+
+        // Outstanding batches are written (or spooled) on exit.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    carbon.close();
+                }
+                catch (IOException e) {
+                    LOG.warn("Error closing carbon connection", e);
+                }
+                for (Sink sink : sinks) {
+                    try {
+                        sink.close();
+                    }
+                    catch (IOException e) {
+                        LOG.warn("Error closing sink {}", sink.getName(), e);
+                    }
+                }
+            }
+        });
+
         // Triggers periodic (re)discovery
         Trigger discoveryTrigger = newTrigger()
                 .withIdentity("discoveryTrigger", "discoveryGroup")
@@ -118,9 +410,24 @@ public class Service {
         discoverMap.put("instances", state);
         discoverMap.put("scheduler", scheduler);
         discoverMap.put("interval", interval);
-        discoverMap.put("carbonHost", carbonHost);
-        discoverMap.put("carbonPort", carbonPort);
-        discoverMap.put("filter", getFilter());
+        discoverMap.put("carbon", carbon);
+        discoverMap.put("filter", filter);
+        discoverMap.put("sinks", sinks);
+        if (prometheus != null)
+            discoverMap.put("prometheus", prometheus);
+        SelectionConfig selection = getSelectionConfig();
+        discoverMap.put("selection", (selection != null) ? new Selection(selection) : Selection.defaults());
+        discoverMap.put("tiers", (selection != null) ? Tiers.of(selection.getTiers()) : Tiers.none());
+        discoverMap.put("jmxWorkers", jmxWorkers);
+        discoverMap.put("windowed", windowed);
+        discoverMap.put("queueSize", queueSize);
+        discoverMap.put("queuePolicy", SampleRing.Policy.parse(queuePolicy));
+        discoverMap.put("queueWorkers", queueWorkers);
+        if (percentiles != null)
+            discoverMap.put("percentiles", Percentiles.parse(percentiles));
+        HistogramAggregator aggregator = getAggregator((Tiers) discoverMap.get("tiers"));
+        if (aggregator != null)
+            discoverMap.put("aggregator", aggregator);
 
         JobDetail discoverJob = newJob(Discover.class)
                 .withIdentity("discoveryJob", "discoveryGroup")
@@ -137,9 +444,11 @@ public class Service {
 
         // The stats job periodically reports internal stats to Graphite.
         JobDataMap statsMap = new JobDataMap();
-        statsMap.put("carbonHost", carbonHost);
-        statsMap.put("carbonPort", carbonPort);
+        statsMap.put("carbon", carbon);
         statsMap.put("stats", stats);
+        statsMap.put("sinks", sinks);
+        if (prometheus != null)
+            statsMap.put("prometheus", prometheus);
         statsMap.put("interval", interval);
 
         JobDetail statsJob = newJob(StatsReporter.class)
@@ -149,6 +458,49 @@ public class Service {
 
         scheduler.scheduleJob(statsJob, reportTrigger);
 
+        // The filter job reloads the filter configuration whenever it changes, (without restarting).
+        if (filter != null) {
+            JobDataMap filterMap = new JobDataMap();
+            filterMap.put("filter", filter);
+            filterMap.put("path", filterConfig);
+            filterMap.put("lastModified", new AtomicLong(filterModified));
+
+            JobDetail filterJob = newJob(FilterReloader.class)
+                    .withIdentity("filterJob", "reportGroup")
+                    .usingJobData(filterMap)
+                    .build();
+
+            Trigger filterTrigger = newTrigger()
+                    .withIdentity("filterTrigger", "reportGroup")
+                    .startNow()
+                    .withSchedule(simpleSchedule().withIntervalInSeconds(interval).repeatForever())
+                    .build();
+
+            scheduler.scheduleJob(filterJob, filterTrigger);
+        }
+
+        // The aggregate job periodically reports histograms merged across instances.
+        if (aggregator != null) {
+            JobDataMap aggregateMap = new JobDataMap();
+            aggregateMap.put("carbon", carbon);
+            aggregateMap.put("aggregator", aggregator);
+            aggregateMap.put("prefix", aggregatePrefix);
+            aggregateMap.put("interval", interval);
+
+            JobDetail aggregateJob = newJob(AggregateReporter.class)
+                    .withIdentity("aggregateJob", "reportGroup")
+                    .usingJobData(aggregateMap)
+                    .build();
+
+            Trigger aggregateTrigger = newTrigger()
+                    .withIdentity("aggregateTrigger", "reportGroup")
+                    .startNow()
+                    .withSchedule(simpleSchedule().withIntervalInSeconds(interval).repeatForever())
+                    .build();
+
+            scheduler.scheduleJob(aggregateJob, aggregateTrigger);
+        }
+
         scheduler.start();
 
     }
@@ -18,6 +18,8 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 
+import org.wikimedia.cassandra.metrics.FanOutVisitor;
+
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -25,6 +27,10 @@ class Stats {
 
     private final Map<String, Integer> successes = Maps.newHashMap();
     private final Map<String, Integer> failures = Maps.newHashMap();
+    private final Map<String, Long> roundTrips = Maps.newHashMap();
+    private final Map<String, Long> carbonLines = Maps.newHashMap();
+    private final Map<String, Long> carbonBytes = Maps.newHashMap();
+    private final Map<String, FanOutVisitor> pipelines = Maps.newHashMap();
 
     Collection<String> getNames() {
         Set<String> names = Sets.newHashSet(this.successes.keySet());
@@ -40,6 +46,26 @@ class Stats {
         return get(name, this.failures);
     }
 
+    long getRoundTrips(String name) {
+        Long count = this.roundTrips.get(name);
+        return count == null ? 0 : count;
+    }
+
+    long getCarbonLines(String name) {
+        Long count = this.carbonLines.get(name);
+        return count == null ? 0 : count;
+    }
+
+    long getCarbonBytes(String name) {
+        Long count = this.carbonBytes.get(name);
+        return count == null ? 0 : count;
+    }
+
+    /** @return the pipelines of each instance, (by instance name) */
+    synchronized Map<String, FanOutVisitor> getPipelines() {
+        return Maps.newHashMap(this.pipelines);
+    }
+
     synchronized void success(String name) {
         increment(name, this.successes);
     }
@@ -48,6 +74,22 @@ class Stats {
         increment(name, this.failures);
     }
 
+    /** Record the number of JMX round trips made by the most recent collection. */
+    synchronized void roundTrips(String name, long count) {
+        this.roundTrips.put(name, count);
+    }
+
+    /** Record the number of lines (and bytes) written to carbon by the most recent collection. */
+    synchronized void carbonWrites(String name, long lines, long bytes) {
+        this.carbonLines.put(name, lines);
+        this.carbonBytes.put(name, bytes);
+    }
+
+    /** Record the pipelines an instance's samples are written through. */
+    synchronized void pipelines(String name, FanOutVisitor pipelines) {
+        this.pipelines.put(name, pipelines);
+    }
+
     private Integer get(String name, Map<String, Integer> map) {
         Integer count = map.get(name);
         return count == null ? 0 : count; 
@@ -14,6 +14,10 @@
  */
 package org.wikimedia.cassandra.metrics.service;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import org.quartz.Job;
@@ -21,25 +25,82 @@ import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.CarbonClient;
 import org.wikimedia.cassandra.metrics.CarbonConnector;
+import org.wikimedia.cassandra.metrics.CarbonDestination;
+import org.wikimedia.cassandra.metrics.CarbonException;
+import org.wikimedia.cassandra.metrics.CarbonSink;
+import org.wikimedia.cassandra.metrics.CarbonTransport;
+import org.wikimedia.cassandra.metrics.ConsistentHashTransport;
+import org.wikimedia.cassandra.metrics.FanOutVisitor;
+import org.wikimedia.cassandra.metrics.InfluxSink;
+import org.wikimedia.cassandra.metrics.PrometheusExporter;
+import org.wikimedia.cassandra.metrics.RemoteWriteSink;
+import org.wikimedia.cassandra.metrics.SamplePipeline;
+import org.wikimedia.cassandra.metrics.Sink;
+import org.wikimedia.cassandra.metrics.Spool;
+import org.wikimedia.cassandra.metrics.UdpClient;
 
 public class StatsReporter implements Job {
 
     private static final String SUCCESS = "cmcd.instances.%s.success";
     private static final String FAILURE = "cmcd.instances.%s.failure";
+    private static final String ROUND_TRIPS = "cmcd.instances.%s.jmx_round_trips";
+    private static final String CARBON_LINES = "cmcd.instances.%s.carbon_lines";
+    private static final String CARBON_BYTES = "cmcd.instances.%s.carbon_bytes";
+    private static final String QUEUE_DEPTH = "cmcd.instances.%s.queue.depth";
+    private static final String QUEUE_DROPPED = "cmcd.instances.%s.queue.dropped";
+    private static final String QUEUE_EMITTED = "cmcd.instances.%s.queue.emitted";
+    private static final String QUEUE_ERRORS = "cmcd.instances.%s.queue.errors";
+    private static final String SINK_DEPTH = "cmcd.sinks.%s.queue.depth";
+    private static final String SINK_DROPPED = "cmcd.sinks.%s.queue.dropped";
+    private static final String SINK_EMITTED = "cmcd.sinks.%s.queue.emitted";
+    private static final String SINK_ERRORS = "cmcd.sinks.%s.queue.errors";
+
+    private static final String REMOTE_WRITE_SENT = "cmcd.sinks.%s.remote_write.sent_samples";
+    private static final String REMOTE_WRITE_SENT_BYTES = "cmcd.sinks.%s.remote_write.sent_bytes";
+    private static final String REMOTE_WRITE_DROPPED = "cmcd.sinks.%s.remote_write.dropped_samples";
+    private static final String REMOTE_WRITE_FAILED = "cmcd.sinks.%s.remote_write.failed_batches";
+    private static final String REMOTE_WRITE_RETRIES = "cmcd.sinks.%s.remote_write.retries";
+
+    private static final String INFLUX_SENT = "cmcd.sinks.%s.influx.sent_lines";
+    private static final String INFLUX_SENT_BYTES = "cmcd.sinks.%s.influx.sent_bytes";
+    private static final String INFLUX_DROPPED = "cmcd.sinks.%s.influx.dropped_lines";
+    private static final String INFLUX_FAILED = "cmcd.sinks.%s.influx.failed_batches";
+
+    private static final String PROMETHEUS_SCRAPES = "cmcd.prometheus.scrapes";
+    private static final String PROMETHEUS_SERIES = "cmcd.prometheus.series";
+    private static final String PROMETHEUS_BYTES = "cmcd.prometheus.body_bytes";
+
+    // Transport stats; Relative to cmcd.carbon, or to cmcd.sinks.<name>.carbon (for the transport of a sink).
+    private static final String CARBON = "cmcd.carbon";
+    private static final String SINK_CARBON = "cmcd.sinks.%s.carbon";
+    private static final String CARBON_DESTINATION = "%s.destinations.%s_%d";
+    private static final String CARBON_SENT = "%s.sent_bytes";
+    private static final String CARBON_DROPPED = "%s.dropped_bytes";
+    private static final String CARBON_OUTSTANDING = "%s.outstanding_bytes";
+    private static final String CARBON_CONNECTS = "%s.connects";
+    private static final String CARBON_FAILURES = "%s.failures";
+    private static final String CARBON_SPOOLED = "%s.spool.spooled_bytes";
+    private static final String SPOOL_DEPTH_BYTES = "%s.spool.depth_bytes";
+    private static final String SPOOL_DEPTH_BATCHES = "%s.spool.depth_batches";
+    private static final String SPOOL_REPLAY_LAG = "%s.spool.replay_lag_seconds";
+    private static final String SPOOL_REPLAYED = "%s.spool.replayed_bytes";
+    private static final String SPOOL_EVICTED = "%s.spool.evicted_bytes";
+    private static final String CARBON_SENT_DATAGRAMS = "%s.sent_datagrams";
+    private static final String CARBON_DROPPED_DATAGRAMS = "%s.dropped_datagrams";
 
     private static final Logger LOG = LoggerFactory.getLogger(StatsReporter.class);
 
     private Stats stats;
-    private String carbonHost;
-    private int carbonPort;
+    private CarbonTransport carbon;
+    private List<Sink> sinks = Collections.emptyList();
+    private PrometheusExporter prometheus;
     private int interval;
 
     @Override
     public void execute(JobExecutionContext context) throws JobExecutionException {
-        LOG.debug("Connecting to {}:{}", this.carbonHost, this.carbonPort);
-
-        try (final CarbonConnector carbon = new CarbonConnector(this.carbonHost, this.carbonPort)) {
+        try (final CarbonConnector carbon = this.carbon.connector()) {
             LOG.info("Writing internal stats");
 
             new TimedTask<Void>(Math.min(interval, 60)).submit(new Callable<Void>() {
@@ -48,6 +109,25 @@ public class StatsReporter implements Job {
                     for (String instance : stats.getNames()) {
                         carbon.write(String.format(FAILURE, instance), stats.getFailures(instance));
                         carbon.write(String.format(SUCCESS, instance), stats.getSuccesses(instance));
+                        carbon.write(String.format(ROUND_TRIPS, instance), stats.getRoundTrips(instance));
+                        carbon.write(String.format(CARBON_LINES, instance), stats.getCarbonLines(instance));
+                        carbon.write(String.format(CARBON_BYTES, instance), stats.getCarbonBytes(instance));
+                    }
+                    Map<String, FanOutVisitor> pipelines = stats.getPipelines();
+                    for (Map.Entry<String, FanOutVisitor> entry : pipelines.entrySet()) {
+                        FanOutVisitor pipeline = entry.getValue();
+                        carbon.write(String.format(QUEUE_DEPTH, entry.getKey()), pipeline.getDepth());
+                        carbon.write(String.format(QUEUE_DROPPED, entry.getKey()), pipeline.getDropped());
+                        carbon.write(String.format(QUEUE_EMITTED, entry.getKey()), pipeline.getEmitted());
+                        carbon.write(String.format(QUEUE_ERRORS, entry.getKey()), pipeline.getErrors());
+                    }
+                    for (Sink sink : sinks)
+                        writeSinkStats(carbon, sink, pipelines.values());
+                    writeTransportStats(carbon, StatsReporter.this.carbon, CARBON);
+                    if (prometheus != null) {
+                        carbon.write(PROMETHEUS_SCRAPES, prometheus.getScrapes());
+                        carbon.write(PROMETHEUS_SERIES, prometheus.getSeries());
+                        carbon.write(PROMETHEUS_BYTES, prometheus.getBodyBytes());
                     }
                     return null;
                 }
@@ -58,16 +138,92 @@ public class StatsReporter implements Job {
         }
     }
 
+    /** Writes the stats of a sink; The sum of its pipelines across instances, and those of its transport. */
+    private void writeSinkStats(CarbonConnector carbon, Sink sink, Collection<FanOutVisitor> pipelines) throws CarbonException {
+        int depth = 0;
+        long dropped = 0, emitted = 0, errors = 0;
+
+        for (FanOutVisitor fanOut : pipelines) {
+            SamplePipeline pipeline = fanOut.getPipelines().get(sink.getName());
+            if (pipeline == null)
+                continue;
+            depth += pipeline.getDepth();
+            dropped += pipeline.getDropped();
+            emitted += pipeline.getEmitted();
+            errors += pipeline.getErrors();
+        }
+
+        carbon.write(String.format(SINK_DEPTH, sink.getName()), depth);
+        carbon.write(String.format(SINK_DROPPED, sink.getName()), dropped);
+        carbon.write(String.format(SINK_EMITTED, sink.getName()), emitted);
+        carbon.write(String.format(SINK_ERRORS, sink.getName()), errors);
+
+        if (sink instanceof CarbonSink)
+            writeTransportStats(carbon, ((CarbonSink) sink).getTransport(), String.format(SINK_CARBON, sink.getName()));
+
+        if (sink instanceof RemoteWriteSink) {
+            RemoteWriteSink remote = (RemoteWriteSink) sink;
+            carbon.write(String.format(REMOTE_WRITE_SENT, sink.getName()), remote.getSentSamples());
+            carbon.write(String.format(REMOTE_WRITE_SENT_BYTES, sink.getName()), remote.getSentBytes());
+            carbon.write(String.format(REMOTE_WRITE_DROPPED, sink.getName()), remote.getDroppedSamples());
+            carbon.write(String.format(REMOTE_WRITE_FAILED, sink.getName()), remote.getFailedBatches());
+            carbon.write(String.format(REMOTE_WRITE_RETRIES, sink.getName()), remote.getRetries());
+        }
+
+        if (sink instanceof InfluxSink) {
+            InfluxSink influx = (InfluxSink) sink;
+            carbon.write(String.format(INFLUX_SENT, sink.getName()), influx.getSentLines());
+            carbon.write(String.format(INFLUX_SENT_BYTES, sink.getName()), influx.getSentBytes());
+            carbon.write(String.format(INFLUX_DROPPED, sink.getName()), influx.getDroppedLines());
+            carbon.write(String.format(INFLUX_FAILED, sink.getName()), influx.getFailedBatches());
+        }
+    }
+
+    private static void writeTransportStats(CarbonConnector carbon, CarbonTransport transport, String prefix) throws CarbonException {
+        if (transport instanceof CarbonClient) {
+            CarbonClient client = (CarbonClient) transport;
+            carbon.write(String.format(CARBON_SENT, prefix), client.getSent());
+            carbon.write(String.format(CARBON_DROPPED, prefix), client.getDropped());
+            carbon.write(String.format(CARBON_OUTSTANDING, prefix), client.getOutstanding());
+            carbon.write(String.format(CARBON_CONNECTS, prefix), client.getConnects());
+            carbon.write(String.format(CARBON_FAILURES, prefix), client.getFailures());
+
+            Spool spool = client.getSpool();
+            if (spool != null) {
+                carbon.write(String.format(CARBON_SPOOLED, prefix), client.getSpooled());
+                carbon.write(String.format(SPOOL_DEPTH_BYTES, prefix), spool.getPendingBytes());
+                carbon.write(String.format(SPOOL_DEPTH_BATCHES, prefix), spool.getPendingRecords());
+                carbon.write(String.format(SPOOL_REPLAY_LAG, prefix), spool.getLag() / 1000);
+                carbon.write(String.format(SPOOL_REPLAYED, prefix), spool.getReplayedBytes());
+                carbon.write(String.format(SPOOL_EVICTED, prefix), spool.getEvictedBytes());
+            }
+        }
+        else if (transport instanceof ConsistentHashTransport) {
+            for (CarbonDestination destination : ((ConsistentHashTransport) transport).getDestinations())
+                writeTransportStats(carbon, destination, String.format(CARBON_DESTINATION, prefix, destination.getHostname().replace('.', '_'), destination.getPort()));
+        }
+        else if (transport instanceof UdpClient) {
+            UdpClient client = (UdpClient) transport;
+            carbon.write(String.format(CARBON_SENT, prefix), client.getSentBytes());
+            carbon.write(String.format(CARBON_SENT_DATAGRAMS, prefix), client.getSent());
+            carbon.write(String.format(CARBON_DROPPED_DATAGRAMS, prefix), client.getDropped());
+        }
+    }
+
     public void setStats(Stats stats) {
         this.stats = stats;
     }
 
-    public void setCarbonHost(String carbonHost) {
-        this.carbonHost = carbonHost;
+    public void setCarbon(CarbonTransport carbon) {
+        this.carbon = carbon;
+    }
+
+    public void setSinks(List<Sink> sinks) {
+        this.sinks = sinks;
     }
 
-    public void setCarbonPort(int carbonPort) {
-        this.carbonPort = carbonPort;
+    public void setPrometheus(PrometheusExporter prometheus) {
+        this.prometheus = prometheus;
     }
 
     public void setInterval(int interval) {
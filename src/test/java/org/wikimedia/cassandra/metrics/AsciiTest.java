@@ -0,0 +1,90 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class AsciiTest {
+
+    @Test
+    public void testLong() {
+        long[] values = new long[] { 0, 1, -1, 9, 10, 99, 100, 1234567890, Long.MAX_VALUE, Long.MIN_VALUE };
+        for (long value : values)
+            assertThat(putLong(value), equalTo(Long.toString(value)));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertThat(putLong(value), equalTo(Long.toString(value)));
+        }
+    }
+
+    @Test
+    public void testDouble() {
+        assertThat(putDouble(0.0d), equalTo("0.0"));
+        assertThat(putDouble(-0.0d), equalTo("-0.0"));
+        assertThat(putDouble(1.0d), equalTo("1.0"));
+        assertThat(putDouble(1.5d), equalTo("1.5"));
+        assertThat(putDouble(-2.25d), equalTo("-2.25"));
+        assertThat(putDouble(0.1d), equalTo("0.1"));
+        assertThat(putDouble(0.999999999999999999d), equalTo("1.0"));
+        assertThat(putDouble(12345.678d), equalTo("12345.678"));
+        assertThat(putDouble(1e-5d), equalTo(Double.toString(1e-5d)));
+        assertThat(putDouble(1e20d), equalTo(Double.toString(1e20d)));
+        assertThat(putDouble(Double.NaN), equalTo("NaN"));
+        assertThat(putDouble(Double.NEGATIVE_INFINITY), equalTo("-Infinity"));
+
+        // Accurate to 15 significant digits.
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            double value = (random.nextDouble() - 0.5d) * Math.pow(10, random.nextInt(18) - 3);
+            double parsed = Double.parseDouble(putDouble(value));
+            assertThat(Math.abs(parsed - value) <= Math.abs(value) * 1e-14d, equalTo(true));
+        }
+    }
+
+    @Test
+    public void testString() {
+        assertThat(putString("cassandra.metric"), equalTo("cassandra.metric"));
+        assertThat(putString("cassandra.métric"), equalTo("cassandra.métric"));
+    }
+
+    private static String putLong(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(Ascii.MAX_NUMBER_LENGTH);
+        Ascii.putLong(buffer, value);
+        return new String(buffer.array(), 0, buffer.position(), Charsets.US_ASCII);
+    }
+
+    private static String putDouble(double value) {
+        ByteBuffer buffer = ByteBuffer.allocate(Ascii.MAX_NUMBER_LENGTH);
+        Ascii.putDouble(buffer, value);
+        return new String(buffer.array(), 0, buffer.position(), Charsets.US_ASCII);
+    }
+
+    private static String putString(String value) {
+        ByteBuffer buffer = ByteBuffer.allocate(value.length() * 3);
+        Ascii.putString(buffer, value);
+        return new String(buffer.array(), 0, buffer.position(), Charsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,201 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+public class CarbonClientTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSend() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            CarbonClient client = new CarbonClient("localhost", server.getLocalPort(), CarbonProtocol.PLAINTEXT, 1024, 50, 200);
+            client.start();
+
+            try (CarbonConnector carbon = new CarbonConnector(client)) {
+                carbon.write("metric", 1, 1000000);
+                carbon.write("metric", 2, 1000000);
+            }
+
+            try (Socket socket = server.accept()) {
+                BufferedReader reader = reader(socket);
+                assertThat(reader.readLine(), equalTo("metric 1 1000000"));
+                assertThat(reader.readLine(), equalTo("metric 2 1000000"));
+
+                // Again, over the same connection.
+                try (CarbonConnector carbon = new CarbonConnector(client)) {
+                    carbon.write("metric", 3, 1000000);
+                }
+                assertThat(reader.readLine(), equalTo("metric 3 1000000"));
+            }
+
+            // The connection was lost; Queued batches are written once reconnected.
+            awaitFailure(client);
+            try (CarbonConnector carbon = new CarbonConnector(client)) {
+                carbon.write("metric", 4, 1000000);
+            }
+
+            try (Socket socket = server.accept()) {
+                assertThat(reader(socket).readLine(), equalTo("metric 4 1000000"));
+            }
+
+            assertThat(client.getConnects(), is(2L));
+            client.close();
+        }
+    }
+
+    @Test
+    public void testOutstanding() throws Exception {
+        // Never started, so nothing is ever written.
+        CarbonClient client = new CarbonClient("localhost", 2003, 100);
+        byte[] batch = new byte[60];
+
+        assertThat(client.send(batch, 0, batch.length), is(true));
+        assertThat(client.send(batch, 0, batch.length), is(false));
+        assertThat(client.send(batch, 0, 40), is(true));
+        assertThat(client.getOutstanding(), is(100L));
+        assertThat(client.getDropped(), is(60L));
+    }
+
+    @Test
+    public void testSpool() throws Exception {
+        int port;
+        try (ServerSocket server = new ServerSocket(0)) {
+            port = server.getLocalPort();
+        }
+
+        CarbonClient client = new CarbonClient("localhost", port, CarbonProtocol.PLAINTEXT, 1024, 50, 200);
+        client.setSpool(new Spool(folder.getRoot(), 1024 * 1024, 4096), 1024);
+        client.start();
+
+        // Queued, until the first connection attempt fails; Spooled thereafter.
+        try (CarbonConnector carbon = new CarbonConnector(client)) {
+            carbon.write("metric", 1, 1000000);
+        }
+        awaitFailure(client);
+        try (CarbonConnector carbon = new CarbonConnector(client)) {
+            carbon.write("metric", 2, 1000000);
+        }
+        assertThat(client.getSpool().getPendingRecords(), is(1L));
+        assertThat(client.getSpooled(), is(17L));
+
+        // Replayed once connected.
+        try (ServerSocket server = new ServerSocket(port)) {
+            try (Socket socket = server.accept()) {
+                BufferedReader reader = reader(socket);
+                assertThat(reader.readLine(), equalTo("metric 1 1000000"));
+                assertThat(reader.readLine(), equalTo("metric 2 1000000"));
+            }
+        }
+
+        // Committed once written in full.
+        for (int i = 0; i < 100 && client.getSpool().getPendingRecords() > 0; i++)
+            Thread.sleep(20);
+        assertThat(client.getSpool().getPendingRecords(), is(0L));
+        assertThat(client.getSpool().getReplayedBytes(), is(17L));
+        assertThat(client.getDropped(), is(0L));
+        client.close();
+    }
+
+    @Test
+    public void testUnexpectedError() throws Exception {
+        // A spool that fails (unexpectedly) the first time it's read from.
+        Spool spool = new Spool(folder.getRoot(), 1024 * 1024, 4096) {
+            private boolean failed = false;
+
+            @Override
+            public synchronized byte[] peek() {
+                if (!this.failed) {
+                    this.failed = true;
+                    throw new IllegalStateException("boom");
+                }
+                return super.peek();
+            }
+        };
+        byte[] line = "metric 1 1000000\n".getBytes(Charsets.UTF_8);
+        spool.append(line, 0, line.length);
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            CarbonClient client = new CarbonClient("localhost", server.getLocalPort(), CarbonProtocol.PLAINTEXT, 1024, 50, 200);
+            client.setSpool(spool, 1024);
+            client.start();
+
+            // The connection is dropped, and the client carries on; Reconnecting after a backoff.
+            try (Socket socket = server.accept()) {
+                assertThat(reader(socket).readLine(), nullValue());
+            }
+            try (Socket socket = server.accept()) {
+                assertThat(reader(socket).readLine(), equalTo("metric 1 1000000"));
+            }
+
+            assertThat(client.getFailures() > 0, is(true));
+            assertThat(client.getConnects(), is(2L));
+            client.close();
+        }
+    }
+
+    @Test
+    public void testSpoolOutstanding() throws Exception {
+        // Never started; Spooled, rather than dropped, once too many bytes are outstanding.
+        CarbonClient client = new CarbonClient("localhost", 2003, 100);
+        client.setSpool(new Spool(folder.getRoot(), 1024 * 1024, 4096), 1024);
+        byte[] batch = new byte[60];
+
+        assertThat(client.send(batch, 0, batch.length), is(true));
+        assertThat(client.send(batch, 0, batch.length), is(true));
+        assertThat(client.getOutstanding(), is(60L));
+        assertThat(client.getSpooled(), is(60L));
+        assertThat(client.getDropped(), is(0L));
+        client.getSpool().close();
+    }
+
+    @Test(expected = CarbonException.class)
+    public void testBacklogFull() throws Exception {
+        CarbonClient client = new CarbonClient("localhost", 2003, 10);
+        try (CarbonConnector carbon = new CarbonConnector(client)) {
+            carbon.write("metric", 1, 1000000);
+            carbon.flush();
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+    }
+
+    private static void awaitFailure(CarbonClient client) throws InterruptedException {
+        for (int i = 0; i < 100 && client.getFailures() == 0; i++)
+            Thread.sleep(20);
+        assertThat(client.getFailures() > 0, is(true));
+    }
+
+}
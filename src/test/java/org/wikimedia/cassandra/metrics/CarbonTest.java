@@ -25,6 +25,8 @@ import java.net.Socket;
 
 import org.junit.Test;
 
+import com.google.common.base.Strings;
+
 public class CarbonTest {
 
     @Test
@@ -44,9 +46,54 @@ public class CarbonTest {
 
         carbon.write("metric", "value", 1000000);
 
+        // Buffered until flushed.
+        assertThat(byteStream.size(), equalTo(0));
+        carbon.flush();
         assertThat(byteStream.toByteArray(), equalTo("metric value 1000000\n".getBytes()));
 
+        carbon.write("metric", 1.5d, 1000000);
+        carbon.write("metric", 42L, 1000000);
+        carbon.close();
+
+        assertThat(new String(byteStream.toByteArray()), equalTo("metric value 1000000\nmetric 1.5 1000000\nmetric 42 1000000\n"));
+        assertThat(carbon.getLines(), equalTo(3L));
+        assertThat(carbon.getBytes(), equalTo((long) byteStream.size()));
+
+    }
+
+    @Test
+    public void testFlushOnSize() throws IOException {
+
+        final Socket socket = mock(Socket.class);
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+
+        when(socket.getOutputStream()).thenReturn(byteStream);
+
+        CarbonConnector carbon = new CarbonConnector("localhost", 2003, 128) {
+            @Override
+            protected Socket createSocket() {
+                return socket;
+            }
+        };
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            carbon.write("metric." + i, i, 1000000);
+            expected.append("metric.").append(i).append(' ').append(i).append(" 1000000\n");
+        }
+
+        // Written in batches, (the last of which is still buffered).
+        assertThat(byteStream.size() > 0, equalTo(true));
+        assertThat(byteStream.size() < expected.length(), equalTo(true));
+
+        // Including lines too long to buffer.
+        String longName = Strings.repeat("x", 200);
+        carbon.write(longName, "value", 1000000);
+        expected.append(longName).append(" value 1000000\n");
+
         carbon.close();
+        assertThat(new String(byteStream.toByteArray()), equalTo(expected.toString()));
+        assertThat(carbon.getLines(), equalTo(101L));
 
     }
 
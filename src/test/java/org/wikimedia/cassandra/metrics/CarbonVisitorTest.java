@@ -52,6 +52,7 @@ public class CarbonVisitorTest {
 
         visitor.visit(new JmxSample(Type.JVM, new ObjectName("java.lang:type=Runtime"), "uptime", Integer.valueOf(1), 1));
 
+        visitor.flush();
         assertThat(byteStream.toByteArray(), equalTo("cassandra.jvm.uptime 1 1\n".getBytes()));
 
         visitor.close();
@@ -0,0 +1,141 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class ConsistentHashRingTest {
+
+    private static final String A = "10.0.0.1";
+    private static final String B = "10.0.0.2";
+    private static final String C = "10.0.0.3:b";
+
+    /** Destinations of metrics, as carbon-relay's consistent-hashing routes them (to 10.0.0.1, 10.0.0.2, 10.0.0.3:b). */
+    private static final Map<String, String> CARBON = ImmutableMap.<String, String>builder()
+            .put("cassandra.db1.org.apache.cassandra.metrics.ClientRequest.Read.Latency.99percentile", B)
+            .put("cassandra.db1.org.apache.cassandra.metrics.ColumnFamily.all.LiveSSTableCount.value", C)
+            .put("cassandra.db2.jvm.memory.heap_usage", B)
+            .put("cassandra.db2.org.apache.cassandra.metrics.Storage.Load.count", B)
+            .put("cassandra.db1.jvm.gc.ParNew.runs", A)
+            .put("cassandra.db1.org.apache.cassandra.metrics.Client.connectedNativeClients.value", A)
+            .put("cassandra.db3.org.apache.cassandra.metrics.Compaction.PendingTasks.value", B)
+            .put("cassandra.db1.org.apache.cassandra.metrics.ThreadPools.request.MutationStage.PendingTasks.value", C)
+            .build();
+
+    /** The same, with 10.0.0.2 removed. */
+    private static final Map<String, String> CARBON_WITHOUT_B = ImmutableMap.<String, String>builder()
+            .put("cassandra.db1.org.apache.cassandra.metrics.ClientRequest.Read.Latency.99percentile", C)
+            .put("cassandra.db1.org.apache.cassandra.metrics.ColumnFamily.all.LiveSSTableCount.value", C)
+            .put("cassandra.db2.jvm.memory.heap_usage", A)
+            .put("cassandra.db2.org.apache.cassandra.metrics.Storage.Load.count", A)
+            .put("cassandra.db1.jvm.gc.ParNew.runs", A)
+            .put("cassandra.db1.org.apache.cassandra.metrics.Client.connectedNativeClients.value", A)
+            .put("cassandra.db3.org.apache.cassandra.metrics.Compaction.PendingTasks.value", C)
+            .put("cassandra.db1.org.apache.cassandra.metrics.ThreadPools.request.MutationStage.PendingTasks.value", C)
+            .build();
+
+    @Test
+    public void testPosition() {
+        assertThat(ConsistentHashRing.nodeKey("10.0.0.1", null), is("('10.0.0.1', None)"));
+        assertThat(ConsistentHashRing.nodeKey("10.0.0.3", "b"), is("('10.0.0.3', 'b')"));
+        assertThat(ConsistentHashRing.position("('10.0.0.1', None):0"), is(46982));
+        assertThat(ConsistentHashRing.position("foo"), is(44221));
+    }
+
+    @Test
+    public void testCarbonCompatible() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>()
+                .add(A, "10.0.0.1", null)
+                .add(B, "10.0.0.2", null)
+                .add(C, "10.0.0.3", "b");
+
+        for (Map.Entry<String, String> entry : CARBON.entrySet())
+            assertThat(entry.getKey(), ring.get(entry.getKey()), is(entry.getValue()));
+    }
+
+    @Test
+    public void testStable() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>().add(A, "10.0.0.1", null).add(B, "10.0.0.2", null).add(C, "10.0.0.3", "b");
+        ConsistentHashRing<String> without = new ConsistentHashRing<String>().add(A, "10.0.0.1", null).add(C, "10.0.0.3", "b");
+
+        for (Map.Entry<String, String> entry : CARBON_WITHOUT_B.entrySet())
+            assertThat(entry.getKey(), without.get(entry.getKey()), is(entry.getValue()));
+
+        // Only the metrics of the destination removed move, (about a third of them).
+        int moved = 0;
+        for (int i = 0; i < 3000; i++) {
+            String metric = "cassandra.db1.metric" + i;
+            String before = ring.get(metric);
+            if (!before.equals(without.get(metric))) {
+                assertThat(before, is(B));
+                moved++;
+            }
+        }
+        assertThat(moved > 500 && moved < 1500, is(true));
+    }
+
+    @Test
+    public void testTransport() throws Exception {
+        try (DatagramSocket a = new DatagramSocket(0); DatagramSocket b = new DatagramSocket(0)) {
+            a.setSoTimeout(5000);
+            b.setSoTimeout(5000);
+
+            UdpClient clientA = new UdpClient("localhost", a.getLocalPort(), CarbonProtocol.PLAINTEXT, UdpClient.DEFAULT_MTU);
+            UdpClient clientB = new UdpClient("localhost", b.getLocalPort(), CarbonProtocol.PLAINTEXT, UdpClient.DEFAULT_MTU);
+            ConsistentHashRing<CarbonDestination> ring = new ConsistentHashRing<CarbonDestination>()
+                    .add(clientA, "localhost", "a")
+                    .add(clientB, "localhost", "b");
+
+            Map<CarbonDestination, StringBuilder> expected = Maps.newHashMap();
+            expected.put(clientA, new StringBuilder());
+            expected.put(clientB, new StringBuilder());
+
+            try (ConsistentHashTransport transport = new ConsistentHashTransport(ring)) {
+                transport.start();
+                try (CarbonConnector carbon = transport.connector()) {
+                    for (int i = 0; i < 20; i++) {
+                        carbon.write("cassandra.metric." + i, i, 1000000);
+                        expected.get(ring.get("cassandra.metric." + i)).append(String.format("cassandra.metric.%d %d 1000000%n", i, i));
+                    }
+                    carbon.flush();
+                    assertThat(carbon.getLines(), is(20L));
+                }
+
+                // Each destination receives (all of, and only) its own lines.
+                assertThat(receive(a), is(expected.get(clientA).toString()));
+                assertThat(receive(b), is(expected.get(clientB).toString()));
+            }
+        }
+    }
+
+    private static String receive(DatagramSocket server) throws Exception {
+        byte[] buffer = new byte[UdpClient.DEFAULT_MTU];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), Charsets.UTF_8);
+    }
+
+}
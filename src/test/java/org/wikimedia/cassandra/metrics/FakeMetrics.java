@@ -0,0 +1,284 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.cassandra.metrics.CassandraMetricsRegistry;
+
+/**
+ * Stand-ins for the metric MBeans Cassandra registers, for use in tests.
+ */
+class FakeMetrics {
+
+    /** Registers a MBean under the same class name Cassandra would. */
+    static <T> void register(MBeanServer server, String name, T mbean, Class<T> iface, MetricKind kind) throws JMException {
+        server.registerMBean(new NamedMBean<T>(mbean, iface, kind.getClassName()), new ObjectName(name));
+    }
+
+    static void registerTimer(MBeanServer server, String name) throws JMException {
+        registerTimer(server, name, new long[] { 1, 1, 1 });
+    }
+
+    static void registerTimer(MBeanServer server, String name, long[] values) throws JMException {
+        register(server, name, new Timer(values), CassandraMetricsRegistry.JmxTimerMBean.class, MetricKind.TIMER);
+    }
+
+    static void registerHistogram(MBeanServer server, String name, long[] values) throws JMException {
+        register(server, name, new Histogram(values), CassandraMetricsRegistry.JmxHistogramMBean.class, MetricKind.HISTOGRAM);
+    }
+
+    static void registerCounter(MBeanServer server, String name, long count) throws JMException {
+        register(server, name, new Counter(count), CassandraMetricsRegistry.JmxCounterMBean.class, MetricKind.COUNTER);
+    }
+
+    static void registerGauge(MBeanServer server, String name, Object value) throws JMException {
+        register(server, name, new Gauge(value), CassandraMetricsRegistry.JmxGaugeMBean.class, MetricKind.GAUGE);
+    }
+
+    private static class NamedMBean<T> extends StandardMBean {
+        private final String className;
+
+        NamedMBean(T impl, Class<T> iface, String className) throws NotCompliantMBeanException {
+            super(impl, iface);
+            this.className = className;
+        }
+
+        @Override
+        protected String getClassName(MBeanInfo info) {
+            return this.className;
+        }
+    }
+
+    static class Counter implements CassandraMetricsRegistry.JmxCounterMBean {
+        private final long count;
+
+        Counter(long count) {
+            this.count = count;
+        }
+
+        @Override
+        public ObjectName objectName() {
+            return null;
+        }
+
+        @Override
+        public long getCount() {
+            return this.count;
+        }
+    }
+
+    static class Gauge implements CassandraMetricsRegistry.JmxGaugeMBean {
+        private final Object value;
+
+        Gauge(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public ObjectName objectName() {
+            return null;
+        }
+
+        @Override
+        public Object getValue() {
+            return this.value;
+        }
+    }
+
+    /** A histogram whose every attribute is 1.0 (with counts of 1), and the given bucket values. */
+    static class Histogram implements CassandraMetricsRegistry.JmxHistogramMBean {
+        private final long[] values;
+
+        Histogram(long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public ObjectName objectName() {
+            return null;
+        }
+
+        @Override
+        public long getCount() {
+            return 1;
+        }
+
+        @Override
+        public long getMin() {
+            return 1;
+        }
+
+        @Override
+        public long getMax() {
+            return 1;
+        }
+
+        @Override
+        public double getMean() {
+            return 1.0d;
+        }
+
+        @Override
+        public double getStdDev() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get50thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get75thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get95thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get98thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get99thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get999thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public long[] values() {
+            return this.values;
+        }
+    }
+
+    /** A timer whose every attribute is 1.0 (with counts of 1), and the given bucket values (in nanoseconds). */
+    static class Timer implements CassandraMetricsRegistry.JmxTimerMBean {
+        private final long[] values;
+
+        Timer(long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public ObjectName objectName() {
+            return null;
+        }
+
+        @Override
+        public long getCount() {
+            return 1;
+        }
+
+        @Override
+        public double getMeanRate() {
+            return 1.0d;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            return 1.0d;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            return 1.0d;
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            return 1.0d;
+        }
+
+        @Override
+        public String getRateUnit() {
+            return "events/second";
+        }
+
+        @Override
+        public double getMin() {
+            return 1.0d;
+        }
+
+        @Override
+        public double getMax() {
+            return 1.0d;
+        }
+
+        @Override
+        public double getMean() {
+            return 1.0d;
+        }
+
+        @Override
+        public double getStdDev() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get50thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get75thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get95thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get98thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get99thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public double get999thPercentile() {
+            return 1.0d;
+        }
+
+        @Override
+        public long[] values() {
+            return this.values;
+        }
+
+        @Override
+        public String getDurationUnit() {
+            return "microseconds";
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.wikimedia.cassandra.metrics.SampleRingTest.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+
+public class FanOutVisitorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** A sink that never gets anywhere, (until the gate opens). */
+    private static class StuckSink implements SampleSink {
+        private final CountDownLatch gate;
+
+        private StuckSink(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public void visit(JmxSample sample) {
+            try {
+                this.gate.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        File file = this.folder.newFile("samples.log");
+        FileSink fileSink = new FileSink("local", file, "migration", Optional.<Filter>absent(), 100, SampleRing.Policy.DROP_OLDEST);
+        fileSink.start();
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        Map<String, SamplePipeline> pipelines = Maps.newLinkedHashMap();
+        pipelines.put("stuck", pipeline("stuck", 5, new Supplier<SampleSink>() {
+            @Override
+            public SampleSink get() {
+                return new StuckSink(gate);
+            }
+        }));
+        pipelines.put("local", pipeline("local", 100, supplier(fileSink, "db1")));
+
+        FanOutVisitor fanOut = new FanOutVisitor(pipelines);
+        fanOut.start();
+
+        // The stuck sink falls behind, without holding up the other.
+        for (int i = 0; i < 50; i++)
+            fanOut.visit(sample(i));
+
+        SamplePipeline local = fanOut.getPipelines().get("local");
+        for (int i = 0; i < 500 && local.getEmitted() < 50; i++)
+            Thread.sleep(10);
+
+        assertThat(local.getEmitted(), is(50L));
+        assertThat(local.getDropped(), is(0L));
+        assertTrue(fanOut.getPipelines().get("stuck").getDropped() > 0);
+        assertThat(fanOut.getDropped(), is(fanOut.getPipelines().get("stuck").getDropped()));
+
+        gate.countDown();
+        fanOut.close();
+        fileSink.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), Charsets.UTF_8);
+        assertThat(lines.size(), is(50));
+        assertThat(lines.get(0), is("migration.db1.org.apache.cassandra.metrics.Client.connectedNativeClients.value 0 1000000"));
+        assertThat(lines.get(49), is("migration.db1.org.apache.cassandra.metrics.Client.connectedNativeClients.value 49 1000000"));
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        FilterConfig config = new FilterConfig();
+        config.setBlacklist(Collections.singletonList(".*connectedNativeClients.*"));
+
+        File file = this.folder.newFile("samples.log");
+        FileSink fileSink = new FileSink("local", file, "cassandra", Optional.of(new Filter(config)), 100, SampleRing.Policy.DROP_OLDEST);
+        fileSink.start();
+
+        try (SampleSink writer = fileSink.open("db1")) {
+            writer.visit(sample(1));
+        }
+        fileSink.close();
+
+        assertThat(Files.readAllLines(file.toPath(), Charsets.UTF_8).size(), is(0));
+    }
+
+    private static SamplePipeline pipeline(String name, int size, Supplier<? extends SampleSink> sinks) {
+        return new SamplePipeline(name, new SampleRing(size, SampleRing.Policy.DROP_OLDEST), 1, sinks);
+    }
+
+    private static Supplier<SampleSink> supplier(final Sink sink, final String instance) {
+        return new Supplier<SampleSink>() {
+            @Override
+            public SampleSink get() {
+                return sink.open(instance);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,122 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FetchPlanTest {
+
+    private static final String TIMER = "org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency";
+    private static final String COUNTER = "org.apache.cassandra.metrics:type=Storage,name=Exceptions";
+    private static final String HISTOGRAM = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t,name=EstimatedRowSizeHistogram";
+
+    private MBeanServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = MBeanServerFactory.newMBeanServer();
+        FakeMetrics.registerTimer(this.server, TIMER);
+        FakeMetrics.registerCounter(this.server, COUNTER, 42);
+        FakeMetrics.registerGauge(this.server, HISTOGRAM, new long[] { 0, 2, 0, 0 });
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        FetchPlan plan = newPlan(".*\\.Storage\\.Exceptions\\..*", ".*\\.meanRate$", ".*\\.999percentile$", ".*\\.50percentile$");
+
+        assertThat(
+                Arrays.asList(plan.attributes(new ObjectName(TIMER), MetricKind.TIMER)).contains("MeanRate"),
+                is(false));
+        assertThat(plan.attributes(new ObjectName(TIMER), MetricKind.TIMER).length, is(12));
+        assertThat(plan.attributes(new ObjectName(COUNTER), MetricKind.COUNTER).length, is(0));
+
+        // Other metrics decoded from the gauge survive, so its value must still be read.
+        assertThat(plan.attributes(new ObjectName(HISTOGRAM), MetricKind.GAUGE), equalTo(new String[] { "Value" }));
+    }
+
+    @Test
+    public void testCollect() throws Exception {
+        JmxCollector collector = new JmxCollector(this.server);
+        collector.setFetchPlan(newPlan(".*\\.Storage\\.Exceptions\\..*", ".*\\.meanRate$"));
+
+        Map<String, Object> samples = JmxCollectorTest.collect(collector);
+
+        assertThat(samples.containsKey(TIMER + "/meanRate"), is(false));
+        assertThat(samples.containsKey(TIMER + "/999percentile"), is(true));
+        assertThat(samples.containsKey(COUNTER + "/count"), is(false));
+        assertThat(samples.size(), is(21));
+
+        // The blacklisted counter was never read; Only the timer and histogram were.
+        assertThat(collector.getRoundTrips(), is(4L));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        FetchPlan plan = newPlan(".*\\.meanRate$");
+        JmxCollector collector = new JmxCollector(this.server);
+        collector.getInventory().addListener(plan);
+        collector.setFetchPlan(plan);
+
+        JmxCollectorTest.collect(collector);
+        assertThat(plan.size(), is(3));
+
+        // Evicted along with the MBean...
+        this.server.unregisterMBean(new ObjectName(COUNTER));
+        JmxCollectorTest.collect(collector);
+        assertThat(plan.size(), is(2));
+
+        // ...and entirely, when the inventory is rebuilt.
+        collector.getInventory().invalidate();
+        collector.getInventory().refresh(this.server);
+        assertThat(plan.size(), is(0));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        FilterConfig config = new FilterConfig();
+        config.setBlacklist(Arrays.asList(".*\\.Storage\\.Exceptions\\..*"));
+        Filter filter = new Filter(config);
+        FetchPlan plan = new FetchPlan(filter, "cassandra.test");
+
+        assertThat(plan.attributes(new ObjectName(COUNTER), MetricKind.COUNTER).length, is(0));
+
+        // Compiled again (once) after the filter is reloaded.
+        filter.reload(new FilterConfig());
+        FetchPlan.Plan reloaded = plan.plan(new ObjectName(COUNTER), MetricKind.COUNTER);
+        assertThat(reloaded.getAttributes(), equalTo(new String[] { "Count" }));
+        assertThat(plan.plan(new ObjectName(COUNTER), MetricKind.COUNTER), sameInstance(reloaded));
+        assertThat(plan.size(), is(1));
+    }
+
+    private static FetchPlan newPlan(String... blacklist) {
+        FilterConfig config = new FilterConfig();
+        config.setBlacklist(Arrays.asList(blacklist));
+        return new FetchPlan(new Filter(config), "cassandra.test");
+    }
+
+}
@@ -17,6 +17,11 @@ package org.wikimedia.cassandra.metrics;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.regex.PatternSyntaxException;
+
 import org.junit.Test;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
@@ -40,4 +45,79 @@ public class FilterTest {
 
     }
 
+    @Test
+    public void testCompile() {
+        // A single alternation, but for patterns with back-references (or quotes).
+        assertThat(Filter.compile(Arrays.asList("a.*", "b.*", "c.*")).size(), is(1));
+        assertThat(Filter.compile(Arrays.asList("a.*", "(b)\\1", "\\Qc.d")).size(), is(3));
+        assertThat(Filter.compile(Collections.<String>emptyList()).isEmpty(), is(true));
+
+        Filter filter = newFilter(Arrays.asList("(?i)keep.*"), Arrays.asList("a.*", "(b)\\1.*", "\\Qc.d", "d|e"));
+        assertThat(filter.accept("abc"), is(false));
+        assertThat(filter.accept("bbc"), is(false));
+        assertThat(filter.accept("bcb"), is(true));
+        assertThat(filter.accept("c.d"), is(false));
+        assertThat(filter.accept("cxd"), is(true));
+        assertThat(filter.accept("e"), is(false));
+        assertThat(filter.accept("KEEP.abc"), is(true));
+    }
+
+    @Test
+    public void testUncombinable() {
+        // Comments that would swallow the rest of the alternation, and named groups defined more than once.
+        Collection<String> blacklist = Arrays.asList("(?x) foo # comment", "bar", "(?<n>baz)", "(?<n>qux)", "(?i:quux)");
+        assertThat(Filter.compile(blacklist).size(), is(4));
+
+        Filter filter = newFilter(Collections.<String>emptyList(), blacklist);
+        assertThat(filter.accept("foo"), is(false));
+        assertThat(filter.accept("bar"), is(false));
+        assertThat(filter.accept("baz"), is(false));
+        assertThat(filter.accept("qux"), is(false));
+        assertThat(filter.accept("QUUX"), is(false));
+        assertThat(filter.accept("BAR"), is(true));
+        assertThat(filter.accept("foo # comment"), is(true));
+
+        // Flags of one pattern don't leak into the others of an alternation.
+        filter = newFilter(Collections.<String>emptyList(), Arrays.asList("(?i)a.*", "b.*"));
+        assertThat(filter.accept("A1"), is(false));
+        assertThat(filter.accept("B1"), is(true));
+    }
+
+    @Test
+    public void testReload() {
+        Filter filter = newFilter(Collections.<String>emptyList(), Arrays.asList(".*1MinuteRate$"));
+        SeriesName rate = new SeriesName("cassandra.db1.Read.1MinuteRate");
+        SeriesName count = new SeriesName("cassandra.db1.Read.Count");
+
+        assertThat(filter.accept(rate), is(false));
+        assertThat(filter.accept(count), is(true));
+
+        // Memoized decisions are those of the lists at the time; Reloading invalidates them.
+        filter.reload(newConfig(Collections.<String>emptyList(), Arrays.asList(".*Count$")));
+        assertThat(filter.accept(rate), is(true));
+        assertThat(filter.accept(count), is(false));
+        assertThat(filter.accept("cassandra.db1.Read.Count"), is(false));
+
+        // An invalid configuration leaves the filter as it was.
+        try {
+            filter.reload(newConfig(Collections.<String>emptyList(), Arrays.asList("[")));
+        }
+        catch (PatternSyntaxException e) {
+            assertThat(filter.accept(count), is(false));
+            return;
+        }
+        throw new AssertionError("invalid pattern accepted");
+    }
+
+    private static Filter newFilter(Collection<String> whitelist, Collection<String> blacklist) {
+        return new Filter(newConfig(whitelist, blacklist));
+    }
+
+    private static FilterConfig newConfig(Collection<String> whitelist, Collection<String> blacklist) {
+        FilterConfig config = new FilterConfig();
+        config.setWhitelist(whitelist);
+        config.setBlacklist(blacklist);
+        return config;
+    }
+
 }
@@ -0,0 +1,116 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+public class HistogramAggregatorTest {
+
+    private static final String LATENCY = "org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency";
+
+    @Test
+    public void testMerge() throws Exception {
+        ObjectName oName = new ObjectName(LATENCY);
+        HistogramAggregator aggregator = new HistogramAggregator(Percentiles.parse("0.5,0.99"), false, 60000);
+
+        EstimatedHistogram a = new EstimatedHistogram(164);
+        EstimatedHistogram b = new EstimatedHistogram(164);
+        EstimatedHistogram all = new EstimatedHistogram(164);
+        for (int i = 0; i < 100; i++) {
+            a.add(1000 + i);
+            all.add(1000 + i);
+        }
+        for (int i = 0; i < 50; i++) {
+            b.add(100000 + i);
+            all.add(100000 + i);
+        }
+
+        aggregator.contributor("a").add(oName, a.getBuckets(false), 0.001d);
+        aggregator.contributor("b").add(oName, b.getBuckets(false), 0.001d);
+        Map<String, Object> samples = report(aggregator);
+
+        // The percentiles of everything, not of the percentiles of each.
+        assertThat(samples.get("50percentile"), equalTo((Object) (all.percentile(0.5) * 0.001d)));
+        assertThat(samples.get("99percentile"), equalTo((Object) (all.percentile(0.99) * 0.001d)));
+        assertThat(samples.get("min"), equalTo((Object) (all.min() * 0.001d)));
+        assertThat(samples.get("max"), equalTo((Object) (all.max() * 0.001d)));
+
+        // Contributions are dropped with the MBean.
+        aggregator.contributor("b").removed(oName);
+        assertThat(report(aggregator).get("99percentile"), equalTo((Object) (a.percentile(0.99) * 0.001d)));
+        aggregator.contributor("a").reset();
+        assertThat(report(aggregator).isEmpty(), is(true));
+        assertThat(aggregator.size(), is(0));
+    }
+
+    @Test
+    public void testWindowed() throws Exception {
+        ObjectName oName = new ObjectName(LATENCY);
+        HistogramAggregator aggregator = new HistogramAggregator(Percentiles.parse("0.5"), true, 60000);
+        long[] offsets = HistogramDecoder.offsets(91);
+        long[] a = new long[91];
+        long[] b = new long[91];
+
+        a[10] = 100;
+        b[20] = 100;
+        aggregator.contributor("a").add(oName, a, 1.0d);
+        aggregator.contributor("b").add(oName, b, 1.0d);
+        assertThat(report(aggregator).isEmpty(), is(true));
+
+        // Only what was added since; b restarted, so all of its counts are new.
+        a[30] = 10;
+        b[20] = 0;
+        b[40] = 11;
+        aggregator.contributor("a").add(oName, a, 1.0d);
+        aggregator.contributor("b").add(oName, b, 1.0d);
+        assertThat(report(aggregator).get("50percentile"), equalTo((Object) (double) offsets[40]));
+
+        assertThat(report(aggregator).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        ObjectName oName = new ObjectName(LATENCY);
+        HistogramAggregator aggregator = new HistogramAggregator(Percentiles.parse("0.5"), false, 1);
+
+        aggregator.contributor("a").add(oName, new long[] { 0, 1, 0 }, 1.0d);
+        Thread.sleep(10);
+
+        assertThat(report(aggregator).isEmpty(), is(true));
+        assertThat(aggregator.size(), is(0));
+    }
+
+    private static Map<String, Object> report(HistogramAggregator aggregator) {
+        final Map<String, Object> samples = Maps.newHashMap();
+        aggregator.report(new SampleVisitor() {
+            @Override
+            public void visit(JmxSample sample) {
+                samples.put(sample.getMetricName(), sample.getValue());
+            }
+        });
+        return samples;
+    }
+
+}
@@ -0,0 +1,132 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramDecoderTest {
+
+    private static final double[] PERCENTILES = new double[] { 0.5, 0.75, 0.95, 0.98, 0.99 };
+
+    @Test
+    public void testEquivalence() {
+        Random random = new Random(42);
+        HistogramDecoder decoder = new HistogramDecoder(PERCENTILES);
+
+        for (int i = 0; i < 500; i++) {
+            long[] buckets = new long[2 + random.nextInt(160)];
+
+            // Sparse, with an occasional overflow.
+            for (int j = 0; j < buckets.length - 1; j++)
+                if (random.nextInt(4) == 0)
+                    buckets[j] = random.nextInt(1000);
+            if (random.nextInt(10) == 0)
+                buckets[buckets.length - 1] = 1;
+
+            assertDecoded(decoder.decode(buckets), buckets);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        HistogramDecoder decoder = new HistogramDecoder(PERCENTILES);
+        long[] buckets = new long[91];
+        assertDecoded(decoder.decode(buckets), buckets);
+        assertThat(Double.isNaN(decoder.decode(new long[] { 1 })[0]), is(true));
+        assertThat(Double.isNaN(decoder.decode(null)[6]), is(true));
+    }
+
+    @Test
+    public void testOrder() {
+        long[] buckets = new long[] { 0, 5, 0, 5, 0 };
+        double[] result = new HistogramDecoder(0.9, 0.1).decode(buckets);
+
+        // Results are in the order requested.
+        assertThat(result[0], is(4.0d));
+        assertThat(result[1], is(2.0d));
+    }
+
+    @Test
+    public void testBaseline() {
+        HistogramDecoder decoder = new HistogramDecoder(PERCENTILES);
+        long[] previous = new long[] { 0, 5, 2, 0, 0 };
+        long[] buckets = new long[] { 0, 5, 4, 3, 0 };
+
+        // The same as decoding the difference.
+        assertDecoded(decoder.decode(buckets, previous), new long[] { 0, 0, 2, 3, 0 });
+        assertThat(decoder.getCount(), is(5L));
+        assertThat(HistogramDecoder.isReset(buckets, previous), is(false));
+        assertThat(HistogramDecoder.isReset(previous, buckets), is(true));
+        assertThat(HistogramDecoder.isReset(buckets, new long[3]), is(true));
+    }
+
+    @Test
+    public void testReuse() {
+        HistogramDecoder decoder = new HistogramDecoder(PERCENTILES);
+        assertThat(decoder.decode(new long[] { 0, 1, 0 }), sameInstance(decoder.decode(new long[] { 1, 0, 0 })));
+        assertThat(HistogramDecoder.offsets(91), sameInstance(HistogramDecoder.offsets(91)));
+    }
+
+    @Test
+    public void testZeroBucket() {
+        // SSTablesPerReadHistogram (Cassandra 2.2): 164 offsets after a leading 0, plus overflow.
+        EstimatedHistogram sstablesPerRead = new EstimatedHistogram(164, true);
+        for (int i = 0; i < 10; i++)
+            sstablesPerRead.add(0);
+        for (int i = 0; i < 70; i++)
+            sstablesPerRead.add(1);
+        for (int i = 0; i < 15; i++)
+            sstablesPerRead.add(2);
+        for (int i = 0; i < 5; i++)
+            sstablesPerRead.add(3);
+
+        long[] buckets = sstablesPerRead.getBuckets(false);
+        assertThat(buckets.length, is(166));
+        assertThat(buckets[0], is(10L));
+
+        HistogramDecoder decoder = new HistogramDecoder(PERCENTILES);
+        double[] result = decoder.decode(buckets);
+        assertDecoded(result, buckets);
+        assertThat(result[0], is(1.0d));
+        assertThat(result[2], is(2.0d));
+        assertThat(result[4], is(3.0d));
+        assertThat(result[PERCENTILES.length], is(0.0d));
+        assertThat(result[PERCENTILES.length + 1], is(3.0d));
+        assertThat(HistogramDecoder.offsets(166), is(sstablesPerRead.getBucketOffsets()));
+    }
+
+    private static void assertDecoded(double[] result, long[] buckets) {
+        long[] offsets = HistogramDecoder.isZeroBucketed(buckets.length)
+                ? new EstimatedHistogram(buckets.length - 2, true).getBucketOffsets()
+                : new EstimatedHistogram(buckets.length - 1).getBucketOffsets();
+        EstimatedHistogram expected = new EstimatedHistogram(offsets, buckets);
+
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            if (expected.isOverflowed())
+                assertThat(Double.isNaN(result[i]), is(true));
+            else
+                assertThat(result[i], is((double) expected.percentile(PERCENTILES[i])));
+        }
+        assertThat(result[PERCENTILES.length], is((double) expected.min()));
+        assertThat(result[PERCENTILES.length + 1], is((double) expected.max()));
+    }
+
+}
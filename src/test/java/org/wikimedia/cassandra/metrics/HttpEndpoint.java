@@ -0,0 +1,114 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP endpoint that sinks write to, (for testing); Queues up what it decodes of the requests it is sent. Responds
+ * with the statuses it is told to, and as the subclass decides once there are no more.
+ *
+ * @param <T>
+ *            what requests are decoded into
+ */
+abstract class HttpEndpoint<T> implements AutoCloseable {
+
+    private final String path;
+    private final int success;
+    private final HttpServer server;
+    private final BlockingQueue<T> received = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Integer> statuses = new LinkedBlockingQueue<>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * @param path
+     *            the path requests are served from
+     * @param success
+     *            the status of a successful request, (which a queued up status of is no different from)
+     */
+    HttpEndpoint(String path, int success) throws IOException {
+        this.path = path;
+        this.success = success;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.start();
+    }
+
+    URL getUrl() throws IOException {
+        return new URL("http", "localhost", this.server.getAddress().getPort(), this.path);
+    }
+
+    /** Queues up a status to respond with, (to the next request without one). */
+    void respond(int status) {
+        this.statuses.add(status);
+    }
+
+    /** @return the number of requests received */
+    int getRequests() {
+        return this.requests.get();
+    }
+
+    /** Returns the next thing received, waiting up to 5 seconds. */
+    T take() throws InterruptedException {
+        return this.received.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+    }
+
+    /**
+     * Decodes a request, (one without a status queued up).
+     *
+     * @param exchange
+     *            the request
+     * @param into
+     *            where to queue what is decoded
+     * @return the status to respond with
+     */
+    abstract int decode(HttpExchange exchange, BlockingQueue<T> into) throws IOException;
+
+    private void serve(HttpExchange exchange) throws IOException {
+        this.requests.incrementAndGet();
+
+        Integer status = this.statuses.poll();
+        if (status == null || status == this.success)
+            status = decode(exchange, this.received);
+
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+}
@@ -0,0 +1,117 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * An InfluxDB write endpoint, (for testing); Queues up the lines of the (gzipped) requests it is sent. Responds with
+ * the statuses it is told to, and 204 once there are no more. Like Influx, it rejects (with a 400) fields written with
+ * another type than a field of that name and measurement was before.
+ */
+class InfluxServer extends HttpEndpoint<String> {
+
+    /** Field types, by measurement and field key, (accessed from the one server thread). */
+    private final Map<String, Character> fieldTypes = new HashMap<>();
+
+    InfluxServer() throws IOException {
+        super("/write", 204);
+    }
+
+    @Override
+    URL getUrl() throws IOException {
+        return new URL(super.getUrl() + "?db=cassandra");
+    }
+
+    /** Queues up the lines of a request. */
+    @Override
+    int decode(HttpExchange exchange, BlockingQueue<String> into) throws IOException {
+        if (!"gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                || !"cassandra".equals(Splitter.on('=').splitToList(exchange.getRequestURI().getQuery()).get(1)))
+            return 400;
+
+        String body;
+        try (InputStream in = new GZIPInputStream(exchange.getRequestBody())) {
+            body = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        }
+
+        List<String> received = Splitter.on('\n').omitEmptyStrings().splitToList(body);
+        for (String line : received)
+            if (!typesMatch(line))
+                return 400;
+        into.addAll(received);
+
+        return 204;
+    }
+
+    /** Records the type of each field of a line, and returns false if one was written with another before. */
+    private boolean typesMatch(String line) {
+        List<String> parts = split(line, ' ');
+        String measurement = split(parts.get(0), ',').get(0);
+
+        for (String field : split(parts.get(1), ',')) {
+            List<String> keyValue = split(field, '=');
+            String value = keyValue.get(1);
+            char type;
+            if (value.startsWith("\""))
+                type = 's';
+            else if (value.equals("t") || value.equals("f"))
+                type = 'b';
+            else if (value.endsWith("i"))
+                type = 'i';
+            else
+                type = 'f';
+
+            Character previous = this.fieldTypes.put(measurement + ' ' + keyValue.get(0), type);
+            if (previous != null && previous != type)
+                return false;
+        }
+        return true;
+    }
+
+    /** Splits on a separator, (but for those escaped, or quoted). */
+    private static List<String> split(String s, char separator) {
+        List<String> parts = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '"')
+                quoted = !quoted;
+            else if (c == separator && !quoted) {
+                parts.add(s.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(s.substring(start));
+        return parts;
+    }
+
+}
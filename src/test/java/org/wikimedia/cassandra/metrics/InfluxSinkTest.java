@@ -0,0 +1,167 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Optional;
+
+public class InfluxSinkTest {
+
+    private InfluxServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new InfluxServer();
+    }
+
+    @After
+    public void tearDown() {
+        this.server.close();
+    }
+
+    @Test
+    public void test() throws Exception {
+        InfluxSink sink = sink(10, 60000);
+        sink.start();
+
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency", "99percentile", 1.5d));
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency", "count", 42L));
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency", "mean", Double.NaN));
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,name=Pending Flushes", "value", 3));
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=Version", "value", "3.11 \"final\""));
+            writer.visit(new JmxSample(Type.JVM, new ObjectName("java.lang:type=Memory"), "heap_usage", 0.25f, 1000000));
+        }
+        sink.close();
+
+        // One line per MBean; Every (storable) metric a field, and table metrics without a keyspace are "all".
+        assertThat(this.server.take(), is("ColumnFamily,instance=db1,keyspace=ks,name=ReadLatency,scope=tbl 99percentile=1.5,count=42.0 1000000000000000"));
+        assertThat(this.server.take(), is("ColumnFamily,instance=db1,keyspace=all,name=Pending\\ Flushes value=3.0 1000000000000000"));
+        assertThat(this.server.take(), is("Client,instance=db1,name=Version value=\"3.11 \\\"final\\\"\" 1000000000000000"));
+        assertThat(this.server.take(), is("jvm_Memory,instance=db1 heap_usage=0.25 1000000000000000"));
+
+        assertThat(this.server.getRequests(), is(1));
+        assertThat(sink.getSentLines(), is(4L));
+        assertThat(sink.getDroppedLines(), is(0L));
+    }
+
+    @Test
+    public void testFieldTypes() throws Exception {
+        InfluxSink sink = sink(10, 60000);
+        sink.start();
+
+        // Integral and floating gauges, all fields "value" of measurement ColumnFamily.
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=LiveSSTableCount", "value", 12));
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=CompressionRatio", "value", 0.4d));
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=TotalDiskSpaceUsed", "value", 1L << 40));
+        }
+        sink.close();
+
+        assertThat(this.server.take(), is("ColumnFamily,instance=db1,keyspace=ks,name=LiveSSTableCount,scope=tbl value=12.0 1000000000000000"));
+        assertThat(this.server.take(), is("ColumnFamily,instance=db1,keyspace=ks,name=CompressionRatio,scope=tbl value=0.4 1000000000000000"));
+        assertThat(this.server.take(), is("ColumnFamily,instance=db1,keyspace=ks,name=TotalDiskSpaceUsed,scope=tbl value=1.099511627776E12 1000000000000000"));
+        assertThat(sink.getDroppedLines(), is(0L));
+    }
+
+    @Test
+    public void testFlushSize() throws Exception {
+        InfluxSink sink = sink(10, 60000);
+        sink.start();
+
+        try (SampleSink writer = sink.open("db1")) {
+            for (int i = 0; i < 25; i++)
+                writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=Clients" + i, "value", i));
+        }
+        sink.close();
+
+        // Two full batches, and the partial batch of the close.
+        assertThat(this.server.getRequests(), is(3));
+        assertThat(sink.getSentLines(), is(25L));
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        InfluxSink sink = sink(1000, 100);
+        sink.start();
+
+        try {
+            SampleSink writer = sink.open("db1");
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 1));
+            writer.flush();
+
+            // Sent without waiting for the batch to fill (or the sink to close).
+            assertThat(this.server.take(), is("Client,instance=db1,name=connectedNativeClients value=1.0 1000000000000000"));
+        }
+        finally {
+            sink.close();
+        }
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        this.server.respond(400);
+
+        InfluxSink sink = sink(10, 60000);
+        sink.start();
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 1));
+        }
+        sink.close();
+
+        assertThat(this.server.getRequests(), is(1));
+        assertThat(sink.getFailedBatches(), is(1L));
+        assertThat(sink.getDroppedLines(), is(1L));
+        assertThat(this.server.take(), nullValue());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        FilterConfig config = new FilterConfig();
+        config.setBlacklist(Collections.singletonList("influx\\.db1\\..*\\.Client\\.connectedNativeClients\\..*"));
+
+        InfluxSink sink = new InfluxSink("influx", this.server.getUrl(), 10, 60000, "influx", Optional.of(new Filter(config)), 100, SampleRing.Policy.DROP_OLDEST);
+        sink.start();
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 1));
+            writer.visit(sample("org.apache.cassandra.metrics:type=Storage,name=Load", "count", 2));
+        }
+        sink.close();
+
+        assertThat(this.server.take(), is("Storage,instance=db1,name=Load count=2.0 1000000000000000"));
+        assertThat(sink.getSentLines(), is(1L));
+    }
+
+    private InfluxSink sink(int flushSize, long flushInterval) throws Exception {
+        return new InfluxSink("influx", this.server.getUrl(), flushSize, flushInterval, "cassandra", Optional.<Filter>absent(), 100, SampleRing.Policy.DROP_OLDEST);
+    }
+
+    private static JmxSample sample(String oName, String metricName, Object value) throws Exception {
+        return new JmxSample(Type.CASSANDRA, new ObjectName(oName), metricName, value, 1000000);
+    }
+
+}
@@ -0,0 +1,218 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class JmxCollectorTest {
+
+    private static final String TIMER = "org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency";
+    private static final String COUNTER = "org.apache.cassandra.metrics:type=Storage,name=Exceptions";
+    private static final String HISTOGRAM = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t,name=EstimatedRowSizeHistogram";
+    private static final String SYSTEM = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=system,scope=local,name=Foo";
+
+    private MBeanServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = MBeanServerFactory.newMBeanServer();
+        FakeMetrics.registerTimer(this.server, TIMER);
+        FakeMetrics.registerCounter(this.server, COUNTER, 42);
+        FakeMetrics.registerGauge(this.server, HISTOGRAM, new long[] { 0, 2, 0, 0 });
+        FakeMetrics.registerCounter(this.server, SYSTEM, 1);
+    }
+
+    @Test
+    public void test() throws Exception {
+        Map<String, Object> samples = collect(new JmxCollector(this.server));
+
+        assertThat(samples.size(), is(23));
+        assertThat(samples.get(COUNTER + "/count"), equalTo((Object) 42L));
+        assertThat(samples.get(TIMER + "/999percentile"), equalTo((Object) 1.0d));
+        assertThat(samples.get(TIMER + "/15MinuteRate"), equalTo((Object) 1.0d));
+        assertThat(samples.get(HISTOGRAM + "/50percentile"), equalTo((Object) 2.0d));
+        assertThat(samples.get(HISTOGRAM + "/min"), equalTo((Object) 2.0d));
+        assertThat(samples.get(HISTOGRAM + "/max"), equalTo((Object) 2.0d));
+        assertThat(samples.containsKey(SYSTEM + "/count"), is(false));
+    }
+
+    @Test
+    public void testRoundTrips() throws Exception {
+        JmxCollector collector = new JmxCollector(this.server);
+        collect(collector);
+
+        // Subscribe to (un)registration notifications, query, and one bulk attribute read per (interesting) MBean.
+        assertThat(collector.getRoundTrips(), is(5L));
+
+        // ...and afterward, only the attribute reads (the count is cumulative until the next getSamples()).
+        collect(collector);
+        assertThat(collector.getRoundTrips(), is(5L + 3L));
+    }
+
+    @Test
+    public void testInventory() throws Exception {
+        JmxCollector collector = new JmxCollector(this.server);
+        collect(collector);
+
+        String added = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t2,name=LiveSSTableCount";
+        FakeMetrics.registerGauge(this.server, added, 1);
+        this.server.unregisterMBean(new ObjectName(COUNTER));
+
+        Map<String, Object> samples = collect(collector);
+
+        assertThat(samples.get(added + "/value"), equalTo((Object) 1));
+        assertThat(samples.containsKey(COUNTER + "/count"), is(false));
+        assertThat(collector.getInventory().getResyncs(), is(1L));
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        int count = JmxCollector.MBEANS_PER_WORKER * 3;
+        for (int i = 0; i < count; i++)
+            FakeMetrics.registerCounter(this.server, "org.apache.cassandra.metrics:type=ThreadPools,scope=Pool" + i + ",name=Tasks", i);
+
+        JmxCollector sequential = new JmxCollector(this.server);
+        JmxCollector parallel = new JmxCollector(this.server, 8);
+
+        // Scaled to the size of the instance, not the maximum.
+        assertThat(parallel.workersFor(count + 3), is(4));
+
+        assertThat(collect(parallel), equalTo(collect(sequential)));
+
+        // The workers are kept for later collections, (never more than the maximum, however many collections).
+        for (int i = 0; i < 3; i++)
+            assertThat(collect(parallel), equalTo(collect(sequential)));
+        assertThat(workerThreads() <= 8, is(true));
+        parallel.close();
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        EstimatedHistogram histogram = new EstimatedHistogram(164);
+        for (int i = 0; i < 99; i++)
+            histogram.add(1000000);
+        histogram.add(10000000);
+        long[] buckets = histogram.getBuckets(false);
+
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        String histogramName = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t,name=SSTablesPerReadHistogram";
+        FakeMetrics.registerTimer(server, TIMER, buckets);
+        FakeMetrics.registerHistogram(server, histogramName, buckets);
+
+        JmxCollector collector = new JmxCollector(server);
+        collector.setFetchPlan(new FetchPlan(Optional.<Filter>absent(), "", Percentiles.parse("0.5,0.99,0.9999")));
+        Map<String, Object> samples = collect(collector);
+
+        // Bucket offsets of timers are in nanoseconds, and (in this case) reported in microseconds.
+        assertThat(samples.get(TIMER + "/50percentile"), equalTo((Object) (histogram.percentile(0.5) / 1000.0d)));
+        assertThat(samples.get(TIMER + "/9999percentile"), equalTo((Object) (histogram.percentile(0.9999) / 1000.0d)));
+        assertThat(samples.get(histogramName + "/99percentile"), equalTo((Object) (double) histogram.percentile(0.99)));
+        assertThat(samples.containsKey(TIMER + "/999percentile"), is(false));
+        assertThat(samples.get(TIMER + "/count"), equalTo((Object) 1L));
+
+        // Subscribe, query, and two reads (attributes, and buckets) each.
+        assertThat(collector.getRoundTrips(), is(2L + 4L));
+    }
+
+    @Test
+    public void testWindowed() throws Exception {
+        String histogramName = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t,name=SSTablesPerReadHistogram";
+        long[] buckets = new long[165];
+        buckets[10] = 100;
+
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        FakeMetrics.registerHistogram(server, histogramName, buckets);
+
+        JmxCollector collector = new JmxCollector(server);
+        collector.setFetchPlan(new FetchPlan(Optional.<Filter>absent(), "", Percentiles.parse("0.5")));
+        collector.setWindowed(true);
+        long[] offsets = HistogramDecoder.offsets(buckets.length);
+
+        // Nothing to report until there is a previous collection to compare to.
+        assertThat(collect(collector).containsKey(histogramName + "/50percentile"), is(false));
+
+        // Only the values added in the interval count.
+        buckets[20] = 300;
+        assertThat(collect(collector).get(histogramName + "/50percentile"), equalTo((Object) (double) offsets[20]));
+
+        // No new values, nothing reported.
+        assertThat(collect(collector).containsKey(histogramName + "/50percentile"), is(false));
+
+        // A restart; Everything is new.
+        buckets[5] = 10;
+        buckets[10] = 0;
+        buckets[20] = 0;
+        assertThat(collect(collector).get(histogramName + "/50percentile"), equalTo((Object) (double) offsets[5]));
+    }
+
+    @Test
+    public void testBucketsFallback() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        FakeMetrics.registerTimer(server, TIMER, null);
+
+        JmxCollector collector = new JmxCollector(server);
+        collector.setFetchPlan(new FetchPlan(Optional.<Filter>absent(), "", Percentiles.parse("0.5,0.9999")));
+        Map<String, Object> samples = collect(collector);
+
+        // No buckets to be had, so Cassandra's percentiles are read instead.
+        assertThat(samples.get(TIMER + "/999percentile"), equalTo((Object) 1.0d));
+        assertThat(samples.containsKey(TIMER + "/9999percentile"), is(false));
+        assertThat(collector.getRoundTrips(), is(2L + 3L));
+
+        // ...and from then on, without asking for buckets first.
+        collect(collector);
+        assertThat(collector.getRoundTrips(), is(2L + 3L + 1L));
+    }
+
+    private static int workerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith("jmx-collector-"))
+                count++;
+        return count;
+    }
+
+    static Map<String, Object> collect(JmxCollector collector) throws Exception {
+        final List<JmxSample> samples = Lists.newArrayList();
+        collector.getCassandraSamples(new SampleVisitor() {
+            @Override
+            public void visit(JmxSample sample) {
+                samples.add(sample);
+            }
+        });
+
+        Map<String, Object> results = Maps.newHashMap();
+        for (JmxSample sample : samples)
+            results.put(sample.getObjectName() + "/" + sample.getMetricName(), sample.getValue());
+        return results;
+    }
+
+}
@@ -0,0 +1,136 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JmxConnectionManagerTest {
+
+    private JMXConnectorServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+        this.server = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://"), null, mbs);
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.stop();
+    }
+
+    @Test
+    public void testPersistent() throws IOException {
+        try (JmxConnectionManager manager = new JmxConnectionManager(this.server.getAddress())) {
+            MBeanServerConnection connection = manager.getConnection();
+            assertThat(manager.getConnection(), sameInstance(connection));
+            assertThat(manager.getConnects(), is(1L));
+        }
+    }
+
+    @Test
+    public void testReconnectOnFailure() throws IOException {
+        try (Manager manager = new Manager(this.server.getAddress())) {
+            MBeanServerConnection connection = manager.getConnection();
+
+            // Simulate the notification sent when the connection to the server fails.
+            manager.handleNotification(newNotification(JMXConnectionNotification.FAILED), manager.connector);
+
+            assertThat(manager.getConnection(), not(sameInstance(connection)));
+            assertThat(manager.getConnects(), is(2L));
+        }
+    }
+
+    @Test
+    public void testStaleNotification() throws IOException {
+        try (JmxConnectionManager manager = new JmxConnectionManager(this.server.getAddress())) {
+            MBeanServerConnection connection = manager.getConnection();
+
+            // Notifications from a connector other than the current one are ignored.
+            manager.handleNotification(newNotification(JMXConnectionNotification.FAILED), new Object());
+
+            assertThat(manager.getConnection(), sameInstance(connection));
+        }
+    }
+
+    @Test
+    public void testBackoff() throws IOException {
+        final JMXServiceURL url = this.server.getAddress();
+        this.server.stop();
+
+        try (JmxConnectionManager manager = new JmxConnectionManager(url, 60000, 60000)) {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    manager.getConnection();
+                    fail("connection to stopped server succeeded");
+                }
+                catch (IOException e) {
+                    // Expected
+                }
+            }
+
+            // The second attempt was short-circuited by the backoff.
+            assertThat(manager.getFailures(), is(1));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testClosed() throws IOException {
+        JmxConnectionManager manager = new JmxConnectionManager(this.server.getAddress());
+        manager.getConnection();
+        manager.close();
+        manager.getConnection();
+    }
+
+    private static JMXConnectionNotification newNotification(String type) {
+        return new JMXConnectionNotification(type, "test", "id", 1, "message", null);
+    }
+
+    /** Remembers the most recently created connector (which is also the notification handback). */
+    private static class Manager extends JmxConnectionManager {
+        private JMXConnector connector;
+
+        Manager(JMXServiceURL jmxUrl) {
+            super(jmxUrl);
+        }
+
+        @Override
+        protected JMXConnector createConnector() throws IOException {
+            this.connector = super.createConnector();
+            return this.connector;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class PercentilesTest {
+
+    @Test
+    public void testNames() {
+        Percentiles percentiles = Percentiles.parse("0.5, 0.75,0.99,0.999,0.9999,0.995");
+
+        assertThat(percentiles.size(), is(6));
+        assertThat(percentiles.getName(0), is("50percentile"));
+        assertThat(percentiles.getName(1), is("75percentile"));
+        assertThat(percentiles.getName(2), is("99percentile"));
+        assertThat(percentiles.getName(3), is("999percentile"));
+        assertThat(percentiles.getName(4), is("9999percentile"));
+        assertThat(percentiles.getName(5), is("995percentile"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        Percentiles.parse("0.5,99");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCollision() {
+        Percentiles.parse("0.999,0.0999");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicate() {
+        Percentiles.parse("0.99,0.99");
+    }
+
+}
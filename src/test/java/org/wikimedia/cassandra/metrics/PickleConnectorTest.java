@@ -0,0 +1,83 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class PickleConnectorTest {
+
+    @Test
+    public void test() throws Exception {
+        try (PickleServer server = new PickleServer()) {
+            String longName = "cassandra." + Strings.repeat("x", 300);
+
+            try (PickleConnector carbon = new PickleConnector("localhost", server.getPort())) {
+                carbon.write("cassandra.metric", 1.5d, 1000000);
+                carbon.write("cassandra.métric", 42L, 1000000);
+                carbon.write(longName, "value", 1000000);
+                carbon.write("cassandra.future", 1, 4000000000L);
+            }
+
+            assertSample(server.take(), "cassandra.metric", 1000000, 1.5d);
+            assertSample(server.take(), "cassandra.métric", 1000000, 42.0d);
+            assertSample(server.take(), longName, 1000000, "value");
+            assertSample(server.take(), "cassandra.future", 4000000000.0d, 1.0d);
+            assertThat(server.getFrames(), is(1));
+        }
+    }
+
+    @Test
+    public void testFrames() throws Exception {
+        try (PickleServer server = new PickleServer()) {
+            CarbonClient client = new CarbonClient("localhost", server.getPort(), CarbonProtocol.PICKLE, 1024 * 1024);
+            client.start();
+
+            // Small batches, (and a name too long to batch at all).
+            String longName = "cassandra." + Strings.repeat("y", 200);
+            try (CarbonConnector carbon = new PickleConnector(client, 128)) {
+                for (int i = 0; i < 50; i++)
+                    carbon.write("cassandra.metric." + i, i, 1000000);
+                carbon.write(longName, 1, 1000000);
+            }
+
+            for (int i = 0; i < 50; i++)
+                assertSample(server.take(), "cassandra.metric." + i, 1000000, (double) i);
+            assertSample(server.take(), longName, 1000000, 1.0d);
+            assertThat(server.getFrames() > 1, is(true));
+
+            client.close();
+        }
+    }
+
+    @Test
+    public void testProtocol() throws Exception {
+        assertThat(CarbonProtocol.parse("Pickle"), is(CarbonProtocol.PICKLE));
+        assertThat(CarbonProtocol.PICKLE.getDefaultPort(), is(2004));
+        assertThat(CarbonProtocol.PLAINTEXT.getDefaultPort(), is(2003));
+    }
+
+    private static void assertSample(PickleServer.Sample sample, String name, Object timestamp, Object value) {
+        assertThat(sample.name, equalTo(name));
+        assertThat(sample.timestamp, equalTo(timestamp));
+        assertThat(sample.value, equalTo(value));
+    }
+
+}
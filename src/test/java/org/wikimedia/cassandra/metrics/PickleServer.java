@@ -0,0 +1,181 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+/**
+ * A Carbon pickle receiver, (for testing); Decodes the frames of each connection it accepts, queueing up the
+ * {@code (name, (timestamp, value))} tuples received.
+ */
+class PickleServer implements AutoCloseable {
+
+    /** A decoded tuple. */
+    static class Sample {
+        final String name;
+        final Object timestamp;
+        final Object value;
+
+        Sample(String name, Object timestamp, Object value) {
+            this.name = name;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + name + ", (" + timestamp + ", " + value + "))";
+        }
+    }
+
+    private static final Object MARK = new Object();
+
+    private final ServerSocket server;
+    private final BlockingQueue<Sample> samples = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile int frames = 0;
+
+    PickleServer() throws IOException {
+        this.server = new ServerSocket(0);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        });
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    int getPort() {
+        return this.server.getLocalPort();
+    }
+
+    int getFrames() {
+        return this.frames;
+    }
+
+    /** Returns the next tuple received, waiting up to 5 seconds. */
+    Sample take() throws InterruptedException {
+        return this.samples.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.server.close();
+    }
+
+    private void serve() {
+        while (!this.server.isClosed()) {
+            try (Socket socket = this.server.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    byte[] frame = new byte[in.readInt()];
+                    in.readFully(frame);
+                    // Counted ahead of its samples, (which a test may be waiting on).
+                    this.frames++;
+                    for (Object item : (List<?>) unpickle(ByteBuffer.wrap(frame))) {
+                        Object[] tuple = (Object[]) item;
+                        Object[] point = (Object[]) tuple[1];
+                        this.samples.add(new Sample((String) tuple[0], point[0], point[1]));
+                    }
+                }
+            }
+            catch (EOFException e) {
+                // Connection closed; Accept another.
+            }
+            catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /** Just enough of an unpickler for the opcodes of a (well-behaved) Carbon client. */
+    static Object unpickle(ByteBuffer pickle) {
+        Deque<Object> stack = new ArrayDeque<>();
+
+        while (true) {
+            int op = pickle.get() & 0xff;
+            switch (op) {
+                case 0x80: // PROTO
+                    pickle.get();
+                    break;
+                case ']': // EMPTY_LIST
+                    stack.push(Lists.newArrayList());
+                    break;
+                case '(': // MARK
+                    stack.push(MARK);
+                    break;
+                case 'U': // SHORT_BINSTRING
+                    stack.push(string(pickle, pickle.get() & 0xff));
+                    break;
+                case 'T': // BINSTRING
+                case 'X': // BINUNICODE
+                    stack.push(string(pickle, pickle.order(ByteOrder.LITTLE_ENDIAN).getInt()));
+                    pickle.order(ByteOrder.BIG_ENDIAN);
+                    break;
+                case 'J': // BININT
+                    stack.push(pickle.order(ByteOrder.LITTLE_ENDIAN).getInt());
+                    pickle.order(ByteOrder.BIG_ENDIAN);
+                    break;
+                case 'G': // BINFLOAT
+                    stack.push(pickle.getDouble());
+                    break;
+                case 0x86: { // TUPLE2
+                    Object b = stack.pop();
+                    Object a = stack.pop();
+                    stack.push(new Object[] { a, b });
+                    break;
+                }
+                case 'e': { // APPENDS
+                    List<Object> items = Lists.newArrayList();
+                    Object item;
+                    while ((item = stack.pop()) != MARK)
+                        items.add(0, item);
+                    @SuppressWarnings("unchecked")
+                    List<Object> list = (List<Object>) stack.peek();
+                    list.addAll(items);
+                    break;
+                }
+                case '.': // STOP
+                    return stack.pop();
+                default:
+                    throw new IllegalArgumentException(String.format("unsupported opcode: 0x%02x", op));
+            }
+        }
+    }
+
+    private static String string(ByteBuffer pickle, int length) {
+        byte[] bytes = new byte[length];
+        pickle.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+}
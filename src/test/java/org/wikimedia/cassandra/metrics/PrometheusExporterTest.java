@@ -0,0 +1,180 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+
+public class PrometheusExporterTest {
+
+    private PrometheusExporter exporter;
+
+    @Before
+    public void setUp() throws IOException {
+        this.exporter = new PrometheusExporter(new InetSocketAddress("localhost", 0));
+        this.exporter.start();
+    }
+
+    @After
+    public void tearDown() {
+        this.exporter.close();
+    }
+
+    @Test
+    public void test() throws Exception {
+        assertThat(scrape(false), is(""));
+
+        PrometheusExporter.Collection db1 = collection("db1");
+        db1.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency", "99percentile", 1.5d));
+        db1.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 10));
+        db1.visit(sample("org.apache.cassandra.metrics:type=Client,name=Broken", "value", "not a number"));
+        db1.publish();
+
+        PrometheusExporter.Collection db2 = collection("db2");
+        db2.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency", "99percentile", Double.NaN));
+
+        // Not visible until published.
+        assertThat(this.exporter.getSeries(), is(2));
+        db2.publish();
+
+        String expected =
+                "# TYPE cassandra_Client_value untyped\n" +
+                "cassandra_Client_value{cassandra_instance=\"db1\",name=\"connectedNativeClients\"} 10\n" +
+                "# TYPE cassandra_ColumnFamily_99percentile untyped\n" +
+                "cassandra_ColumnFamily_99percentile{cassandra_instance=\"db1\",keyspace=\"ks\",name=\"ReadLatency\",scope=\"tbl\"} 1.5\n" +
+                "cassandra_ColumnFamily_99percentile{cassandra_instance=\"db2\",keyspace=\"ks\",name=\"ReadLatency\",scope=\"tbl\"} NaN\n";
+
+        // Rendered once per publish, however many scrapes.
+        long renders = this.exporter.getRenders();
+        assertThat(scrape(false), is(expected));
+        assertThat(scrape(true), is(expected));
+        assertThat(this.exporter.getRenders(), is(renders + 1));
+        assertThat(this.exporter.getScrapes(), is(3L));
+        assertThat(this.exporter.getSeries(), is(3));
+
+        // A subsequent collection replaces the last.
+        db1 = collection("db1");
+        db1.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 11));
+        db1.publish();
+        this.exporter.remove("db2");
+
+        assertThat(scrape(false), is(
+                "# TYPE cassandra_Client_value untyped\n" +
+                "cassandra_Client_value{cassandra_instance=\"db1\",name=\"connectedNativeClients\"} 11\n"));
+    }
+
+    @Test
+    public void testRenders() throws Exception {
+        long renders = this.exporter.getRenders();
+
+        // Publishes aren't rendered until scraped, and then all at once.
+        for (int i = 0; i < 20; i++) {
+            PrometheusExporter.Collection db = collection("db" + i);
+            db.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", i));
+            db.publish();
+        }
+        assertThat(this.exporter.getRenders(), is(renders));
+
+        scrape(false);
+        scrape(true);
+        assertThat(this.exporter.getRenders(), is(renders + 1));
+        assertThat(this.exporter.getSeries(), is(20));
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        FilterConfig config = new FilterConfig();
+        config.setBlacklist(Collections.singletonList(".*\\.Client\\..*"));
+
+        PrometheusExporter.Collection db1 = this.exporter.collection("db1", "db1", "cassandra.db1", Optional.of(new Filter(config)));
+        db1.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 10));
+        db1.visit(sample("org.apache.cassandra.metrics:type=Storage,name=Load", "count", 1024L));
+        db1.publish();
+
+        assertThat(scrape(false), is(
+                "# TYPE cassandra_Storage_count untyped\n" +
+                "cassandra_Storage_count{cassandra_instance=\"db1\",name=\"Load\"} 1024\n"));
+    }
+
+    @Test
+    public void testNames() throws Exception {
+        JmxSample sample = new JmxSample(Type.JVM, new ObjectName("java.lang:type=GarbageCollector,name=G1 Young Generation"), "runs", 1, 0);
+        assertThat(PrometheusExporter.familyName(sample), is("jvm_GarbageCollector_runs"));
+
+        PrometheusExporter.Collection db1 = collection("db1");
+        db1.visit(sample);
+        db1.visit(sample("org.apache.cassandra.metrics:type=ThreadPools,path=request,scope=ReadStage,name=PendingTasks", "value", 0));
+        db1.publish();
+
+        assertThat(scrape(false), is(
+                "# TYPE cassandra_ThreadPools_value untyped\n" +
+                "cassandra_ThreadPools_value{cassandra_instance=\"db1\",name=\"PendingTasks\",path=\"request\",scope=\"ReadStage\"} 0\n" +
+                "# TYPE jvm_GarbageCollector_runs untyped\n" +
+                "jvm_GarbageCollector_runs{cassandra_instance=\"db1\",name=\"G1 Young Generation\"} 1\n"));
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertThat(PrometheusExporter.acceptsGzip(null), is(false));
+        assertThat(PrometheusExporter.acceptsGzip(Collections.singletonList("gzip")), is(true));
+        assertThat(PrometheusExporter.acceptsGzip(Collections.singletonList("deflate, GZIP;q=0.5")), is(true));
+        assertThat(PrometheusExporter.acceptsGzip(Collections.singletonList("gzip;q=0")), is(false));
+        assertThat(PrometheusExporter.acceptsGzip(Collections.singletonList("identity")), is(false));
+    }
+
+    private PrometheusExporter.Collection collection(String instance) {
+        return this.exporter.collection(instance, instance, "cassandra." + instance, Optional.<Filter>absent());
+    }
+
+    private String scrape(boolean gzip) throws IOException {
+        InetSocketAddress address = this.exporter.getAddress();
+        URL url = new URL("http", "localhost", address.getPort(), PrometheusExporter.PATH);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (gzip)
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        assertThat(connection.getResponseCode(), is(200));
+        assertThat(connection.getContentType(), is(PrometheusExporter.CONTENT_TYPE));
+        assertThat(connection.getContentEncoding(), is(gzip ? "gzip" : null));
+
+        try (InputStream in = gzip ? new GZIPInputStream(connection.getInputStream()) : connection.getInputStream()) {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        }
+    }
+
+    private static JmxSample sample(String oName, String metricName, Object value) throws Exception {
+        return new JmxSample(Type.CASSANDRA, new ObjectName(oName), metricName, value, 1000000);
+    }
+
+}
@@ -0,0 +1,132 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+import org.xerial.snappy.Snappy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A Prometheus remote-write receiver, (for testing); Decodes the (snappy-compressed, protobuf) requests it is sent,
+ * queueing up the series received. Responds with the statuses it is told to, and 200 once there are no more.
+ */
+class RemoteWriteServer extends HttpEndpoint<RemoteWriteServer.Series> {
+
+    /** A decoded series, (of one sample). */
+    static class Series {
+        final Map<String, String> labels = Maps.newLinkedHashMap();
+        double value;
+        long timestamp;
+
+        @Override
+        public String toString() {
+            return labels + " " + value + " " + timestamp;
+        }
+    }
+
+    RemoteWriteServer() throws IOException {
+        super("/api/v1/write", 200);
+    }
+
+    /** Queues up the series of a request. */
+    @Override
+    int decode(HttpExchange exchange, BlockingQueue<Series> into) throws IOException {
+        if (!"snappy".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                || !"application/x-protobuf".equals(exchange.getRequestHeaders().getFirst("Content-Type")))
+            return 415;
+
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = Snappy.uncompress(ByteStreams.toByteArray(in));
+        }
+        decode(ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN), into);
+
+        return 200;
+    }
+
+    /** Just enough of a protobuf decoder for a WriteRequest. */
+    static void decode(ByteBuffer request, BlockingQueue<Series> into) {
+        while (request.hasRemaining()) {
+            expect(request, 1, 2);
+            ByteBuffer timeSeries = slice(request);
+            Series series = new Series();
+
+            while (timeSeries.hasRemaining()) {
+                int tag = (int) varint(timeSeries);
+                ByteBuffer field = slice(timeSeries);
+                switch (tag) {
+                    case (1 << 3) | 2:
+                        expect(field, 1, 2);
+                        String name = string(field);
+                        expect(field, 2, 2);
+                        series.labels.put(name, string(field));
+                        break;
+                    case (2 << 3) | 2:
+                        expect(field, 1, 1);
+                        series.value = field.order(ByteOrder.LITTLE_ENDIAN).getDouble();
+                        expect(field, 2, 0);
+                        series.timestamp = varint(field);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unexpected tag: " + tag);
+                }
+            }
+
+            into.add(series);
+        }
+    }
+
+    private static void expect(ByteBuffer buffer, int field, int wireType) {
+        int tag = (int) varint(buffer);
+        if (tag != ((field << 3) | wireType))
+            throw new IllegalArgumentException(String.format("expected field %d (type %d), not tag %d", field, wireType, tag));
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer) {
+        int length = (int) varint(buffer);
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static String string(ByteBuffer buffer) {
+        ByteBuffer bytes = slice(buffer);
+        byte[] array = new byte[bytes.remaining()];
+        bytes.get(array);
+        return new String(array, Charsets.UTF_8);
+    }
+
+    private static long varint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class RemoteWriteSinkTest {
+
+    private RemoteWriteServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new RemoteWriteServer();
+    }
+
+    @After
+    public void tearDown() {
+        this.server.close();
+    }
+
+    @Test
+    public void test() throws Exception {
+        RemoteWriteSink sink = sink(10, 2, 0);
+        sink.start();
+
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency", "99percentile", 1.5d));
+            writer.visit(sample("org.apache.cassandra.metrics:type=ColumnFamily,name=ReadLatency", "count", 42L));
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=Broken", "value", "not a number"));
+        }
+
+        Map<String, Map<String, String>> received = takeAll(2);
+        assertThat(received.get("cassandra_ColumnFamily_99percentile"), is((Map<String, String>) ImmutableMap.of(
+                "cassandra_instance", "db1",
+                "keyspace", "ks",
+                "name", "ReadLatency",
+                "scope", "tbl",
+                "__value__", "1.5")));
+
+        // Table metrics without a keyspace are "all", as they are in carbon.
+        assertThat(received.get("cassandra_ColumnFamily_count"), is((Map<String, String>) ImmutableMap.of(
+                "cassandra_instance", "db1",
+                "keyspace", "all",
+                "name", "ReadLatency",
+                "__value__", "42.0")));
+
+        sink.close();
+        assertThat(sink.getSentSamples(), is(2L));
+        assertThat(sink.getDroppedSamples(), is(0L));
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        RemoteWriteSink sink = sink(10, 1, 0);
+        sink.start();
+
+        try (SampleSink writer = sink.open("db1")) {
+            for (int i = 0; i < 25; i++)
+                writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=Clients" + i, "value", i));
+        }
+        sink.close();
+
+        // Two full batches, and the partial batch of the close.
+        assertThat(this.server.getRequests(), is(3));
+        assertThat(takeAll(25).size(), is(25));
+        assertThat(sink.getSentSamples(), is(25L));
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        this.server.respond(503);
+        this.server.respond(500);
+
+        RemoteWriteSink sink = sink(10, 1, 3);
+        sink.start();
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 1));
+        }
+        sink.close();
+
+        assertThat(this.server.take().labels.get("__name__"), is("cassandra_Client_value"));
+        assertThat(this.server.getRequests(), is(3));
+        assertThat(sink.getRetries(), is(2L));
+        assertThat(sink.getSentSamples(), is(1L));
+    }
+
+    @Test
+    public void testCloseTimeout() throws Exception {
+        for (int i = 0; i < 100; i++)
+            this.server.respond(503);
+
+        RemoteWriteSink sink = sink(10, 2, 100);
+        sink.setCloseTimeout(500);
+        sink.start();
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 1));
+        }
+
+        // Shards still retrying once the timeout has passed are interrupted, (rather than waited for in turn).
+        long start = System.currentTimeMillis();
+        sink.close();
+        assertThat(System.currentTimeMillis() - start < 5000, is(true));
+        assertThat(sink.getDroppedSamples(), is(1L));
+        assertThat(sink.getSentSamples(), is(0L));
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        this.server.respond(400);
+
+        RemoteWriteSink sink = sink(10, 1, 3);
+        sink.start();
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 1));
+        }
+        sink.close();
+
+        // Not retried.
+        assertThat(this.server.getRequests(), is(1));
+        assertThat(sink.getFailedBatches(), is(1L));
+        assertThat(sink.getDroppedSamples(), is(1L));
+        assertThat(this.server.take(), nullValue());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        FilterConfig config = new FilterConfig();
+        config.setBlacklist(Collections.singletonList("remote\\.db1\\..*\\.Client\\..*"));
+
+        RemoteWriteSink sink = new RemoteWriteSink("prometheus", this.server.getUrl(), 10, 1, 0, "remote", Optional.of(new Filter(config)), 100, SampleRing.Policy.DROP_OLDEST);
+        sink.start();
+        try (SampleSink writer = sink.open("db1")) {
+            writer.visit(sample("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", 1));
+            writer.visit(sample("org.apache.cassandra.metrics:type=Storage,name=Load", "count", 2));
+        }
+        sink.close();
+
+        assertThat(takeAll(1).keySet().iterator().next(), is("cassandra_Storage_count"));
+        assertThat(sink.getSentSamples(), is(1L));
+    }
+
+    private RemoteWriteSink sink(int batchSize, int shards, int maxRetries) throws Exception {
+        return new RemoteWriteSink("prometheus", this.server.getUrl(), batchSize, shards, maxRetries, "cassandra", Optional.<Filter>absent(), 100, SampleRing.Policy.DROP_OLDEST);
+    }
+
+    /** Takes series from the server, by name; Their labels (but for the name), and value as "__value__". */
+    private Map<String, Map<String, String>> takeAll(int count) throws InterruptedException {
+        Map<String, Map<String, String>> received = Maps.newHashMap();
+        for (int i = 0; i < count; i++) {
+            RemoteWriteServer.Series series = this.server.take();
+            assertThat(series.timestamp, is(1000000000L));
+            String name = series.labels.remove("__name__");
+            series.labels.put("__value__", String.valueOf(series.value));
+            received.put(name + (received.containsKey(name) ? "." + i : ""), series.labels);
+        }
+        return received;
+    }
+
+    private static JmxSample sample(String oName, String metricName, Object value) throws Exception {
+        return new JmxSample(Type.CASSANDRA, new ObjectName(oName), metricName, value, 1000000);
+    }
+
+}
@@ -0,0 +1,179 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class SampleBatchTest {
+
+    private static final String READ_LATENCY = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency";
+    private static final String COMPACTION = "org.apache.cassandra.metrics:type=Compaction,name=Pending Tasks";
+
+    @Test
+    public void test() throws Exception {
+        SampleBatch batch = newBatch();
+
+        assertThat(batch.size(), is(5));
+        assertThat(batch.getMetricName(0), is("99percentile"));
+        assertThat(batch.getValue(0), is(1.5d));
+        assertThat(batch.isIntegral(0), is(false));
+        assertThat(batch.getValue(1), is(42.0d));
+        assertThat(batch.isIntegral(1), is(true));
+        assertThat(batch.getObject(1), nullValue());
+        assertThat(batch.isNumeric(3), is(true));
+        assertThat(batch.isNumeric(4), is(false));
+        assertThat(batch.getObject(4), equalTo((Object) "SECONDS"));
+
+        // Boxed as they were added, (or as Long and Double when added as primitives).
+        assertThat(batch.getSample(1).getValue(), instanceOf(Long.class));
+        assertThat(batch.getSample(2).getValue(), instanceOf(Double.class));
+        assertThat(batch.getSample(3).getValue(), equalTo((Object) 7));
+        assertThat(batch.getSample(3).getTimestamp(), equalTo((Number) 1000000));
+
+        batch.reset(Type.CASSANDRA, new ObjectName(COMPACTION), 1000060);
+        assertThat(batch.isEmpty(), is(true));
+        assertThat(batch.getTimestamp(), is(1000060));
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        SampleBatch batch = new SampleBatch().reset(Type.CASSANDRA, new ObjectName(READ_LATENCY), 1000000);
+        for (int i = 0; i < 100; i++)
+            batch.add("m" + i, (long) i);
+
+        assertThat(batch.size(), is(100));
+        for (int i = 0; i < 100; i++) {
+            assertThat(batch.getMetricName(i), is("m" + i));
+            assertThat(batch.getValue(i), is((double) i));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndex() throws Exception {
+        newBatch().getValue(5);
+    }
+
+    @Test
+    public void testUnbatched() throws Exception {
+        final List<JmxSample> samples = Lists.newArrayList();
+        SampleBatch.unbatched(new SampleVisitor() {
+            @Override
+            public void visit(JmxSample sample) {
+                samples.add(sample);
+            }
+        }).visit(newBatch());
+
+        assertThat(samples.size(), is(5));
+        assertThat(samples.get(0).getObjectName(), equalTo(new ObjectName(READ_LATENCY)));
+        assertThat(samples.get(0).getMetricName(), is("99percentile"));
+        assertThat(samples.get(0).getValue(), equalTo((Object) 1.5d));
+        assertThat(samples.get(4).getValue(), equalTo((Object) "SECONDS"));
+    }
+
+    @Test
+    public void testCarbon() throws Exception {
+        // The same lines a batch at a time, as a sample at a time; With or without cached names.
+        String expected = writeCarbon(newBatch(), null, false);
+        assertThat(writeCarbon(newBatch(), null, true), is(expected));
+        assertThat(writeCarbon(newBatch(), new SeriesNames("cassandra.db1"), true), is(expected));
+        assertThat(expected.contains("ReadLatency.Count 42 1000000\n"), is(true));
+    }
+
+    @Test
+    public void testPrecision() throws Exception {
+        long count = (1L << 53) + 1;
+        SampleBatch batch = new SampleBatch().reset(Type.CASSANDRA, new ObjectName(READ_LATENCY), 1000000);
+        batch.add("Count", count);
+        batch.add("Total", (Object) Long.MAX_VALUE);
+
+        assertThat(batch.getLong(0), is(count));
+        assertThat(batch.getLong(1), is(Long.MAX_VALUE));
+        assertThat(batch.getSample(0).getValue(), equalTo((Object) count));
+
+        // Integers beyond 2^53 are written exactly, (batched or not).
+        String expected = "cassandra.db1.org.apache.cassandra.metrics.ColumnFamily.ks.tbl.ReadLatency.Count 9007199254740993 1000000\n"
+                + "cassandra.db1.org.apache.cassandra.metrics.ColumnFamily.ks.tbl.ReadLatency.Total 9223372036854775807 1000000\n";
+        assertThat(writeCarbon(batch, null, true), is(expected));
+        assertThat(writeCarbon(batch, null, false), is(expected));
+    }
+
+    @Test
+    public void testTsv() throws Exception {
+        ByteArrayOutputStream samples = new ByteArrayOutputStream();
+        ByteArrayOutputStream batches = new ByteArrayOutputStream();
+        SampleBatch batch = newBatch();
+
+        SampleBatch.unbatched(new TsvVisitor(new PrintStream(samples, true, "UTF-8"), "cassandra.db1")).visit(batch);
+        new TsvVisitor(new PrintStream(batches, true, "UTF-8"), "cassandra.db1").visit(batch);
+
+        assertThat(batches.toString("UTF-8"), is(samples.toString("UTF-8")));
+    }
+
+    /** Writes a batch to a plaintext connector, (a sample at a time, unless batched); Returns the lines written. */
+    private static String writeCarbon(SampleBatch batch, SeriesNames names, boolean batched) throws Exception {
+        final Socket socket = mock(Socket.class);
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        when(socket.getOutputStream()).thenReturn(byteStream);
+
+        CarbonConnector carbon = new CarbonConnector() {
+            @Override
+            protected Socket createSocket() {
+                return socket;
+            }
+        };
+
+        try (CarbonVisitor visitor = (names != null)
+                ? new CarbonVisitor(carbon, names, Optional.<Filter>absent())
+                : new CarbonVisitor(carbon, "cassandra.db1", Optional.<Filter>absent())) {
+            if (batched)
+                visitor.visit(batch);
+            else
+                SampleBatch.unbatched(visitor).visit(batch);
+        }
+
+        return new String(byteStream.toByteArray(), Charsets.UTF_8);
+    }
+
+    private static SampleBatch newBatch() throws Exception {
+        SampleBatch batch = new SampleBatch().reset(Type.CASSANDRA, new ObjectName(READ_LATENCY), 1000000);
+        batch.add("99percentile", 1.5d);
+        batch.add("Count", 42L);
+        batch.add("OneMinuteRate", 0.000123d);
+        batch.add("Value", (Object) 7);
+        batch.add("DurationUnit", (Object) "SECONDS");
+        return batch;
+    }
+
+}
@@ -0,0 +1,151 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.wikimedia.cassandra.metrics.SampleRingTest.sample;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+
+public class SamplePipelineTest {
+
+    /** Records what it was sent, and when it was flushed. */
+    private static class RecordingSink implements SampleSink {
+        private final List<Object> values = Lists.newArrayList();
+        private final List<Integer> flushes = Lists.newArrayList();
+        private final CountDownLatch gate;
+        private boolean failing = false;
+        private boolean closed = false;
+
+        private RecordingSink(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public synchronized void visit(JmxSample sample) {
+            try {
+                this.gate.await();
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (this.failing)
+                throw new CarbonException("failing");
+            this.values.add(sample.getValue());
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            this.flushes.add(this.values.size());
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.closed = true;
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        final RecordingSink sink = new RecordingSink(new CountDownLatch(0));
+
+        SamplePipeline pipeline = new SamplePipeline("test", new SampleRing(100, SampleRing.Policy.BLOCK), 1, supplier(sink));
+        pipeline.start();
+
+        for (int i = 0; i < 10; i++)
+            pipeline.visit(sample(i));
+        await(pipeline, 10);
+
+        // Flushed, once caught up.
+        for (int i = 0; i < 100 && sink.flushes.isEmpty(); i++)
+            Thread.sleep(10);
+        synchronized (sink) {
+            assertThat(sink.values.size(), is(10));
+            for (int i = 0; i < 10; i++)
+                assertThat(sink.values.get(i), is((Object) i));
+            assertThat(sink.flushes.get(sink.flushes.size() - 1), is(10));
+        }
+
+        pipeline.close();
+        assertThat(sink.closed, is(true));
+        assertThat(pipeline.getDropped(), is(0L));
+    }
+
+    @Test
+    public void testSlowSink() throws Exception {
+        // A sink that is stuck, (until the gate opens); Collection carries on regardless.
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingSink sink = new RecordingSink(gate);
+
+        SamplePipeline pipeline = new SamplePipeline("test", new SampleRing(5, SampleRing.Policy.DROP_OLDEST), 1, supplier(sink));
+        pipeline.start();
+
+        for (int i = 0; i < 20; i++)
+            pipeline.visit(sample(i));
+
+        assertTrue(pipeline.getDepth() <= 5);
+        assertTrue(pipeline.getDropped() > 0);
+
+        gate.countDown();
+        pipeline.close();
+
+        assertThat(pipeline.getEmitted() + pipeline.getDropped(), is(20L));
+        synchronized (sink) {
+            assertThat(sink.values.get(sink.values.size() - 1), is((Object) 19));
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        RecordingSink sink = new RecordingSink(new CountDownLatch(0));
+        sink.failing = true;
+
+        SamplePipeline pipeline = new SamplePipeline("test", new SampleRing(100, SampleRing.Policy.BLOCK), 1, supplier(sink));
+        pipeline.start();
+
+        for (int i = 0; i < 10; i++)
+            pipeline.visit(sample(i));
+        pipeline.close();
+
+        assertThat(pipeline.getErrors(), is(10L));
+        assertThat(pipeline.getEmitted(), is(0L));
+    }
+
+    private static Supplier<SampleSink> supplier(final SampleSink sink) {
+        return new Supplier<SampleSink>() {
+            @Override
+            public SampleSink get() {
+                return sink;
+            }
+        };
+    }
+
+    private static void await(SamplePipeline pipeline, long emitted) throws InterruptedException {
+        for (int i = 0; i < 500 && pipeline.getEmitted() < emitted; i++)
+            TimeUnit.MILLISECONDS.sleep(10);
+        assertThat(pipeline.getEmitted(), is(emitted));
+    }
+
+}
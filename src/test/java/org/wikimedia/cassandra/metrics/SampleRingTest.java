@@ -0,0 +1,149 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+public class SampleRingTest {
+
+    private static final ObjectName CLIENTS = newObjectName("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients");
+
+    @Test
+    public void testTake() throws Exception {
+        SampleRing ring = new SampleRing(4, SampleRing.Policy.BLOCK);
+        JmxSample[] batch = new JmxSample[3];
+
+        assertThat(ring.take(batch, 0, TimeUnit.MILLISECONDS), is(0));
+
+        // Around the end of the ring, and back.
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++)
+                assertThat(ring.put(sample(i)), is(true));
+            assertThat(ring.size(), is(4));
+
+            assertThat(ring.take(batch, 0, TimeUnit.MILLISECONDS), is(3));
+            assertValues(batch, 0, 1, 2);
+            assertThat(ring.take(batch, 0, TimeUnit.MILLISECONDS), is(1));
+            assertValues(batch, 3);
+        }
+
+        assertThat(ring.getDropped(), is(0L));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        SampleRing ring = new SampleRing(3, SampleRing.Policy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++)
+            assertThat(ring.put(sample(i)), is(true));
+
+        JmxSample[] batch = new JmxSample[3];
+        assertThat(ring.take(batch, 0, TimeUnit.MILLISECONDS), is(3));
+        assertValues(batch, 2, 3, 4);
+        assertThat(ring.getDropped(), is(2L));
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        SampleRing ring = new SampleRing(3, SampleRing.Policy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++)
+            assertThat(ring.put(sample(i)), is(i < 3));
+
+        JmxSample[] batch = new JmxSample[3];
+        assertThat(ring.take(batch, 0, TimeUnit.MILLISECONDS), is(3));
+        assertValues(batch, 0, 1, 2);
+        assertThat(ring.getDropped(), is(2L));
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        final SampleRing ring = new SampleRing(2, SampleRing.Policy.BLOCK);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        ring.put(sample(0));
+        ring.put(sample(1));
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ring.put(sample(2));
+                    done.countDown();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+
+        // Waits for room.
+        assertThat(done.await(100, TimeUnit.MILLISECONDS), is(false));
+
+        JmxSample[] batch = new JmxSample[1];
+        assertThat(ring.take(batch, 0, TimeUnit.MILLISECONDS), is(1));
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(ring.size(), is(2));
+        assertThat(ring.getDropped(), is(0L));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        SampleRing ring = new SampleRing(2, SampleRing.Policy.BLOCK);
+        ring.put(sample(0));
+        ring.close();
+
+        // What remains can be taken, but nothing added.
+        assertThat(ring.put(sample(1)), is(false));
+        JmxSample[] batch = new JmxSample[2];
+        assertThat(ring.take(batch, 5, TimeUnit.SECONDS), is(1));
+        assertThat(ring.take(batch, 5, TimeUnit.SECONDS), is(0));
+        assertThat(ring.getDropped(), is(1L));
+    }
+
+    @Test
+    public void testParse() {
+        assertThat(SampleRing.Policy.parse("drop-oldest"), is(SampleRing.Policy.DROP_OLDEST));
+        assertThat(SampleRing.Policy.parse("Block"), is(SampleRing.Policy.BLOCK));
+    }
+
+    static JmxSample sample(int value) {
+        return new JmxSample(Type.CASSANDRA, CLIENTS, "value", value, 1000000);
+    }
+
+    private static ObjectName newObjectName(String name) {
+        try {
+            return new ObjectName(name);
+        }
+        catch (MalformedObjectNameException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void assertValues(JmxSample[] batch, int... values) {
+        for (int i = 0; i < values.length; i++)
+            assertThat(batch[i].getValue(), is((Object) values[i]));
+    }
+
+}
@@ -0,0 +1,108 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.SelectionConfig.Rule;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.Constructor;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class SelectionTest {
+
+    private static final String[] SELECTED = {
+            "org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency",
+            "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t,name=SnapshotsSize",
+            "org.apache.cassandra.metrics:type=ColumnFamily,name=LiveSSTableCount",
+            "org.apache.cassandra.metrics:type=ThreadPools,path=request,scope=ReadStage,name=PendingTasks" };
+
+    private static final String[] REJECTED = {
+            "org.apache.cassandra.metrics:type=Streaming,scope=127.0.0.1,name=IncomingBytes",
+            "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=system,scope=local,name=LiveSSTableCount",
+            "org.apache.cassandra.metrics:type=Keyspace,keyspace=system_auth,name=ReadLatency",
+            "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t,name=ColUpdateTimeDeltaHistogram",
+            "org.apache.cassandra.metrics:type=ColumnFamily,name=SnapshotsSize",
+            "org.apache.cassandra.db:type=StorageService" };
+
+    @Test
+    public void testDefaults() throws Exception {
+        assertSelection(Selection.defaults());
+    }
+
+    @Test
+    public void testConfig() throws Exception {
+        Yaml yaml = new Yaml(new Constructor(SelectionConfig.class));
+        SelectionConfig config = (SelectionConfig) yaml.load(getClass().getResourceAsStream("/selection-test.yaml"));
+
+        assertThat(config.getInclude().size(), is(15));
+        assertSelection(new Selection(config));
+    }
+
+    @Test
+    public void testPattern() throws Exception {
+        Rule rule = new Rule("ColumnFamily", "ks?", null, "Live*");
+        assertThat(
+                Selection.pattern(rule),
+                equalTo(new ObjectName("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks?,name=Live*,*")));
+
+        rule.setExact(true);
+        assertThat(
+                Selection.pattern(rule),
+                equalTo(new ObjectName("org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks?,name=Live*")));
+    }
+
+    @Test
+    public void testNoIncludes() throws Exception {
+        SelectionConfig config = new SelectionConfig();
+        config.setExclude(Lists.newArrayList(new Rule("Streaming", null, null, null)));
+        Selection selection = new Selection(config);
+
+        assertThat(selection.apply(new ObjectName(REJECTED[0])), is(false));
+        assertThat(selection.apply(new ObjectName(REJECTED[1])), is(true));
+        assertThat(selection.apply(new ObjectName(REJECTED[5])), is(false));
+    }
+
+    /** Checks local application of the selection, and that the server-side query agrees with it. */
+    private static void assertSelection(Selection selection) throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        Set<ObjectName> expected = Sets.newHashSet();
+
+        for (String name : SELECTED) {
+            assertThat(name, selection.apply(new ObjectName(name)), is(true));
+            FakeMetrics.registerCounter(server, name, 1);
+            expected.add(new ObjectName(name));
+        }
+
+        for (String name : REJECTED) {
+            assertThat(name, selection.apply(new ObjectName(name)), is(false));
+            FakeMetrics.registerCounter(server, name, 1);
+        }
+
+        assertThat(server.queryNames(selection.getPattern(), selection.getQuery()), equalTo(expected));
+    }
+
+}
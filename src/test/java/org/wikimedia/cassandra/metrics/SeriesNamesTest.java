@@ -0,0 +1,116 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+
+public class SeriesNamesTest {
+
+    private static final JmxSample READ_LATENCY = sample(Type.CASSANDRA, "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency", "99percentile", 1.5d);
+    private static final JmxSample PENDING_FLUSHES = sample(Type.CASSANDRA, "org.apache.cassandra.metrics:type=ColumnFamily,name=Pending Flushes", "value", 3);
+    private static final JmxSample HEAP = sample(Type.JVM, "java.lang:type=Memory", "heap_usage", 0.25d);
+    private static final JmxSample GC = sample(Type.JVM, "java.lang:type=GarbageCollector,name=G1 Young Generation", "runs", 7L);
+
+    @Test
+    public void test() {
+        SeriesNames names = new SeriesNames("cassandra.db1");
+
+        for (JmxSample sample : new JmxSample[] { READ_LATENCY, PENDING_FLUSHES, HEAP, GC }) {
+            SeriesName name = names.get(sample);
+            assertThat(name.getName(), is(CarbonVisitor.metricName(sample, "cassandra.db1")));
+            assertThat(name.getBytes(), equalTo(name.getName().getBytes(Charsets.UTF_8)));
+
+            // Formatted once.
+            assertThat(names.get(sample), sameInstance(name));
+        }
+
+        assertThat(names.get(PENDING_FLUSHES).getName(), is("cassandra.db1.org.apache.cassandra.metrics.ColumnFamily.all.Pending-Flushes.value"));
+        assertThat(names.size(), is(4));
+    }
+
+    @Test
+    public void testEviction() {
+        SeriesNames names = new SeriesNames("cassandra.db1");
+        SeriesName latency = names.get(READ_LATENCY);
+        SeriesName heap = names.get(HEAP);
+
+        names.removed(READ_LATENCY.getObjectName());
+        assertThat(names.size(), is(1));
+        assertThat(names.get(READ_LATENCY), not(sameInstance(latency)));
+        assertThat(names.get(HEAP), sameInstance(heap));
+
+        names.reset();
+        assertThat(names.size(), is(0));
+    }
+
+    @Test
+    public void testVisitor() throws Exception {
+        // The same lines, with or without cached names.
+        String expected = write(null);
+        assertThat(write(new SeriesNames("cassandra.db1")), is(expected));
+        assertThat(expected.startsWith("cassandra.db1.org.apache.cassandra.metrics.ColumnFamily.ks.tbl.ReadLatency.99percentile 1.5 1000000\n"), is(true));
+    }
+
+    /** Writes every sample (twice) to a plaintext connector; Returns the lines written. */
+    private static String write(SeriesNames names) throws Exception {
+        final Socket socket = mock(Socket.class);
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        when(socket.getOutputStream()).thenReturn(byteStream);
+
+        CarbonConnector carbon = new CarbonConnector() {
+            @Override
+            protected Socket createSocket() {
+                return socket;
+            }
+        };
+
+        try (CarbonVisitor visitor = (names != null)
+                ? new CarbonVisitor(carbon, names, Optional.<Filter>absent())
+                : new CarbonVisitor(carbon, "cassandra.db1", Optional.<Filter>absent())) {
+            for (int i = 0; i < 2; i++)
+                for (JmxSample sample : new JmxSample[] { READ_LATENCY, PENDING_FLUSHES, HEAP, GC })
+                    visitor.visit(sample);
+        }
+
+        return new String(byteStream.toByteArray(), Charsets.UTF_8);
+    }
+
+    private static JmxSample sample(Type type, String oName, String metricName, Object value) {
+        try {
+            return new JmxSample(type, new ObjectName(oName), metricName, value, 1000000);
+        }
+        catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
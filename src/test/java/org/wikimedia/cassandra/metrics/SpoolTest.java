@@ -0,0 +1,163 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+public class SpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppend() throws Exception {
+        try (Spool spool = new Spool(folder.getRoot(), 1024 * 1024, 4096)) {
+            assertThat(spool.peek(), nullValue());
+
+            append(spool, "one");
+            append(spool, "two");
+            append(spool, "three");
+            assertThat(spool.getPendingRecords(), is(3L));
+            assertThat(spool.getPendingBytes(), is(11L));
+            assertTrue(spool.getLag() >= 0);
+
+            // Peeked batches remain until committed.
+            assertThat(peek(spool), equalTo("one"));
+            assertThat(peek(spool), equalTo("one"));
+            spool.commit();
+            assertThat(peek(spool), equalTo("two"));
+            spool.commit();
+            assertThat(peek(spool), equalTo("three"));
+            spool.commit();
+
+            assertThat(spool.peek(), nullValue());
+            assertThat(spool.getPendingRecords(), is(0L));
+            assertThat(spool.getReplayedBytes(), is(11L));
+            assertThat(spool.getLag(), is(0L));
+        }
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        try (Spool spool = new Spool(folder.getRoot(), 1024 * 1024, 64)) {
+            // One 40 byte batch to a segment.
+            for (int i = 0; i < 5; i++)
+                append(spool, String.format("%040d", i));
+            assertThat(spool.getSegments(), is(5));
+
+            for (int i = 0; i < 5; i++) {
+                assertThat(peek(spool), equalTo(String.format("%040d", i)));
+                spool.commit();
+            }
+
+            // Segments read in full are deleted, (all but the last).
+            assertThat(spool.peek(), nullValue());
+            assertThat(spool.getSegments(), is(1));
+            assertThat(folder.getRoot().list().length, is(1));
+        }
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        try (Spool spool = new Spool(folder.getRoot(), 128, 64)) {
+            append(spool, String.format("%040d", 0));
+            assertThat(peek(spool), equalTo(String.format("%040d", 0)));
+
+            append(spool, String.format("%040d", 1));
+            append(spool, String.format("%040d", 2));
+
+            // The oldest was evicted to make room; Committing what was peeked from it changes nothing.
+            assertThat(spool.getSegments(), is(2));
+            assertThat(folder.getRoot().list().length, is(2));
+            assertThat(spool.getEvictedRecords(), is(1L));
+            assertThat(spool.getEvictedBytes(), is(40L));
+            spool.commit();
+            assertThat(spool.getPendingRecords(), is(2L));
+
+            assertThat(peek(spool), equalTo(String.format("%040d", 1)));
+        }
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        try (Spool spool = new Spool(folder.getRoot(), 128, 64)) {
+            assertThat(append(spool, String.format("%050d", 0)), is(false));
+            assertThat(spool.getPendingRecords(), is(0L));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() throws Exception {
+        Spool spool = new Spool(folder.getRoot(), 1024 * 1024, 4096);
+        append(spool, "one");
+        spool.close();
+
+        // Not read from the (unmapped) segment.
+        spool.getLag();
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        File directory = folder.getRoot();
+
+        try (Spool spool = new Spool(directory, 1024 * 1024, 4096)) {
+            append(spool, "one");
+            append(spool, "two");
+            append(spool, "three");
+            peek(spool);
+            spool.commit();
+        }
+
+        try (Spool spool = new Spool(directory, 1024 * 1024, 4096)) {
+            assertThat(spool.getPendingRecords(), is(2L));
+            assertThat(spool.getPendingBytes(), is(8L));
+            assertThat(peek(spool), equalTo("two"));
+            spool.commit();
+
+            // Appends continue where the recovered segment left off.
+            append(spool, "four");
+        }
+
+        try (Spool spool = new Spool(directory, 1024 * 1024, 4096)) {
+            assertThat(peek(spool), equalTo("three"));
+            spool.commit();
+            assertThat(peek(spool), equalTo("four"));
+            spool.commit();
+            assertThat(spool.peek(), nullValue());
+        }
+    }
+
+    private static boolean append(Spool spool, String batch) throws Exception {
+        byte[] bytes = batch.getBytes(Charsets.UTF_8);
+        return spool.append(bytes, 0, bytes.length);
+    }
+
+    private static String peek(Spool spool) {
+        return new String(spool.peek(), Charsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,89 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.Constructor;
+
+import com.google.common.collect.Lists;
+
+public class TiersTest {
+
+    private static final String LATENCY = "org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency";
+    private static final String ROW_SIZE = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t,name=EstimatedRowSizeHistogram";
+    private static final String SSTABLES = "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=t,name=LiveSSTableCount";
+
+    @Test
+    public void testTierOf() throws Exception {
+        Tiers tiers = load();
+
+        assertThat(tiers.getTiers().size(), is(2));
+        assertThat(tiers.tierOf(new ObjectName(LATENCY)).getName(), is("fast"));
+        assertThat(tiers.tierOf(new ObjectName(LATENCY)).getInterval(), is(10));
+        assertThat(tiers.tierOf(new ObjectName(ROW_SIZE)).getName(), is("histograms"));
+        assertThat(tiers.tierOf(new ObjectName(SSTABLES)), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateNames() {
+        Tiers.Tier tier = new Tiers.Tier("fast", 10, Selection.defaults());
+        new Tiers(Lists.newArrayList(tier, new Tiers.Tier("fast", 20, Selection.defaults())));
+    }
+
+    @Test
+    public void testCollect() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        FakeMetrics.registerTimer(server, LATENCY);
+        FakeMetrics.registerGauge(server, ROW_SIZE, new long[] { 0, 2, 0, 0 });
+        FakeMetrics.registerGauge(server, SSTABLES, 1);
+
+        Tiers tiers = load();
+
+        // Each MBean is collected by exactly one tier.
+        JmxCollector collector = new JmxCollector(server);
+        collector.setTier(tiers, tiers.getTiers().get(0));
+        Map<String, Object> fast = JmxCollectorTest.collect(collector);
+        assertThat(fast.size(), is(15));
+        assertThat(fast.containsKey(LATENCY + "/99percentile"), is(true));
+
+        collector.setTier(tiers, tiers.getTiers().get(1));
+        Map<String, Object> histograms = JmxCollectorTest.collect(collector);
+        assertThat(histograms.size(), is(7));
+        assertThat(histograms.containsKey(ROW_SIZE + "/max"), is(true));
+
+        collector.setTier(tiers, null);
+        Map<String, Object> standard = JmxCollectorTest.collect(collector);
+        assertThat(standard.size(), is(1));
+        assertThat(standard.containsKey(SSTABLES + "/value"), is(true));
+    }
+
+    private Tiers load() {
+        Yaml yaml = new Yaml(new Constructor(SelectionConfig.class));
+        SelectionConfig config = (SelectionConfig) yaml.load(getClass().getResourceAsStream("/selection-test.yaml"));
+        return Tiers.of(config.getTiers());
+    }
+
+}
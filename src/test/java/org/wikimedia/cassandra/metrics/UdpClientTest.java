@@ -0,0 +1,116 @@
+/* Copyright 2015 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+public class UdpClientTest {
+
+    @Test
+    public void testPlaintext() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0)) {
+            server.setSoTimeout(5000);
+
+            List<String> expected = Lists.newArrayList();
+            try (UdpClient client = new UdpClient("localhost", server.getLocalPort(), CarbonProtocol.PLAINTEXT, 100)) {
+                client.start();
+                try (CarbonConnector carbon = client.connector()) {
+                    for (int i = 0; i < 20; i++) {
+                        carbon.write("cassandra.metric." + i, i, 1000000);
+                        expected.add(String.format("cassandra.metric.%d %d 1000000%n", i, i));
+                    }
+                }
+
+                // Whole lines, packed as tightly as the MTU allows.
+                List<String> received = Lists.newArrayList();
+                StringBuilder all = new StringBuilder();
+                while (all.length() < Joiner.on("").join(expected).length()) {
+                    String datagram = receive(server);
+                    assertTrue(datagram.length() <= 100);
+                    assertTrue(datagram.endsWith("\n"));
+                    received.add(datagram);
+                    all.append(datagram);
+                }
+
+                assertThat(all.toString(), equalTo(Joiner.on("").join(expected)));
+                for (String datagram : received.subList(0, received.size() - 1))
+                    assertTrue(datagram.length() > 100 - "cassandra.metric.19 19 1000000\n".length());
+                assertThat(client.getSent(), is((long) received.size()));
+                assertThat(client.getDropped(), is(0L));
+            }
+        }
+    }
+
+    @Test
+    public void testStatsd() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0)) {
+            server.setSoTimeout(5000);
+
+            try (UdpClient client = new UdpClient("localhost", server.getLocalPort(), CarbonProtocol.STATSD, UdpClient.DEFAULT_MTU)) {
+                try (CarbonConnector carbon = client.connector()) {
+                    carbon.write("cassandra.gauge", 1.5d, 1000000);
+                    carbon.write("cassandra.text", "value", 1000000);
+                    carbon.write("cassandra.negative", -3, 1000000);
+                }
+
+                assertThat(receive(server), equalTo("cassandra.gauge:1.5|g\ncassandra.negative:0|g\ncassandra.negative:-3|g\n"));
+            }
+        }
+    }
+
+    @Test
+    public void testDropped() throws Exception {
+        int port;
+        try (DatagramSocket server = new DatagramSocket(0)) {
+            port = server.getLocalPort();
+        }
+
+        // Nothing listening; Sends fail (once the port is known to be unreachable), but never throw.
+        try (UdpClient client = new UdpClient("localhost", port)) {
+            byte[] line = "cassandra.metric 1 1000000\n".getBytes(Charsets.US_ASCII);
+            for (int i = 0; i < 10; i++) {
+                assertThat(client.send(line, 0, line.length), is(true));
+                Thread.sleep(10);
+            }
+            assertTrue(client.getDropped() > 0);
+            assertThat(client.getSent() + client.getDropped(), is(10L));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPickle() throws Exception {
+        new UdpClient("localhost", 2004, CarbonProtocol.PICKLE, UdpClient.DEFAULT_MTU).close();
+    }
+
+    private static String receive(DatagramSocket server) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), Charsets.UTF_8);
+    }
+
+}